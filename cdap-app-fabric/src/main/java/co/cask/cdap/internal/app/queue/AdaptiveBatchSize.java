@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.internal.app.queue;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The number of entries to dequeue per transaction by a {@link co.cask.cdap.app.queue.QueueReader}. When the
+ * minimum and maximum sizes are different, the size is adjusted based on the transactions that processed the
+ * dequeued entries:
+ *
+ * <ul>
+ *   <li>If a transaction took longer than the target time, the size is reduced proportionally.</li>
+ *   <li>If a transaction failed to commit, the size is halved.</li>
+ *   <li>If a full batch was dequeued, which means there is backlog in the queue, and the transaction took less than
+ *   half of the target time, the size is increased by a quarter.</li>
+ * </ul>
+ *
+ * Updates are only made by the thread that processes the entries, hence no synchronization is needed other than
+ * the size being visible to the dequeuing thread.
+ */
+public final class AdaptiveBatchSize {
+
+  private final int minSize;
+  private final int maxSize;
+  private final long targetNanos;
+  private volatile int size;
+
+  /**
+   * Creates an instance with a fixed size.
+   */
+  public static AdaptiveBatchSize fixed(int size) {
+    return new AdaptiveBatchSize(size, size, size, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Creates an instance that adjusts the size between the given bounds.
+   *
+   * @param initialSize the initial batch size
+   * @param minSize the minimum batch size
+   * @param maxSize the maximum batch size
+   * @param targetTime the target time for a transaction to process a batch
+   * @param unit the unit of the target time
+   */
+  public AdaptiveBatchSize(int initialSize, int minSize, int maxSize, long targetTime, TimeUnit unit) {
+    Preconditions.checkArgument(minSize > 0, "Minimum batch size must be > 0: %s", minSize);
+    Preconditions.checkArgument(minSize <= maxSize, "Minimum batch size %s must not be larger than maximum %s",
+                                minSize, maxSize);
+    Preconditions.checkArgument(targetTime > 0, "Target time must be > 0: %s", targetTime);
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.targetNanos = unit.toNanos(targetTime);
+    this.size = clamp(initialSize);
+  }
+
+  /**
+   * Returns the current batch size.
+   */
+  public int get() {
+    return size;
+  }
+
+  /**
+   * Returns {@code true} if the batch size is adjusted by the transactions outcome.
+   */
+  public boolean isAdaptive() {
+    return minSize < maxSize;
+  }
+
+  /**
+   * Updates the batch size after a transaction committed.
+   *
+   * @param dequeued number of entries dequeued in the transaction
+   * @param txTimeNanos time in nanoseconds from the start of dequeue to the end of commit
+   */
+  public void committed(int dequeued, long txTimeNanos) {
+    if (!isAdaptive()) {
+      return;
+    }
+    int current = size;
+    if (txTimeNanos > targetNanos) {
+      size = clamp((int) ((double) current * targetNanos / txTimeNanos));
+    } else if (dequeued >= current && txTimeNanos < targetNanos / 2) {
+      size = clamp(current + Math.max(1, current / 4));
+    }
+  }
+
+  /**
+   * Updates the batch size after a transaction failed to commit.
+   */
+  public void failed() {
+    if (isAdaptive()) {
+      size = clamp(size / 2);
+    }
+  }
+
+  private int clamp(int size) {
+    return Math.max(minSize, Math.min(maxSize, size));
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("size", size)
+      .add("min", minSize)
+      .add("max", maxSize)
+      .add("targetMillis", TimeUnit.NANOSECONDS.toMillis(targetNanos))
+      .toString();
+  }
+}
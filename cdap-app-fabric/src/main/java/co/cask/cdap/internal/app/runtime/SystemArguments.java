@@ -24,6 +24,7 @@ import co.cask.cdap.common.conf.Constants;
 import co.cask.cdap.common.service.RetryStrategies;
 import co.cask.cdap.common.service.RetryStrategy;
 import co.cask.cdap.common.service.RetryStrategyType;
+import co.cask.cdap.internal.app.queue.AdaptiveBatchSize;
 import co.cask.cdap.logging.appender.LogAppenderInitializer;
 import co.cask.cdap.proto.ProgramType;
 import org.apache.tephra.TxConstants;
@@ -50,6 +51,10 @@ public final class SystemArguments {
   private static final String RETRY_POLICY_MAX_RETRIES = "system." + Constants.Retry.MAX_RETRIES;
   private static final String RETRY_POLICY_DELAY_BASE_MS = "system." + Constants.Retry.DELAY_BASE_MS;
   private static final String RETRY_POLICY_DELAY_MAX_MS = "system." + Constants.Retry.DELAY_MAX_MS;
+  private static final String FLOWLET_BATCH_ADAPTIVE = "system.flowlet.batch.adaptive";
+  private static final String FLOWLET_BATCH_MIN_SIZE = "system.flowlet.batch.min.size";
+  private static final String FLOWLET_BATCH_MAX_SIZE = "system.flowlet.batch.max.size";
+  private static final String FLOWLET_BATCH_TARGET_MS = "system.flowlet.batch.target.ms";
   public static final String TRANSACTION_TIMEOUT = "system.data.tx.timeout";
 
   public static Map<String, String> getLogLevels(Map<String, String> args) {
@@ -253,6 +258,37 @@ public final class SystemArguments {
                          cores != null ? cores : defaultResources.getVirtualCores());
   }
 
+  /**
+   * Returns the {@link AdaptiveBatchSize} for dequeuing inputs of a flowlet batch process method based on
+   * configurations in the given arguments. By default, the batch size is fixed to the given batch size. If adaptive
+   * batch sizing is enabled by setting {@code system.flowlet.batch.adaptive} to {@code true}, the batch size is
+   * adjusted between {@code 1} and the given batch size, targeting a quarter of the transaction timeout for
+   * processing each batch.
+   *
+   * @param args the arguments to use for looking up batch size configurations
+   * @param batchSize the batch size as configured by the {@link co.cask.cdap.api.annotation.Batch} annotation
+   * @param txTimeoutSecs the transaction timeout in seconds
+   */
+  public static AdaptiveBatchSize getFlowletBatchSize(Map<String, String> args, int batchSize, int txTimeoutSecs) {
+    if (!Boolean.parseBoolean(args.get(FLOWLET_BATCH_ADAPTIVE))) {
+      return AdaptiveBatchSize.fixed(batchSize);
+    }
+
+    Integer maxSize = getPositiveInt(args, FLOWLET_BATCH_MAX_SIZE, "maximum flowlet batch size");
+    Integer minSize = getPositiveInt(args, FLOWLET_BATCH_MIN_SIZE, "minimum flowlet batch size");
+    Integer targetMs = getPositiveInt(args, FLOWLET_BATCH_TARGET_MS, "flowlet batch target time");
+
+    int max = maxSize == null ? batchSize : maxSize;
+    int min = minSize == null ? 1 : minSize;
+    if (min > max) {
+      LOG.warn("Ignoring minimum flowlet batch size '{}' from runtime arguments. " +
+                 "It must not be larger than the maximum batch size {}.", min, max);
+      min = max;
+    }
+    long target = targetMs == null ? TimeUnit.SECONDS.toMillis(Math.max(1, txTimeoutSecs)) / 4 : targetMs;
+    return new AdaptiveBatchSize(batchSize, min, max, target, TimeUnit.MILLISECONDS);
+  }
+
   /**
    * Gets a positive integer value from the given map using the given key.
    * If there is no such key or if the value is not positive, returns {@code null}.
@@ -0,0 +1,217 @@
+/*
+ * Copyright © 2014-2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.internal.app.runtime.flow;
+
+import co.cask.cdap.api.annotation.Batch;
+import co.cask.cdap.api.flow.flowlet.Flowlet;
+import co.cask.cdap.api.flow.flowlet.InputContext;
+import co.cask.cdap.app.queue.InputDatum;
+import co.cask.cdap.internal.asm.ByteCodeClassLoader;
+import co.cask.cdap.internal.asm.ClassDefinition;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Represents a {@link ProcessMethod} that invocation is done through a {@link ProcessMethodInvoker} generated by
+ * {@link ProcessMethodInvokerGenerator}, or through reflection if the process method is not accessible from
+ * generated code.
+ *
+ * @param <T> Type of input accepted by this process method.
+ */
+@NotThreadSafe
+public final class DefaultProcessMethod<T> implements ProcessMethod<T> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DefaultProcessMethod.class);
+
+  private final Flowlet flowlet;
+  private final Method method;
+  private final ProcessMethodInvoker invoker;
+  private final boolean hasParam;
+  private final boolean batch;
+  private final boolean needsIterator;
+  private final int maxRetries;
+
+  // The result is reused across invocations, since it is consumed before the next invocation
+  private final DefaultProcessResult<T> result;
+
+  public static <T> DefaultProcessMethod<T> create(Flowlet flowlet, Method method, int maxRetries) {
+    return new DefaultProcessMethod<>(flowlet, method, maxRetries);
+  }
+
+  private DefaultProcessMethod(Flowlet flowlet, Method method, int maxRetries) {
+    this.flowlet = flowlet;
+    this.method = method;
+    this.maxRetries = maxRetries;
+    this.invoker = createInvoker(method);
+    this.result = new DefaultProcessResult<>();
+
+    this.hasParam = method.getGenericParameterTypes().length > 0;
+    this.batch = method.isAnnotationPresent(Batch.class);
+    this.needsIterator = hasParam &&
+      TypeToken.of(method.getGenericParameterTypes()[0]).getRawType().equals(Iterator.class);
+  }
+
+  @Override
+  public boolean needsInput() {
+    return hasParam;
+  }
+
+  @Override
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public ProcessResult<T> invoke(InputDatum<T> input) {
+    T firstEvent = null;
+    try {
+      Preconditions.checkState(!hasParam || input.needProcess(), "Empty input provided to method that needs input.");
+      InputContext inputContext = input.getInputContext();
+
+      if (hasParam) {
+        if (needsIterator) {
+          invoker.invoke(flowlet, input.iterator(), inputContext);
+        } else {
+          for (T event : input) {
+            if (firstEvent == null) {
+              firstEvent = event;
+            }
+            invoker.invoke(flowlet, event, inputContext);
+          }
+        }
+      } else {
+        invoker.invoke(flowlet, null, inputContext);
+      }
+
+      return setResult(input, firstEvent, null);
+    } catch (Throwable t) {
+      return setResult(input, firstEvent, t);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return flowlet.getClass() + "." + method.toString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private ProcessResult<T> setResult(InputDatum<T> input, @Nullable T firstEvent, @Nullable Throwable failureCause) {
+    // If the method has param, then object for the result would be iterator or the first event (batch vs no-batch)
+    T event = null;
+    if (hasParam) {
+      if (batch) {
+        event = (T) input.iterator();
+      } else {
+        event = firstEvent == null ? input.iterator().next() : firstEvent;
+      }
+    }
+    result.set(event, failureCause);
+    return result;
+  }
+
+  /**
+   * Creates a {@link ProcessMethodInvoker} for the given method. A generated one is used whenever possible.
+   */
+  private static ProcessMethodInvoker createInvoker(Method method) {
+    if (ProcessMethodInvokerGenerator.isSupported(method)) {
+      try {
+        ClassDefinition classDefinition = new ProcessMethodInvokerGenerator().generate(method);
+
+        // The ClassLoader of the generated invoker has CDAP system ClassLoader as parent.
+        // The ClassDefinition contains the flowlet classes, which must not be loaded again by that ClassLoader
+        ByteCodeClassLoader classLoader = new ByteCodeClassLoader(ProcessMethodInvoker.class.getClassLoader());
+        classLoader.addClass(classDefinition);
+        return (ProcessMethodInvoker) classLoader.loadClass(classDefinition.getClassName()).newInstance();
+      } catch (Throwable t) {
+        LOG.warn("Failed to generate invoker for process method {}. Using reflection instead.", method, t);
+      }
+    } else {
+      LOG.debug("Process method {} is not public. Using reflection to invoke it.", method);
+    }
+    return new ReflectionProcessMethodInvoker(method);
+  }
+
+  /**
+   * A {@link ProcessMethodInvoker} that calls the process method through reflection.
+   */
+  private static final class ReflectionProcessMethodInvoker implements ProcessMethodInvoker {
+
+    private final Method method;
+    private final int paramCount;
+
+    ReflectionProcessMethodInvoker(Method method) {
+      this.method = method;
+      this.paramCount = method.getParameterTypes().length;
+      if (!method.isAccessible()) {
+        method.setAccessible(true);
+      }
+    }
+
+    @Override
+    public void invoke(Flowlet flowlet, @Nullable Object event, InputContext inputContext) throws Exception {
+      try {
+        if (paramCount == 0) {
+          method.invoke(flowlet);
+        } else if (paramCount == 2) {
+          method.invoke(flowlet, event, inputContext);
+        } else {
+          method.invoke(flowlet, event);
+        }
+      } catch (InvocationTargetException e) {
+        // Throws the exception raised by the process method as is
+        Throwables.propagateIfPossible(e.getCause(), Exception.class);
+        throw e;
+      }
+    }
+  }
+
+  private static final class DefaultProcessResult<V> implements ProcessResult<V> {
+
+    private V event;
+    private Throwable cause;
+
+    void set(V event, Throwable cause) {
+      this.event = event;
+      this.cause = cause;
+    }
+
+    @Override
+    public V getEvent() {
+      return event;
+    }
+
+    @Override
+    public boolean isSuccess() {
+      return cause == null;
+    }
+
+    @Override
+    public Throwable getCause() {
+      return cause;
+    }
+  }
+}
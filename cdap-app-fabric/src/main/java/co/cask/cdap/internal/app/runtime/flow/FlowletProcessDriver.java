@@ -21,20 +21,16 @@ import co.cask.cdap.api.flow.flowlet.FailurePolicy;
 import co.cask.cdap.api.flow.flowlet.FailureReason;
 import co.cask.cdap.api.flow.flowlet.Flowlet;
 import co.cask.cdap.api.flow.flowlet.InputContext;
-import co.cask.cdap.api.metrics.MetricsContext;
 import co.cask.cdap.app.queue.InputDatum;
-import co.cask.cdap.common.conf.Constants;
 import co.cask.cdap.common.logging.LoggingContext;
 import co.cask.cdap.common.logging.LoggingContextAccessor;
 import co.cask.cdap.common.queue.QueueName;
+import co.cask.cdap.internal.app.queue.AdaptiveBatchSize;
 import co.cask.cdap.internal.app.queue.SingleItemQueueReader;
 import co.cask.cdap.internal.app.runtime.DataFabricFacade;
 import co.cask.cdap.security.spi.authorization.UnauthorizedException;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
@@ -62,6 +58,9 @@ final class FlowletProcessDriver extends AbstractExecutionThreadService {
 
   private static final Logger LOG = LoggerFactory.getLogger(FlowletProcessDriver.class);
 
+  // Interval for emitting the events processing and transactions rate of the flowlet instance
+  private static final long EVENTS_RATE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
   private final BasicFlowletContext flowletContext;
   private final DataFabricFacade dataFabricFacade;
   private final Callback txCallback;
@@ -71,6 +70,11 @@ final class FlowletProcessDriver extends AbstractExecutionThreadService {
   private Thread runThread;
   private ExecutorService processExecutor;
 
+  // Only accessed from the process executor thread
+  private long eventsRateStartTime;
+  private long eventsProcessed;
+  private long txCommitted;
+
   FlowletProcessDriver(BasicFlowletContext flowletContext,
                        DataFabricFacade dataFabricFacade,
                        Callback txCallback,
@@ -199,10 +203,31 @@ final class FlowletProcessDriver extends AbstractExecutionThreadService {
             processQueue.offer(entry);
           }
         }
+        gaugeEventsRate();
       }
     };
   }
 
+  /**
+   * Emits the number of events processed and transactions committed per second by this flowlet instance since
+   * the last time they were emitted.
+   */
+  private void gaugeEventsRate() {
+    long now = System.currentTimeMillis();
+    if (eventsRateStartTime == 0L) {
+      eventsRateStartTime = now;
+      return;
+    }
+    long elapsed = now - eventsRateStartTime;
+    if (elapsed >= EVENTS_RATE_INTERVAL_MS) {
+      flowletContext.getProgramMetrics().gauge("process.events.rate", eventsProcessed * 1000 / elapsed);
+      flowletContext.getProgramMetrics().gauge("process.tx.rate", txCommitted * 1000 / elapsed);
+      eventsRateStartTime = now;
+      eventsProcessed = 0L;
+      txCommitted = 0L;
+    }
+  }
+
   /**
    * Invokes to perform dequeue and optionally invoke the user process input / tick method if dequeue gave a non
    * empty result.
@@ -227,6 +252,7 @@ final class FlowletProcessDriver extends AbstractExecutionThreadService {
     // Begin transaction and dequeue
     try {
       TransactionContext txContext = dataFabricFacade.createTransactionContext();
+      long startNanos = System.nanoTime();
       startTx(txContext);
 
       try {
@@ -244,7 +270,7 @@ final class FlowletProcessDriver extends AbstractExecutionThreadService {
         // Call the process method and commit the transaction. The current process entry will put
         // back to queue in the postProcess method (either a retry copy or itself).
         ProcessMethod.ProcessResult<?> result = processMethod.invoke(input);
-        postProcess(processMethodCallback(processQueue, entry, input), txContext, input, result);
+        postProcess(processQueue, entry, txContext, input, result, startNanos);
         return true;
 
       } catch (Throwable t) {
@@ -274,9 +300,12 @@ final class FlowletProcessDriver extends AbstractExecutionThreadService {
 
   /**
    * Process the process result. This method never throws.
+   *
+   * @param startNanos the {@link System#nanoTime()} when the transaction started
    */
-  private void postProcess(ProcessMethodCallback callback, TransactionContext txContext,
-                           InputDatum input, ProcessMethod.ProcessResult result) {
+  private <T> void postProcess(PriorityQueue<FlowletProcessEntry<?>> processQueue, FlowletProcessEntry<T> entry,
+                               TransactionContext txContext, InputDatum<T> input,
+                               ProcessMethod.ProcessResult<?> result, long startNanos) {
     InputContext inputContext = input.getInputContext();
     Throwable failureCause = null;
     FailureReason.Type failureType = FailureReason.Type.IO_ERROR;
@@ -287,6 +316,8 @@ final class FlowletProcessDriver extends AbstractExecutionThreadService {
           input.reclaim();
         }
         txContext.finish();
+        txCommitted++;
+        updateBatchSize(entry, input, System.nanoTime() - startNanos);
       } else {
         failureCause = result.getCause();
         failureType = FailureReason.Type.USER;
@@ -300,6 +331,8 @@ final class FlowletProcessDriver extends AbstractExecutionThreadService {
       }
       try {
         if (result.isSuccess()) {
+          // Commit failed, most likely due to conflict, which is less likely to happen with smaller batches
+          entry.getProcessSpec().getBatchSize().failed();
           txContext.abort();
         }
       } catch (Throwable ex) {
@@ -309,17 +342,34 @@ final class FlowletProcessDriver extends AbstractExecutionThreadService {
 
     try {
       if (failureCause == null) {
-        callback.onSuccess(result.getEvent(), inputContext);
+        onProcessSuccess(processQueue, entry, input, result.getEvent(), inputContext);
       } else {
-        callback.onFailure(result.getEvent(), inputContext,
-                           new FailureReason(failureType, failureCause.getMessage(), failureCause),
-                           createInputAcknowledger(input));
+        onProcessFailure(processQueue, entry, input, result.getEvent(), inputContext,
+                         new FailureReason(failureType, failureCause.getMessage(), failureCause),
+                         createInputAcknowledger(input));
       }
     } catch (Throwable t) {
       LOG.error("Failed to invoke callback.", t);
     }
   }
 
+  /**
+   * Updates the batch size of the given entry after the transaction that processed the given input committed.
+   */
+  private <T> void updateBatchSize(FlowletProcessEntry<T> processEntry, InputDatum<T> input, long txTimeNanos) {
+    AdaptiveBatchSize batchSize = processEntry.getProcessSpec().getBatchSize();
+    if (!batchSize.isAdaptive()) {
+      return;
+    }
+    batchSize.committed(input.size(), txTimeNanos);
+    QueueName inputQueueName = input.getQueueName();
+    if (inputQueueName == null) {
+      flowletContext.getProgramMetrics().gauge("process.batch.size", batchSize.get());
+    } else {
+      flowletContext.getQueueMetrics(inputQueueName.getSimpleName()).gauge("process.batch.size", batchSize.get());
+    }
+  }
+
   private InputAcknowledger createInputAcknowledger(final InputDatum input) {
     return new InputAcknowledger() {
       @Override
@@ -332,92 +382,84 @@ final class FlowletProcessDriver extends AbstractExecutionThreadService {
     };
   }
 
-  private <T> ProcessMethodCallback processMethodCallback(final PriorityQueue<FlowletProcessEntry<?>> processQueue,
-                                                          final FlowletProcessEntry<T> processEntry,
-                                                          final InputDatum<T> input) {
-    // If it is generator flowlet, processCount is 1.
-    final int processedCount = processEntry.getProcessSpec().getProcessMethod().needsInput() ? input.size() : 1;
-
-    return new ProcessMethodCallback() {
-      private final LoadingCache<String, MetricsContext> queueMetricsCollectors = CacheBuilder.newBuilder()
-        .expireAfterAccess(1, TimeUnit.HOURS)
-        .build(new CacheLoader<String, MetricsContext>() {
-          @Override
-          public MetricsContext load(String key) throws Exception {
-            return flowletContext.getProgramMetrics().childContext(Constants.Metrics.Tag.FLOWLET_QUEUE, key);
-          }
-        });
-
-      @Override
-      public void onSuccess(Object object, InputContext inputContext) {
-        try {
-          gaugeEventProcessed(input.getQueueName());
-          txCallback.onSuccess(object, inputContext);
-        } catch (Throwable t) {
-          LOG.error("Exception on onSuccess call: {}", flowletContext, t);
-        } finally {
-          enqueueEntry();
-        }
-      }
+  /**
+   * Called when the process method succeeded and the transaction is committed.
+   */
+  private <T> void onProcessSuccess(PriorityQueue<FlowletProcessEntry<?>> processQueue,
+                                    FlowletProcessEntry<T> processEntry, InputDatum<T> input,
+                                    Object object, InputContext inputContext) {
+    try {
+      gaugeEventProcessed(processEntry, input);
+      txCallback.onSuccess(object, inputContext);
+    } catch (Throwable t) {
+      LOG.error("Exception on onSuccess call: {}", flowletContext, t);
+    } finally {
+      processQueue.offer(processEntry.resetRetry());
+    }
+  }
 
-      @Override
-      public void onFailure(Object inputObject, InputContext inputContext, FailureReason reason,
-                            InputAcknowledger inputAcknowledger) {
+  /**
+   * Called when either the process method or the transaction failed.
+   */
+  private <T> void onProcessFailure(PriorityQueue<FlowletProcessEntry<?>> processQueue,
+                                    FlowletProcessEntry<T> processEntry, InputDatum<T> input,
+                                    Object inputObject, InputContext inputContext, FailureReason reason,
+                                    InputAcknowledger inputAcknowledger) {
 
-        LOG.warn("Process failure: {}, {}, input: {}", flowletContext, reason.getMessage(), input, reason.getCause());
-        FailurePolicy failurePolicy;
-        try {
-          flowletContext.getProgramMetrics().increment("process.errors", 1);
-          failurePolicy = txCallback.onFailure(inputObject, inputContext, reason);
-          if (failurePolicy == null) {
-            failurePolicy = FailurePolicy.RETRY;
-            LOG.info("Callback returns null for failure policy. Default to {}.", failurePolicy);
-          }
-        } catch (Throwable t) {
-          LOG.error("Exception on onFailure call: {}", flowletContext, t);
-          failurePolicy = FailurePolicy.RETRY;
-        }
+    LOG.warn("Process failure: {}, {}, input: {}", flowletContext, reason.getMessage(), input, reason.getCause());
+    FailurePolicy failurePolicy;
+    try {
+      flowletContext.getProgramMetrics().increment("process.errors", 1);
+      failurePolicy = txCallback.onFailure(inputObject, inputContext, reason);
+      if (failurePolicy == null) {
+        failurePolicy = FailurePolicy.RETRY;
+        LOG.info("Callback returns null for failure policy. Default to {}.", failurePolicy);
+      }
+    } catch (Throwable t) {
+      LOG.error("Exception on onFailure call: {}", flowletContext, t);
+      failurePolicy = FailurePolicy.RETRY;
+    }
 
-        if (input.getRetry() >= processEntry.getProcessSpec().getProcessMethod().getMaxRetries()) {
-          LOG.info("Too many retries, ignores the input: {}", input);
-          failurePolicy = FailurePolicy.IGNORE;
-        }
+    if (input.getRetry() >= processEntry.getProcessSpec().getProcessMethod().getMaxRetries()) {
+      LOG.info("Too many retries, ignores the input: {}", input);
+      failurePolicy = FailurePolicy.IGNORE;
+    }
 
-        if (failurePolicy == FailurePolicy.RETRY) {
-          FlowletProcessEntry retryEntry = processEntry.isRetry() ?
-            processEntry :
-            FlowletProcessEntry.create(processEntry.getProcessSpec(),
-                                       new ProcessSpecification<>(new SingleItemQueueReader<>(input),
-                                                                   processEntry.getProcessSpec().getProcessMethod(),
-                                                                   null));
-          processQueue.offer(retryEntry);
-
-        } else if (failurePolicy == FailurePolicy.IGNORE) {
-          try {
-            gaugeEventProcessed(input.getQueueName());
-            inputAcknowledger.ack();
-          } catch (Throwable t) {
-            LOG.error("Fatal problem, fail to ack an input: {}", flowletContext, t);
-          } finally {
-            enqueueEntry();
-          }
-        }
-      }
+    if (failurePolicy == FailurePolicy.RETRY) {
+      FlowletProcessEntry retryEntry = processEntry.isRetry() ?
+        processEntry :
+        FlowletProcessEntry.create(processEntry.getProcessSpec(),
+                                   new ProcessSpecification<>(new SingleItemQueueReader<>(input),
+                                                               processEntry.getProcessSpec().getProcessMethod(),
+                                                               null));
+      processQueue.offer(retryEntry);
 
-      private void enqueueEntry() {
+    } else if (failurePolicy == FailurePolicy.IGNORE) {
+      try {
+        gaugeEventProcessed(processEntry, input);
+        inputAcknowledger.ack();
+      } catch (Throwable t) {
+        LOG.error("Fatal problem, fail to ack an input: {}", flowletContext, t);
+      } finally {
         processQueue.offer(processEntry.resetRetry());
       }
+    }
+  }
 
-      private void gaugeEventProcessed(QueueName inputQueueName) {
-        if (processEntry.isTick()) {
-          flowletContext.getProgramMetrics().increment("process.ticks.processed", processedCount);
-        } else if (inputQueueName == null) {
-          flowletContext.getProgramMetrics().increment("process.events.processed", processedCount);
-        } else {
-          queueMetricsCollectors.getUnchecked(inputQueueName.getSimpleName())
-            .increment("process.events.processed", processedCount);
-        }
-      }
-    };
+  private <T> void gaugeEventProcessed(FlowletProcessEntry<T> processEntry, InputDatum<T> input) {
+    // If it is generator flowlet, processCount is 1.
+    int processedCount = processEntry.getProcessSpec().getProcessMethod().needsInput() ? input.size() : 1;
+    QueueName inputQueueName = input.getQueueName();
+    if (processEntry.isTick()) {
+      flowletContext.getProgramMetrics().increment("process.ticks.processed", processedCount);
+    } else if (inputQueueName == null) {
+      flowletContext.getProgramMetrics().increment("process.events.processed", processedCount);
+    } else {
+      flowletContext.getQueueMetrics(inputQueueName.getSimpleName())
+        .increment("process.events.processed", processedCount);
+    }
+    if (!processEntry.isTick()) {
+      eventsProcessed += processedCount;
+    }
   }
 }
@@ -1,29 +0,0 @@
-/*
- * Copyright © 2014 Cask Data, Inc.
- *
- * Licensed under the Apache License, Version 2.0 (the "License"); you may not
- * use this file except in compliance with the License. You may obtain a copy of
- * the License at
- *
- * http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
- * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
- * License for the specific language governing permissions and limitations under
- * the License.
- */
-package co.cask.cdap.internal.app.runtime.flow;
-
-import co.cask.cdap.api.flow.flowlet.FailureReason;
-import co.cask.cdap.api.flow.flowlet.InputContext;
-
-/**
- * Interface to represent callback object for commit result.
- */
-interface ProcessMethodCallback {
-  void onSuccess(Object inputObject, InputContext inputContext);
-
-  void onFailure(Object inputObject, InputContext inputContext,
-                 FailureReason reason, InputAcknowledger inputAcknowledger);
-}
@@ -0,0 +1,169 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.internal.app.runtime.flow;
+
+import co.cask.cdap.api.flow.flowlet.Flowlet;
+import co.cask.cdap.api.flow.flowlet.InputContext;
+import co.cask.cdap.internal.asm.ClassDefinition;
+import co.cask.cdap.internal.asm.Methods;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+/**
+ * A bytecode generator for generating a {@link ProcessMethodInvoker} that calls a flowlet process method
+ * directly instead of through {@link Method#invoke(Object, Object...)}.
+ *
+ * The generated class looks like this:
+ *
+ * <pre>{@code
+ *   public final class GeneratedClassName implements ProcessMethodInvoker {
+ *
+ *     public void invoke(Flowlet flowlet, Object event, InputContext inputContext) throws Exception {
+ *       ((UserFlowlet) flowlet).process((EventType) event, inputContext);
+ *     }
+ *   }
+ * }</pre>
+ */
+final class ProcessMethodInvokerGenerator {
+
+  /**
+   * Returns {@code true} if a direct call to the given method can be generated. The generated class is loaded by a
+   * different {@link ClassLoader} than the flowlet class, hence it can only access public classes and methods.
+   */
+  static boolean isSupported(Method method) {
+    if (!Modifier.isPublic(method.getModifiers()) || Modifier.isStatic(method.getModifiers())
+      || method.getParameterTypes().length > 2 || !isPublic(method.getDeclaringClass())
+      || !isPublic(method.getReturnType())) {
+      return false;
+    }
+    for (Class<?> paramType : method.getParameterTypes()) {
+      if (!isPublic(paramType)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Generates a {@link ProcessMethodInvoker} class for the given process method.
+   *
+   * @param method the process method, which must be supported as determined by {@link #isSupported(Method)}
+   * @return A {@link ClassDefinition} containing information of the newly generated class.
+   */
+  ClassDefinition generate(Method method) {
+    Preconditions.checkArgument(isSupported(method), "Cannot generate direct call to process method %s", method);
+
+    Class<?> flowletClass = method.getDeclaringClass();
+    Class<?>[] paramTypes = method.getParameterTypes();
+
+    // Classes used by the generated class that are loaded by the program ClassLoader
+    List<Class<?>> preservedClasses = Lists.newArrayList();
+    preservedClasses.add(flowletClass);
+    addPreservedClass(method.getReturnType(), preservedClasses);
+    for (Class<?> paramType : paramTypes) {
+      addPreservedClass(paramType, preservedClasses);
+    }
+
+    String internalName = Type.getInternalName(flowletClass);
+    String className = internalName + "$" + method.getName() + Hashing.md5().hashString(method.toString());
+
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    classWriter.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL, className, null,
+                      Type.getInternalName(Object.class),
+                      new String[] { Type.getInternalName(ProcessMethodInvoker.class) });
+
+    // Default constructor
+    org.objectweb.asm.commons.Method constructor = Methods.getMethod(void.class, "<init>");
+    GeneratorAdapter mg = new GeneratorAdapter(Opcodes.ACC_PUBLIC, constructor, null, null, classWriter);
+    mg.loadThis();
+    mg.invokeConstructor(Type.getType(Object.class), constructor);
+    mg.returnValue();
+    mg.endMethod();
+
+    // public void invoke(Flowlet flowlet, Object event, InputContext inputContext) throws Exception
+    mg = new GeneratorAdapter(Opcodes.ACC_PUBLIC,
+                              Methods.getMethod(void.class, "invoke", Flowlet.class, Object.class, InputContext.class),
+                              null, new Type[] { Type.getType(Exception.class) }, classWriter);
+
+    // ((UserFlowlet) flowlet).method([(EventType) event[, (InputContext) inputContext]])
+    mg.loadArg(0);
+    mg.checkCast(Type.getType(flowletClass));
+    for (int i = 0; i < paramTypes.length; i++) {
+      mg.loadArg(i + 1);
+      Type paramType = Type.getType(paramTypes[i]);
+      if (paramTypes[i].isPrimitive()) {
+        mg.unbox(paramType);
+      } else {
+        mg.checkCast(paramType);
+      }
+    }
+    if (flowletClass.isInterface()) {
+      mg.invokeInterface(Type.getType(flowletClass), org.objectweb.asm.commons.Method.getMethod(method));
+    } else {
+      mg.invokeVirtual(Type.getType(flowletClass), org.objectweb.asm.commons.Method.getMethod(method));
+    }
+
+    // Discard the return value, if any
+    Type returnType = Type.getReturnType(method);
+    if (returnType.getSize() == 1) {
+      mg.pop();
+    } else if (returnType.getSize() == 2) {
+      mg.pop2();
+    }
+    mg.returnValue();
+    mg.endMethod();
+
+    classWriter.visitEnd();
+    return new ClassDefinition(classWriter.toByteArray(), className, preservedClasses);
+  }
+
+  private static void addPreservedClass(Class<?> cls, List<Class<?>> preservedClasses) {
+    while (cls.isArray()) {
+      cls = cls.getComponentType();
+    }
+    if (!cls.isPrimitive() && !preservedClasses.contains(cls)) {
+      preservedClasses.add(cls);
+    }
+  }
+
+  /**
+   * Returns {@code true} if the given class, its enclosing classes and its array component type are all public.
+   */
+  private static boolean isPublic(Class<?> cls) {
+    while (cls.isArray()) {
+      cls = cls.getComponentType();
+    }
+    if (cls.isPrimitive()) {
+      return true;
+    }
+    for (Class<?> c = cls; c != null; c = c.getEnclosingClass()) {
+      if (!Modifier.isPublic(c.getModifiers())) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -18,6 +18,7 @@ package co.cask.cdap.internal.app.runtime.flow;
 
 import co.cask.cdap.api.annotation.Tick;
 import co.cask.cdap.app.queue.QueueReader;
+import co.cask.cdap.internal.app.queue.AdaptiveBatchSize;
 import com.google.common.base.Objects;
 
 import java.util.concurrent.TimeUnit;
@@ -31,12 +32,19 @@ final class ProcessSpecification<T> {
   private final ProcessMethod<T> processMethod;
   private final Tick tickAnnotation;
   private final boolean isTick;
+  private final AdaptiveBatchSize batchSize;
 
   ProcessSpecification(QueueReader<T> queueReader, ProcessMethod<T> processMethod, Tick tickAnnotation) {
+    this(queueReader, processMethod, tickAnnotation, AdaptiveBatchSize.fixed(1));
+  }
+
+  ProcessSpecification(QueueReader<T> queueReader, ProcessMethod<T> processMethod, Tick tickAnnotation,
+                       AdaptiveBatchSize batchSize) {
     this.queueReader = queueReader;
     this.processMethod = processMethod;
     this.tickAnnotation = tickAnnotation;
     this.isTick = tickAnnotation != null;
+    this.batchSize = batchSize;
   }
 
   QueueReader<T> getQueueReader() {
@@ -47,6 +55,13 @@ final class ProcessSpecification<T> {
     return processMethod;
   }
 
+  /**
+   * Returns the {@link AdaptiveBatchSize} used by the queue reader of this process method.
+   */
+  AdaptiveBatchSize getBatchSize() {
+    return batchSize;
+  }
+
   long getInitialCallDelay() {
     return isTick ? convertToNano(tickAnnotation.initialDelay(), tickAnnotation.unit()) : 0L;
   }
@@ -72,6 +87,7 @@ final class ProcessSpecification<T> {
     return Objects.toStringHelper(this)
       .add("queue", queueReader)
       .add("method", processMethod)
+      .add("batchSize", batchSize)
       .toString();
   }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.internal.app.queue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link AdaptiveBatchSize}.
+ */
+public class AdaptiveBatchSizeTest {
+
+  private static final long TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  @Test
+  public void testFixed() {
+    AdaptiveBatchSize batchSize = AdaptiveBatchSize.fixed(10);
+    Assert.assertFalse(batchSize.isAdaptive());
+
+    batchSize.committed(10, 1L);
+    batchSize.committed(10, Long.MAX_VALUE);
+    batchSize.failed();
+    Assert.assertEquals(10, batchSize.get());
+  }
+
+  @Test
+  public void testGrow() {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(1, 1, 20, 100, TimeUnit.MILLISECONDS);
+
+    // Not growing if the batch is not full, since there is no backlog
+    batchSize.committed(0, 1L);
+    Assert.assertEquals(1, batchSize.get());
+
+    // Not growing if the transaction is not fast enough
+    batchSize.committed(1, TARGET_NANOS * 3 / 4);
+    Assert.assertEquals(1, batchSize.get());
+
+    // Grows by at least one, then by a quarter, up to the maximum
+    batchSize.committed(1, 1L);
+    Assert.assertEquals(2, batchSize.get());
+    for (int i = 0; i < 20; i++) {
+      batchSize.committed(batchSize.get(), 1L);
+    }
+    Assert.assertEquals(20, batchSize.get());
+  }
+
+  @Test
+  public void testShrink() {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(100, 5, 100, 100, TimeUnit.MILLISECONDS);
+
+    // Shrinks proportionally to the time exceeding the target
+    batchSize.committed(100, TARGET_NANOS * 2);
+    Assert.assertEquals(50, batchSize.get());
+
+    // Halves on failure, down to the minimum
+    batchSize.failed();
+    Assert.assertEquals(25, batchSize.get());
+    batchSize.committed(25, TARGET_NANOS * 100);
+    Assert.assertEquals(5, batchSize.get());
+    batchSize.failed();
+    Assert.assertEquals(5, batchSize.get());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBounds() {
+    new AdaptiveBatchSize(10, 20, 10, 100, TimeUnit.MILLISECONDS);
+  }
+}
@@ -17,10 +17,13 @@
 package co.cask.cdap.internal.app.runtime;
 
 import co.cask.cdap.api.Resources;
+import co.cask.cdap.internal.app.queue.AdaptiveBatchSize;
 import com.google.common.collect.ImmutableMap;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Map;
+
 /**
  * Unit tests for {@link SystemArguments}.
  */
@@ -71,4 +74,45 @@ public class SystemArgumentsTest {
     Assert.assertEquals(defaultResources, resources);
 
   }
+
+  @Test
+  public void testFlowletBatchSize() {
+    // Default is the fixed batch size
+    AdaptiveBatchSize batchSize = SystemArguments.getFlowletBatchSize(ImmutableMap.<String, String>of(), 100, 30);
+    Assert.assertFalse(batchSize.isAdaptive());
+    Assert.assertEquals(100, batchSize.get());
+
+    // Explicitly disabled, the other settings are ignored
+    batchSize = SystemArguments.getFlowletBatchSize(ImmutableMap.of("system.flowlet.batch.adaptive", "false",
+                                                                    "system.flowlet.batch.max.size", "50"), 100, 30);
+    Assert.assertFalse(batchSize.isAdaptive());
+    Assert.assertEquals(100, batchSize.get());
+
+    // Enabled, adaptive between 1 and the batch size
+    batchSize = SystemArguments.getFlowletBatchSize(ImmutableMap.of("system.flowlet.batch.adaptive", "true"), 100, 30);
+    Assert.assertTrue(batchSize.isAdaptive());
+    Assert.assertEquals(100, batchSize.get());
+
+    // Maximum smaller than the batch size caps the initial size
+    batchSize = SystemArguments.getFlowletBatchSize(adaptive("system.flowlet.batch.max.size", "50"), 100, 30);
+    Assert.assertEquals(50, batchSize.get());
+
+    // Minimum equals to maximum is not adaptive, invalid minimum is ignored
+    batchSize = SystemArguments.getFlowletBatchSize(adaptive("system.flowlet.batch.min.size", "100"), 100, 30);
+    Assert.assertFalse(batchSize.isAdaptive());
+    batchSize = SystemArguments.getFlowletBatchSize(adaptive("system.flowlet.batch.min.size", "-1"), 100, 30);
+    Assert.assertTrue(batchSize.isAdaptive());
+
+    // Minimum larger than maximum is capped by the maximum
+    batchSize = SystemArguments.getFlowletBatchSize(adaptive("system.flowlet.batch.min.size", "200"), 100, 30);
+    Assert.assertFalse(batchSize.isAdaptive());
+    Assert.assertEquals(100, batchSize.get());
+  }
+
+  /**
+   * Returns arguments with adaptive flowlet batch size enabled and the given argument.
+   */
+  private Map<String, String> adaptive(String key, String value) {
+    return ImmutableMap.of("system.flowlet.batch.adaptive", "true", key, value);
+  }
 }
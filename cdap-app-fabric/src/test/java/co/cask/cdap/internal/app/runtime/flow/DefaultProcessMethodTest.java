@@ -0,0 +1,222 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.internal.app.runtime.flow;
+
+import co.cask.cdap.api.annotation.Batch;
+import co.cask.cdap.api.flow.flowlet.AbstractFlowlet;
+import co.cask.cdap.api.flow.flowlet.InputContext;
+import co.cask.cdap.app.queue.InputDatum;
+import co.cask.cdap.common.queue.QueueName;
+import com.google.common.collect.ImmutableList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for {@link DefaultProcessMethod} with generated and reflection based invocation.
+ */
+public class DefaultProcessMethodTest {
+
+  @Test
+  public void testIsSupported() throws Exception {
+    Assert.assertTrue(ProcessMethodInvokerGenerator.isSupported(getMethod("process", String.class)));
+    Assert.assertTrue(ProcessMethodInvokerGenerator.isSupported(getMethod("processInt", int.class)));
+    Assert.assertFalse(ProcessMethodInvokerGenerator.isSupported(getMethod("processHidden", String.class)));
+    Assert.assertFalse(ProcessMethodInvokerGenerator.isSupported(
+      PrivateFlowlet.class.getMethod("process", String.class)));
+  }
+
+  @Test
+  public void testInvoke() throws Exception {
+    TestFlowlet flowlet = new TestFlowlet();
+    ListInputDatum<String> input = new ListInputDatum<>(ImmutableList.of("a", "b", "c"));
+
+    // Without and with InputContext, and through reflection for the non-public method
+    invoke(flowlet, getMethod("process", String.class), input, "a");
+    invoke(flowlet, getMethod("processWithContext", String.class, InputContext.class), input, "a");
+    invoke(flowlet, getMethod("processHidden", String.class), input, "a");
+    Assert.assertEquals("abcabcabc", flowlet.processed.toString());
+    Assert.assertEquals(3, flowlet.contextCalls);
+
+    // Batch with Iterator
+    flowlet.processed.setLength(0);
+    DefaultProcessMethod<String> processMethod = DefaultProcessMethod.create(
+      flowlet, getMethod("processBatch", Iterator.class), 0);
+    ProcessMethod.ProcessResult<String> result = processMethod.invoke(input);
+    Assert.assertTrue(result.isSuccess());
+    Assert.assertTrue(((Object) result.getEvent()) instanceof Iterator);
+    Assert.assertEquals("abc", flowlet.processed.toString());
+
+    // Primitive parameter with return value
+    ListInputDatum<Integer> intInput = new ListInputDatum<>(ImmutableList.of(1, 2, 3));
+    DefaultProcessMethod<Integer> intMethod = DefaultProcessMethod.create(
+      flowlet, getMethod("processInt", int.class), 0);
+    Assert.assertTrue(intMethod.invoke(intInput).isSuccess());
+    Assert.assertEquals(6L, flowlet.sum);
+
+    // Generator method without input
+    DefaultProcessMethod<Object> generator = DefaultProcessMethod.create(flowlet, getMethod("generate"), 0);
+    Assert.assertFalse(generator.needsInput());
+    Assert.assertTrue(generator.invoke(new ListInputDatum<>(ImmutableList.of())).isSuccess());
+    Assert.assertEquals(1, flowlet.generated);
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    TestFlowlet flowlet = new TestFlowlet();
+    ListInputDatum<String> input = new ListInputDatum<>(ImmutableList.of("fail"));
+
+    // The failure cause must be the exception thrown by the process method in both generated and reflection call
+    for (String name : ImmutableList.of("process", "processHidden")) {
+      ProcessMethod.ProcessResult<String> result = DefaultProcessMethod.<String>create(
+        flowlet, getMethod(name, String.class), 0).invoke(input);
+      Assert.assertFalse(result.isSuccess());
+      Assert.assertEquals("fail", result.getEvent());
+      Assert.assertTrue(result.getCause() instanceof IllegalArgumentException);
+    }
+  }
+
+  private void invoke(TestFlowlet flowlet, Method method,
+                      ListInputDatum<String> input, String expectedEvent) throws Exception {
+    ProcessMethod.ProcessResult<String> result = DefaultProcessMethod.<String>create(flowlet, method, 0).invoke(input);
+    Assert.assertTrue(result.isSuccess());
+    Assert.assertEquals(expectedEvent, result.getEvent());
+  }
+
+  private Method getMethod(String name, Class<?>... paramTypes) throws NoSuchMethodException {
+    return TestFlowlet.class.getDeclaredMethod(name, paramTypes);
+  }
+
+  /**
+   * Flowlet with different kinds of process methods.
+   */
+  public static final class TestFlowlet extends AbstractFlowlet {
+
+    private final StringBuilder processed = new StringBuilder();
+    private int contextCalls;
+    private long sum;
+    private int generated;
+
+    public void process(String event) {
+      if ("fail".equals(event)) {
+        throw new IllegalArgumentException(event);
+      }
+      processed.append(event);
+    }
+
+    public void processWithContext(String event, InputContext context) {
+      Assert.assertEquals("test", context.getOrigin());
+      contextCalls++;
+      processed.append(event);
+    }
+
+    void processHidden(String event) {
+      process(event);
+    }
+
+    @Batch(10)
+    public void processBatch(Iterator<String> events) {
+      while (events.hasNext()) {
+        processed.append(events.next());
+      }
+    }
+
+    public long processInt(int value) {
+      sum += value;
+      return sum;
+    }
+
+    public void generate() {
+      generated++;
+    }
+  }
+
+  /**
+   * Flowlet that is not accessible from generated code.
+   */
+  static final class PrivateFlowlet extends AbstractFlowlet {
+    public void process(String event) {
+      // no-op
+    }
+  }
+
+  /**
+   * An {@link InputDatum} backed by a list.
+   */
+  private static final class ListInputDatum<T> implements InputDatum<T> {
+
+    private final List<T> events;
+    private final InputContext inputContext = new InputContext() {
+      @Override
+      public String getOrigin() {
+        return "test";
+      }
+
+      @Override
+      public int getRetryCount() {
+        return 0;
+      }
+    };
+
+    ListInputDatum(List<T> events) {
+      this.events = events;
+    }
+
+    @Override
+    public boolean needProcess() {
+      return !events.isEmpty();
+    }
+
+    @Override
+    public void incrementRetry() {
+      // no-op
+    }
+
+    @Override
+    public int getRetry() {
+      return 0;
+    }
+
+    @Override
+    public InputContext getInputContext() {
+      return inputContext;
+    }
+
+    @Override
+    public QueueName getQueueName() {
+      return null;
+    }
+
+    @Override
+    public void reclaim() {
+      // no-op
+    }
+
+    @Override
+    public int size() {
+      return events.size();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return events.iterator();
+    }
+  }
+}
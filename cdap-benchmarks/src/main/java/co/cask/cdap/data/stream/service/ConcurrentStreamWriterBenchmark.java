@@ -0,0 +1,197 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.data.stream.service;
+
+import co.cask.cdap.api.flow.flowlet.StreamEvent;
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.security.DefaultImpersonator;
+import co.cask.cdap.common.security.Impersonator;
+import co.cask.cdap.common.security.UnsupportedUGIProvider;
+import co.cask.cdap.common.utils.DirUtils;
+import co.cask.cdap.data.file.FileWriter;
+import co.cask.cdap.data.stream.InMemoryStreamCoordinatorClient;
+import co.cask.cdap.data.stream.StreamCoordinatorClient;
+import co.cask.cdap.data.stream.StreamFileWriterFactory;
+import co.cask.cdap.data.stream.StreamUtils;
+import co.cask.cdap.data.stream.TimePartitionedStreamFileWriter;
+import co.cask.cdap.data2.transaction.stream.StreamAdmin;
+import co.cask.cdap.data2.transaction.stream.StreamConfig;
+import co.cask.cdap.proto.id.NamespaceId;
+import co.cask.cdap.proto.id.StreamId;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import org.apache.twill.filesystem.LocalLocationFactory;
+import org.apache.twill.filesystem.Location;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@link ConcurrentStreamWriter#enqueue(StreamId, Map, ByteBuffer)} with concurrent writers
+ * appending single events to a stream on the local file system. Besides the number of events, the
+ * {@code megabytes} counter gives the MB/s of event bodies ingested by the stream writer. The {@code directBodies}
+ * parameter compares writing large bodies directly from the request buffers with copying them into the write buffer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentStreamWriterBenchmark {
+
+  private static final StreamId STREAM_ID = NamespaceId.DEFAULT.stream("benchmark");
+  private static final Map<String, String> HEADERS = ImmutableMap.of("k", "v");
+
+  @Param({ "100", "1024", "65536" })
+  private int eventSize;
+
+  @Param({ "true", "false" })
+  private boolean directBodies;
+
+  private File dataDir;
+  private StreamCoordinatorClient coordinatorClient;
+  private ConcurrentStreamWriter streamWriter;
+  private byte[] body;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    dataDir = Files.createTempDir();
+    CConfiguration cConf = CConfiguration.create();
+    Impersonator impersonator = new DefaultImpersonator(cConf, new UnsupportedUGIProvider(), null);
+
+    Location streamLocation = new LocalLocationFactory(dataDir).create(STREAM_ID.getEntityName());
+    streamLocation.mkdirs();
+    StreamConfig streamConfig = new StreamConfig(STREAM_ID, TimeUnit.HOURS.toMillis(1), 10000L, Long.MAX_VALUE,
+                                                 streamLocation, null, 1000);
+
+    coordinatorClient = new InMemoryStreamCoordinatorClient();
+    coordinatorClient.startAndWait();
+    streamWriter = new ConcurrentStreamWriter(coordinatorClient, createStreamAdmin(streamConfig),
+                                              createFileWriterFactory(impersonator),
+                                              Runtime.getRuntime().availableProcessors(),
+                                              new NoopMetricsCollectorFactory(), impersonator);
+    body = new byte[eventSize];
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() throws Exception {
+    streamWriter.close();
+    coordinatorClient.stopAndWait();
+    DirUtils.deleteDirectoryContents(dataDir);
+  }
+
+  @Benchmark
+  public void enqueue(IngestCounters counters) throws Exception {
+    streamWriter.enqueue(STREAM_ID, HEADERS, ByteBuffer.wrap(body));
+    counters.megabytes += (double) body.length / (1024 * 1024);
+  }
+
+  /**
+   * Counters of the data ingested, reported per second.
+   */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class IngestCounters {
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      megabytes = 0;
+    }
+  }
+
+  /**
+   * Creates a {@link StreamFileWriterFactory} same as the {@code LocationStreamFileWriterFactory}, with the
+   * {@code directBodies} parameter deciding if event bodies are copied by the writer.
+   */
+  private StreamFileWriterFactory createFileWriterFactory(final Impersonator impersonator) {
+    return new StreamFileWriterFactory() {
+      @Override
+      public String getFileNamePrefix() {
+        return "file";
+      }
+
+      @Override
+      public FileWriter<StreamEvent> create(StreamConfig config, int generation) throws IOException {
+        Location baseLocation = StreamUtils.createGenerationLocation(config.getLocation(), generation);
+        baseLocation.mkdirs();
+        return new TimePartitionedStreamFileWriter(baseLocation, config.getPartitionDuration(), getFileNamePrefix(),
+                                                   config.getIndexInterval(), config.getFileCompression(),
+                                                   directBodies, config.getStreamId(), impersonator);
+      }
+    };
+  }
+
+  /**
+   * Creates a {@link StreamAdmin} that only knows about the given stream. The stream writer only
+   * calls {@link StreamAdmin#exists(StreamId)} and {@link StreamAdmin#getConfig(StreamId)}.
+   */
+  private StreamAdmin createStreamAdmin(final StreamConfig streamConfig) {
+    return (StreamAdmin) Proxy.newProxyInstance(
+      StreamAdmin.class.getClassLoader(), new Class<?>[] { StreamAdmin.class }, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          switch (method.getName()) {
+            case "exists":
+              return STREAM_ID.equals(args[0]);
+            case "getConfig":
+              return streamConfig;
+            default:
+              throw new UnsupportedOperationException("Method " + method + " is not supported");
+          }
+        }
+      });
+  }
+
+  /**
+   * A {@link StreamMetricsCollectorFactory} that doesn't emit any metrics.
+   */
+  private static final class NoopMetricsCollectorFactory implements StreamMetricsCollectorFactory {
+    @Override
+    public StreamMetricsCollector createMetricsCollector(StreamId streamId) {
+      return new StreamMetricsCollector() {
+        @Override
+        public void emitMetrics(long bytesWritten, long eventsWritten) {
+          // No-op
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.data2.dataset2.lib.table;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.DatasetContext;
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Scanner;
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.common.utils.DirUtils;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTable;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTableService;
+import co.cask.cdap.data2.dataset2.lib.table.leveldb.LevelDBTable;
+import co.cask.cdap.data2.dataset2.lib.table.leveldb.LevelDBTableService;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tephra.TransactionContext;
+import org.apache.tephra.TransactionManager;
+import org.apache.tephra.inmemory.InMemoryTxSystemClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the get/put/scan/increment operations on {@link BufferingTable}, using either the
+ * LevelDB or the in-memory implementation. Each operation runs in its own transaction, which is how
+ * flowlets and workers usually interact with a table.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BufferingTableBenchmark {
+
+  private static final byte[] COLUMN = Bytes.toBytes("c");
+  private static final byte[] COUNTER = Bytes.toBytes("n");
+  private static final int SCAN_ROWS = 100;
+
+  @Param({ "leveldb", "inmemory" })
+  private String backend;
+
+  @Param({ "10000" })
+  private int rows;
+
+  @Param({ "128" })
+  private int valueSize;
+
+  private File dataDir;
+  private LevelDBTableService levelDBTableService;
+  private TransactionManager txManager;
+  private BufferingTable table;
+  private TransactionContext txContext;
+  private byte[][] rowKeys;
+  private byte[] value;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    txManager = new TransactionManager(new Configuration());
+    txManager.startAndWait();
+
+    String tableName = "benchmark";
+    DatasetContext datasetContext = DatasetContext.from("default");
+    CConfiguration cConf = CConfiguration.create();
+    DatasetSpecification spec = DatasetSpecification.builder(tableName, "table").build();
+
+    if ("leveldb".equals(backend)) {
+      dataDir = Files.createTempDir();
+      cConf.set(Constants.CFG_DATA_LEVELDB_DIR, dataDir.getAbsolutePath());
+      levelDBTableService = new LevelDBTableService();
+      levelDBTableService.setConfiguration(cConf);
+      LevelDBTable levelDBTable = new LevelDBTable(datasetContext, tableName, levelDBTableService, cConf, spec);
+      levelDBTableService.ensureTableExists(levelDBTable.getTableName());
+      table = levelDBTable;
+    } else if ("inmemory".equals(backend)) {
+      InMemoryTable inMemoryTable = new InMemoryTable(datasetContext, spec, cConf);
+      InMemoryTableService.create(inMemoryTable.getTableName());
+      table = inMemoryTable;
+    } else {
+      throw new IllegalArgumentException("Unsupported backend " + backend);
+    }
+    txContext = new TransactionContext(new InMemoryTxSystemClient(txManager), table);
+
+    rowKeys = new byte[rows][];
+    for (int i = 0; i < rows; i++) {
+      rowKeys[i] = Bytes.toBytes(String.format("row%08d", i));
+    }
+    value = new byte[valueSize];
+
+    // Pre-populate the table so that reads always hit existing rows
+    txContext.start();
+    for (byte[] rowKey : rowKeys) {
+      table.put(rowKey, COLUMN, value);
+    }
+    txContext.finish();
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() throws Exception {
+    table.close();
+    if (levelDBTableService != null) {
+      levelDBTableService.dropTable(table.getTableName());
+      DirUtils.deleteDirectoryContents(dataDir);
+    } else {
+      InMemoryTableService.drop(table.getTableName());
+    }
+    txManager.stopAndWait();
+  }
+
+  @Benchmark
+  public void put() throws Exception {
+    txContext.start();
+    table.put(nextRow(), COLUMN, value);
+    txContext.finish();
+  }
+
+  @Benchmark
+  public void get(Blackhole blackhole) throws Exception {
+    txContext.start();
+    blackhole.consume(table.get(nextRow(), COLUMN));
+    txContext.finish();
+  }
+
+  @Benchmark
+  public void scan(Blackhole blackhole) throws Exception {
+    int start = next;
+    next = (next + SCAN_ROWS) % (rows - SCAN_ROWS);
+    txContext.start();
+    try (Scanner scanner = table.scan(rowKeys[start], rowKeys[start + SCAN_ROWS])) {
+      Row row = scanner.next();
+      while (row != null) {
+        blackhole.consume(row);
+        row = scanner.next();
+      }
+    }
+    txContext.finish();
+  }
+
+  @Benchmark
+  public void increment() throws Exception {
+    txContext.start();
+    table.increment(nextRow(), COUNTER, 1L);
+    txContext.finish();
+  }
+
+  private byte[] nextRow() {
+    byte[] row = rowKeys[next];
+    next = (next + 1) % rows;
+    return row;
+  }
+}
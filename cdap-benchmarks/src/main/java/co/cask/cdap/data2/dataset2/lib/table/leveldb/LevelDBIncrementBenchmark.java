@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.data2.dataset2.lib.table.leveldb;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.common.utils.DirUtils;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for concurrent {@link LevelDBTableCore#increment(byte[], Map)}, which is how metrics and counters are
+ * updated in standalone CDAP. With a single row all threads contend on the same counter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class LevelDBIncrementBenchmark {
+
+  private static final String TABLE_NAME = "default.benchmark.increment";
+  private static final byte[] COLUMN = Bytes.toBytes("c");
+
+  @Param({ "1", "1000" })
+  private int rows;
+
+  @Param({ "true", "false" })
+  private boolean fsync;
+
+  private File dataDir;
+  private LevelDBTableService tableService;
+  private LevelDBTableCore core;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    dataDir = Files.createTempDir();
+    CConfiguration cConf = CConfiguration.create();
+    cConf.set(Constants.CFG_DATA_LEVELDB_DIR, dataDir.getAbsolutePath());
+    cConf.setBoolean(Constants.CFG_DATA_LEVELDB_FSYNC, fsync);
+    tableService = new LevelDBTableService();
+    tableService.setConfiguration(cConf);
+    tableService.ensureTableExists(TABLE_NAME);
+    core = new LevelDBTableCore(TABLE_NAME, tableService);
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() throws Exception {
+    tableService.dropTable(TABLE_NAME);
+    DirUtils.deleteDirectoryContents(dataDir);
+  }
+
+  @Benchmark
+  public Map<byte[], Long> increment(RowState state) throws Exception {
+    return core.increment(state.nextRow(rows), ImmutableMap.of(COLUMN, 1L));
+  }
+
+  /**
+   * Per thread state for picking the row to increment.
+   */
+  @State(Scope.Thread)
+  public static class RowState {
+    private final Random random = new Random();
+
+    byte[] nextRow(int rows) {
+      return Bytes.toBytes(random.nextInt(rows));
+    }
+  }
+}
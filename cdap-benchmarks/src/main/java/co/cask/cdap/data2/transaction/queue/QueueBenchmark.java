@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.data2.transaction.queue;
+
+import co.cask.cdap.common.queue.QueueName;
+import co.cask.cdap.data2.queue.ConsumerConfig;
+import co.cask.cdap.data2.queue.DequeueResult;
+import co.cask.cdap.data2.queue.DequeueStrategy;
+import co.cask.cdap.data2.queue.QueueConsumer;
+import co.cask.cdap.data2.queue.QueueEntry;
+import co.cask.cdap.data2.queue.QueueProducer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tephra.TransactionAware;
+import org.apache.tephra.TransactionContext;
+import org.apache.tephra.TransactionManager;
+import org.apache.tephra.inmemory.InMemoryTxSystemClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base class for queue benchmarks. Each invocation enqueues a batch of entries in one transaction and
+ * dequeues them back through a FIFO consumer in the next transaction, which is the path a flowlet takes
+ * between two connected flowlets. Scores are reported per queue entry.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public abstract class QueueBenchmark {
+
+  protected static final QueueName QUEUE_NAME = QueueName.fromFlowlet("default", "benchmark", "flow",
+                                                                      "flowlet", "out");
+  private static final int BATCH_SIZE = 100;
+
+  @Param({ "100" })
+  private int entrySize;
+
+  private TransactionManager txManager;
+  private QueueProducer producer;
+  private QueueConsumer consumer;
+  private TransactionContext producerTxContext;
+  private TransactionContext consumerTxContext;
+  private List<QueueEntry> entries;
+
+  /**
+   * Creates the {@link QueueProducer} to benchmark. The returned instance must also be a {@link TransactionAware}.
+   */
+  protected abstract QueueProducer createProducer() throws Exception;
+
+  /**
+   * Creates the {@link QueueConsumer} to benchmark. The returned instance must also be a {@link TransactionAware}.
+   */
+  protected abstract QueueConsumer createConsumer(ConsumerConfig consumerConfig) throws Exception;
+
+  /**
+   * Acquires resources needed by the implementation. It is called before any producer or consumer is created.
+   */
+  protected void init() throws Exception {
+    // No-op by default
+  }
+
+  /**
+   * Releases resources acquired by the implementation.
+   */
+  protected void cleanup() throws Exception {
+    // No-op by default
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    txManager = new TransactionManager(new Configuration());
+    txManager.startAndWait();
+
+    init();
+    producer = createProducer();
+    consumer = createConsumer(new ConsumerConfig(0L, 0, 1, DequeueStrategy.FIFO, null));
+
+    InMemoryTxSystemClient txClient = new InMemoryTxSystemClient(txManager);
+    producerTxContext = new TransactionContext(txClient, (TransactionAware) producer);
+    consumerTxContext = new TransactionContext(txClient, (TransactionAware) consumer);
+
+    entries = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      entries.add(new QueueEntry(new byte[entrySize]));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() throws Exception {
+    producer.close();
+    consumer.close();
+    cleanup();
+    txManager.stopAndWait();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void enqueueDequeue(Blackhole blackhole) throws Exception {
+    producerTxContext.start();
+    producer.enqueue(entries);
+    producerTxContext.finish();
+
+    consumerTxContext.start();
+    DequeueResult<byte[]> result = consumer.dequeue(BATCH_SIZE);
+    for (byte[] data : result) {
+      blackhole.consume(data);
+    }
+    consumerTxContext.finish();
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.data2.transaction.queue.inmemory;
+
+import co.cask.cdap.data2.queue.ConsumerConfig;
+import co.cask.cdap.data2.queue.QueueConsumer;
+import co.cask.cdap.data2.queue.QueueProducer;
+import co.cask.cdap.data2.transaction.queue.QueueBenchmark;
+import co.cask.cdap.data2.transaction.queue.QueueMetrics;
+import com.google.inject.Guice;
+
+/**
+ * {@link QueueBenchmark} for the {@link InMemoryQueue}.
+ */
+public class InMemoryQueueBenchmark extends QueueBenchmark {
+
+  private InMemoryQueueService queueService;
+
+  @Override
+  protected void init() throws Exception {
+    // The constructor is private for Guice injection only
+    queueService = Guice.createInjector().getInstance(InMemoryQueueService.class);
+  }
+
+  @Override
+  protected QueueProducer createProducer() throws Exception {
+    return new InMemoryQueueProducer(QUEUE_NAME, queueService, QueueMetrics.NOOP_QUEUE_METRICS);
+  }
+
+  @Override
+  protected QueueConsumer createConsumer(ConsumerConfig consumerConfig) throws Exception {
+    return new InMemoryQueueConsumer(QUEUE_NAME, consumerConfig, 1, queueService);
+  }
+
+  @Override
+  protected void cleanup() throws Exception {
+    queueService.drop(QUEUE_NAME);
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.data2.transaction.queue.leveldb;
+
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.common.utils.DirUtils;
+import co.cask.cdap.data2.dataset2.lib.table.leveldb.LevelDBTableCore;
+import co.cask.cdap.data2.dataset2.lib.table.leveldb.LevelDBTableService;
+import co.cask.cdap.data2.queue.ConsumerConfig;
+import co.cask.cdap.data2.queue.QueueConsumer;
+import co.cask.cdap.data2.queue.QueueProducer;
+import co.cask.cdap.data2.transaction.queue.QueueBenchmark;
+import co.cask.cdap.data2.transaction.queue.QueueEvictor;
+import co.cask.cdap.data2.transaction.queue.QueueMetrics;
+import com.google.common.io.Files;
+
+import java.io.File;
+
+/**
+ * {@link QueueBenchmark} for the {@link LevelDBQueueProducer} and {@link LevelDBQueueConsumer}.
+ */
+public class LevelDBQueueBenchmark extends QueueBenchmark {
+
+  private static final String TABLE_NAME = "default.system.queue.benchmark.flow";
+
+  private CConfiguration cConf;
+  private File dataDir;
+  private LevelDBTableService tableService;
+
+  @Override
+  protected void init() throws Exception {
+    dataDir = Files.createTempDir();
+    cConf = CConfiguration.create();
+    cConf.set(Constants.CFG_DATA_LEVELDB_DIR, dataDir.getAbsolutePath());
+    tableService = new LevelDBTableService();
+    tableService.setConfiguration(cConf);
+    tableService.ensureTableExists(TABLE_NAME);
+  }
+
+  @Override
+  protected QueueProducer createProducer() throws Exception {
+    return new LevelDBQueueProducer(new LevelDBTableCore(TABLE_NAME, tableService),
+                                    QUEUE_NAME, QueueMetrics.NOOP_QUEUE_METRICS);
+  }
+
+  @Override
+  protected QueueConsumer createConsumer(ConsumerConfig consumerConfig) throws Exception {
+    return new LevelDBQueueConsumer(cConf, new LevelDBTableCore(TABLE_NAME, tableService), new Object(),
+                                    consumerConfig, QUEUE_NAME, QueueEvictor.NOOP);
+  }
+
+  @Override
+  protected void cleanup() throws Exception {
+    tableService.dropTable(TABLE_NAME);
+    DirUtils.deleteDirectoryContents(dataDir);
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.internal.io;
+
+import co.cask.cdap.api.data.schema.Schema;
+import co.cask.cdap.common.io.BinaryDecoder;
+import co.cask.cdap.common.io.BinaryEncoder;
+import com.google.common.reflect.TypeToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for encoding records with the {@link DatumWriter} generated by {@link DatumWriterGenerator}
+ * and decoding them with either the {@link ReflectionDatumReader} or the {@link DatumReader} generated by
+ * {@link DatumReaderGenerator}. The decode benchmarks cover flowlet queue events, nested objects with nullable
+ * fields as stored by the {@code ObjectStore} dataset, and reading with a different schema than the writer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DatumCodecBenchmark {
+
+  private static final TypeToken<Record> RECORD_TYPE = TypeToken.of(Record.class);
+  private static final TypeToken<ProjectedRecord> PROJECTED_RECORD_TYPE = TypeToken.of(ProjectedRecord.class);
+  private static final TypeToken<StoredObject> STORED_OBJECT_TYPE = TypeToken.of(StoredObject.class);
+
+  @Param({"reflection", "asm"})
+  private String readerType;
+
+  private Schema schema;
+  private DatumWriter<Record> writer;
+  private DatumReader<Record> reader;
+  private DatumReader<ProjectedRecord> projectedReader;
+  private Record record;
+  private byte[] encoded;
+  private ByteArrayOutputStream output;
+
+  private Schema storedObjectSchema;
+  private DatumReader<StoredObject> storedObjectReader;
+  private byte[] encodedStoredObject;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    ReflectionSchemaGenerator schemaGenerator = new ReflectionSchemaGenerator();
+    DatumReaderFactory readerFactory = "asm".equals(readerType)
+      ? new ASMDatumReaderFactory(new ASMFieldAccessorFactory())
+      : new ReflectionDatumReaderFactory();
+
+    schema = schemaGenerator.generate(RECORD_TYPE.getType());
+    writer = new ASMDatumWriterFactory(new ASMFieldAccessorFactory()).create(RECORD_TYPE, schema);
+    reader = readerFactory.create(RECORD_TYPE, schema);
+    projectedReader = readerFactory.create(PROJECTED_RECORD_TYPE,
+                                           schemaGenerator.generate(PROJECTED_RECORD_TYPE.getType()));
+    record = Record.create();
+    output = new ByteArrayOutputStream();
+    encoded = encode(record);
+
+    storedObjectSchema = schemaGenerator.generate(STORED_OBJECT_TYPE.getType());
+    storedObjectReader = readerFactory.create(STORED_OBJECT_TYPE, storedObjectSchema);
+    ByteArrayOutputStream storedOutput = new ByteArrayOutputStream();
+    new ReflectionDatumWriter<StoredObject>(storedObjectSchema).encode(StoredObject.create(),
+                                                                       new BinaryEncoder(storedOutput));
+    encodedStoredObject = storedOutput.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return encode(record);
+  }
+
+  @Benchmark
+  public Record decode() throws IOException {
+    return reader.read(new BinaryDecoder(new ByteArrayInputStream(encoded)), schema);
+  }
+
+  @Benchmark
+  public ProjectedRecord decodeProjected() throws IOException {
+    return projectedReader.read(new BinaryDecoder(new ByteArrayInputStream(encoded)), schema);
+  }
+
+  @Benchmark
+  public StoredObject decodeStoredObject() throws IOException {
+    return storedObjectReader.read(new BinaryDecoder(new ByteArrayInputStream(encodedStoredObject)),
+                                   storedObjectSchema);
+  }
+
+  @Benchmark
+  public Record roundTrip() throws IOException {
+    return reader.read(new BinaryDecoder(new ByteArrayInputStream(encode(record))), schema);
+  }
+
+  private byte[] encode(Record record) throws IOException {
+    output.reset();
+    writer.encode(record, new BinaryEncoder(output));
+    return output.toByteArray();
+  }
+
+  /**
+   * Record type used for the benchmark, with a mix of primitive, string and collection fields.
+   */
+  public static final class Record {
+    private long timestamp;
+    private String name;
+    private int count;
+    private double value;
+    private boolean valid;
+    private List<String> tags;
+    private Map<String, Long> properties;
+
+    static Record create() {
+      Record record = new Record();
+      record.timestamp = System.currentTimeMillis();
+      record.name = "benchmark.record.name";
+      record.count = 12345;
+      record.value = 3.14159d;
+      record.valid = true;
+      record.tags = new ArrayList<>();
+      record.properties = new HashMap<>();
+      for (int i = 0; i < 10; i++) {
+        record.tags.add("tag" + i);
+        record.properties.put("property" + i, (long) i);
+      }
+      return record;
+    }
+  }
+
+  /**
+   * A newer version of the {@link Record} type, with a field removed, a field added and a field widened.
+   */
+  public static final class ProjectedRecord {
+    private long timestamp;
+    private String name;
+    private long count;
+    private double value;
+    private String description;
+    private List<String> tags;
+    private Map<String, Long> properties;
+  }
+
+  /**
+   * Object type as typically stored in an {@code ObjectStore}, with nested records and nullable fields.
+   */
+  public static final class StoredObject {
+    private String id;
+    private Record record;
+    private StoredObject parent;
+    private String comment;
+    private int[] counts;
+
+    static StoredObject create() {
+      StoredObject parent = new StoredObject();
+      parent.id = "parent";
+      parent.record = Record.create();
+      parent.counts = new int[0];
+
+      StoredObject object = new StoredObject();
+      object.id = "object";
+      object.record = Record.create();
+      object.parent = parent;
+      object.counts = new int[] {1, 2, 3, 4, 5, 6, 7, 8};
+      return object;
+    }
+  }
+}
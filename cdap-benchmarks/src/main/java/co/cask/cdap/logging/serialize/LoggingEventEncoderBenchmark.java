@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.serialize;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import co.cask.cdap.common.logging.LoggingContext;
+import co.cask.cdap.logging.context.FlowletLoggingContext;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for encoding log events in the {@link LogSchema.LoggingEvent#SCHEMA} binary form, comparing the
+ * encoding through a {@link GenericRecord} created by {@link LoggingEvent} with the {@link LoggingEventEncoder}.
+ * Each operation is one event, one in ten of them having an exception. Run with {@code -prof gc} to compare the
+ * allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoggingEventEncoderBenchmark {
+
+  private static final int EVENTS = 1000;
+
+  @Param({ "record", "direct" })
+  private String encoding;
+
+  private List<ILoggingEvent> events;
+  private LoggingContext loggingContext;
+  private Schema schema;
+  private GenericDatumWriter<GenericRecord> datumWriter;
+  private ByteArrayOutputStream output;
+  private BinaryEncoder binaryEncoder;
+  private LoggingEventEncoder encoder;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Logger logger = (Logger) LoggerFactory.getLogger(LoggingEventEncoderBenchmark.class);
+    loggingContext = new FlowletLoggingContext("namespace", "app", "flow", "flowlet", "run", "0");
+    events = new ArrayList<>(EVENTS);
+    for (int i = 0; i < EVENTS; i++) {
+      Throwable t = i % 10 == 0 ? new IllegalStateException("Failure " + i) : null;
+      ch.qos.logback.classic.spi.LoggingEvent event = new ch.qos.logback.classic.spi.LoggingEvent(
+        LoggingEventEncoderBenchmark.class.getName(), logger, ch.qos.logback.classic.Level.INFO,
+        "Processed {} records in {} ms", t, new Object[] { i * 100, i });
+      if (t != null) {
+        ((ThrowableProxy) event.getThrowableProxy()).calculatePackagingData();
+      }
+      event.prepareForDeferredProcessing();
+      events.add(event);
+    }
+
+    schema = LogSchema.LoggingEvent.SCHEMA;
+    datumWriter = new GenericDatumWriter<>(schema);
+    output = new ByteArrayOutputStream();
+    encoder = new LoggingEventEncoder();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(EVENTS)
+  public void encodeEvents(Blackhole blackhole) throws IOException {
+    if ("direct".equals(encoding)) {
+      for (ILoggingEvent event : events) {
+        blackhole.consume(encoder.encode(event, loggingContext));
+      }
+      return;
+    }
+
+    // The same as what LoggingEventSerializer did before using the LoggingEventEncoder, except that the output
+    // stream is reused
+    for (ILoggingEvent event : events) {
+      output.reset();
+      binaryEncoder = EncoderFactory.get().directBinaryEncoder(output, binaryEncoder);
+      datumWriter.write(LoggingEvent.encode(schema, event, loggingContext), binaryEncoder);
+      blackhole.consume(output.toByteArray());
+    }
+  }
+}
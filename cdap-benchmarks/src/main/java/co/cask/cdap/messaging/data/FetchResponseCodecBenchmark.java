@@ -0,0 +1,216 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.messaging.data;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.messaging.Schemas;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for encoding and decoding message fetch responses, comparing the avro format with the
+ * binary block format, with and without compression. Each operation is one message. Besides the number of
+ * messages, the {@code kilobytes} counter gives the KB/s of encoded responses, so that dividing it by the
+ * number of messages per second gives the encoded size per message of each format.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FetchResponseCodecBenchmark {
+
+  private static final int MESSAGES = 1000;
+  private static final int BLOCK_SIZE = 60000;
+
+  @Param({ "avro", "binary", "snappy" })
+  private String format;
+
+  @Param({ "100", "1000" })
+  private int payloadSize;
+
+  private List<RawMessage> messages;
+  private byte[] encoded;
+  private ByteArrayOutputStream output;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    // Payloads are generated from a small vocabulary, similar to metrics and log records
+    Random random = new Random(0);
+    String[] words = { "namespace", "app", "flow", "flowlet", "count", "system", "user", "value", "tag", "0", "1" };
+    messages = new ArrayList<>(MESSAGES);
+    for (int i = 0; i < MESSAGES; i++) {
+      StringBuilder payload = new StringBuilder();
+      while (payload.length() < payloadSize) {
+        payload.append(words[random.nextInt(words.length)]).append('.');
+      }
+      byte[] id = new byte[MessageId.RAW_ID_SIZE];
+      MessageId.putRawId(System.currentTimeMillis(), (short) i, 0L, (short) 0, id, 0);
+      messages.add(new RawMessage(id, Bytes.toBytes(payload.substring(0, payloadSize))));
+    }
+    output = new ByteArrayOutputStream();
+    encoded = encode();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public byte[] encodeMessages(EncodedCounters counters) throws IOException {
+    byte[] bytes = encode();
+    counters.kilobytes += bytes.length / 1024d;
+    return bytes;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public void decodeMessages(EncodedCounters counters, Blackhole blackhole) throws IOException {
+    counters.kilobytes += encoded.length / 1024d;
+    if ("avro".equals(format)) {
+      decodeAvro(blackhole);
+    } else {
+      RawMessageBlockDecoder decoder = new RawMessageBlockDecoder(new ByteArrayInputStream(encoded));
+      RawMessage message = decoder.next();
+      while (message != null) {
+        blackhole.consume(message);
+        message = decoder.next();
+      }
+    }
+  }
+
+  /**
+   * Counters of the encoded responses, reported per second.
+   */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class EncodedCounters {
+    public double kilobytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      kilobytes = 0;
+    }
+  }
+
+  private byte[] encode() throws IOException {
+    output.reset();
+    if ("avro".equals(format)) {
+      encodeAvro();
+      return output.toByteArray();
+    }
+
+    RawMessageBlockEncoder encoder = new RawMessageBlockEncoder(
+      "snappy".equals(format) ? MessageCompression.SNAPPY : MessageCompression.NONE);
+    List<RawMessage> block = new ArrayList<>();
+    int size = 0;
+    for (RawMessage message : messages) {
+      block.add(message);
+      size += message.getId().length + message.getPayload().length;
+      if (size >= BLOCK_SIZE) {
+        encoder.writeBlock(block, output);
+        block.clear();
+        size = 0;
+      }
+    }
+    if (!block.isEmpty()) {
+      encoder.writeBlock(block, output);
+    }
+    encoder.writeEnd(output);
+    return output.toByteArray();
+  }
+
+  /**
+   * Encodes the messages the same way as the avro fetch response is encoded by the messaging service.
+   */
+  private void encodeAvro() throws IOException {
+    Schema schema = Schemas.V1.ConsumeResponse.SCHEMA.getElementType();
+    GenericRecord record = new GenericData.Record(schema);
+    DatumWriter<GenericRecord> writer = new GenericDatumWriter<GenericRecord>(schema) {
+      @Override
+      protected void writeBytes(Object datum, Encoder out) throws IOException {
+        if (datum instanceof byte[]) {
+          out.writeBytes((byte[]) datum);
+        } else {
+          super.writeBytes(datum, out);
+        }
+      }
+    };
+
+    Encoder encoder = EncoderFactory.get().directBinaryEncoder(output, null);
+    encoder.writeArrayStart();
+    encoder.setItemCount(messages.size());
+    for (RawMessage message : messages) {
+      encoder.startItem();
+      record.put("id", message.getId());
+      record.put("payload", message.getPayload());
+      writer.write(record, encoder);
+    }
+    encoder.writeArrayEnd();
+  }
+
+  /**
+   * Decodes the messages the same way as the avro fetch response is decoded by the messaging client.
+   */
+  private void decodeAvro(Blackhole blackhole) throws IOException {
+    Schema schema = Schemas.V1.ConsumeResponse.SCHEMA.getElementType();
+    DatumReader<GenericRecord> reader = new GenericDatumReader<>(schema);
+    GenericRecord record = new GenericData.Record(schema);
+
+    Decoder decoder = DecoderFactory.get().binaryDecoder(new ByteArrayInputStream(encoded), null);
+    long count = decoder.readArrayStart();
+    while (count > 0) {
+      for (long i = 0; i < count; i++) {
+        record = reader.read(record, decoder);
+        blackhole.consume(new RawMessage(Bytes.toBytes((ByteBuffer) record.get("id")),
+                                         Bytes.toBytes((ByteBuffer) record.get("payload"))));
+      }
+      count = decoder.arrayNext();
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.messaging.service;
+
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.common.guice.ConfigModule;
+import co.cask.cdap.common.utils.DirUtils;
+import co.cask.cdap.common.utils.TimeProvider;
+import co.cask.cdap.messaging.TopicMetadata;
+import co.cask.cdap.messaging.client.StoreRequestBuilder;
+import co.cask.cdap.messaging.store.TableFactory;
+import co.cask.cdap.messaging.store.leveldb.LevelDBTableFactory;
+import co.cask.cdap.proto.id.NamespaceId;
+import co.cask.cdap.proto.id.TopicId;
+import com.google.common.io.Files;
+import com.google.inject.Guice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@link ConcurrentMessageWriter#persist} with concurrent publishers writing to the LevelDB
+ * message table, which is the path taken by every non-transactional publish to TMS.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentMessageWriterBenchmark {
+
+  private static final TopicId TOPIC_ID = NamespaceId.SYSTEM.topic("benchmark");
+
+  @Param({ "1", "10" })
+  private int messagesPerRequest;
+
+  @Param({ "100" })
+  private int payloadSize;
+
+  private File dataDir;
+  private ConcurrentMessageWriter writer;
+  private TopicMetadata metadata;
+  private byte[] payload;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    dataDir = Files.createTempDir();
+    CConfiguration cConf = CConfiguration.create();
+    cConf.set(Constants.MessagingSystem.LOCAL_DATA_DIR, dataDir.getAbsolutePath());
+
+    // The LevelDBTableFactory constructor is only visible to Guice
+    TableFactory tableFactory = Guice.createInjector(new ConfigModule(cConf)).getInstance(LevelDBTableFactory.class);
+    writer = new ConcurrentMessageWriter(new MessageTableStoreRequestWriter(
+      tableFactory.createMessageTable(cConf.get(Constants.MessagingSystem.MESSAGE_TABLE_NAME)),
+      TimeProvider.SYSTEM_TIME));
+    metadata = new TopicMetadata(TOPIC_ID, TopicMetadata.GENERATION_KEY, 1, TopicMetadata.TTL_KEY, 3600);
+    payload = new byte[payloadSize];
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() throws Exception {
+    writer.close();
+    DirUtils.deleteDirectoryContents(dataDir);
+  }
+
+  @Benchmark
+  public void persist() throws Exception {
+    StoreRequestBuilder builder = StoreRequestBuilder.of(TOPIC_ID);
+    for (int i = 0; i < messagesPerRequest; i++) {
+      builder.addPayloads(payload);
+    }
+    writer.persist(builder.build(), metadata);
+  }
+}
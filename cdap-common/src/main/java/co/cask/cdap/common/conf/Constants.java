@@ -152,6 +152,7 @@ public final class Constants {
     public static final String RUNTIME_EXT_DIR = "app.program.runtime.extensions.dir";
     public static final String PROGRAM_MAX_START_SECONDS = "app.program.max.start.seconds";
     public static final String PROGRAM_MAX_STOP_SECONDS = "app.program.max.stop.seconds";
+    public static final String FLOWLET_ASM_DATUM_READER_ENABLED = "app.program.flowlet.asm.datum.reader.enabled";
 
     /**
      * Guice named bindings.
@@ -378,9 +379,11 @@ public final class Constants {
     public static final String TTL = "stream.event.ttl";
     public static final String PARTITION_DURATION = "stream.partition.duration";
     public static final String INDEX_INTERVAL = "stream.index.interval";
+    public static final String FILE_COMPRESSION = "stream.file.compression";
     public static final String FILE_PREFIX = "stream.file.prefix";
     public static final String INSTANCE_FILE_PREFIX = "stream.instance.file.prefix";
     public static final String CONSUMER_TABLE_PRESPLITS = "stream.consumer.table.presplits";
+    public static final String CONSUMER_SHARED_READER_BUFFER_SIZE = "stream.consumer.shared.reader.buffer.size";
     public static final String FILE_CLEANUP_PERIOD = "stream.file.cleanup.period";
     public static final String BATCH_BUFFER_THRESHOLD = "stream.batch.buffer.threshold";
     public static final String NOTIFICATION_THRESHOLD = "stream.notification.threshold";
@@ -509,6 +512,13 @@ public final class Constants {
 
     // Key prefix for retention seconds. The actual key is suffixed by the table resolution.
     public static final String RETENTION_SECONDS = "metrics.data.table.retention.resolution";
+    public static final String COMPACTION_INTERVAL_SECONDS = "metrics.data.table.compaction.interval.seconds";
+    public static final String COMPACTION_SLICE_SECONDS = "metrics.data.table.compaction.slice.seconds";
+
+    public static final String QUERY_CACHE_ENABLED = "metrics.query.cache.enabled";
+    public static final String QUERY_CACHE_MAX_TIME_VALUES = "metrics.query.cache.max.time.values";
+    public static final String QUERY_CACHE_CLOSE_DELAY_SECONDS = "metrics.query.cache.close.delay.seconds";
+    public static final String QUERY_CACHE_EXPIRE_SECONDS = "metrics.query.cache.expire.seconds";
 
     public static final String SERVER_ADDRESS = "metrics.query.bind.address";
     public static final String SERVER_PORT = "metrics.query.bind.port";
@@ -529,6 +539,10 @@ public final class Constants {
 
     public static final String MESSAGING_TOPIC_NUM = "metrics.messaging.topic.num";
     public static final String MESSAGING_FETCHER_LIMIT = "metrics.messaging.fetcher.limit";
+    public static final String MESSAGING_FLUSH_INTERVAL_MS = "metrics.messaging.flush.interval.ms";
+    public static final String MESSAGING_MAX_BUFFERED_VALUES = "metrics.messaging.max.buffered.values";
+    public static final String MESSAGING_WRITER_THREADS = "metrics.messaging.writer.threads";
+    public static final String MESSAGING_WRITER_QUEUE_SIZE = "metrics.messaging.writer.queue.size";
 
     /**
      * Metric's dataset related constants.
@@ -588,6 +602,8 @@ public final class Constants {
       public static final String CONSUMER = "co";
 
       public static final String TABLE = "tbl";
+
+      public static final String PARTITION = "par";
     }
 
     /**
@@ -628,6 +644,11 @@ public final class Constants {
       public static final class Log {
         public static final String PROCESS_DELAY = "log.process.delay";
         public static final String PROCESS_MESSAGES_COUNT = "log.process.message.count";
+        public static final String SAVER_BUFFERED_BUCKETS = "log.saver.buffered.buckets";
+        public static final String SAVER_GROUP_LATENCY = "log.saver.group.latency";
+        public static final String SAVER_WRITE_QUEUE_SIZE = "log.saver.write.queue.size";
+        public static final String SAVER_WRITE_LATENCY = "log.saver.write.latency";
+        public static final String SAVER_FLUSH_LATENCY = "log.saver.flush.latency";
       }
     }
 
@@ -1086,6 +1107,11 @@ public final class Constants {
     public static final String SYSTEM_TOPICS = "messaging.system.topics";
     public static final String TABLE_CACHE_EXPIRATION_SECONDS = "messaging.table.expiration.seconds";
     public static final String TOPIC_DEFAULT_TTL_SECONDS = "messaging.topic.default.ttl.seconds";
+    public static final String WRITER_MAX_BATCH_SIZE = "messaging.writer.max.batch.size";
+    public static final String WRITER_LINGER_MS = "messaging.writer.linger.ms";
+    public static final String WRITER_FLUSH_THREADS = "messaging.writer.flush.threads";
+    public static final String TAIL_CACHE_TOPIC_MAX_BYTES = "messaging.tail.cache.topic.max.bytes";
+    public static final String TAIL_CACHE_MAX_TOPICS = "messaging.tail.cache.max.topics";
     public static final String COPROCESSOR_METADATA_CACHE_UPDATE_FREQUENCY_SECONDS =
       "messaging.coprocessor.metadata.cache.update.frequency.seconds";
 
@@ -1093,6 +1119,9 @@ public final class Constants {
     public static final String HTTP_SERVER_EXECUTOR_THREADS = "messaging.http.server.executor.threads";
     public static final String HTTP_SERVER_MAX_REQUEST_SIZE_MB = "messaging.http.server.max.request.size.mb";
     public static final String HTTP_SERVER_CONSUME_CHUNK_SIZE = "messaging.http.server.consume.chunk.size";
+    public static final String HTTP_SERVER_MAX_POLL_WAIT_MS = "messaging.http.server.max.poll.wait.ms";
+
+    public static final String CLIENT_FETCH_COMPRESSION = "messaging.client.fetch.compression";
 
 
     public static final String CONTAINER_VIRTUAL_CORES = "messaging.container.num.cores";
@@ -16,6 +16,7 @@
 
 package co.cask.cdap.common.guice;
 
+import co.cask.cdap.internal.io.ASMDatumReaderFactory;
 import co.cask.cdap.internal.io.ASMDatumWriterFactory;
 import co.cask.cdap.internal.io.ASMFieldAccessorFactory;
 import co.cask.cdap.internal.io.DatumReaderFactory;
@@ -42,8 +43,11 @@ public class IOModule extends PrivateModule {
 
     expose(DatumWriterFactory.class);
 
-    // Note: Need to add the DatumReader counter parts when those are refactored to use ASM as well.
     bind(DatumReaderFactory.class).to(ReflectionDatumReaderFactory.class).in(Scopes.SINGLETON);
     expose(DatumReaderFactory.class);
+
+    // The generated reader is opt-in; it is only used by callers that ask for it explicitly.
+    bind(ASMDatumReaderFactory.class).in(Scopes.SINGLETON);
+    expose(ASMDatumReaderFactory.class);
   }
 }
@@ -74,7 +74,18 @@ public final class StreamEventDataCodec {
     encoder.writeBytes(data.getBody());
 
     // Writes the headers
-    Map<String, String> headers = data.getHeaders();
+    encodeHeaders(data.getHeaders(), encoder);
+  }
+
+  /**
+   * Encodes the headers of a {@link StreamEventData} using the {@link Encoder}. Together with the body written
+   * as Avro bytes before it, this gives the same encoding as {@link #encode(StreamEventData, Encoder)}.
+   *
+   * @param headers The headers to encode
+   * @param encoder The encoder
+   * @throws IOException If there is any IO error during encoding.
+   */
+  public static void encodeHeaders(Map<String, String> headers, Encoder encoder) throws IOException {
     encoder.writeInt(headers.size());
     for (Map.Entry<String, String> entry : headers.entrySet()) {
       String value = entry.getValue();
@@ -0,0 +1,207 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.internal.io;
+
+import co.cask.cdap.api.data.schema.Schema;
+import co.cask.cdap.common.io.Decoder;
+import co.cask.cdap.common.lang.InstantiatorFactory;
+import co.cask.cdap.internal.asm.ByteCodeClassLoader;
+import co.cask.cdap.internal.asm.ClassDefinition;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Maps;
+import com.google.common.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import javax.inject.Inject;
+
+/**
+ * A factory class for creating {@link DatumReader} instance for different data type and schema.
+ * It serves as an in memory cache for generated {@link DatumReader} {@link Class} using ASM. Since the schema of
+ * the encoded data is only known when reading, a class is generated for each pair of source and target schema on
+ * first use. If a type cannot be decoded by generated code, {@link ReflectionDatumReader} is used instead.
+ */
+public final class ASMDatumReaderFactory implements DatumReaderFactory {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ASMDatumReaderFactory.class);
+
+  private final LoadingCache<CacheKey, Optional<Class<DatumReader<?>>>> datumReaderClasses;
+  private final FieldAccessorFactory fieldAccessorFactory;
+  private final InstantiatorFactory instantiatorFactory;
+
+  @Inject
+  public ASMDatumReaderFactory(FieldAccessorFactory fieldAccessorFactory) {
+    this.fieldAccessorFactory = fieldAccessorFactory;
+    this.instantiatorFactory = new InstantiatorFactory(true);
+    this.datumReaderClasses = CacheBuilder.newBuilder().build(new ASMCacheLoader());
+  }
+
+  /**
+   * Creates a {@link DatumReader} that is able to decode given data type with the given {@link Schema}.
+   * The instance created is thread safe and reusable.
+   *
+   * @param type Type information of the data type to be decoded.
+   * @param schema Schema of the data type.
+   * @param <T> Type of the data type.
+   * @return A {@link DatumReader} instance.
+   */
+  @Override
+  public <T> DatumReader<T> create(TypeToken<T> type, Schema schema) {
+    return new SchemaResolvingReader<>(type, schema);
+  }
+
+  /**
+   * Returns a {@link DatumReader} for decoding data of the given source schema, which is either an instance of
+   * the generated class or a {@link ReflectionDatumReader}.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> DatumReader<T> createReader(TypeToken<T> type, Schema sourceSchema, Schema schema) {
+    Optional<Class<DatumReader<?>>> readerClass = datumReaderClasses.getUnchecked(
+      new CacheKey(type, sourceSchema, schema));
+    if (readerClass.isPresent()) {
+      try {
+        return (DatumReader<T>) readerClass.get()
+          .getConstructor(Schema.class, Schema.class, FieldAccessorFactory.class, InstantiatorFactory.class)
+          .newInstance(sourceSchema, schema, fieldAccessorFactory, instantiatorFactory);
+      } catch (Exception e) {
+        LOG.warn("Failed to create generated DatumReader for {}. Using reflection instead.", type, e);
+      }
+    }
+    return new ReflectionDatumReader<>(schema, type);
+  }
+
+  /**
+   * A {@link DatumReader} that delegates to the reader for the source schema. The last delegate is memorized, since
+   * the source schema is mostly the same across calls.
+   */
+  private final class SchemaResolvingReader<T> implements DatumReader<T> {
+
+    private final TypeToken<T> type;
+    private final Schema schema;
+    private volatile ResolvedReader<T> resolved;
+
+    SchemaResolvingReader(TypeToken<T> type, Schema schema) {
+      this.type = type;
+      this.schema = schema;
+    }
+
+    @Override
+    public T read(Decoder decoder, Schema sourceSchema) throws IOException {
+      ResolvedReader<T> resolved = this.resolved;
+      if (resolved == null || (resolved.sourceSchema != sourceSchema && !resolved.sourceSchema.equals(sourceSchema))) {
+        resolved = new ResolvedReader<>(sourceSchema, createReader(type, sourceSchema, schema));
+        this.resolved = resolved;
+      }
+      return resolved.reader.read(decoder, sourceSchema);
+    }
+  }
+
+  /**
+   * Pair of source schema and the {@link DatumReader} for it.
+   */
+  private static final class ResolvedReader<T> {
+    private final Schema sourceSchema;
+    private final DatumReader<T> reader;
+
+    private ResolvedReader(Schema sourceSchema, DatumReader<T> reader) {
+      this.sourceSchema = sourceSchema;
+      this.reader = reader;
+    }
+  }
+
+  /**
+   * A private {@link CacheLoader} for generating different {@link DatumReader} {@link Class}.
+   */
+  private static final class ASMCacheLoader extends CacheLoader<CacheKey, Optional<Class<DatumReader<?>>>> {
+
+    private final Map<TypeToken<?>, ByteCodeClassLoader> classloaders = Maps.newIdentityHashMap();
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Optional<Class<DatumReader<?>>> load(CacheKey key) throws Exception {
+      ClassDefinition classDef;
+      try {
+        classDef = new DatumReaderGenerator().generate(key.getType(), key.getSourceSchema(), key.getSchema());
+      } catch (IllegalArgumentException e) {
+        LOG.debug("Cannot generate DatumReader for {}. Using reflection instead.", key.getType(), e);
+        return Optional.absent();
+      }
+
+      ByteCodeClassLoader classloader;
+      synchronized (classloaders) {
+        classloader = classloaders.get(key.getType());
+        if (classloader == null) {
+          // The ClassLoader of the generated DatumReader has CDAP system ClassLoader as parent.
+          // The ClassDefinition contains list of classes that should not be loaded by the generated class ClassLoader
+          classloader = new ByteCodeClassLoader(ASMDatumReaderFactory.class.getClassLoader());
+          classloaders.put(key.getType(), classloader);
+        }
+      }
+
+      return Optional.of((Class<DatumReader<?>>) classloader.addClass(classDef).loadClass(classDef.getClassName()));
+    }
+  }
+
+  private static final class CacheKey {
+    private final TypeToken<?> type;
+    private final Schema sourceSchema;
+    private final Schema schema;
+
+    private CacheKey(TypeToken<?> type, Schema sourceSchema, Schema schema) {
+      this.type = type;
+      this.sourceSchema = sourceSchema;
+      this.schema = schema;
+    }
+
+    public TypeToken<?> getType() {
+      return type;
+    }
+
+    public Schema getSourceSchema() {
+      return sourceSchema;
+    }
+
+    public Schema getSchema() {
+      return schema;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+
+      CacheKey cacheKey = (CacheKey) o;
+      return type.equals(cacheKey.type) && sourceSchema.equals(cacheKey.sourceSchema)
+        && schema.equals(cacheKey.schema);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(type, sourceSchema, schema);
+    }
+  }
+}
@@ -0,0 +1,1271 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.internal.io;
+
+import co.cask.cdap.api.data.schema.Schema;
+import co.cask.cdap.api.data.schema.SchemaHash;
+import co.cask.cdap.common.io.Decoder;
+import co.cask.cdap.common.lang.Instantiator;
+import co.cask.cdap.common.lang.InstantiatorFactory;
+import co.cask.cdap.internal.asm.ClassDefinition;
+import co.cask.cdap.internal.asm.Methods;
+import co.cask.cdap.internal.asm.Signatures;
+import co.cask.cdap.internal.lang.Fields;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Primitives;
+import com.google.common.reflect.TypeParameter;
+import com.google.common.reflect.TypeToken;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Class for generating {@link DatumReader} bytecodes using ASM. A generated class decodes data written with one
+ * source schema into objects of one type with one target schema, with the schema projection rules as in
+ * {@link ReflectionReader} resolved at generation time. The class generated will have a skeleton looks like
+ * the following:
+ * <pre>
+ * {@code
+ *
+ *  public final class generatedClassName implements DatumReader<InputType> {
+ *    private static final String SCHEMA_HASH = "target_schema_hash_as_hex_string";
+ *    private static final String SOURCE_SCHEMA_HASH = "source_schema_hash_as_hex_string";
+ *
+ *    public generatedClassName(Schema sourceSchema, Schema schema,
+ *                              FieldAccessorFactory accessorFactory, InstantiatorFactory instantiatorFactory) {
+ *      // Verify schema hashes, then create the FieldAccessor, Instantiator and enum mappings needed for decoding
+ *    }
+ *
+ *    @Override
+ *    public Object read(Decoder decoder, Schema sourceSchema) throws IOException {
+ *      return generatedDecodeMethod(decoder);
+ *    }
+ *
+ *    private InputType generatedDecodeMethod(Decoder decoder) throws IOException {
+ *      // Do actual decoding by calling methods on decoder based on the source schema, type and target schema.
+ *    }
+ *
+ *    // Could have more generatedDecodeMethods and generatedSkipMethods for fields that are not in the target...
+ *  }
+ * }
+ * </pre>
+ *
+ * Records are created through {@link Instantiator} and have their fields set through {@link FieldAccessor}, hence
+ * the record classes don't need to be public. Primitive values are decoded and set without boxing.
+ * If the type cannot be decoded by generated code, {@link IllegalArgumentException} is thrown.
+ */
+@NotThreadSafe
+final class DatumReaderGenerator {
+
+  private static final Type DECODER_TYPE = Type.getType(Decoder.class);
+  private static final Type OBJECT_TYPE = Type.getType(Object.class);
+  private static final Type OBJECT_ARRAY_TYPE = Type.getType(Object[].class);
+
+  private final Map<String, Method> decodeMethods = Maps.newHashMap();
+  private final Map<String, Method> skipMethods = Maps.newHashMap();
+  private final Multimap<TypeToken<?>, String> fieldAccessorRequests = LinkedHashMultimap.create();
+  private final Set<Class<?>> instantiatorRequests = Sets.newLinkedHashSet();
+  private final Set<Class<?>> componentTypeRequests = Sets.newLinkedHashSet();
+  private final Map<String, EnumMapping> enumRequests = Maps.newLinkedHashMap();
+  private ClassWriter classWriter;
+  private Type classType;
+  private List<Class<?>> preservedClasses;
+
+  /**
+   * Generates a {@link DatumReader} class for decoding data of the given type.
+   *
+   * @param inputType Type information of the data type to decode to.
+   * @param sourceSchema Schema of the encoded data.
+   * @param schema Schema of the data type to decode to.
+   * @return A {@link ClassDefinition} that contains generated class information.
+   * @throws IllegalArgumentException if the given type cannot be decoded by generated code.
+   */
+  ClassDefinition generate(TypeToken<?> inputType, Schema sourceSchema, Schema schema) {
+    classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    preservedClasses = Lists.newArrayList();
+
+    // Primitive type cannot be used as type parameter, hence the generated class implements DatumReader of the
+    // wrapper type, while the decode method still returns the primitive value.
+    Class<?> rawType = inputType.getRawType();
+    TypeToken<?> interfaceType = getInterfaceType(rawType.isPrimitive()
+                                                    ? TypeToken.of(Primitives.wrap(rawType)) : inputType);
+
+    // Generate the class
+    String className = getClassName(interfaceType, sourceSchema, schema);
+    classType = Type.getObjectType(className);
+    classWriter.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL,
+                      className, Signatures.getClassSignature(interfaceType),
+                      Type.getInternalName(Object.class),
+                      new String[]{Type.getInternalName(interfaceType.getRawType())});
+
+    // Static schema hash fields, for verification
+    classWriter.visitField(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_FINAL, "SCHEMA_HASH",
+                           Type.getDescriptor(String.class), null, schema.getSchemaHash().toString()).visitEnd();
+    classWriter.visitField(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_FINAL, "SOURCE_SCHEMA_HASH",
+                           Type.getDescriptor(String.class), null,
+                           sourceSchema.getSchemaHash().toString()).visitEnd();
+
+    // Read method
+    generateRead(inputType, sourceSchema, schema);
+
+    // Constructor
+    generateConstructor();
+
+    return new ClassDefinition(classWriter.toByteArray(), className, preservedClasses);
+  }
+
+  /**
+   * Generates the constructor. The constructor generated has signature
+   * {@code (Schema, Schema, FieldAccessorFactory, InstantiatorFactory)}.
+   */
+  private void generateConstructor() {
+    Method constructor = getMethod(void.class, "<init>", Schema.class, Schema.class,
+                                   FieldAccessorFactory.class, InstantiatorFactory.class);
+    GeneratorAdapter mg = new GeneratorAdapter(Opcodes.ACC_PUBLIC, constructor, null, null, classWriter);
+
+    // super(); // Calling Object constructor
+    mg.loadThis();
+    mg.invokeConstructor(OBJECT_TYPE, getMethod(void.class, "<init>"));
+
+    // Verify both source and target schema hashes
+    verifySchemaHash(mg, "SOURCE_SCHEMA_HASH", 0);
+    verifySchemaHash(mg, "SCHEMA_HASH", 1);
+
+    // this.fieldAccessorName
+    //  = accessorFactory.getFieldAccessor(TypeToken.of(Class.forName("className")), "fieldName");
+    for (Map.Entry<TypeToken<?>, String> entry : fieldAccessorRequests.entries()) {
+      String fieldName = getFieldAccessorName(entry.getKey(), entry.getValue());
+      classWriter.visitField(Opcodes.ACC_PRIVATE + Opcodes.ACC_FINAL, fieldName,
+                             Type.getDescriptor(FieldAccessor.class), null, null).visitEnd();
+      mg.loadThis();
+      mg.loadArg(2);
+      pushTypeToken(mg, entry.getKey().getRawType());
+      mg.push(entry.getValue());
+      mg.invokeInterface(Type.getType(FieldAccessorFactory.class),
+                         getMethod(FieldAccessor.class, "getFieldAccessor", TypeToken.class, String.class));
+      mg.putField(classType, fieldName, Type.getType(FieldAccessor.class));
+    }
+
+    // this.instantiatorName = instantiatorFactory.get(TypeToken.of(Class.forName("className")));
+    for (Class<?> cls : instantiatorRequests) {
+      String fieldName = getInstantiatorName(cls);
+      classWriter.visitField(Opcodes.ACC_PRIVATE + Opcodes.ACC_FINAL, fieldName,
+                             Type.getDescriptor(Instantiator.class), null, null).visitEnd();
+      mg.loadThis();
+      mg.loadArg(3);
+      pushTypeToken(mg, cls);
+      mg.invokeVirtual(Type.getType(InstantiatorFactory.class),
+                       getMethod(Instantiator.class, "get", TypeToken.class));
+      mg.putField(classType, fieldName, Type.getType(Instantiator.class));
+    }
+
+    // this.componentTypeName = Class.forName("className");
+    for (Class<?> cls : componentTypeRequests) {
+      String fieldName = getComponentTypeName(cls);
+      classWriter.visitField(Opcodes.ACC_PRIVATE + Opcodes.ACC_FINAL, fieldName,
+                             Type.getDescriptor(Class.class), null, null).visitEnd();
+      mg.loadThis();
+      mg.push(cls.getName());
+      mg.invokeStatic(Type.getType(Class.class), getMethod(Class.class, "forName", String.class));
+      mg.putField(classType, fieldName, Type.getType(Class.class));
+    }
+
+    // this.enumName = new Object[sourceEnumSize];
+    // this.enumName[sourceIdx] = Enum.valueOf(Class.forName("className"), "value"); // For each value in target
+    for (Map.Entry<String, EnumMapping> entry : enumRequests.entrySet()) {
+      String fieldName = entry.getKey();
+      EnumMapping mapping = entry.getValue();
+      classWriter.visitField(Opcodes.ACC_PRIVATE + Opcodes.ACC_FINAL, fieldName,
+                             OBJECT_ARRAY_TYPE.getDescriptor(), null, null).visitEnd();
+      mg.loadThis();
+      mg.push(mapping.values.length);
+      mg.newArray(OBJECT_TYPE);
+      for (int i = 0; i < mapping.values.length; i++) {
+        if (mapping.values[i] == null) {
+          continue;
+        }
+        mg.dup();
+        mg.push(i);
+        mg.push(mapping.enumClass.getName());
+        mg.invokeStatic(Type.getType(Class.class), getMethod(Class.class, "forName", String.class));
+        mg.push(mapping.values[i]);
+        mg.invokeStatic(Type.getType(Enum.class), getMethod(Enum.class, "valueOf", Class.class, String.class));
+        mg.arrayStore(OBJECT_TYPE);
+      }
+      mg.putField(classType, fieldName, OBJECT_ARRAY_TYPE);
+    }
+
+    mg.returnValue();
+    mg.endMethod();
+  }
+
+  /**
+   * Generates code for {@code if (!HASH.equals(schema.getSchemaHash().toString())) throw IllegalArgumentException}.
+   */
+  private void verifySchemaHash(GeneratorAdapter mg, String hashField, int schemaArg) {
+    mg.getStatic(classType, hashField, Type.getType(String.class));
+    mg.loadArg(schemaArg);
+    mg.invokeVirtual(Type.getType(Schema.class), getMethod(SchemaHash.class, "getSchemaHash"));
+    mg.invokeVirtual(Type.getType(SchemaHash.class), getMethod(String.class, "toString"));
+    mg.invokeVirtual(Type.getType(String.class), getMethod(boolean.class, "equals", Object.class));
+    Label hashEquals = mg.newLabel();
+    mg.ifZCmp(GeneratorAdapter.NE, hashEquals);
+    mg.throwException(Type.getType(IllegalArgumentException.class), "Schema not match.");
+    mg.mark(hashEquals);
+  }
+
+  /**
+   * Generates code for {@code TypeToken.of(Class.forName("className"))}.
+   */
+  private void pushTypeToken(GeneratorAdapter mg, Class<?> cls) {
+    mg.push(cls.getName());
+    mg.invokeStatic(Type.getType(Class.class), getMethod(Class.class, "forName", String.class));
+    mg.invokeStatic(Type.getType(TypeToken.class), getMethod(TypeToken.class, "of", Class.class));
+  }
+
+  /**
+   * Generates the {@link DatumReader#read(Decoder, Schema)} method.
+   */
+  private void generateRead(TypeToken<?> inputType, Schema sourceSchema, Schema schema) {
+    Method readMethod = getMethod(Object.class, "read", Decoder.class, Schema.class);
+    GeneratorAdapter mg = new GeneratorAdapter(Opcodes.ACC_PUBLIC, readMethod, null,
+                                               new Type[] {Type.getType(IOException.class)}, classWriter);
+
+    // return decodeMethod(decoder);
+    mg.loadThis();
+    mg.loadArg(0);
+    mg.invokeVirtual(classType, getDecodeMethod(inputType, sourceSchema, schema));
+    Type callType = getCallType(inputType);
+    if (callType.getSort() != Type.OBJECT) {
+      mg.valueOf(callType);
+    }
+    mg.returnValue();
+    mg.endMethod();
+  }
+
+  /**
+   * Returns the decode method for the given type and schemas. The same method will be returned if the same
+   * type and schemas has been passed to the method before.
+   *
+   * @param inputType Type information of the data type to decode to
+   * @param sourceSchema Schema of the encoded data
+   * @param schema Schema of the data type to decode to
+   * @return A method with signature {@code (Decoder)} for decoding the given type and schemas.
+   */
+  private Method getDecodeMethod(TypeToken<?> inputType, Schema sourceSchema, Schema schema) {
+    String key = String.format("%s%s%s", normalizeTypeName(inputType),
+                               sourceSchema.getSchemaHash(), schema.getSchemaHash());
+    Method method = decodeMethods.get(key);
+    if (method != null) {
+      return method;
+    }
+
+    method = new Method("decode" + key, getCallType(inputType), new Type[] { DECODER_TYPE });
+
+    // Put the method into map first before generating the body in order to support recursive data type.
+    decodeMethods.put(key, method);
+
+    GeneratorAdapter mg = new GeneratorAdapter(Opcodes.ACC_PRIVATE, method, null,
+                                               new Type[]{Type.getType(IOException.class)}, classWriter);
+    generateDecodeBody(mg, inputType, sourceSchema, schema);
+    mg.endMethod();
+
+    return method;
+  }
+
+  /**
+   * Generates code for calling the decode method for the given type and schemas. The decoded value is left on
+   * the stack, with type as returned by {@link #getCallType(TypeToken)}.
+   */
+  private void invokeDecode(GeneratorAdapter mg, TypeToken<?> inputType, Schema sourceSchema, Schema schema) {
+    mg.loadThis();
+    mg.loadArg(0);
+    mg.invokeVirtual(classType, getDecodeMethod(inputType, sourceSchema, schema));
+  }
+
+  /**
+   * Generates the decode method body, which always ends with either returning the decoded value or throwing
+   * {@link IOException}, the same as {@link ReflectionReader} would do.
+   */
+  private void generateDecodeBody(GeneratorAdapter mg, TypeToken<?> inputType, Schema sourceSchema, Schema schema) {
+    Schema.Type sourceType = sourceSchema.getType();
+    Schema.Type targetType = schema.getType();
+
+    if (sourceType != Schema.Type.UNION && targetType == Schema.Type.UNION) {
+      // Resolve to the first target union schema that can decode the source
+      Schema targetSchema = resolveUnionSchema(sourceSchema, schema, -1);
+      if (targetSchema == null) {
+        throwIOException(mg, "No matching schema to resolve %s to %s", sourceSchema, schema);
+      } else {
+        invokeDecode(mg, inputType, sourceSchema, targetSchema);
+        mg.returnValue();
+      }
+      return;
+    }
+
+    switch (sourceType) {
+      case NULL:
+        decodeNull(mg, inputType, targetType);
+        return;
+      case BOOLEAN:
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+      case STRING:
+        decodeSimple(mg, inputType, sourceType, targetType);
+        return;
+      case UNION:
+        decodeUnion(mg, inputType, sourceSchema, schema);
+        return;
+    }
+
+    if (sourceType != targetType) {
+      throwIOException(mg, "Fails to resolve %s to %s", sourceType, targetType);
+      return;
+    }
+
+    switch (sourceType) {
+      case BYTES:
+        decodeBytes(mg, inputType);
+        break;
+      case ENUM:
+        decodeEnum(mg, inputType, sourceSchema, schema);
+        break;
+      case ARRAY:
+        if (Collection.class.isAssignableFrom(inputType.getRawType())) {
+          decodeCollection(mg, inputType, sourceSchema.getComponentSchema(), schema.getComponentSchema());
+        } else {
+          Preconditions.checkArgument(inputType.isArray(), "Only array or collection type is supported for %s",
+                                      inputType);
+          decodeArray(mg, inputType, sourceSchema.getComponentSchema(), schema.getComponentSchema());
+        }
+        break;
+      case MAP:
+        decodeMap(mg, inputType, sourceSchema.getMapSchema(), schema.getMapSchema());
+        break;
+      case RECORD:
+        decodeRecord(mg, inputType, sourceSchema, schema);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported schema type " + sourceType);
+    }
+  }
+
+  /**
+   * Generates method body for decoding null.
+   */
+  private void decodeNull(GeneratorAdapter mg, TypeToken<?> inputType, Schema.Type targetType) {
+    if (targetType != Schema.Type.NULL) {
+      throwIOException(mg, "Fails to resolve %s to %s", Schema.Type.NULL, targetType);
+      return;
+    }
+    // decoder.readNull(); return null;
+    mg.loadArg(0);
+    mg.invokeInterface(DECODER_TYPE, getMethod(Object.class, "readNull"));
+    mg.pop();
+    if (inputType.getRawType().isPrimitive()) {
+      throwIOException(mg, "Cannot decode null to %s", inputType);
+      return;
+    }
+    mg.visitInsn(Opcodes.ACONST_NULL);
+    mg.returnValue();
+  }
+
+  /**
+   * Generates method body for decoding simple schema type by calling corresponding read method in Decoder.
+   * The value is converted to the target schema type and then to the input type, following the type projection
+   * rules of {@link ReflectionReader}.
+   */
+  private void decodeSimple(GeneratorAdapter mg, TypeToken<?> inputType,
+                            Schema.Type sourceType, Schema.Type targetType) {
+    if (!isPromotable(sourceType, targetType)) {
+      throwIOException(mg, "Fail to resolve type %s to type %s", sourceType, targetType);
+      return;
+    }
+    Class<?> rawType = inputType.getRawType();
+
+    // value = decoder.readXXX();
+    mg.loadArg(0);
+    Class<?> sourceClass = getReadClass(sourceType);
+    mg.invokeInterface(DECODER_TYPE, getMethod(sourceClass, getReadMethodName(sourceType)));
+
+    if (targetType == Schema.Type.STRING) {
+      if (sourceType != Schema.Type.STRING) {
+        mg.invokeStatic(Type.getType(String.class), getMethod(String.class, "valueOf", sourceClass));
+      }
+      if (URI.class.equals(rawType)) {
+        mg.invokeStatic(Type.getType(URI.class), getMethod(URI.class, "create", String.class));
+      } else if (URL.class.equals(rawType)) {
+        int str = mg.newLocal(Type.getType(String.class));
+        mg.storeLocal(str);
+        mg.newInstance(Type.getType(URL.class));
+        mg.dup();
+        mg.loadLocal(str);
+        mg.invokeConstructor(Type.getType(URL.class), getMethod(void.class, "<init>", String.class));
+      } else {
+        Preconditions.checkArgument(rawType.isAssignableFrom(String.class),
+                                    "Type %s is not supported for string value.", inputType);
+      }
+      mg.returnValue();
+      return;
+    }
+
+    Class<?> targetClass = getReadClass(targetType);
+    if (sourceType != targetType) {
+      mg.cast(Type.getType(sourceClass), Type.getType(targetClass));
+    }
+
+    Class<?> unwrapped = Primitives.unwrap(rawType);
+    if (unwrapped.isPrimitive()) {
+      if (!unwrapped.equals(targetClass)) {
+        // A special case since INT type represents (byte, char, short and int).
+        Preconditions.checkArgument(targetType == Schema.Type.INT
+                                      && (unwrapped.equals(byte.class) || unwrapped.equals(char.class)
+                                      || unwrapped.equals(short.class)),
+                                    "Type %s is not supported for %s value.", inputType, targetType);
+        mg.cast(Type.INT_TYPE, Type.getType(unwrapped));
+      }
+      if (!rawType.isPrimitive()) {
+        mg.valueOf(Type.getType(unwrapped));
+      }
+    } else {
+      Preconditions.checkArgument(rawType.isAssignableFrom(Primitives.wrap(targetClass)),
+                                  "Type %s is not supported for %s value.", inputType, targetType);
+      mg.valueOf(Type.getType(targetClass));
+    }
+    mg.returnValue();
+  }
+
+  /**
+   * Generates method body for decoding bytes to {@code byte[]}, {@link UUID} or {@link ByteBuffer}.
+   */
+  private void decodeBytes(GeneratorAdapter mg, TypeToken<?> inputType) {
+    Type byteBufferType = Type.getType(ByteBuffer.class);
+    Class<?> rawType = inputType.getRawType();
+
+    // ByteBuffer buffer = decoder.readBytes();
+    mg.loadArg(0);
+    mg.invokeInterface(DECODER_TYPE, getMethod(ByteBuffer.class, "readBytes"));
+
+    if (byte[].class.equals(rawType)) {
+      int buffer = mg.newLocal(byteBufferType);
+      mg.storeLocal(buffer);
+
+      // if (buffer.hasArray() && buffer.remaining() == buffer.array().length) {
+      //   return buffer.array();
+      // }
+      Label copy = mg.newLabel();
+      mg.loadLocal(buffer);
+      mg.invokeVirtual(byteBufferType, getMethod(boolean.class, "hasArray"));
+      mg.ifZCmp(GeneratorAdapter.EQ, copy);
+      mg.loadLocal(buffer);
+      mg.invokeVirtual(byteBufferType, getMethod(int.class, "remaining"));
+      mg.loadLocal(buffer);
+      mg.invokeVirtual(byteBufferType, getMethod(byte[].class, "array"));
+      mg.arrayLength();
+      mg.ifICmp(GeneratorAdapter.NE, copy);
+      mg.loadLocal(buffer);
+      mg.invokeVirtual(byteBufferType, getMethod(byte[].class, "array"));
+      mg.returnValue();
+
+      // byte[] bytes = new byte[buffer.remaining()];
+      // buffer.get(bytes);
+      // return bytes;
+      mg.mark(copy);
+      int bytes = mg.newLocal(Type.getType(byte[].class));
+      mg.loadLocal(buffer);
+      mg.invokeVirtual(byteBufferType, getMethod(int.class, "remaining"));
+      mg.newArray(Type.BYTE_TYPE);
+      mg.storeLocal(bytes);
+      mg.loadLocal(buffer);
+      mg.loadLocal(bytes);
+      mg.invokeVirtual(byteBufferType, getMethod(ByteBuffer.class, "get", byte[].class));
+      mg.pop();
+      mg.loadLocal(bytes);
+
+    } else if (UUID.class.equals(rawType)) {
+      // return new UUID(buffer.getLong(), buffer.getLong());
+      int buffer = mg.newLocal(byteBufferType);
+      mg.storeLocal(buffer);
+      mg.newInstance(Type.getType(UUID.class));
+      mg.dup();
+      mg.loadLocal(buffer);
+      mg.invokeVirtual(byteBufferType, getMethod(long.class, "getLong"));
+      mg.loadLocal(buffer);
+      mg.invokeVirtual(byteBufferType, getMethod(long.class, "getLong"));
+      mg.invokeConstructor(Type.getType(UUID.class), getMethod(void.class, "<init>", long.class, long.class));
+
+    } else {
+      Preconditions.checkArgument(rawType.isAssignableFrom(ByteBuffer.class),
+                                  "Type %s is not supported for bytes value.", inputType);
+    }
+    mg.returnValue();
+  }
+
+  /**
+   * Generates method body for decoding enum value. The mapping from the source enum index to the enum constant is
+   * created in the constructor. The logic is like this:
+   *
+   * <pre>
+   * {@code
+   *
+   * int idx = decoder.readInt();
+   * if (idx < 0 || idx >= this.enumMapping.length || this.enumMapping[idx] == null) {
+   *   throw new IOException(...);
+   * }
+   * return this.enumMapping[idx];
+   * }
+   * </pre>
+   */
+  private void decodeEnum(GeneratorAdapter mg, TypeToken<?> inputType, Schema sourceSchema, Schema schema) {
+    Class<?> rawType = inputType.getRawType();
+    Preconditions.checkArgument(rawType.isEnum(), "Only enum type is supported for enum value: %s", inputType);
+
+    // Enum type might be defined by the user, hence need to preserve class loading of it
+    preserveClass(rawType);
+
+    String fieldName = String.format("enum$%s%s", normalizeTypeName(inputType), sourceSchema.getSchemaHash());
+    if (!enumRequests.containsKey(fieldName)) {
+      Set<String> targetValues = schema.getEnumValues();
+      String[] values = new String[sourceSchema.getEnumValues().size()];
+      for (int i = 0; i < values.length; i++) {
+        String value = sourceSchema.getEnumValue(i);
+        values[i] = targetValues.contains(value) ? value : null;
+      }
+      enumRequests.put(fieldName, new EnumMapping(rawType, values));
+    }
+
+    int idx = mg.newLocal(Type.INT_TYPE);
+    mg.loadArg(0);
+    mg.invokeInterface(DECODER_TYPE, getMethod(int.class, "readInt"));
+    mg.storeLocal(idx);
+
+    Label invalid = mg.newLabel();
+    mg.loadLocal(idx);
+    mg.ifZCmp(GeneratorAdapter.LT, invalid);
+    mg.loadLocal(idx);
+    mg.loadThis();
+    mg.getField(classType, fieldName, OBJECT_ARRAY_TYPE);
+    mg.arrayLength();
+    mg.ifICmp(GeneratorAdapter.GE, invalid);
+
+    int value = mg.newLocal(OBJECT_TYPE);
+    mg.loadThis();
+    mg.getField(classType, fieldName, OBJECT_ARRAY_TYPE);
+    mg.loadLocal(idx);
+    mg.arrayLoad(OBJECT_TYPE);
+    mg.storeLocal(value);
+    mg.loadLocal(value);
+    mg.ifNull(invalid);
+    mg.loadLocal(value);
+    mg.returnValue();
+
+    mg.mark(invalid);
+    throwIOException(mg, "Enum value missing in target %s.", schema);
+  }
+
+  /**
+   * Generates method body for decoding array value into a {@link Collection}. The logic is like this:
+   *
+   * <pre>
+   * {@code
+   *
+   * Collection collection = (Collection) this.collectionInstantiator.create();
+   * int len = decoder.readInt();
+   * while (len != 0) {
+   *   for (int i = 0; i < len; i++) {
+   *     collection.add(decodeElement(decoder));
+   *   }
+   *   len = decoder.readInt();
+   * }
+   * return collection;
+   * }
+   * </pre>
+   */
+  private void decodeCollection(GeneratorAdapter mg, TypeToken<?> inputType,
+                                Schema sourceComponentSchema, Schema componentSchema) {
+    Preconditions.checkArgument(inputType.getType() instanceof ParameterizedType,
+                                "Only support parameterized collection type.");
+    TypeToken<?> componentType = TypeToken.of(((ParameterizedType) inputType.getType()).getActualTypeArguments()[0]);
+    Type collectionType = Type.getType(Collection.class);
+
+    int collection = mg.newLocal(collectionType);
+    create(mg, inputType.getRawType());
+    mg.checkCast(collectionType);
+    mg.storeLocal(collection);
+
+    decodeBlocks(mg, collection, componentType, sourceComponentSchema, componentSchema, null, null);
+
+    mg.loadLocal(collection);
+    mg.returnValue();
+  }
+
+  /**
+   * Generates method body for decoding array value into a Java array. The logic is similar to the one in
+   * {@link #decodeCollection}, with the array created with the size of the first block and grown when there
+   * are more blocks.
+   */
+  private void decodeArray(GeneratorAdapter mg, TypeToken<?> inputType,
+                           Schema sourceComponentSchema, Schema componentSchema) {
+    TypeToken<?> componentType = inputType.getComponentType();
+    Class<?> componentClass = componentType.getRawType();
+    Type arrayType = componentClass.isPrimitive() ? Type.getType(inputType.getRawType()) : OBJECT_ARRAY_TYPE;
+    Type elementType = componentClass.isPrimitive() ? Type.getType(componentClass) : OBJECT_TYPE;
+
+    // int len = decoder.readInt();
+    int len = mg.newLocal(Type.INT_TYPE);
+    mg.loadArg(0);
+    mg.invokeInterface(DECODER_TYPE, getMethod(int.class, "readInt"));
+    mg.storeLocal(len);
+
+    // array = new ComponentType[len];
+    int array = mg.newLocal(arrayType);
+    if (componentClass.isPrimitive()) {
+      mg.loadLocal(len);
+      mg.newArray(elementType);
+    } else {
+      // Component type might be defined by the user, hence create it through reflection
+      preserveClass(componentClass);
+      componentTypeRequests.add(componentClass);
+      mg.loadThis();
+      mg.getField(classType, getComponentTypeName(componentClass), Type.getType(Class.class));
+      mg.loadLocal(len);
+      mg.invokeStatic(Type.getType(Array.class), getMethod(Object.class, "newInstance", Class.class, int.class));
+      mg.checkCast(arrayType);
+    }
+    mg.storeLocal(array);
+
+    int size = mg.newLocal(Type.INT_TYPE);
+    mg.push(0);
+    mg.storeLocal(size);
+
+    decodeBlocks(mg, array, componentType, sourceComponentSchema, componentSchema,
+                 new ArrayBlock(arrayType, elementType, size), len);
+
+    mg.loadLocal(array);
+    mg.returnValue();
+  }
+
+  /**
+   * Generates the loop for decoding blocks of array elements, storing elements either to a {@link Collection}
+   * or to a Java array.
+   *
+   * @param container local variable of the collection or the array
+   * @param arrayBlock information about the Java array, or {@code null} to decode into collection
+   * @param firstLen local variable of the length of the first block if it is already read
+   */
+  private void decodeBlocks(GeneratorAdapter mg, int container, TypeToken<?> componentType,
+                            Schema sourceComponentSchema, Schema componentSchema,
+                            @Nullable ArrayBlock arrayBlock, @Nullable Integer firstLen) {
+    int len;
+    if (firstLen == null) {
+      len = mg.newLocal(Type.INT_TYPE);
+      mg.loadArg(0);
+      mg.invokeInterface(DECODER_TYPE, getMethod(int.class, "readInt"));
+      mg.storeLocal(len);
+    } else {
+      len = firstLen;
+    }
+
+    // while (len != 0)
+    Label beginWhile = mg.mark();
+    Label endWhile = mg.newLabel();
+    mg.loadLocal(len);
+    mg.ifZCmp(GeneratorAdapter.EQ, endWhile);
+
+    if (arrayBlock != null) {
+      // if (size + len > array.length) { array = Arrays.copyOf(array, size + len); }
+      Label noGrow = mg.newLabel();
+      mg.loadLocal(arrayBlock.size);
+      mg.loadLocal(len);
+      mg.math(GeneratorAdapter.ADD, Type.INT_TYPE);
+      mg.loadLocal(container);
+      mg.arrayLength();
+      mg.ifICmp(GeneratorAdapter.LE, noGrow);
+      mg.loadLocal(container);
+      mg.loadLocal(arrayBlock.size);
+      mg.loadLocal(len);
+      mg.math(GeneratorAdapter.ADD, Type.INT_TYPE);
+      mg.invokeStatic(Type.getType(Arrays.class),
+                      new Method("copyOf", arrayBlock.arrayType, new Type[] { arrayBlock.arrayType, Type.INT_TYPE }));
+      mg.storeLocal(container);
+      mg.mark(noGrow);
+    }
+
+    // for (int i = 0; i < len; i++)
+    int idx = mg.newLocal(Type.INT_TYPE);
+    mg.push(0);
+    mg.storeLocal(idx);
+    Label beginFor = mg.mark();
+    Label endFor = mg.newLabel();
+    mg.loadLocal(idx);
+    mg.loadLocal(len);
+    mg.ifICmp(GeneratorAdapter.GE, endFor);
+
+    mg.loadLocal(container);
+    if (arrayBlock == null) {
+      // collection.add(decodeElement(decoder));
+      invokeDecode(mg, componentType, sourceComponentSchema, componentSchema);
+      mg.invokeInterface(Type.getType(Collection.class), getMethod(boolean.class, "add", Object.class));
+      mg.pop();
+    } else {
+      // array[size++] = decodeElement(decoder);
+      mg.loadLocal(arrayBlock.size);
+      invokeDecode(mg, componentType, sourceComponentSchema, componentSchema);
+      mg.arrayStore(arrayBlock.elementType);
+      mg.iinc(arrayBlock.size, 1);
+    }
+
+    mg.iinc(idx, 1);
+    mg.goTo(beginFor);
+    mg.mark(endFor);
+
+    // len = decoder.readInt();
+    mg.loadArg(0);
+    mg.invokeInterface(DECODER_TYPE, getMethod(int.class, "readInt"));
+    mg.storeLocal(len);
+    mg.goTo(beginWhile);
+    mg.mark(endWhile);
+  }
+
+  /**
+   * Generates method body for decoding map value. The logic is like this:
+   *
+   * <pre>
+   * {@code
+   *
+   * Map map = (Map) this.mapInstantiator.create();
+   * int len = decoder.readInt();
+   * while (len != 0) {
+   *   for (int i = 0; i < len; i++) {
+   *     map.put(decodeKey(decoder), decodeValue(decoder));
+   *   }
+   *   len = decoder.readInt();
+   * }
+   * return map;
+   * }
+   * </pre>
+   */
+  private void decodeMap(GeneratorAdapter mg, TypeToken<?> inputType,
+                         Map.Entry<Schema, Schema> sourceMapSchema, Map.Entry<Schema, Schema> mapSchema) {
+    Preconditions.checkArgument(Map.class.isAssignableFrom(inputType.getRawType()),
+                                "Only %s type is supported.", Map.class.getName());
+    Preconditions.checkArgument(inputType.getType() instanceof ParameterizedType,
+                                "Only support parameterized map type.");
+    java.lang.reflect.Type[] mapArgs = ((ParameterizedType) inputType.getType()).getActualTypeArguments();
+    TypeToken<?> keyType = TypeToken.of(mapArgs[0]);
+    TypeToken<?> valueType = TypeToken.of(mapArgs[1]);
+    Type mapType = Type.getType(Map.class);
+
+    int map = mg.newLocal(mapType);
+    create(mg, inputType.getRawType());
+    mg.checkCast(mapType);
+    mg.storeLocal(map);
+
+    int len = mg.newLocal(Type.INT_TYPE);
+    mg.loadArg(0);
+    mg.invokeInterface(DECODER_TYPE, getMethod(int.class, "readInt"));
+    mg.storeLocal(len);
+
+    Label beginWhile = mg.mark();
+    Label endWhile = mg.newLabel();
+    mg.loadLocal(len);
+    mg.ifZCmp(GeneratorAdapter.EQ, endWhile);
+
+    int idx = mg.newLocal(Type.INT_TYPE);
+    mg.push(0);
+    mg.storeLocal(idx);
+    Label beginFor = mg.mark();
+    Label endFor = mg.newLabel();
+    mg.loadLocal(idx);
+    mg.loadLocal(len);
+    mg.ifICmp(GeneratorAdapter.GE, endFor);
+
+    mg.loadLocal(map);
+    invokeDecode(mg, keyType, sourceMapSchema.getKey(), mapSchema.getKey());
+    invokeDecode(mg, valueType, sourceMapSchema.getValue(), mapSchema.getValue());
+    mg.invokeInterface(mapType, getMethod(Object.class, "put", Object.class, Object.class));
+    mg.pop();
+
+    mg.iinc(idx, 1);
+    mg.goTo(beginFor);
+    mg.mark(endFor);
+
+    mg.loadArg(0);
+    mg.invokeInterface(DECODER_TYPE, getMethod(int.class, "readInt"));
+    mg.storeLocal(len);
+    mg.goTo(beginWhile);
+    mg.mark(endWhile);
+
+    mg.loadLocal(map);
+    mg.returnValue();
+  }
+
+  /**
+   * Generates method body for decoding record. Fields are decoded in the order of the source schema. Fields that
+   * are not in the target schema are skipped, while fields that are not in the source schema are left untouched.
+   * The logic is like this:
+   *
+   * <pre>
+   * {@code
+   *
+   * Object record = this.recordInstantiator.create();
+   * this.field1Accessor.setInt(record, decodeField1(decoder));
+   * skipField2(decoder);
+   * this.field3Accessor.set(record, decodeField3(decoder));
+   * return record;
+   * }
+   * </pre>
+   */
+  private void decodeRecord(GeneratorAdapter mg, TypeToken<?> inputType, Schema sourceSchema, Schema schema) {
+    Class<?> rawType = inputType.getRawType();
+    Preconditions.checkArgument(!rawType.isInterface() && !Modifier.isAbstract(rawType.getModifiers()),
+                                "Cannot decode record to abstract type %s", inputType);
+
+    // Record type might be defined by the user, hence need to preserve class loading of it
+    preserveClass(rawType);
+
+    int record = mg.newLocal(OBJECT_TYPE);
+    create(mg, rawType);
+    mg.storeLocal(record);
+
+    for (Schema.Field sourceField : sourceSchema.getFields()) {
+      Schema.Field targetField = schema.getField(sourceField.getName());
+      if (targetField == null) {
+        invokeSkip(mg, sourceField.getSchema());
+        continue;
+      }
+
+      TypeToken<?> fieldType;
+      try {
+        fieldType = inputType.resolveType(Fields.findField(inputType.getType(),
+                                                           sourceField.getName()).getGenericType());
+      } catch (NoSuchFieldException e) {
+        throw new IllegalArgumentException("Field " + sourceField.getName() + " not found in " + inputType, e);
+      }
+      fieldAccessorRequests.put(inputType, sourceField.getName());
+
+      // this.fieldAccessor.setXXX(record, decodeField(decoder));
+      mg.loadThis();
+      mg.getField(classType, getFieldAccessorName(inputType, sourceField.getName()),
+                  Type.getType(FieldAccessor.class));
+      mg.loadLocal(record);
+      invokeDecode(mg, fieldType, sourceField.getSchema(), targetField.getSchema());
+      mg.invokeInterface(Type.getType(FieldAccessor.class), getAccessorMethod(fieldType));
+    }
+
+    mg.loadLocal(record);
+    mg.returnValue();
+  }
+
+  /**
+   * Generates method body for decoding union. For each of the source union schemas, the target schema to decode to
+   * is resolved at generation time.
+   */
+  private void decodeUnion(GeneratorAdapter mg, TypeToken<?> inputType, Schema sourceSchema, Schema schema) {
+    int idx = mg.newLocal(Type.INT_TYPE);
+    mg.loadArg(0);
+    mg.invokeInterface(DECODER_TYPE, getMethod(int.class, "readInt"));
+    mg.storeLocal(idx);
+
+    List<Schema> sourceUnionSchemas = sourceSchema.getUnionSchemas();
+    for (int i = 0; i < sourceUnionSchemas.size(); i++) {
+      Schema sourceValueSchema = sourceUnionSchemas.get(i);
+
+      // if (idx == i) { return decodeValue(decoder); }
+      Label next = mg.newLabel();
+      mg.loadLocal(idx);
+      mg.push(i);
+      mg.ifICmp(GeneratorAdapter.NE, next);
+
+      Schema targetValueSchema = schema.getType() == Schema.Type.UNION
+        ? resolveUnionSchema(sourceValueSchema, schema, i)
+        : schema;
+      if (targetValueSchema == null) {
+        throwIOException(mg, "Fail to resolve %s to %s", sourceSchema, schema);
+      } else {
+        invokeDecode(mg, inputType, sourceValueSchema, targetValueSchema);
+        mg.returnValue();
+      }
+      mg.mark(next);
+    }
+    throwIOException(mg, "Invalid union index for %s", sourceSchema);
+  }
+
+  /**
+   * Resolves the schema in the target union to decode a non-union source schema to.
+   *
+   * @param sourceSchema the schema of the encoded value
+   * @param unionSchema the target union schema
+   * @param idx the index of the source schema in the source union, or {@code -1} if the source is not a union
+   * @return the schema to decode to, or {@code null} if no schema in the union can be resolved from the source.
+   */
+  @Nullable
+  private Schema resolveUnionSchema(Schema sourceSchema, Schema unionSchema, int idx) {
+    // Try the schema with the same index first, same as the ReflectionDatumReader does.
+    if (idx >= 0 && idx < unionSchema.getUnionSchemas().size()) {
+      Schema schema = unionSchema.getUnionSchema(idx);
+      if (schema.getType() == sourceSchema.getType()) {
+        return schema;
+      }
+    }
+    for (Schema schema : unionSchema.getUnionSchemas()) {
+      if (sourceSchema.isCompatible(schema)) {
+        return schema;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Generates code for calling the skip method for the given schema.
+   */
+  private void invokeSkip(GeneratorAdapter mg, Schema schema) {
+    mg.loadThis();
+    mg.loadArg(0);
+    mg.invokeVirtual(classType, getSkipMethod(schema));
+  }
+
+  /**
+   * Returns the method with signature {@code void (Decoder)} for skipping data encoded with the given schema.
+   */
+  private Method getSkipMethod(Schema schema) {
+    String key = schema.getSchemaHash().toString();
+    Method method = skipMethods.get(key);
+    if (method != null) {
+      return method;
+    }
+
+    method = getMethod(void.class, "skip" + key, Decoder.class);
+    skipMethods.put(key, method);
+
+    GeneratorAdapter mg = new GeneratorAdapter(Opcodes.ACC_PRIVATE, method, null,
+                                               new Type[]{Type.getType(IOException.class)}, classWriter);
+    generateSkipBody(mg, schema);
+    mg.returnValue();
+    mg.endMethod();
+
+    return method;
+  }
+
+  private void generateSkipBody(GeneratorAdapter mg, Schema schema) {
+    switch (schema.getType()) {
+      case NULL:
+        break;
+      case BOOLEAN:
+        mg.loadArg(0);
+        mg.invokeInterface(DECODER_TYPE, getMethod(boolean.class, "readBool"));
+        mg.pop();
+        break;
+      case INT:
+      case ENUM:
+        mg.loadArg(0);
+        mg.invokeInterface(DECODER_TYPE, getMethod(int.class, "readInt"));
+        mg.pop();
+        break;
+      case LONG:
+        mg.loadArg(0);
+        mg.invokeInterface(DECODER_TYPE, getMethod(long.class, "readLong"));
+        mg.pop2();
+        break;
+      case FLOAT:
+      case DOUBLE:
+      case BYTES:
+      case STRING:
+        String typeName = schema.getType().name();
+        mg.loadArg(0);
+        mg.invokeInterface(DECODER_TYPE, getMethod(void.class, "skip" + typeName.charAt(0)
+          + typeName.substring(1).toLowerCase()));
+        break;
+      case ARRAY:
+        skipBlocks(mg, schema.getComponentSchema(), null);
+        break;
+      case MAP:
+        skipBlocks(mg, schema.getMapSchema().getKey(), schema.getMapSchema().getValue());
+        break;
+      case RECORD:
+        for (Schema.Field field : schema.getFields()) {
+          invokeSkip(mg, field.getSchema());
+        }
+        break;
+      case UNION:
+        int idx = mg.newLocal(Type.INT_TYPE);
+        mg.loadArg(0);
+        mg.invokeInterface(DECODER_TYPE, getMethod(int.class, "readInt"));
+        mg.storeLocal(idx);
+        Label end = mg.newLabel();
+        List<Schema> unionSchemas = schema.getUnionSchemas();
+        for (int i = 0; i < unionSchemas.size(); i++) {
+          Label next = mg.newLabel();
+          mg.loadLocal(idx);
+          mg.push(i);
+          mg.ifICmp(GeneratorAdapter.NE, next);
+          invokeSkip(mg, unionSchemas.get(i));
+          mg.goTo(end);
+          mg.mark(next);
+        }
+        throwIOException(mg, "Invalid union index for %s", schema);
+        mg.mark(end);
+        break;
+    }
+  }
+
+  /**
+   * Generates code for skipping all blocks of an array or a map.
+   *
+   * @param valueSchema the schema of map value, or {@code null} for array
+   */
+  private void skipBlocks(GeneratorAdapter mg, Schema schema, @Nullable Schema valueSchema) {
+    int len = mg.newLocal(Type.INT_TYPE);
+    mg.loadArg(0);
+    mg.invokeInterface(DECODER_TYPE, getMethod(int.class, "readInt"));
+    mg.storeLocal(len);
+
+    Label beginWhile = mg.mark();
+    Label endWhile = mg.newLabel();
+    mg.loadLocal(len);
+    mg.ifZCmp(GeneratorAdapter.EQ, endWhile);
+
+    Label beginFor = mg.mark();
+    Label endFor = mg.newLabel();
+    mg.loadLocal(len);
+    mg.ifZCmp(GeneratorAdapter.LE, endFor);
+    invokeSkip(mg, schema);
+    if (valueSchema != null) {
+      invokeSkip(mg, valueSchema);
+    }
+    mg.iinc(len, -1);
+    mg.goTo(beginFor);
+    mg.mark(endFor);
+
+    mg.loadArg(0);
+    mg.invokeInterface(DECODER_TYPE, getMethod(int.class, "readInt"));
+    mg.storeLocal(len);
+    mg.goTo(beginWhile);
+    mg.mark(endWhile);
+  }
+
+  /**
+   * Generates code for creating a new instance of the given class through the {@link Instantiator}.
+   */
+  private void create(GeneratorAdapter mg, Class<?> cls) {
+    preserveClass(cls);
+    instantiatorRequests.add(cls);
+    mg.loadThis();
+    mg.getField(classType, getInstantiatorName(cls), Type.getType(Instantiator.class));
+    mg.invokeInterface(Type.getType(Instantiator.class), getMethod(Object.class, "create"));
+  }
+
+  private void throwIOException(GeneratorAdapter mg, String format, Object... args) {
+    mg.throwException(Type.getType(IOException.class), String.format(format, args));
+  }
+
+  private void preserveClass(Class<?> cls) {
+    while (cls.isArray()) {
+      cls = cls.getComponentType();
+    }
+    if (!cls.isPrimitive() && !preservedClasses.contains(cls)) {
+      preservedClasses.add(cls);
+    }
+  }
+
+  /**
+   * Returns whether a value of the source schema type can be decoded as the target schema type, same as the
+   * rules in {@link ReflectionReader}.
+   */
+  private boolean isPromotable(Schema.Type sourceType, Schema.Type targetType) {
+    if (sourceType == targetType || targetType == Schema.Type.STRING) {
+      return true;
+    }
+    switch (sourceType) {
+      case INT:
+        return targetType == Schema.Type.LONG || targetType == Schema.Type.FLOAT || targetType == Schema.Type.DOUBLE;
+      case LONG:
+        return targetType == Schema.Type.FLOAT || targetType == Schema.Type.DOUBLE;
+      case FLOAT:
+        return targetType == Schema.Type.DOUBLE;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the type returned by the {@link Decoder} read method for the given simple schema type.
+   */
+  private Class<?> getReadClass(Schema.Type schemaType) {
+    switch (schemaType) {
+      case BOOLEAN:
+        return boolean.class;
+      case INT:
+        return int.class;
+      case LONG:
+        return long.class;
+      case FLOAT:
+        return float.class;
+      case DOUBLE:
+        return double.class;
+      case STRING:
+        return String.class;
+    }
+    throw new IllegalArgumentException("Not a simple type " + schemaType);
+  }
+
+  private String getReadMethodName(Schema.Type schemaType) {
+    if (schemaType == Schema.Type.BOOLEAN) {
+      return "readBool";
+    }
+    String name = schemaType.name();
+    return "read" + name.charAt(0) + name.substring(1).toLowerCase();
+  }
+
+  /**
+   * Returns the return type of the decode method. Only primitive types are returned as is, since the generated
+   * class may not have access to the input type.
+   */
+  private Type getCallType(TypeToken<?> inputType) {
+    Class<?> rawType = inputType.getRawType();
+    return rawType.isPrimitive() ? Type.getType(rawType) : OBJECT_TYPE;
+  }
+
+  /**
+   * Returns the method for setting a field through {@link FieldAccessor} based on the field type.
+   */
+  private Method getAccessorMethod(TypeToken<?> type) {
+    Class<?> rawType = type.getRawType();
+    if (rawType.isPrimitive()) {
+      return getMethod(void.class,
+                       String.format("set%c%s",
+                                     Character.toUpperCase(rawType.getName().charAt(0)),
+                                     rawType.getName().substring(1)),
+                       Object.class, rawType);
+    }
+    return getMethod(void.class, "set", Object.class, Object.class);
+  }
+
+  private <T> TypeToken<DatumReader<T>> getInterfaceType(TypeToken<T> type) {
+    return new TypeToken<DatumReader<T>>() {
+    }.where(new TypeParameter<T>() {
+    }, type);
+  }
+
+  private String getClassName(TypeToken<?> interfaceType, Schema sourceSchema, Schema schema) {
+    return String.format("%s/%s%s%s%s",
+                         interfaceType.getRawType().getPackage().getName().replace('.', '/'),
+                         normalizeTypeName(TypeToken.of(((ParameterizedType) interfaceType.getType())
+                                                          .getActualTypeArguments()[0])),
+                         interfaceType.getRawType().getSimpleName(),
+                         schema.getSchemaHash(), sourceSchema.getSchemaHash());
+  }
+
+  private String normalizeTypeName(TypeToken<?> type) {
+    String typeName = type.toString();
+    int dimension = 0;
+    while (type.isArray()) {
+      type = type.getComponentType();
+      typeName = type.toString();
+      dimension++;
+    }
+
+    typeName = typeName.replace(".", "")
+                        .replace("<", "Of")
+                        .replace(">", "")
+                        .replace(",", "To")
+                        .replace(" ", "")
+                        .replace("$", "");
+    if (dimension > 0) {
+      typeName = "Array" + dimension + typeName;
+    }
+    return typeName;
+  }
+
+  private Method getMethod(Class<?> returnType, String name, Class<?>...args) {
+    return Methods.getMethod(returnType, name, args);
+  }
+
+  /**
+   * Generates the name of the class field for storing {@link FieldAccessor} for the given record field.
+   */
+  private String getFieldAccessorName(TypeToken<?> recordType, String fieldName) {
+    return String.format("%s$%s", normalizeTypeName(recordType), fieldName);
+  }
+
+  /**
+   * Generates the name of the class field for storing {@link Instantiator} for the given class.
+   */
+  private String getInstantiatorName(Class<?> cls) {
+    return String.format("instantiator$%s", normalizeTypeName(TypeToken.of(cls)));
+  }
+
+  /**
+   * Generates the name of the class field for storing the array component {@link Class}.
+   */
+  private String getComponentTypeName(Class<?> cls) {
+    return String.format("componentType$%s", normalizeTypeName(TypeToken.of(cls)));
+  }
+
+  /**
+   * Mapping from the source enum index to the enum value name in the target enum class.
+   */
+  private static final class EnumMapping {
+    private final Class<?> enumClass;
+    private final String[] values;
+
+    private EnumMapping(Class<?> enumClass, String[] values) {
+      this.enumClass = enumClass;
+      this.values = values;
+    }
+  }
+
+  /**
+   * Information for storing array elements while decoding blocks.
+   */
+  private static final class ArrayBlock {
+    private final Type arrayType;
+    private final Type elementType;
+    private final int size;
+
+    private ArrayBlock(Type arrayType, Type elementType, int size) {
+      this.arrayType = arrayType;
+      this.elementType = elementType;
+      this.size = size;
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.io;
+
+import co.cask.cdap.api.data.schema.Schema;
+import co.cask.cdap.api.data.schema.UnsupportedTypeException;
+import co.cask.cdap.common.io.BinaryDecoder;
+import co.cask.cdap.common.io.BinaryEncoder;
+import co.cask.cdap.internal.io.ASMDatumReaderFactory;
+import co.cask.cdap.internal.io.ASMFieldAccessorFactory;
+import co.cask.cdap.internal.io.DatumReader;
+import co.cask.cdap.internal.io.ReflectionDatumWriter;
+import co.cask.cdap.internal.io.ReflectionSchemaGenerator;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.reflect.TypeToken;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Tests for {@link DatumReader} created by {@link ASMDatumReaderFactory}.
+ */
+public class ASMDatumReaderFactoryTest {
+
+  private static final ASMDatumReaderFactory DATUM_READER_FACTORY
+    = new ASMDatumReaderFactory(new ASMFieldAccessorFactory());
+
+  /**
+   * Enum for testing.
+   */
+  public enum SourceEnum {
+    VALUE1, VALUE2, VALUE3
+  }
+
+  /**
+   * Enum for testing, with one value missing from {@link SourceEnum}.
+   */
+  public enum TargetEnum {
+    VALUE3, VALUE1
+  }
+
+  @Test
+  public void testSimpleTypes() throws Exception {
+    Assert.assertEquals(Integer.valueOf(10), project(10, TypeToken.of(int.class)));
+    Assert.assertEquals(Long.valueOf(10), project(10, TypeToken.of(long.class)));
+    Assert.assertEquals(Double.valueOf(1.5f), project(1.5f, TypeToken.of(Double.class)));
+    Assert.assertEquals(Short.valueOf((short) 3), project((short) 3, TypeToken.of(short.class)));
+    Assert.assertEquals(Character.valueOf('c'), project((int) 'c', TypeToken.of(Character.class)));
+    Assert.assertEquals(Boolean.TRUE, project(true, TypeToken.of(boolean.class)));
+    Assert.assertEquals("Testing", project("Testing", TypeToken.of(String.class)));
+    Assert.assertEquals(URI.create("http://cdap.io"), project(URI.create("http://cdap.io"), TypeToken.of(URI.class)));
+    Assert.assertEquals(new URL("http://cdap.io"), project(URI.create("http://cdap.io"), TypeToken.of(URL.class)));
+
+    UUID uuid = UUID.randomUUID();
+    Assert.assertEquals(uuid, project(uuid, TypeToken.of(UUID.class)));
+    Assert.assertArrayEquals(new byte[] {1, 2, 3}, project(new byte[] {1, 2, 3}, TypeToken.of(byte[].class)));
+    Assert.assertEquals(ByteBuffer.wrap(new byte[] {1, 2}),
+                        project(new byte[] {1, 2}, TypeToken.of(ByteBuffer.class)));
+  }
+
+  @Test
+  public void testEnum() throws Exception {
+    Assert.assertEquals(TargetEnum.VALUE3, project(SourceEnum.VALUE3, TypeToken.of(TargetEnum.class)));
+    Assert.assertEquals(TargetEnum.VALUE1, project(SourceEnum.VALUE1, TypeToken.of(TargetEnum.class)));
+    try {
+      project(SourceEnum.VALUE2, TypeToken.of(TargetEnum.class));
+      Assert.fail("Expected IOException for enum value missing in target");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCollections() throws Exception {
+    Assert.assertArrayEquals(new long[] {1L, 2L, 3L}, project(new int[] {1, 2, 3}, TypeToken.of(long[].class)));
+    Assert.assertArrayEquals(new String[] {"a", "b"},
+                             project(ImmutableList.of("a", "b"), new TypeToken<List<String>>() { },
+                                     TypeToken.of(String[].class)));
+    Assert.assertArrayEquals(new int[0][], project(new int[0][], TypeToken.of(int[][].class)));
+    int[][] matrix = project(new int[][] {{1}, {2, 3}}, TypeToken.of(int[][].class));
+    Assert.assertArrayEquals(new int[] {2, 3}, matrix[1]);
+
+    Assert.assertEquals(ImmutableSet.of("1", "2"),
+                        project(ImmutableList.of("1", "2", "1"), new TypeToken<List<String>>() { },
+                                new TypeToken<Set<String>>() { }));
+    Assert.assertEquals(ImmutableList.of(1L, 2L), project(new int[] {1, 2}, new TypeToken<List<Long>>() { }));
+    Assert.assertEquals(ImmutableMap.of("1", 10L, "2", 20L),
+                        project(ImmutableMap.of(1, 10, 2, 20), new TypeToken<Map<Integer, Integer>>() { },
+                                new TypeToken<Map<String, Long>>() { }));
+  }
+
+  @Test
+  public void testRecordProjection() throws Exception {
+    Map<Integer, Value> properties = Maps.newHashMap();
+    properties.put(1, new Value(1, "Name1"));
+    properties.put(2, null);
+    Record1 r1 = new Record1(10, properties, new URL("http://cdap.io"));
+
+    Record2 r2 = project(r1, TypeToken.of(Record2.class));
+    Assert.assertEquals(10L, r2.i.longValue());
+    Assert.assertEquals(ImmutableMap.of("1", new Value(1, "Name1")),
+                        Maps.filterValues(r2.properties, Predicates.notNull()));
+    Assert.assertTrue(r2.properties.containsKey("2"));
+    Assert.assertNull(r2.name);
+    Assert.assertArrayEquals(new long[] {1L, 2L}, r2.numbers);
+    Assert.assertEquals(URI.create("http://cdap.io"), r2.url);
+    Assert.assertEquals(r1.uuid, r2.uuid);
+    Assert.assertNull(r2.nullStr);
+    Assert.assertEquals(Arrays.asList(TargetEnum.VALUE3), r2.enums);
+  }
+
+  @Test
+  public void testRecursive() throws Exception {
+    Node node = new Node(1, new Node(2, new Node(3, null)));
+    Assert.assertEquals(node, project(node, TypeToken.of(Node.class)));
+  }
+
+  @Test
+  public void testSourceSchemaChange() throws Exception {
+    // The same reader must be able to decode data written with different schemas
+    TypeToken<Long> type = TypeToken.of(Long.class);
+    DatumReader<Long> reader = DATUM_READER_FACTORY.create(type, getSchema(type));
+    Assert.assertEquals(Long.valueOf(5), read(reader, 5, TypeToken.of(int.class)));
+    Assert.assertEquals(Long.valueOf(6), read(reader, 6L, TypeToken.of(long.class)));
+    Assert.assertEquals(Long.valueOf(7), read(reader, 7, TypeToken.of(int.class)));
+  }
+
+  private <T> Schema getSchema(TypeToken<T> type) throws UnsupportedTypeException {
+    return new ReflectionSchemaGenerator().generate(type.getType());
+  }
+
+  /**
+   * Encodes the given value with the schema of its type and decodes it into the given type.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> T project(Object value, TypeToken<T> type) throws IOException, UnsupportedTypeException {
+    return project(value, (TypeToken<Object>) TypeToken.of(value.getClass()), type);
+  }
+
+  private <T, V> T project(V value, TypeToken<V> sourceType,
+                           TypeToken<T> type) throws IOException, UnsupportedTypeException {
+    return read(DATUM_READER_FACTORY.create(type, getSchema(type)), value, sourceType);
+  }
+
+  private <T, V> T read(DatumReader<T> reader, V value, TypeToken<V> sourceType)
+    throws IOException, UnsupportedTypeException {
+    Schema sourceSchema = getSchema(sourceType);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new ReflectionDatumWriter<V>(sourceSchema).encode(value, new BinaryEncoder(os));
+    return reader.read(new BinaryDecoder(new ByteArrayInputStream(os.toByteArray())), sourceSchema);
+  }
+
+  /**
+   * Value in record for testing.
+   */
+  public static final class Value {
+    private final int id;
+    private final String name;
+
+    public Value(int id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Value value = (Value) o;
+      return id == value.id && name.equals(value.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * id + name.hashCode();
+    }
+  }
+
+  /**
+   * Source record for testing.
+   */
+  public static final class Record1 {
+    private final int i;
+    private final Map<Integer, Value> properties;
+    private final int[] numbers;
+    private final URL url;
+    private final UUID uuid;
+    private final String nullStr;
+    private final boolean removed;
+    private final List<SourceEnum> enums;
+
+    public Record1(int i, Map<Integer, Value> properties, URL url) {
+      this.i = i;
+      this.properties = properties;
+      this.numbers = new int[] {1, 2};
+      this.url = url;
+      this.uuid = UUID.randomUUID();
+      this.nullStr = null;
+      this.removed = true;
+      this.enums = ImmutableList.of(SourceEnum.VALUE3);
+    }
+  }
+
+  /**
+   * Target record for testing.
+   */
+  public static final class Record2 {
+    private Long i;
+    private Map<String, Value> properties;
+    private String name;
+    private long[] numbers;
+    private URI url;
+    private UUID uuid;
+    private String nullStr;
+    private List<TargetEnum> enums;
+  }
+
+  /**
+   * Recursive record for testing.
+   */
+  public static final class Node {
+    private final int value;
+    private final Node next;
+
+    public Node(int value, Node next) {
+      this.value = value;
+      this.next = next;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Node other = (Node) o;
+      return value == other.value && (next == null ? other.next == null : next.equals(other.next));
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * value + (next == null ? 0 : next.hashCode());
+    }
+  }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.io;
+
+import co.cask.cdap.api.data.schema.Schema;
+import co.cask.cdap.api.data.schema.UnsupportedTypeException;
+import co.cask.cdap.common.io.BinaryDecoder;
+import co.cask.cdap.common.io.BinaryEncoder;
+import co.cask.cdap.internal.io.ASMDatumReaderFactory;
+import co.cask.cdap.internal.io.ASMFieldAccessorFactory;
+import co.cask.cdap.internal.io.DatumReader;
+import co.cask.cdap.internal.io.ReflectionDatumReader;
+import co.cask.cdap.internal.io.ReflectionDatumWriter;
+import co.cask.cdap.internal.io.ReflectionSchemaGenerator;
+import co.cask.cdap.io.ASMDatumReaderFactoryTest.SourceEnum;
+import co.cask.cdap.io.ASMDatumReaderFactoryTest.TargetEnum;
+import co.cask.cdap.io.ASMDatumReaderFactoryTest.Value;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.reflect.TypeToken;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.UUID;
+
+/**
+ * Differential tests that decode the same data with {@link ReflectionDatumReader} and with the
+ * {@link DatumReader} generated by {@link ASMDatumReaderFactory}, and verify that both produce the same result.
+ */
+public class DatumReaderDifferentialTest {
+
+  private static final ASMDatumReaderFactory ASM_FACTORY = new ASMDatumReaderFactory(new ASMFieldAccessorFactory());
+
+  @Test
+  public void testNullableUnion() throws Exception {
+    TypeToken<NullableRecord> type = TypeToken.of(NullableRecord.class);
+    assertSameDecode(new NullableRecord("str", 10, new Value(1, "one"), Arrays.asList("a", null, "b")), type, type);
+    assertSameDecode(new NullableRecord(null, null, null, null), type, type);
+
+    // Nullable source to non-nullable target. Null value must fail in both.
+    TypeToken<String> stringType = TypeToken.of(String.class);
+    Schema nullableString = Schema.nullableOf(Schema.of(Schema.Type.STRING));
+    assertSameDecode(encode(nullableString, "a"), nullableString, stringType, Schema.of(Schema.Type.STRING));
+    assertSameDecode(encode(nullableString, null), nullableString, stringType, Schema.of(Schema.Type.STRING));
+
+    // Non-union source to a union target.
+    Schema intSchema = Schema.of(Schema.Type.INT);
+    assertSameDecode(encode(intSchema, 5), intSchema, TypeToken.of(Long.class),
+                     Schema.unionOf(Schema.of(Schema.Type.NULL), Schema.of(Schema.Type.LONG)));
+  }
+
+  @Test
+  public void testUnionReorder() throws Exception {
+    // Decode into target schemas that have null as the first union branch
+    TypeToken<List<String>> listType = new TypeToken<List<String>>() { };
+    assertSameDecode(Arrays.asList("a", null, "b"), listType, listType,
+                     Schema.arrayOf(Schema.unionOf(Schema.of(Schema.Type.NULL), Schema.of(Schema.Type.STRING))));
+
+    TypeToken<NullableRecord> type = TypeToken.of(NullableRecord.class);
+    Schema nullFirst = nullFirst(getSchema(type));
+    assertSameDecode(new NullableRecord("str", 10, new Value(1, "one"), Arrays.asList("a", null)),
+                     type, type, nullFirst);
+    assertSameDecode(new NullableRecord(null, null, null, null), type, type, nullFirst);
+
+    // Source and target union with different branches in different order
+    Schema sourceSchema = Schema.unionOf(Schema.of(Schema.Type.INT), Schema.of(Schema.Type.STRING),
+                                         Schema.of(Schema.Type.NULL));
+    Schema targetSchema = Schema.unionOf(Schema.of(Schema.Type.STRING), Schema.of(Schema.Type.LONG),
+                                         Schema.of(Schema.Type.NULL));
+    TypeToken<String> stringType = TypeToken.of(String.class);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new BinaryEncoder(os).writeInt(0).writeInt(5);
+    Assert.assertEquals("5", assertSameDecode(os.toByteArray(), sourceSchema, stringType, targetSchema));
+    os.reset();
+    new BinaryEncoder(os).writeInt(1).writeString("x");
+    Assert.assertEquals("x", assertSameDecode(os.toByteArray(), sourceSchema, stringType, targetSchema));
+    os.reset();
+    new BinaryEncoder(os).writeInt(2).writeNull();
+    Assert.assertNull(assertSameDecode(os.toByteArray(), sourceSchema, stringType, targetSchema));
+
+    sourceSchema = Schema.unionOf(Schema.of(Schema.Type.NULL), Schema.of(Schema.Type.LONG));
+    targetSchema = Schema.unionOf(Schema.of(Schema.Type.LONG), Schema.of(Schema.Type.NULL));
+    TypeToken<Long> longType = TypeToken.of(Long.class);
+    os.reset();
+    new BinaryEncoder(os).writeInt(1).writeLong(7L);
+    Assert.assertEquals(Long.valueOf(7L), assertSameDecode(os.toByteArray(), sourceSchema, longType, targetSchema));
+    os.reset();
+    new BinaryEncoder(os).writeInt(0).writeNull();
+    Assert.assertNull(assertSameDecode(os.toByteArray(), sourceSchema, longType, targetSchema));
+  }
+
+  @Test
+  public void testMaps() throws Exception {
+    Map<Integer, Value> values = Maps.newHashMap();
+    values.put(1, new Value(1, "one"));
+    values.put(2, null);
+    assertSameDecode(values, new TypeToken<Map<Integer, Value>>() { }, new TypeToken<Map<Long, Value>>() { });
+
+    assertSameDecode(ImmutableMap.of(1L, 10, 2L, 20), new TypeToken<Map<Long, Integer>>() { },
+                     new TypeToken<Map<String, Long>>() { });
+    assertSameDecode(ImmutableMap.of(SourceEnum.VALUE1, 1.5f, SourceEnum.VALUE3, 3.5f),
+                     new TypeToken<Map<SourceEnum, Float>>() { }, new TypeToken<Map<TargetEnum, Double>>() { });
+    assertSameDecode(ImmutableMap.of(UUID.randomUUID(), "uuid"), new TypeToken<Map<UUID, String>>() { },
+                     new TypeToken<Map<UUID, String>>() { });
+    assertSameDecode(ImmutableMap.<Value, List<Integer>>of(new Value(1, "one"), ImmutableList.of(1, 2)),
+                     new TypeToken<Map<Value, List<Integer>>>() { }, new TypeToken<Map<Value, List<Long>>>() { });
+  }
+
+  @Test
+  public void testBytes() throws Exception {
+    byte[] bytes = new byte[] {1, 2, 3, 4};
+    assertSameDecode(bytes, TypeToken.of(byte[].class), TypeToken.of(ByteBuffer.class));
+    assertSameDecode(ByteBuffer.wrap(bytes, 1, 2), TypeToken.of(ByteBuffer.class), TypeToken.of(byte[].class));
+    assertSameDecode(new byte[0], TypeToken.of(byte[].class), TypeToken.of(byte[].class));
+
+    UUID uuid = UUID.randomUUID();
+    assertSameDecode(uuid, TypeToken.of(UUID.class), TypeToken.of(UUID.class));
+    ByteBuffer uuidBytes = ByteBuffer.allocate(16);
+    uuidBytes.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+    Assert.assertEquals(uuid, assertSameDecode(uuidBytes.array(), TypeToken.of(byte[].class),
+                                               TypeToken.of(UUID.class)));
+  }
+
+  @Test
+  public void testArraysAndCollections() throws Exception {
+    assertSameDecode(new int[] {1, 2, 3}, TypeToken.of(int[].class), TypeToken.of(long[].class));
+    assertSameDecode(new int[] {1, 2, 3}, TypeToken.of(int[].class), new TypeToken<List<Long>>() { });
+    assertSameDecode(ImmutableList.of("a", "b"), new TypeToken<List<String>>() { }, TypeToken.of(String[].class));
+    assertSameDecode(ImmutableList.of("a", "b", "a"), new TypeToken<List<String>>() { },
+                     new TypeToken<Set<String>>() { });
+    assertSameDecode(ImmutableList.of(3, 1, 2), new TypeToken<List<Integer>>() { },
+                     new TypeToken<SortedSet<Long>>() { });
+    assertSameDecode(ImmutableList.of(new Value(1, "one"), new Value(2, "two")), new TypeToken<List<Value>>() { },
+                     TypeToken.of(Value[].class));
+    assertSameDecode(new Value[] {new Value(1, "one"), null}, TypeToken.of(Value[].class),
+                     new TypeToken<List<Value>>() { });
+    assertSameDecode(new int[][] {{1}, {2, 3}, {}}, TypeToken.of(int[][].class), new TypeToken<List<long[]>>() { });
+    assertSameDecode(ImmutableList.<String>of(), new TypeToken<List<String>>() { }, new TypeToken<List<String>>() { });
+
+    // Array encoded in multiple blocks
+    Schema sourceSchema = Schema.arrayOf(Schema.of(Schema.Type.INT));
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new BinaryEncoder(os).writeInt(2).writeInt(1).writeInt(2).writeInt(1).writeInt(3).writeInt(0);
+    assertSameDecode(os.toByteArray(), sourceSchema, TypeToken.of(int[].class),
+                     getSchema(TypeToken.of(int[].class)));
+    TypeToken<List<Long>> listType = new TypeToken<List<Long>>() { };
+    Assert.assertEquals(ImmutableList.of(1L, 2L, 3L),
+                        assertSameDecode(os.toByteArray(), sourceSchema, listType, getSchema(listType)));
+  }
+
+  @Test
+  public void testEnums() throws Exception {
+    Assert.assertEquals(TargetEnum.VALUE1, assertSameDecode(SourceEnum.VALUE1, TypeToken.of(SourceEnum.class),
+                                                            TypeToken.of(TargetEnum.class)));
+    Assert.assertEquals(TargetEnum.VALUE3, assertSameDecode(SourceEnum.VALUE3, TypeToken.of(SourceEnum.class),
+                                                            TypeToken.of(TargetEnum.class)));
+    // Value missing in the target enum must fail in both
+    assertSameDecode(SourceEnum.VALUE2, TypeToken.of(SourceEnum.class), TypeToken.of(TargetEnum.class));
+    assertSameDecode(ImmutableList.of(SourceEnum.VALUE3, SourceEnum.VALUE1), new TypeToken<List<SourceEnum>>() { },
+                     TypeToken.of(TargetEnum[].class));
+  }
+
+  @Test
+  public void testPromotion() throws Exception {
+    TypeToken<Integer> intType = TypeToken.of(int.class);
+    assertSameDecode(10, intType, TypeToken.of(long.class));
+    assertSameDecode(10, intType, TypeToken.of(Long.class));
+    assertSameDecode(10, intType, TypeToken.of(float.class));
+    assertSameDecode(10, intType, TypeToken.of(double.class));
+    assertSameDecode(10, intType, TypeToken.of(Double.class));
+    assertSameDecode(10, intType, TypeToken.of(String.class));
+    assertSameDecode((int) 'c', intType, TypeToken.of(Character.class));
+    assertSameDecode(10L, TypeToken.of(long.class), TypeToken.of(float.class));
+    assertSameDecode(10L, TypeToken.of(long.class), TypeToken.of(double.class));
+    assertSameDecode(1.5f, TypeToken.of(float.class), TypeToken.of(double.class));
+    assertSameDecode((short) 3, TypeToken.of(short.class), TypeToken.of(long.class));
+    assertSameDecode(true, TypeToken.of(boolean.class), TypeToken.of(String.class));
+
+    // Narrowing must fail in both
+    assertSameDecode(1.5d, TypeToken.of(double.class), TypeToken.of(float.class));
+    assertSameDecode("10", TypeToken.of(String.class), intType);
+  }
+
+  @Test
+  public void testRecordEvolution() throws Exception {
+    Map<String, Value> attributes = Maps.newHashMap();
+    attributes.put("a", new Value(1, "one"));
+    attributes.put("b", null);
+    RecordV1 v1 = new RecordV1(1, "name", 1.5f, 100L, ImmutableList.of("t1", "t2", "t3"), attributes,
+                               new Value(2, "two"), SourceEnum.VALUE2, new int[] {1, 2, 3}, new byte[] {1, 2});
+
+    // Added, removed, defaulted and promoted fields
+    RecordV2 v2 = assertSameDecode(v1, TypeToken.of(RecordV1.class), TypeToken.of(RecordV2.class));
+    Assert.assertEquals(1L, v2.id);
+    Assert.assertEquals(Double.valueOf(100d), v2.timestamp);
+    Assert.assertEquals(ByteBuffer.wrap(new byte[] {1, 2}), v2.payload);
+    Assert.assertNull(v2.added);
+    Assert.assertEquals(2, v2.version);
+    Assert.assertEquals(ImmutableList.of("default"), v2.defaults);
+
+    v2.added = "added";
+    v2.defaults = Lists.newArrayList("x", "y");
+    NameOnly nameOnly = assertSameDecode(v2, TypeToken.of(RecordV2.class), TypeToken.of(NameOnly.class));
+    Assert.assertEquals("name", nameOnly.name);
+
+    // long to int is not allowed
+    assertSameDecode(v2, TypeToken.of(RecordV2.class), TypeToken.of(RecordV1.class));
+
+    // Removed array and map fields written in multiple blocks
+    Schema sourceSchema = Schema.recordOf(
+      "Removed",
+      Schema.Field.of("tags", Schema.arrayOf(Schema.of(Schema.Type.STRING))),
+      Schema.Field.of("attrs", Schema.mapOf(Schema.of(Schema.Type.STRING), Schema.of(Schema.Type.INT))),
+      Schema.Field.of("name", Schema.of(Schema.Type.STRING)));
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new BinaryEncoder(os)
+      .writeInt(2).writeString("a").writeString("b").writeInt(1).writeString("c").writeInt(0)
+      .writeInt(2).writeString("k1").writeInt(1).writeString("k2").writeInt(2)
+      .writeInt(1).writeString("k3").writeInt(3).writeInt(0)
+      .writeString("name");
+    TypeToken<NameOnly> nameOnlyType = TypeToken.of(NameOnly.class);
+    nameOnly = assertSameDecode(os.toByteArray(), sourceSchema, nameOnlyType, getSchema(nameOnlyType));
+    Assert.assertEquals("name", nameOnly.name);
+    Assert.assertNull(nameOnly.payload);
+  }
+
+  private Schema getSchema(TypeToken<?> type) throws UnsupportedTypeException {
+    return new ReflectionSchemaGenerator().generate(type.getType());
+  }
+
+  /**
+   * Returns a copy of the given record schema with the branches of all union fields in reverse order.
+   */
+  private Schema nullFirst(Schema recordSchema) {
+    List<Schema.Field> fields = Lists.newArrayList();
+    for (Schema.Field field : recordSchema.getFields()) {
+      Schema schema = field.getSchema();
+      if (schema.getType() == Schema.Type.UNION) {
+        schema = Schema.unionOf(Lists.reverse(schema.getUnionSchemas()));
+      }
+      fields.add(Schema.Field.of(field.getName(), schema));
+    }
+    return Schema.recordOf(recordSchema.getRecordName(), fields);
+  }
+
+  private byte[] encode(Schema schema, Object value) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new ReflectionDatumWriter<>(schema).encode(value, new BinaryEncoder(os));
+    return os.toByteArray();
+  }
+
+  private <T, V> T assertSameDecode(V value, TypeToken<V> sourceType, TypeToken<T> type) throws Exception {
+    return assertSameDecode(value, sourceType, type, getSchema(type));
+  }
+
+  private <T, V> T assertSameDecode(V value, TypeToken<V> sourceType,
+                                    TypeToken<T> type, Schema schema) throws Exception {
+    Schema sourceSchema = getSchema(sourceType);
+    return assertSameDecode(encode(sourceSchema, value), sourceSchema, type, schema);
+  }
+
+  /**
+   * Decodes the given bytes with both the reflection and the generated reader. Both must either fail
+   * with the same type of exception, or consume all the bytes and produce equal objects.
+   *
+   * @return the decoded object, or {@code null} if decoding failed
+   */
+  private <T> T assertSameDecode(byte[] encoded, Schema sourceSchema,
+                                 TypeToken<T> type, Schema schema) throws Exception {
+    ByteArrayInputStream reflectionInput = new ByteArrayInputStream(encoded);
+    T expected = null;
+    Exception expectedFailure = null;
+    try {
+      expected = new ReflectionDatumReader<>(schema, type).read(new BinaryDecoder(reflectionInput), sourceSchema);
+    } catch (Exception e) {
+      expectedFailure = e;
+    }
+
+    ByteArrayInputStream asmInput = new ByteArrayInputStream(encoded);
+    T actual = null;
+    Exception actualFailure = null;
+    try {
+      actual = ASM_FACTORY.create(type, schema).read(new BinaryDecoder(asmInput), sourceSchema);
+    } catch (Exception e) {
+      actualFailure = e;
+    }
+
+    String message = String.format("Decoding %s to %s (%s)", sourceSchema, schema, type);
+    if (expectedFailure != null) {
+      Assert.assertNotNull(message + " succeeded with generated reader but failed with reflection reader",
+                           actualFailure);
+      if (expectedFailure instanceof IOException) {
+        Assert.assertTrue(message + " failed with " + actualFailure, actualFailure instanceof IOException);
+      } else {
+        Assert.assertEquals(message, expectedFailure.getClass(), actualFailure.getClass());
+      }
+      return null;
+    }
+    if (actualFailure != null) {
+      throw new AssertionError(message + " failed with generated reader: " + actualFailure);
+    }
+
+    Assert.assertEquals(message, 0, reflectionInput.available());
+    Assert.assertEquals(message, 0, asmInput.available());
+    Assert.assertTrue(String.format("%s: expected %s, actual %s", message, expected, actual),
+                      deepEquals(expected, actual));
+    return actual;
+  }
+
+  /**
+   * Compares two decoded objects. Records are compared field by field, since the test classes don't all
+   * implement {@link Object#equals(Object)}.
+   */
+  private boolean deepEquals(Object expected, Object actual) throws IllegalAccessException {
+    if (expected == null || actual == null) {
+      return expected == actual;
+    }
+    Class<?> cls = expected.getClass();
+    if (!cls.equals(actual.getClass())) {
+      return false;
+    }
+    if (cls.isArray()) {
+      int length = Array.getLength(expected);
+      if (length != Array.getLength(actual)) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (!deepEquals(Array.get(expected, i), Array.get(actual, i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (expected instanceof List) {
+      Iterator<?> expectedItor = ((List<?>) expected).iterator();
+      Iterator<?> actualItor = ((List<?>) actual).iterator();
+      while (expectedItor.hasNext() && actualItor.hasNext()) {
+        if (!deepEquals(expectedItor.next(), actualItor.next())) {
+          return false;
+        }
+      }
+      return !expectedItor.hasNext() && !actualItor.hasNext();
+    }
+    if (expected instanceof Collection || expected instanceof Map
+      || cls.isEnum() || cls.getName().startsWith("java.")) {
+      return expected.equals(actual);
+    }
+    for (Class<?> c = cls; c != null && !Object.class.equals(c); c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        if (Modifier.isStatic(field.getModifiers())) {
+          continue;
+        }
+        field.setAccessible(true);
+        if (!deepEquals(field.get(expected), field.get(actual))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Record with nullable fields.
+   */
+  public static final class NullableRecord {
+    private final String str;
+    private final Integer num;
+    private final Value value;
+    private final List<String> list;
+
+    public NullableRecord(String str, Integer num, Value value, List<String> list) {
+      this.str = str;
+      this.num = num;
+      this.value = value;
+      this.list = list;
+    }
+  }
+
+  /**
+   * First version of a record for testing schema evolution.
+   */
+  public static final class RecordV1 {
+    private final int id;
+    private final String name;
+    private final float score;
+    private final long timestamp;
+    private final List<String> tags;
+    private final Map<String, Value> attributes;
+    private final Value nested;
+    private final SourceEnum kind;
+    private final int[] counts;
+    private final byte[] payload;
+
+    public RecordV1(int id, String name, float score, long timestamp, List<String> tags,
+                    Map<String, Value> attributes, Value nested, SourceEnum kind, int[] counts, byte[] payload) {
+      this.id = id;
+      this.name = name;
+      this.score = score;
+      this.timestamp = timestamp;
+      this.tags = tags;
+      this.attributes = attributes;
+      this.nested = nested;
+      this.kind = kind;
+      this.counts = counts;
+      this.payload = payload;
+    }
+  }
+
+  /**
+   * Second version of the record, with promoted, removed, added and defaulted fields.
+   */
+  public static final class RecordV2 {
+    private long id;
+    private String name;
+    private double score;
+    private Double timestamp;
+    private ByteBuffer payload;
+    private String added;
+    private int version = 2;
+    private List<String> defaults = ImmutableList.of("default");
+  }
+
+  /**
+   * Record that only keeps a few fields of {@link RecordV2}.
+   */
+  public static final class NameOnly {
+    private String name;
+    private byte[] payload;
+  }
+}
@@ -20,13 +20,16 @@ import co.cask.cdap.common.conf.CConfiguration;
 import co.cask.cdap.common.security.DefaultImpersonator;
 import co.cask.cdap.common.security.Impersonator;
 import co.cask.cdap.common.security.UnsupportedUGIProvider;
+import co.cask.cdap.data.file.FileReader;
 import co.cask.cdap.data.file.FileWriter;
+import co.cask.cdap.data.file.ReadFilter;
 import co.cask.cdap.data2.transaction.stream.StreamConfig;
 import co.cask.cdap.proto.id.NamespaceId;
 import co.cask.cdap.proto.id.StreamId;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import org.apache.twill.filesystem.Location;
@@ -262,6 +265,129 @@ public abstract class MultiLiveStreamFileReaderTestBase {
     reader.close();
   }
 
+  @Test
+  public void testSharedReader() throws Exception {
+    String streamName = "sharedReader";
+    StreamId streamId = NamespaceId.DEFAULT.stream(streamName);
+    Location location = getLocationFactory().create(streamName);
+    location.mkdirs();
+
+    // Create a stream with 1 partition.
+    StreamConfig config = new StreamConfig(streamId, Long.MAX_VALUE, 10000, Long.MAX_VALUE, location, null, 1000);
+
+    // Write out 200 events in 5 files, with interleaving timestamps
+    List<FileWriter<StreamEvent>> writers = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      FileWriter<StreamEvent> writer = createWriter(config, "bucket" + i);
+      writers.add(writer);
+      for (int j = 0; j < 200; j++) {
+        long timestamp = j * 5 + i;
+        writer.append(StreamFileTestUtils.createEvent(timestamp, "Testing " + timestamp));
+      }
+      writer.flush();
+    }
+
+    List<StreamFileOffset> sources = Lists.newArrayList();
+    Location partitionLocation = StreamUtils.createPartitionLocation(config.getLocation(), 0, Long.MAX_VALUE);
+    for (int i = 0; i < 5; i++) {
+      Location eventFile = StreamUtils.createStreamLocation(partitionLocation, "bucket" + i, 0, StreamFileType.EVENT);
+      sources.add(new StreamFileOffset(eventFile, 0L, 0));
+    }
+
+    // Shared reader that buffers at most 100 events
+    SharedStreamFileReader sharedReader = new SharedStreamFileReader(config, 100);
+    FileReader<StreamEventOffset, Iterable<StreamFileOffset>> reader1 = sharedReader.createReader(sources);
+    FileReader<StreamEventOffset, Iterable<StreamFileOffset>> reader2 = sharedReader.createReader(sources);
+    reader1.initialize();
+    reader2.initialize();
+
+    // The second reader only accepts events with even timestamps
+    ReadFilter evenFilter = new ReadFilter() {
+      @Override
+      public boolean acceptTimestamp(long timestamp) {
+        return timestamp % 2 == 0;
+      }
+    };
+
+    // Read 150 events from the first reader, which moves the buffer past the start
+    List<StreamEvent> events = Lists.newArrayList();
+    for (int i = 0; i < 15; i++) {
+      Assert.assertEquals(10, reader1.read(events, 10, 0, TimeUnit.SECONDS));
+    }
+    assertEvents(events, 0, 1, 150);
+
+    // A reader starting from the position of the first reader reads from the buffer
+    FileReader<StreamEventOffset, Iterable<StreamFileOffset>> reader3 =
+      sharedReader.createReader(ImmutableList.copyOf(reader1.getPosition()));
+    reader3.initialize();
+    events.clear();
+    Assert.assertEquals(10, reader3.read(events, 10, 0, TimeUnit.SECONDS));
+    assertEvents(events, 150, 1, 10);
+
+    // The second reader is behind the buffer and reads all events on its own
+    events.clear();
+    while (events.size() < 500) {
+      Assert.assertTrue(reader2.read(events, 50, 1, TimeUnit.SECONDS, evenFilter) > 0);
+    }
+    assertEvents(events, 0, 2, 500);
+
+    // Read the remaining events from the first and the third reader
+    events.clear();
+    while (events.size() < 850) {
+      Assert.assertTrue(reader1.read(events, 100, 1, TimeUnit.SECONDS) > 0);
+    }
+    assertEvents(events, 150, 1, 850);
+    events.clear();
+    while (events.size() < 840) {
+      Assert.assertTrue(reader3.read(events, 100, 1, TimeUnit.SECONDS) > 0);
+    }
+    assertEvents(events, 160, 1, 840);
+
+    // All readers are at the end of the files
+    Assert.assertEquals(0, reader2.read(events, 1, 0, TimeUnit.SECONDS, evenFilter));
+    Assert.assertEquals(ImmutableSet.copyOf(reader1.getPosition()), ImmutableSet.copyOf(reader2.getPosition()));
+    Assert.assertEquals(ImmutableSet.copyOf(reader1.getPosition()), ImmutableSet.copyOf(reader3.getPosition()));
+
+    // Writes some more events and close all writers
+    for (int i = 0; i < 5; i++) {
+      FileWriter<StreamEvent> writer = writers.get(i);
+      for (int j = 0; j < 10; j++) {
+        long timestamp = 1000 + j * 5 + i;
+        writer.append(StreamFileTestUtils.createEvent(timestamp, "Testing " + timestamp));
+      }
+      writer.close();
+    }
+
+    // All readers see the new events
+    events.clear();
+    Assert.assertEquals(50, reader1.read(events, 50, 2, TimeUnit.SECONDS));
+    assertEvents(events, 1000, 1, 50);
+    events.clear();
+    Assert.assertEquals(25, reader2.read(events, 25, 2, TimeUnit.SECONDS, evenFilter));
+    assertEvents(events, 1000, 2, 25);
+    events.clear();
+    Assert.assertEquals(50, reader3.read(events, 50, 2, TimeUnit.SECONDS));
+    assertEvents(events, 1000, 1, 50);
+
+    // The shared reader is closed with the last reader
+    reader1.close();
+    reader2.close();
+    Assert.assertFalse(sharedReader.isClosed());
+    reader3.close();
+    Assert.assertTrue(sharedReader.isClosed());
+    Assert.assertNull(sharedReader.createReader(sources));
+  }
+
+  private void assertEvents(List<StreamEvent> events, long startTimestamp, long step, int count) {
+    Assert.assertEquals(count, events.size());
+    long expectedTimestamp = startTimestamp;
+    for (StreamEvent event : events) {
+      Assert.assertEquals(expectedTimestamp, event.getTimestamp());
+      Assert.assertEquals("Testing " + expectedTimestamp, Charsets.UTF_8.decode(event.getBody()).toString());
+      expectedTimestamp += step;
+    }
+  }
+
   private FileWriter<StreamEvent> createWriter(StreamConfig config, String prefix) {
     return new TimePartitionedStreamFileWriter(config.getLocation(), config.getPartitionDuration(),
                                                prefix, config.getIndexInterval(), config.getStreamId(),
@@ -39,6 +39,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 import com.google.common.io.Flushables;
 import com.google.common.util.concurrent.Uninterruptibles;
@@ -46,6 +47,7 @@ import org.apache.hadoop.hbase.util.Strings;
 import org.apache.twill.filesystem.Location;
 import org.apache.twill.filesystem.LocationFactory;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -56,6 +58,7 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -994,6 +997,156 @@ public abstract class StreamDataFileTestBase {
     reader.close();
   }
 
+  @Test
+  public void testCompressedBlocks() throws IOException, InterruptedException {
+    Assume.assumeTrue(StreamFileCompression.SNAPPY.isAvailable());
+
+    Location dir = StreamFileTestUtils.createTempDir(getLocationFactory());
+    Location eventFile = dir.getTempFile(".dat");
+    Location indexFile = dir.getTempFile(".idx");
+    Location rawEventFile = dir.getTempFile(".dat");
+    Location rawIndexFile = dir.getTempFile(".idx");
+
+    StreamDataFileWriter writer = new StreamDataFileWriter(
+      Locations.newOutputSupplier(eventFile), Locations.newOutputSupplier(indexFile), 10L,
+      ImmutableMap.<String, String>of(), StreamFileCompression.SNAPPY);
+    StreamDataFileWriter rawWriter = new StreamDataFileWriter(
+      Locations.newOutputSupplier(rawEventFile), Locations.newOutputSupplier(rawIndexFile), 10L);
+
+    // Write 100 timestamps with 10 events each, followed by a block of empty events, which is not compressed
+    // since it compresses to less bytes than the number of events
+    List<StreamEvent> expected = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      for (int j = 0; j < 10; j++) {
+        expected.add(StreamFileTestUtils.createEvent(i, "Compressed message " + i + " " + j + Strings.repeat('x', j)));
+      }
+    }
+    for (int i = 0; i < 1000; i++) {
+      expected.add(StreamFileTestUtils.createEvent(100, ""));
+    }
+    for (StreamEvent event : expected) {
+      writer.append(event);
+      rawWriter.append(event);
+    }
+    writer.close();
+    rawWriter.close();
+
+    Assert.assertTrue(eventFile.length() < rawEventFile.length());
+
+    // Read all events back, the positions must be increasing
+    StreamDataFileReader reader = StreamDataFileReader.create(Locations.newInputSupplier(eventFile));
+    List<PositionStreamEvent> events = Lists.newArrayList();
+    Assert.assertEquals(expected.size(), reader.read(events, expected.size() + 1, 0, TimeUnit.SECONDS));
+    Assert.assertEquals(-1, reader.read(events, 1, 0, TimeUnit.SECONDS));
+    reader.close();
+
+    long lastPosition = -1L;
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(expected.get(i).getTimestamp(), events.get(i).getTimestamp());
+      Assert.assertEquals(expected.get(i).getBody(), events.get(i).getBody());
+      Assert.assertTrue(events.get(i).getStart() > lastPosition);
+      lastPosition = events.get(i).getStart();
+    }
+
+    // Read from the position of events, including events in the middle of a compressed block
+    for (int i = 0; i < events.size(); i += 7) {
+      reader = StreamDataFileReader.createWithOffset(Locations.newInputSupplier(eventFile),
+                                                     Locations.newInputSupplier(indexFile),
+                                                     events.get(i).getStart());
+      List<PositionStreamEvent> result = Lists.newArrayList();
+      Assert.assertEquals(1, reader.read(result, 1, 0, TimeUnit.SECONDS));
+      Assert.assertEquals(events.get(i).getStart(), result.get(0).getStart());
+      Assert.assertEquals(events.get(i).getBody(), result.get(0).getBody());
+
+      // The reader position is the position of the next event
+      long position = reader.getPosition();
+      reader.close();
+      if (i + 1 < events.size()) {
+        reader = StreamDataFileReader.createWithOffset(Locations.newInputSupplier(eventFile),
+                                                       Locations.newInputSupplier(indexFile), position);
+        result.clear();
+        Assert.assertEquals(1, reader.read(result, 1, 0, TimeUnit.SECONDS));
+        reader.close();
+        Assert.assertEquals(events.get(i + 1).getStart(), result.get(0).getStart());
+      }
+    }
+
+    // Read by time uses the block index
+    reader = StreamDataFileReader.createByStartTime(Locations.newInputSupplier(eventFile),
+                                                    Locations.newInputSupplier(indexFile), 55L);
+    List<PositionStreamEvent> result = Lists.newArrayList();
+    Assert.assertEquals(10, reader.read(result, 10, 0, TimeUnit.SECONDS));
+    reader.close();
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(events.get(550 + i).getStart(), result.get(i).getStart());
+    }
+  }
+
+  @Test
+  public void testDirectBodies() throws IOException, InterruptedException {
+    // Mix of small and large events, with some large events sharing the same data block and with headers.
+    // The large bodies are slices of a larger buffer, some copied to direct buffers.
+    byte[] largeBody = new byte[80000];
+    for (int i = 0; i < largeBody.length; i++) {
+      largeBody[i] = (byte) ('a' + i % 20);
+    }
+    List<StreamEvent> expected = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      expected.add(StreamFileTestUtils.createEvent(i / 2, "Small event " + i));
+      ByteBuffer body = ByteBuffer.wrap(largeBody, i, largeBody.length - i * 2).slice();
+      if (i % 4 == 3) {
+        // Bodies in direct buffers, as received from the network
+        ByteBuffer directBody = ByteBuffer.allocateDirect(body.remaining());
+        directBody.put(body.duplicate()).flip();
+        body = directBody;
+      }
+      expected.add(new StreamEvent(ImmutableMap.of("k" + i, "v" + i), body, i / 2));
+    }
+
+    for (StreamFileCompression compression : StreamFileCompression.values()) {
+      if (!compression.isAvailable()) {
+        continue;
+      }
+      Location dir = StreamFileTestUtils.createTempDir(getLocationFactory());
+      Location eventFile = dir.getTempFile(".dat");
+      Location copyEventFile = dir.getTempFile(".dat");
+
+      StreamDataFileWriter writer = new StreamDataFileWriter(
+        Locations.newOutputSupplier(eventFile), Locations.newOutputSupplier(dir.getTempFile(".idx")), 10L,
+        ImmutableMap.<String, String>of(), compression, true);
+      StreamDataFileWriter copyWriter = new StreamDataFileWriter(
+        Locations.newOutputSupplier(copyEventFile), Locations.newOutputSupplier(dir.getTempFile(".idx")), 10L,
+        ImmutableMap.<String, String>of(), compression, false);
+
+      writer.appendAll(expected.subList(0, 20).iterator());
+      copyWriter.appendAll(expected.subList(0, 20).iterator());
+      writer.flush();
+      copyWriter.flush();
+      for (StreamEvent event : expected.subList(20, expected.size())) {
+        writer.append(event);
+        copyWriter.append(event);
+      }
+      writer.close();
+      copyWriter.close();
+
+      // Both files are the same, except for the close timestamp at the end
+      byte[] content = ByteStreams.toByteArray(Locations.newInputSupplier(eventFile));
+      byte[] copyContent = ByteStreams.toByteArray(Locations.newInputSupplier(copyEventFile));
+      Assert.assertArrayEquals(Arrays.copyOf(copyContent, copyContent.length - 8),
+                               Arrays.copyOf(content, content.length - 8));
+
+      StreamDataFileReader reader = StreamDataFileReader.create(Locations.newInputSupplier(eventFile));
+      List<PositionStreamEvent> events = Lists.newArrayList();
+      Assert.assertEquals(expected.size(), reader.read(events, expected.size() + 1, 0, TimeUnit.SECONDS));
+      reader.close();
+      for (int i = 0; i < expected.size(); i++) {
+        Assert.assertEquals(expected.get(i).getTimestamp(), events.get(i).getTimestamp());
+        Assert.assertEquals(expected.get(i).getHeaders(), events.get(i).getHeaders());
+        Assert.assertEquals(expected.get(i).getBody(), events.get(i).getBody());
+      }
+    }
+  }
+
   private FileWriter<StreamEvent> createWriter(StreamConfig config, String prefix) {
     return new TimePartitionedStreamFileWriter(config.getLocation(), config.getPartitionDuration(),
                                                prefix, config.getIndexInterval(), config.getStreamId(),
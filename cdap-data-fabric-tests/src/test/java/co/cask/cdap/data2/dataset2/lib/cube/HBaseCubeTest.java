@@ -0,0 +1,232 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.data2.dataset2.lib.cube;
+
+import co.cask.cdap.api.dataset.DatasetProperties;
+import co.cask.cdap.api.dataset.lib.cube.AggregationFunction;
+import co.cask.cdap.api.dataset.lib.cube.Cube;
+import co.cask.cdap.api.dataset.lib.cube.TimeSeries;
+import co.cask.cdap.api.dataset.lib.cube.TimeValue;
+import co.cask.cdap.api.dataset.table.TableProperties;
+import co.cask.cdap.api.metrics.MetricsCollector;
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.common.guice.ConfigModule;
+import co.cask.cdap.common.guice.DiscoveryRuntimeModule;
+import co.cask.cdap.common.guice.LocationRuntimeModule;
+import co.cask.cdap.common.guice.NamespaceClientUnitTestModule;
+import co.cask.cdap.common.guice.ZKClientModule;
+import co.cask.cdap.common.security.UGIProvider;
+import co.cask.cdap.common.security.UnsupportedUGIProvider;
+import co.cask.cdap.data.hbase.HBaseTestBase;
+import co.cask.cdap.data.hbase.HBaseTestFactory;
+import co.cask.cdap.data.runtime.DataFabricDistributedModule;
+import co.cask.cdap.data.runtime.DataSetsModules;
+import co.cask.cdap.data.runtime.SystemDatasetRuntimeModule;
+import co.cask.cdap.data.runtime.TransactionMetricsModule;
+import co.cask.cdap.data2.datafabric.dataset.DatasetsUtil;
+import co.cask.cdap.data2.dataset2.DatasetFramework;
+import co.cask.cdap.data2.dataset2.lib.table.MetricsTable;
+import co.cask.cdap.data2.dataset2.lib.timeseries.EntityTable;
+import co.cask.cdap.data2.dataset2.lib.timeseries.FactTable;
+import co.cask.cdap.data2.util.hbase.HBaseDDLExecutorFactory;
+import co.cask.cdap.data2.util.hbase.HBaseTableUtil;
+import co.cask.cdap.proto.id.DatasetId;
+import co.cask.cdap.proto.id.NamespaceId;
+import co.cask.cdap.security.auth.context.AuthenticationContextModules;
+import co.cask.cdap.security.authorization.AuthorizationEnforcementModule;
+import co.cask.cdap.security.authorization.AuthorizationTestModule;
+import co.cask.cdap.spi.hbase.HBaseDDLExecutor;
+import co.cask.cdap.test.SlowTests;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+
+/**
+ * Cube test for HBase.
+ */
+@Category(SlowTests.class)
+public class HBaseCubeTest extends AbstractCubeTest {
+
+  @ClassRule
+  public static final HBaseTestBase TEST_HBASE = new HBaseTestFactory().get();
+
+  private static HBaseTableUtil tableUtil;
+  private static DatasetFramework dsFramework;
+  private static HBaseDDLExecutor ddlExecutor;
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    CConfiguration conf = CConfiguration.create();
+    conf.set(Constants.CFG_HDFS_USER, System.getProperty("user.name"));
+    Injector injector = Guice.createInjector(new DataFabricDistributedModule(),
+                                             new ConfigModule(conf, TEST_HBASE.getConfiguration()),
+                                             new ZKClientModule(),
+                                             new DiscoveryRuntimeModule().getDistributedModules(),
+                                             new TransactionMetricsModule(),
+                                             new LocationRuntimeModule().getDistributedModules(),
+                                             new NamespaceClientUnitTestModule().getModule(),
+                                             new SystemDatasetRuntimeModule().getDistributedModules(),
+                                             new DataSetsModules().getInMemoryModules(),
+                                             new AuthorizationTestModule(),
+                                             new AuthorizationEnforcementModule().getInMemoryModules(),
+                                             new AuthenticationContextModules().getNoOpModule(),
+                                             new AbstractModule() {
+                                               @Override
+                                               protected void configure() {
+                                                 bind(UGIProvider.class).to(UnsupportedUGIProvider.class);
+                                               }
+                                             });
+
+    dsFramework = injector.getInstance(DatasetFramework.class);
+    tableUtil = injector.getInstance(HBaseTableUtil.class);
+    ddlExecutor = new HBaseDDLExecutorFactory(conf, TEST_HBASE.getHBaseAdmin().getConfiguration()).get();
+    ddlExecutor.createNamespaceIfNotExists(tableUtil.getHBaseNamespace(NamespaceId.SYSTEM));
+  }
+
+  @AfterClass
+  public static void tearDown() throws Exception {
+    tableUtil.deleteAllInNamespace(ddlExecutor, tableUtil.getHBaseNamespace(NamespaceId.SYSTEM),
+                                   TEST_HBASE.getHBaseAdmin().getConfiguration());
+    ddlExecutor.deleteNamespaceIfExists(tableUtil.getHBaseNamespace(NamespaceId.SYSTEM));
+  }
+
+  @Override
+  protected Cube getCube(String name, int[] resolutions, Map<String, ? extends Aggregation> aggregations) {
+    return createCube(name, resolutions, aggregations, null, 1);
+  }
+
+  @Test
+  public void testConcurrentSplitScan() throws Exception {
+    Aggregation agg = new DefaultAggregation(ImmutableList.of("dim1", "dim2"), ImmutableList.of("dim1"));
+    ExecutorService scanExecutor = Executors.newFixedThreadPool(8);
+    ExecutorService queryExecutor = Executors.newFixedThreadPool(4);
+    try {
+      final Map<String, Long> metrics = Maps.newHashMap();
+      final DefaultCube cube = createCube("splitCube", new int[] {1, 60}, ImmutableMap.of("agg", agg),
+                                          scanExecutor, 8);
+      cube.setMetricsCollector(new MetricsCollector() {
+        @Override
+        public synchronized void increment(String metricName, long value) {
+          Long current = metrics.get(metricName);
+          metrics.put(metricName, current == null ? value : current + value);
+        }
+
+        @Override
+        public synchronized void gauge(String metricName, long value) {
+          metrics.put(metricName, value);
+        }
+      });
+
+      // Write into 24 rows, each row covers one hour, so that a query over all of them is split into 8 scans
+      for (int hour = 0; hour < 24; hour++) {
+        writeInc(cube, "metric1", hour * 3600 + 10, 1, "1", "1");
+        writeInc(cube, "metric1", hour * 3600 + 20, 2, "1", "2");
+        writeGauge(cube, "metric2", hour * 3600 + 10, hour, "1", "1");
+      }
+
+      final List<TimeValue> expected = Lists.newArrayList();
+      for (int hour = 0; hour < 24; hour++) {
+        expected.add(new TimeValue(hour * 3600, 3));
+      }
+
+      // Run multiple queries at the same time, each scanning its splits concurrently against HBase
+      List<Future<?>> futures = Lists.newArrayList();
+      for (int i = 0; i < 4; i++) {
+        futures.add(queryExecutor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int round = 0; round < 5; round++) {
+              verifyCountQuery(cube, 0, 24 * 3600 - 1, 3600, "metric1", AggregationFunction.SUM,
+                               ImmutableMap.of("dim1", "1"), ImmutableList.<String>of(),
+                               ImmutableList.of(new TimeSeries("metric1", new HashMap<String, String>(), expected)));
+              verifyCountQuery(cube, 0, 24 * 3600 - 1, 24 * 3600, "metric1", AggregationFunction.SUM,
+                               ImmutableMap.of("dim1", "1"), ImmutableList.of("dim2"),
+                               ImmutableList.of(
+                                 new TimeSeries("metric1", ImmutableMap.of("dim2", "1"), timeValues(0, 24)),
+                                 new TimeSeries("metric1", ImmutableMap.of("dim2", "2"), timeValues(0, 48))));
+              verifyCountQuery(cube, 0, 24 * 3600 - 1, 24 * 3600, "metric2", AggregationFunction.LATEST,
+                               ImmutableMap.of("dim1", "1"), ImmutableList.<String>of(),
+                               ImmutableList.of(new TimeSeries("metric2", new HashMap<String, String>(),
+                                                               timeValues(0, 23))));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (Exception e) {
+          throw Throwables.propagate(e.getCause() == null ? e : e.getCause());
+        }
+      }
+      // 4 threads * 5 rounds * 3 queries, each split into 8 scans
+      Assert.assertEquals(4L * 5 * 3 * 8, (long) metrics.get("cube.query.scan.split.count"));
+      cube.close();
+    } finally {
+      queryExecutor.shutdownNow();
+      scanExecutor.shutdownNow();
+    }
+  }
+
+  private DefaultCube createCube(final String name, int[] resolutions, Map<String, ? extends Aggregation> aggregations,
+                                 @Nullable ExecutorService scanExecutor, int maxScanSplits) {
+    FactTableSupplier supplier = new FactTableSupplier() {
+      @Override
+      public FactTable get(int resolution, int rollTime) {
+        // HTable used by HBaseMetricsTable is not thread safe, so every FactTable must use separate instances
+        return new FactTable(getTable("DataTable-" + name + "-" + resolution),
+                             new EntityTable(getTable("EntityTable-" + name)),
+                             resolution, rollTime);
+      }
+    };
+    return new DefaultCube(resolutions, supplier, aggregations, ImmutableMap.<String, AggregationAlias>of(),
+                           null, scanExecutor, maxScanSplits);
+  }
+
+  private MetricsTable getTable(String name) {
+    DatasetId metricsDatasetInstanceId = NamespaceId.SYSTEM.dataset(name);
+    DatasetProperties props = TableProperties.builder().setReadlessIncrementSupport(true).build();
+    try {
+      return DatasetsUtil.getOrCreateDataset(dsFramework, metricsDatasetInstanceId,
+                                             MetricsTable.class.getName(), props, null, null);
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+}
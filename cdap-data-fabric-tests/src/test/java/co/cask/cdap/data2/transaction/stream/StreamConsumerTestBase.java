@@ -312,6 +312,79 @@ public abstract class StreamConsumerTestBase {
     }
   }
 
+  @Test
+  public void testRoundRobinReconfigure() throws Exception {
+    String stream = "testRoundRobinReconfigure";
+    StreamId streamId = TEST_NAMESPACE.stream(stream);
+    StreamAdmin streamAdmin = getStreamAdmin();
+    streamAdmin.create(streamId);
+    StreamConfig streamConfig = streamAdmin.getConfig(streamId);
+
+    // Writes 10 events
+    writeEvents(streamConfig, "Testing ", 10);
+
+    // Configure 2 consumers.
+    streamAdmin.configureInstances(streamId, 0L, 2);
+
+    StreamConsumerFactory consumerFactory = getConsumerFactory();
+    List<StreamConsumer> consumers = Lists.newArrayList();
+    for (int i = 0; i < 2; i++) {
+      consumers.add(consumerFactory.create(streamId, "rr.reconfigure",
+                                           new ConsumerConfig(0L, i, 2, DequeueStrategy.ROUND_ROBIN, null)));
+    }
+
+    // Consume up to two events with each consumer in one transaction
+    List<String> messages = Lists.newArrayList();
+    for (StreamConsumer consumer : consumers) {
+      TransactionContext txContext = createTxContext(consumer);
+      txContext.start();
+      for (StreamEvent event : consumer.poll(2, 1, TimeUnit.SECONDS)) {
+        messages.add(Charsets.UTF_8.decode(event.getBody()).toString());
+      }
+      txContext.finish();
+    }
+
+    // The consumers saved their states before reading the processed events, hence they are read again after
+    // restart and must be skipped based on the processed ranges.
+    for (StreamConsumer consumer : consumers) {
+      consumer.close();
+    }
+
+    // Reconfigure to have three consumers, which partition the events differently.
+    streamAdmin.configureInstances(streamId, 0L, 3);
+    consumers.clear();
+    for (int i = 0; i < 3; i++) {
+      consumers.add(consumerFactory.create(streamId, "rr.reconfigure",
+                                           new ConsumerConfig(0L, i, 3, DequeueStrategy.ROUND_ROBIN, null)));
+    }
+
+    // Consume the rest. Each event should be consumed exactly once.
+    boolean done;
+    do {
+      done = true;
+      for (StreamConsumer consumer : consumers) {
+        TransactionContext txContext = createTxContext(consumer);
+        txContext.start();
+        for (StreamEvent event : consumer.poll(1, 1, TimeUnit.SECONDS)) {
+          messages.add(Charsets.UTF_8.decode(event.getBody()).toString());
+          done = false;
+        }
+        txContext.finish();
+      }
+    } while (!done);
+
+    Assert.assertEquals(10, messages.size());
+    Set<String> expected = Sets.newHashSet();
+    for (int i = 0; i < 10; i++) {
+      expected.add("Testing " + i);
+    }
+    Assert.assertEquals(expected, Sets.newHashSet(messages));
+
+    for (StreamConsumer consumer : consumers) {
+      consumer.close();
+    }
+  }
+
   @Test
   public void testTTL() throws Exception {
     String stream = "testTTL";
@@ -69,8 +69,10 @@ public final class LocationStreamFileWriterFactory implements StreamFileWriterFa
         }
       });
 
+      // Event bodies are kept unmodified until the writer is flushed, see StreamFileWriterFactory
       return new TimePartitionedStreamFileWriter(baseLocation, config.getPartitionDuration(),
                                                  filePrefix, config.getIndexInterval(),
+                                                 config.getFileCompression(), true,
                                                  config.getStreamId(), impersonator);
     } catch (Exception e) {
       Throwables.propagateIfPossible(e, IOException.class);
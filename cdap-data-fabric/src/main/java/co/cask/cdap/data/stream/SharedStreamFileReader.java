@@ -0,0 +1,425 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package co.cask.cdap.data.stream;
+
+import co.cask.cdap.api.flow.flowlet.StreamEvent;
+import co.cask.cdap.data.file.FileReader;
+import co.cask.cdap.data.file.ReadFilter;
+import co.cask.cdap.data2.transaction.stream.StreamConfig;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Reads the events of a stream generation once for multiple consumers in the same process.
+ *
+ * A single {@link MultiLiveStreamFileReader} tails the stream files and the events it reads are kept in a ring buffer
+ * of a bounded size, together with the reader position before each event. Each consumer gets a {@link FileReader}
+ * from {@link #createReader(Iterable)}, which keeps its own cursor in the buffer and applies its own
+ * {@link ReadFilter} to the buffered events.
+ *
+ * A consumer that starts at a position not in the buffer, or falls behind the oldest buffered event, reads with a
+ * private {@link MultiLiveStreamFileReader}. It switches back to the buffer as soon as its position is the same as
+ * the position of an event in the buffer, which happens at the latest when it reaches the end of the stream files.
+ * Since a position contains the offset in each of the stream files, both readers have read exactly the same events
+ * at that point.
+ */
+@ThreadSafe
+public final class SharedStreamFileReader {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SharedStreamFileReader.class);
+
+  // Returned by fetch when the cursor of a consumer is behind the oldest event in the buffer
+  private static final int BEHIND = -2;
+
+  private final StreamConfig streamConfig;
+  private final BufferEntry[] entries;
+  // From the position before each buffered event and after the last one to the cursor pointing there
+  private final Map<Set<StreamFileOffset>, Long> cursors;
+  // Held while reading from the source, which is done without holding the lock of this instance
+  private final Object sourceLock;
+
+  private MultiLiveStreamFileReader source;
+  private Set<StreamFileOffset> headPosition;
+  // Sequence of the next event read from the source and of the oldest event in the buffer
+  private long headSeq;
+  private long tailSeq;
+  private boolean eof;
+  private int readers;
+  private boolean closed;
+
+  /**
+   * Creates an instance for reading the given stream.
+   *
+   * @param streamConfig configuration of the stream
+   * @param bufferSize maximum number of events to keep in memory
+   */
+  public SharedStreamFileReader(StreamConfig streamConfig, int bufferSize) {
+    Preconditions.checkArgument(bufferSize > 0, "Buffer size must be > 0");
+    this.streamConfig = streamConfig;
+    this.entries = new BufferEntry[bufferSize];
+    this.cursors = Maps.newHashMap();
+    this.sourceLock = new Object();
+  }
+
+  /**
+   * Creates a {@link FileReader} for a consumer. The reader must be initialized before use and must be closed when
+   * the consumer no longer needs it. Once all readers created are closed, this instance is closed.
+   *
+   * @param beginOffsets the offsets to start reading from
+   * @return a new {@link FileReader} or {@code null} if this instance is already closed
+   */
+  @Nullable
+  public synchronized FileReader<StreamEventOffset, Iterable<StreamFileOffset>> createReader(
+    Iterable<? extends StreamFileOffset> beginOffsets) {
+    if (closed) {
+      return null;
+    }
+    readers++;
+    return new ConsumerReader(beginOffsets);
+  }
+
+  /**
+   * Returns {@code true} if all the readers created by this instance are closed.
+   */
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Makes the given reader the source of the buffer if there is none yet.
+   *
+   * @return {@code true} if the reader becomes the source
+   */
+  private synchronized boolean adopt(MultiLiveStreamFileReader reader) {
+    if (source != null) {
+      return false;
+    }
+    source = reader;
+    headPosition = ImmutableSet.copyOf(reader.getPosition());
+    cursors.put(headPosition, headSeq);
+    return true;
+  }
+
+  /**
+   * Returns the cursor for the given reader position, or {@code -1} if the position is not in the buffer.
+   */
+  private synchronized long findCursor(Set<StreamFileOffset> position) {
+    Long cursor = cursors.get(position);
+    return cursor == null ? -1L : cursor;
+  }
+
+  /**
+   * Reads events for a consumer from the buffer, reading more events from the source when the consumer is at the
+   * end of it. It doesn't wait for events to become available.
+   *
+   * @return number of events consumed, including those rejected by the filter, or {@code -1} if reached the end of
+   *         the stream, or {@link #BEHIND} if the consumer is behind the buffer.
+   */
+  private int fetch(ConsumerReader reader, Collection<? super StreamEventOffset> events,
+                    int maxEvents, ReadFilter readFilter) throws IOException, InterruptedException {
+    while (true) {
+      long seq;
+      synchronized (this) {
+        if (reader.cursor < tailSeq) {
+          return BEHIND;
+        }
+        if (reader.cursor < headSeq) {
+          return consume(reader, events, maxEvents, readFilter);
+        }
+        if (eof) {
+          return -1;
+        }
+        seq = headSeq;
+      }
+      if (!fill(seq, maxEvents)) {
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Copies events from the buffer to the given collection, starting from the cursor of the consumer.
+   *
+   * @return number of events consumed, including those rejected by the filter
+   */
+  private int consume(ConsumerReader reader, Collection<? super StreamEventOffset> events,
+                      int maxEvents, ReadFilter readFilter) {
+    int consumed = 0;
+    int accepted = 0;
+    while (reader.cursor < headSeq && accepted < maxEvents) {
+      StreamEventOffset event = entries[index(reader.cursor)].event;
+      reader.cursor++;
+      reader.position = reader.cursor == headSeq ? headPosition : entries[index(reader.cursor)].position;
+      consumed++;
+
+      readFilter.reset();
+      if (readFilter.acceptTimestamp(event.getTimestamp()) && readFilter.acceptOffset(event.getOffset().getOffset())) {
+        // Each consumer gets its own view of the body
+        StreamEvent copy = new StreamEvent(event.getHeaders(), event.getBody().duplicate(), event.getTimestamp());
+        events.add(new StreamEventOffset(copy, event.getOffset()));
+        accepted++;
+      }
+    }
+    return consumed;
+  }
+
+  /**
+   * Reads up to the given number of events from the source and appends them to the buffer, evicting the oldest
+   * events if the buffer is full. Only one thread reads from the source at a time, and it does so without holding
+   * the lock of this instance, so that consumers can keep reading buffered events while the stream files are read.
+   *
+   * @param seq the head sequence seen by the caller; nothing is read if the buffer has moved past it meanwhile
+   * @return {@code true} if the buffer or the end of stream state changed since the caller looked at it
+   */
+  private boolean fill(long seq, int maxEvents) throws IOException, InterruptedException {
+    synchronized (sourceLock) {
+      MultiLiveStreamFileReader reader;
+      Set<StreamFileOffset> position;
+      synchronized (this) {
+        if (headSeq != seq || eof) {
+          return true;
+        }
+        if (source == null) {
+          return false;
+        }
+        reader = source;
+        position = headPosition;
+      }
+
+      int count = Math.min(maxEvents, entries.length);
+      List<BufferEntry> batch = Lists.newArrayListWithCapacity(count);
+      List<StreamEventOffset> readEvents = Lists.newArrayListWithCapacity(1);
+      boolean end = false;
+      while (batch.size() < count && !end) {
+        // Reads one event at a time to record the position after each of them
+        end = reader.read(readEvents, 1, 0L, TimeUnit.MILLISECONDS) < 0;
+        if (readEvents.isEmpty()) {
+          break;
+        }
+        batch.add(new BufferEntry(readEvents.get(0), position));
+        readEvents.clear();
+        position = ImmutableSet.copyOf(reader.getPosition());
+      }
+
+      synchronized (this) {
+        if (closed) {
+          return false;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+          if (headSeq - tailSeq == entries.length) {
+            BufferEntry evicted = entries[index(tailSeq)];
+            Long cursor = cursors.get(evicted.position);
+            if (cursor != null && cursor == tailSeq) {
+              cursors.remove(evicted.position);
+            }
+            tailSeq++;
+          }
+          entries[index(headSeq)] = batch.get(i);
+          headSeq++;
+          headPosition = i + 1 < batch.size() ? batch.get(i + 1).position : position;
+          cursors.put(headPosition, headSeq);
+        }
+        eof = end;
+      }
+      return !batch.isEmpty() || end;
+    }
+  }
+
+  private int index(long seq) {
+    return (int) (seq % entries.length);
+  }
+
+  /**
+   * Releases a reader. The source is closed when the last reader is released.
+   */
+  private void release() throws IOException {
+    MultiLiveStreamFileReader sourceToClose;
+    synchronized (this) {
+      if (--readers > 0 || closed) {
+        return;
+      }
+      closed = true;
+      sourceToClose = source;
+      source = null;
+      cursors.clear();
+      for (int i = 0; i < entries.length; i++) {
+        entries[i] = null;
+      }
+    }
+    if (sourceToClose != null) {
+      // Waits for an ongoing read from the source to complete
+      synchronized (sourceLock) {
+        sourceToClose.close();
+      }
+    }
+  }
+
+  /**
+   * An event in the buffer and the source position before it.
+   */
+  private static final class BufferEntry {
+    private final StreamEventOffset event;
+    private final Set<StreamFileOffset> position;
+
+    BufferEntry(StreamEventOffset event, Set<StreamFileOffset> position) {
+      this.event = event;
+      this.position = position;
+    }
+  }
+
+  /**
+   * The {@link FileReader} of a consumer. It reads from the buffer or with a private reader.
+   */
+  @NotThreadSafe
+  private final class ConsumerReader implements FileReader<StreamEventOffset, Iterable<StreamFileOffset>> {
+
+    private Iterable<? extends StreamFileOffset> beginOffsets;
+    private MultiLiveStreamFileReader privateReader;
+    private boolean shared;
+    private long cursor;
+    private Set<StreamFileOffset> position;
+    private boolean readerClosed;
+
+    ConsumerReader(Iterable<? extends StreamFileOffset> beginOffsets) {
+      this.beginOffsets = beginOffsets;
+    }
+
+    @Override
+    public void initialize() throws IOException {
+      MultiLiveStreamFileReader reader = new MultiLiveStreamFileReader(streamConfig, beginOffsets);
+      beginOffsets = null;
+      reader.initialize();
+      if (adopt(reader)) {
+        shared = true;
+        cursor = 0L;
+        position = ImmutableSet.copyOf(reader.getPosition());
+      } else {
+        privateReader = reader;
+        tryShare();
+      }
+    }
+
+    @Override
+    public int read(Collection<? super StreamEventOffset> events, int maxEvents,
+                    long timeout, TimeUnit unit) throws IOException, InterruptedException {
+      return read(events, maxEvents, timeout, unit, ReadFilter.ALWAYS_ACCEPT);
+    }
+
+    @Override
+    public int read(Collection<? super StreamEventOffset> events, int maxEvents,
+                    long timeout, TimeUnit unit, ReadFilter readFilter) throws IOException, InterruptedException {
+      if (shared) {
+        int eventsRead = readShared(events, maxEvents, timeout, unit, readFilter);
+        if (eventsRead != BEHIND) {
+          return eventsRead;
+        }
+        LOG.debug("Consumer fell behind the shared reader of stream {}, reading from {}",
+                  streamConfig.getStreamId(), position);
+        shared = false;
+        privateReader = new MultiLiveStreamFileReader(streamConfig, position);
+        privateReader.initialize();
+      }
+
+      int eventsRead = privateReader.read(events, maxEvents, timeout, unit, readFilter);
+      tryShare();
+      return eventsRead;
+    }
+
+    @Override
+    public Iterable<StreamFileOffset> getPosition() {
+      return shared ? position : privateReader.getPosition();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (readerClosed) {
+        return;
+      }
+      readerClosed = true;
+      try {
+        if (privateReader != null) {
+          privateReader.close();
+        }
+      } finally {
+        release();
+      }
+    }
+
+    /**
+     * Reads events from the buffer, same as {@link MultiLiveStreamFileReader#read} does from the stream files.
+     *
+     * @return number of events read, {@code -1} if reached the end of the stream, or {@link #BEHIND} if the
+     *         consumer is behind the buffer and nothing was read.
+     */
+    private int readShared(Collection<? super StreamEventOffset> events, int maxEvents, long timeout,
+                           TimeUnit unit, ReadFilter readFilter) throws IOException, InterruptedException {
+      int eventsRead = 0;
+
+      Stopwatch stopwatch = new Stopwatch();
+      stopwatch.start();
+
+      while (eventsRead < maxEvents) {
+        int size = events.size();
+        int consumed = fetch(this, events, maxEvents - eventsRead, readFilter);
+        if (consumed == BEHIND) {
+          return eventsRead == 0 ? BEHIND : eventsRead;
+        }
+        if (consumed < 0) {
+          return eventsRead == 0 ? -1 : eventsRead;
+        }
+        eventsRead += events.size() - size;
+
+        if (consumed == 0 && stopwatch.elapsedTime(unit) >= timeout) {
+          break;
+        }
+      }
+      return eventsRead;
+    }
+
+    /**
+     * Switches from the private reader to the buffer if the position of the private reader is in the buffer.
+     */
+    private void tryShare() {
+      Set<StreamFileOffset> privatePosition = ImmutableSet.copyOf(privateReader.getPosition());
+      long sharedCursor = findCursor(privatePosition);
+      if (sharedCursor < 0) {
+        return;
+      }
+      LOG.debug("Consumer of stream {} joins the shared reader at {}", streamConfig.getStreamId(), privatePosition);
+      Closeables.closeQuietly(privateReader);
+      privateReader = null;
+      shared = true;
+      cursor = sharedCursor;
+      position = privatePosition;
+    }
+  }
+}
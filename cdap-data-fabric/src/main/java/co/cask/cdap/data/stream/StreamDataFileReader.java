@@ -67,6 +67,7 @@ public final class StreamDataFileReader implements FileReader<PositionStreamEven
   private boolean eof;
   private Decoder decoder;
   private StreamEvent eventTemplate;
+  private int fileVersion;
 
   /**
    * Opens a new {@link StreamDataFileReader} with the given inputs.
@@ -293,7 +294,7 @@ public final class StreamDataFileReader implements FileReader<PositionStreamEven
     byte[] magic = new byte[StreamDataFileConstants.MAGIC_HEADER_SIZE];
     ByteStreams.readFully(eventInput, magic);
 
-    int fileVersion = decodeFileVersion(magic);
+    fileVersion = decodeFileVersion(magic);
 
     // Read the properties map.
     Map<String, String> properties = StreamUtils.decodeMap(new BinaryDecoder(eventInput));
@@ -323,10 +324,14 @@ public final class StreamDataFileReader implements FileReader<PositionStreamEven
     if (Arrays.equals(magic, StreamDataFileConstants.MAGIC_HEADER_V2)) {
       return 2;
     }
+    if (Arrays.equals(magic, StreamDataFileConstants.MAGIC_HEADER_V3)) {
+      return 3;
+    }
     throw new IOException(
-      String.format("Unsupported stream file format. First two bytes must be %s or %s",
+      String.format("Unsupported stream file format. First two bytes must be %s, %s or %s",
                     Bytes.toStringBinary(StreamDataFileConstants.MAGIC_HEADER_V1),
-                    Bytes.toStringBinary(StreamDataFileConstants.MAGIC_HEADER_V2))
+                    Bytes.toStringBinary(StreamDataFileConstants.MAGIC_HEADER_V2),
+                    Bytes.toStringBinary(StreamDataFileConstants.MAGIC_HEADER_V3))
     );
   }
 
@@ -485,7 +490,7 @@ public final class StreamDataFileReader implements FileReader<PositionStreamEven
     // Use the template timestamp if available
     timestamp = eventTemplate.getTimestamp() >= 0 ? eventTemplate.getTimestamp() : timestamp;
     if (acceptTimestamp(filter, timestamp)) {
-      streamEventBuffer.fillBuffer(eventInput, readLength());
+      fillBuffer(readLength());
       this.timestamp = timestamp;
       return;
     }
@@ -511,6 +516,34 @@ public final class StreamDataFileReader implements FileReader<PositionStreamEven
     position = eventInput.getPos();
   }
 
+  /**
+   * Reads the events of the data block of the given length into the {@link StreamEventBuffer}, uncompressing them
+   * if needed.
+   */
+  private void fillBuffer(int length) throws IOException {
+    if (fileVersion < 3) {
+      streamEventBuffer.fillBuffer(eventInput, length);
+      return;
+    }
+
+    // Block is <compression_id> <stream_event>+ or <compression_id> <uncompressed_length> <compressed_data>
+    long blockPosition = eventInput.getPos();
+    int compressionId = eventInput.read();
+    if (compressionId < 0) {
+      throw new EOFException("Expected to read the compression of the data block");
+    }
+    StreamFileCompression compression = StreamFileCompression.fromId(compressionId);
+    if (compression == StreamFileCompression.NONE) {
+      streamEventBuffer.fillBuffer(eventInput, length - 1);
+      return;
+    }
+
+    int uncompressedLength = decoder.readInt();
+    int compressedLength = (int) (blockPosition + length - eventInput.getPos());
+    streamEventBuffer.fillCompressedBuffer(eventInput, compression, compressedLength, uncompressedLength,
+                                           blockPosition, blockPosition + length);
+  }
+
   /**
    * Reads or skips a {@link StreamEvent}.
    *
@@ -26,16 +26,21 @@ import co.cask.cdap.data.file.FileWriter;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.Closeables;
 import com.google.common.io.OutputSupplier;
 import com.google.common.primitives.Longs;
 import org.apache.hadoop.fs.Syncable;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -59,6 +64,32 @@ import javax.annotation.concurrent.NotThreadSafe;
  * }
  * </pre>
  *
+ * Stream event file with compression (version 3):
+ *
+ * <pre>
+ * {@code
+ *
+ * event_file = <header> <data>* <end_marker>
+ * header = "E" "3" <properties>
+ * data = <timestamp> <length> <block>
+ * length = Avro encoded int32 for size in bytes of the <block>
+ * block = <raw_block> | <compressed_block>
+ * raw_block = 1 byte with value 0 <stream_event>+
+ * compressed_block = 1 byte compression id <uncompressed_length> <compressed <stream_event>+>
+ * uncompressed_length = Avro encoded int32 for size in bytes for all <stream_event>s
+ *
+ * }
+ * </pre>
+ *
+ * The position of an event in a raw block is its offset in the file, same as in the previous versions. Since events
+ * in a compressed block have no offset in the file, the position of the n-th event in a compressed block is the
+ * offset of the block plus n. A block is only compressed if it is larger than the number of events in it, so that
+ * event positions always increase and stay within the block.
+ *
+ * When created with immutable bodies, bodies of at least {@link #DIRECT_BODY_SIZE} bytes are not copied into the
+ * write buffer. Only their encoded length is buffered, and the bodies are written directly from the event buffers
+ * when the data block is flushed. Bodies in direct buffers are written through a small transfer buffer.
+ *
  * Stream index file:
  *
  * <pre>
@@ -78,12 +109,23 @@ import javax.annotation.concurrent.NotThreadSafe;
 public final class StreamDataFileWriter implements TimestampCloseable, Flushable, FileWriter<StreamEvent> {
 
   private static final int BUFFER_SIZE = 256 * 1024;    // 256K
+  private static final int DIRECT_BODY_SIZE = 16 * 1024;  // 16K
+  private static final int TRANSFER_BUFFER_SIZE = 8 * 1024; // 8K
 
   private final OutputStream eventOutput;
   private final OutputStream indexOutput;
   private final long indexInterval;
   private final BufferedEncoder encoder;
   private final BufferedEncoder lengthEncoder;
+  private final StreamFileCompression compression;
+  private final BlockBuffer blockBuffer;
+  private final boolean immutableBodies;
+  private final List<ByteBuffer> directBodies;
+  private BlockBuffer encodedBuffer;
+  private int[] directBodyOffsets;
+  private int directBodySize;
+  private byte[] transferBuffer;
+  private byte[] compressedBuffer;
 
   // Timestamp for the current block
   private long currentTimestamp;
@@ -92,6 +134,7 @@ public final class StreamDataFileWriter implements TimestampCloseable, Flushable
   private boolean synced;
   private boolean closed;
   private long closeTimestamp;
+  private int blockEvents;
 
   /**
    * Constructs a new instance that writes to given outputs. Same as calling
@@ -104,6 +147,29 @@ public final class StreamDataFileWriter implements TimestampCloseable, Flushable
     this(eventOutputSupplier, indexOutputSupplier, indexInterval, ImmutableMap.<String, String>of());
   }
 
+  /**
+   * Constructs a new instance that writes to given outputs without compression. Same as calling
+   * {@link StreamDataFileWriter#StreamDataFileWriter(OutputSupplier, OutputSupplier, long, Map,
+   * StreamFileCompression)} with {@link StreamFileCompression#NONE}.
+   */
+  public StreamDataFileWriter(OutputSupplier<? extends OutputStream> eventOutputSupplier,
+                              OutputSupplier<? extends OutputStream> indexOutputSupplier,
+                              long indexInterval, Map<String, String> properties) throws IOException {
+    this(eventOutputSupplier, indexOutputSupplier, indexInterval, properties, StreamFileCompression.NONE);
+  }
+
+  /**
+   * Constructs a new instance that writes to given outputs and copies the bodies of the events appended. Same as
+   * calling {@link StreamDataFileWriter#StreamDataFileWriter(OutputSupplier, OutputSupplier, long, Map,
+   * StreamFileCompression, boolean)} with {@code immutableBodies} set to {@code false}.
+   */
+  public StreamDataFileWriter(OutputSupplier<? extends OutputStream> eventOutputSupplier,
+                              OutputSupplier<? extends OutputStream> indexOutputSupplier,
+                              long indexInterval, Map<String, String> properties,
+                              StreamFileCompression compression) throws IOException {
+    this(eventOutputSupplier, indexOutputSupplier, indexInterval, properties, compression, false);
+  }
+
   /**
    * Constructs a new instance that writes to given outputs.
    *
@@ -111,11 +177,16 @@ public final class StreamDataFileWriter implements TimestampCloseable, Flushable
    * @param indexOutputSupplier the provider of the {@link OutputStream} for writing the index
    * @param indexInterval the time interval in milliseconds for emitting a new index entry
    * @param properties the property set that will be stored as file properties
+   * @param compression the compression for data blocks. With {@link StreamFileCompression#NONE}, the file is
+   *                    written in the format readable by older versions
+   * @param immutableBodies if {@code true}, the body of an appended event is not modified by the caller until this
+   *                        writer is flushed or closed, so that large bodies are written without being copied
    * @throws IOException if there is an error in preparing the output streams
    */
   public StreamDataFileWriter(OutputSupplier<? extends OutputStream> eventOutputSupplier,
                               OutputSupplier<? extends OutputStream> indexOutputSupplier,
-                              long indexInterval, Map<String, String> properties) throws IOException {
+                              long indexInterval, Map<String, String> properties,
+                              StreamFileCompression compression, boolean immutableBodies) throws IOException {
     this.eventOutput = eventOutputSupplier.getOutput();
     try {
       this.indexOutput = indexOutputSupplier.getOutput();
@@ -130,6 +201,12 @@ public final class StreamDataFileWriter implements TimestampCloseable, Flushable
     Function<OutputStream, Encoder> encoderFactory = createEncoderFactory();
     this.encoder = new BufferedEncoder(BUFFER_SIZE, encoderFactory);
     this.lengthEncoder = new BufferedEncoder(5, encoderFactory);
+    this.compression = compression;
+    this.blockBuffer = compression == StreamFileCompression.NONE ? null : new BlockBuffer();
+    this.compressedBuffer = new byte[0];
+    this.immutableBodies = immutableBodies;
+    this.directBodies = Lists.newArrayList();
+    this.directBodyOffsets = new int[0];
 
     try {
       init(properties);
@@ -221,10 +298,19 @@ public final class StreamDataFileWriter implements TimestampCloseable, Flushable
       }
 
       // Encodes the event data into buffer.
-      StreamEventDataCodec.encode(event, encoder);
+      ByteBuffer body = event.getBody();
+      if (immutableBodies && body.remaining() >= DIRECT_BODY_SIZE) {
+        // Only encodes the body length, the body is written from the event buffer when the block is flushed
+        encoder.writeInt(body.remaining());
+        addDirectBody(body);
+        StreamEventDataCodec.encodeHeaders(event.getHeaders(), encoder);
+      } else {
+        StreamEventDataCodec.encode(event, encoder);
+      }
+      blockEvents++;
 
       // Optionally flush if already filled up the buffer.
-      if (encoder.size() >= flushLimit) {
+      if (encoder.size() + directBodySize >= flushLimit) {
         flushBlock(false);
       }
 
@@ -235,7 +321,8 @@ public final class StreamDataFileWriter implements TimestampCloseable, Flushable
 
   private void init(Map<String, String> properties) throws IOException {
     // Writes the header for event file
-    encoder.writeRaw(StreamDataFileConstants.MAGIC_HEADER_V2);
+    encoder.writeRaw(compression == StreamFileCompression.NONE ? StreamDataFileConstants.MAGIC_HEADER_V2
+                                                                : StreamDataFileConstants.MAGIC_HEADER_V3);
 
     Map<String, String> headers = Maps.newHashMap(properties);
     headers.put(StreamDataFileConstants.Property.Key.SCHEMA, StreamEventDataCodec.STREAM_DATA_SCHEMA.toString());
@@ -278,16 +365,21 @@ public final class StreamDataFileWriter implements TimestampCloseable, Flushable
       indexOffset = position - Bytes.SIZEOF_LONG;
     }
 
-    // Writes the size of the encoded event
-    lengthEncoder.writeInt(encoder.size());
-    int size = lengthEncoder.size();
-    lengthEncoder.writeTo(eventOutput);
-    position += size;
-
-    // Writes all encoded data from the buffer to the output.
-    size = encoder.size();
-    encoder.writeTo(eventOutput);
-    position += size;
+    if (compression == StreamFileCompression.NONE) {
+      // Writes the size of the encoded event
+      int blockLength = encoder.size() + directBodySize;
+      lengthEncoder.writeInt(blockLength);
+      int size = lengthEncoder.size();
+      lengthEncoder.writeTo(eventOutput);
+      position += size;
+
+      // Writes all encoded data from the buffer to the output.
+      writeBlockData(eventOutput);
+      position += blockLength;
+    } else {
+      writeCompressedBlock();
+    }
+    blockEvents = 0;
     if (sync) {
       sync(eventOutput);
     }
@@ -310,6 +402,108 @@ public final class StreamDataFileWriter implements TimestampCloseable, Flushable
     synced = sync;
   }
 
+  /**
+   * Writes the buffered events as a compressed block, or as a raw block if compression does not reduce the size
+   * or the compressed block would be smaller than the number of events in it.
+   */
+  private void writeCompressedBlock() throws IOException {
+    int length = encoder.size() + directBodySize;
+    blockBuffer.reset();
+    writeBlockData(blockBuffer);
+
+    int maxLength = compression.maxCompressedLength(length);
+    if (compressedBuffer.length < maxLength) {
+      compressedBuffer = new byte[maxLength];
+    }
+    int compressedLength = compression.compress(blockBuffer.getBuffer(), length, compressedBuffer);
+
+    // Block header is the compression id, followed by the uncompressed length for compressed block
+    lengthEncoder.writeInt(length);
+    int compressedBlockLength = 1 + lengthEncoder.size() + compressedLength;
+    lengthEncoder.reset();
+
+    boolean compressed = compressedBlockLength < length + 1 && compressedBlockLength >= blockEvents;
+    int blockLength = compressed ? compressedBlockLength : length + 1;
+
+    lengthEncoder.writeInt(blockLength);
+    position += lengthEncoder.size();
+    lengthEncoder.writeTo(eventOutput);
+
+    if (compressed) {
+      eventOutput.write(compression.getId());
+      lengthEncoder.writeInt(length);
+      lengthEncoder.writeTo(eventOutput);
+      eventOutput.write(compressedBuffer, 0, compressedLength);
+    } else {
+      eventOutput.write(StreamFileCompression.NONE.getId());
+      eventOutput.write(blockBuffer.getBuffer(), 0, length);
+    }
+    position += blockLength;
+  }
+
+  /**
+   * Remembers a body to be written directly when the current data block is flushed. It will be written at the
+   * current end of the encoded data in the buffer.
+   */
+  private void addDirectBody(ByteBuffer body) {
+    int idx = directBodies.size();
+    if (idx == directBodyOffsets.length) {
+      directBodyOffsets = Arrays.copyOf(directBodyOffsets, Math.max(16, idx * 2));
+    }
+    directBodyOffsets[idx] = encoder.size();
+    directBodies.add(body.duplicate());
+    directBodySize += body.remaining();
+  }
+
+  /**
+   * Writes the events of the current data block, which are the encoded data in the buffer with the direct bodies
+   * inserted at their offsets, to the given output.
+   */
+  private void writeBlockData(OutputStream output) throws IOException {
+    if (directBodies.isEmpty()) {
+      encoder.writeTo(output);
+      return;
+    }
+
+    if (encodedBuffer == null) {
+      encodedBuffer = new BlockBuffer();
+    }
+    encodedBuffer.reset();
+    encoder.writeTo(encodedBuffer);
+    byte[] encoded = encodedBuffer.getBuffer();
+
+    int offset = 0;
+    for (int i = 0; i < directBodies.size(); i++) {
+      ByteBuffer body = directBodies.get(i);
+      output.write(encoded, offset, directBodyOffsets[i] - offset);
+      writeBody(body, output);
+      offset = directBodyOffsets[i];
+    }
+    output.write(encoded, offset, encodedBuffer.size() - offset);
+
+    directBodies.clear();
+    directBodySize = 0;
+  }
+
+  /**
+   * Writes the remaining bytes of a body to the given output. Bodies not backed by an array, such as direct buffers
+   * from the network layer, are written in chunks through a transfer buffer.
+   */
+  private void writeBody(ByteBuffer body, OutputStream output) throws IOException {
+    if (body.hasArray()) {
+      output.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+      return;
+    }
+    if (transferBuffer == null) {
+      transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+    }
+    while (body.hasRemaining()) {
+      int len = Math.min(transferBuffer.length, body.remaining());
+      body.get(transferBuffer, 0, len);
+      output.write(transferBuffer, 0, len);
+    }
+  }
+
   private void sync(OutputStream output) throws IOException {
     if (output instanceof Syncable) {
       ((Syncable) output).hsync();
@@ -329,6 +523,21 @@ public final class StreamDataFileWriter implements TimestampCloseable, Flushable
     throw ex;
   }
 
+  /**
+   * A {@link ByteArrayOutputStream} that gives access to its buffer, to compress or write parts of blocks without
+   * copying.
+   */
+  private static final class BlockBuffer extends ByteArrayOutputStream {
+
+    BlockBuffer() {
+      super(BUFFER_SIZE);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+
   private static Function<OutputStream, Encoder> createEncoderFactory() {
     return new Function<OutputStream, Encoder>() {
       @Override
@@ -23,6 +23,7 @@ import co.cask.cdap.common.io.SeekableInputStream;
 import co.cask.cdap.common.stream.StreamEventDataCodec;
 import co.cask.cdap.data.file.ReadFilter;
 import co.cask.common.io.ByteBufferInputStream;
+import com.google.common.io.ByteStreams;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -32,7 +33,8 @@ import javax.annotation.concurrent.NotThreadSafe;
 
 /**
  * A buffer for holding encoded stream events. It is used by {@link StreamDataFileReader} for holding
- * encoded stream events in each data block.
+ * encoded stream events in each data block. For compressed data blocks, the uncompressed events are held
+ * and the position of each event is the block position plus the index of the event in the block.
  */
 @NotThreadSafe
 final class StreamEventBuffer {
@@ -42,12 +44,17 @@ final class StreamEventBuffer {
 
   private ByteBuffer buffer;
   private long basePosition;
+  private byte[] compressedBuffer;
+  private boolean compressed;
+  private long endPosition;
+  private int eventIndex;
 
   StreamEventBuffer() {
     this.buffer = ByteBuffers.EMPTY_BUFFER;
     this.bufferInput = new ByteBufferInputStream(buffer);
     this.decoder = new BinaryDecoder(bufferInput);
     this.basePosition = -1L;
+    this.compressedBuffer = new byte[0];
   }
 
   /**
@@ -61,6 +68,7 @@ final class StreamEventBuffer {
   void fillBuffer(SeekableInputStream input, int size) throws IOException {
     buffer.clear();
     buffer = ensureCapacity(buffer, size);
+    compressed = false;
 
     try {
       basePosition = input.getPos();
@@ -82,6 +90,43 @@ final class StreamEventBuffer {
     }
   }
 
+  /**
+   * Fills the internal buffer with the events uncompressed from a compressed data block.
+   *
+   * @param input input stream to read from, positioned at the compressed data
+   * @param compression the compression of the data
+   * @param compressedSize number of bytes to read
+   * @param size size of the uncompressed data
+   * @param blockPosition position of the data block in the stream, which is the position of the first event
+   * @param blockEndPosition position of the end of the data block in the stream
+   * @throws IOException if failed to read from the stream or to uncompress
+   * @throws EOFException if failed to read the given number of bytes from the input
+   */
+  void fillCompressedBuffer(SeekableInputStream input, StreamFileCompression compression, int compressedSize,
+                            int size, long blockPosition, long blockEndPosition) throws IOException {
+    buffer.clear();
+    buffer = ensureCapacity(buffer, size);
+    if (compressedBuffer.length < compressedSize) {
+      compressedBuffer = new byte[compressedSize];
+    }
+
+    try {
+      ByteStreams.readFully(input, compressedBuffer, 0, compressedSize);
+      compression.uncompress(compressedBuffer, compressedSize, buffer.array());
+      buffer.limit(size);
+      bufferInput.reset(buffer);
+      basePosition = blockPosition;
+      endPosition = blockEndPosition;
+      eventIndex = 0;
+      compressed = true;
+    } catch (IOException e) {
+      // Make the buffer has nothing to read
+      buffer.position(buffer.limit());
+      basePosition = -1L;
+      throw e;
+    }
+  }
+
   /**
    * Returns {@code true} if there are events in the buffer, {@code false} otherwise.
    */
@@ -94,7 +139,13 @@ final class StreamEventBuffer {
    * read from the stream.
    */
   long getPosition() {
-    return basePosition >= 0 ? basePosition + buffer.position() : -1L;
+    if (basePosition < 0) {
+      return -1L;
+    }
+    if (compressed) {
+      return hasEvent() ? basePosition + eventIndex : endPosition;
+    }
+    return basePosition + buffer.position();
   }
 
   /**
@@ -102,7 +153,10 @@ final class StreamEventBuffer {
    * been read from the stream.
    */
   long getEndPosition() {
-    return basePosition >= 0 ? basePosition + buffer.limit() : -1L;
+    if (basePosition < 0) {
+      return -1L;
+    }
+    return compressed ? endPosition : basePosition + buffer.limit();
   }
 
   /**
@@ -120,7 +174,8 @@ final class StreamEventBuffer {
       throw new IOException("No more event in the buffer");
     }
 
-    long eventPos = basePosition + buffer.position();
+    long eventPos = getPosition();
+    eventIndex++;
     if (filter.acceptOffset(eventPos)) {
       return new PositionStreamEvent(StreamEventDataCodec.decode(decoder, defaultHeaders), timestamp, eventPos);
     }
@@ -31,5 +31,15 @@ public interface StreamFileWriterFactory {
    */
   String getFileNamePrefix();
 
+  /**
+   * Creates a {@link FileWriter} for writing events to the given stream generation. The writer may keep references
+   * to the bodies of the events appended until it is flushed or closed, hence the bodies must not be modified
+   * before that.
+   *
+   * @param config configuration of the stream
+   * @param generation the stream generation to write to
+   * @return a new {@link FileWriter}
+   * @throws IOException if failed to create the writer
+   */
   FileWriter<StreamEvent> create(StreamConfig config, int generation) throws IOException;
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.data2.dataset2.lib.cube;
+
+import co.cask.cdap.api.dataset.lib.cube.AggregationFunction;
+import co.cask.cdap.api.dataset.lib.cube.CubeQuery;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of {@link DefaultCube} query results for time buckets that are closed, i.e. that are not expected to
+ * receive any more data. The cache key does not include the time range of the query, so that queries over a sliding
+ * time window, such as the ones made by dashboards, only need to scan the time buckets that are not cached yet.
+ * Time buckets that are still open are always scanned.
+ *
+ * The cache is only invalidated by changes made through the {@link DefaultCube} instances that use it. To bound the
+ * staleness caused by data written in other ways, such as by other processes or after the close delay, every entry
+ * expires after a fixed time since it was first created, even if it is extended by later queries.
+ */
+public final class CubeQueryCache {
+
+  private final Cache<Key, Entry> cache;
+  private final long closeDelaySeconds;
+  private final long expireMillis;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param maxTimeValues maximum number of time values to keep in the cache
+   * @param closeDelaySeconds number of seconds after the end of a time bucket before it is considered as closed
+   * @param expireSeconds number of seconds after an entry is created before it expires
+   */
+  public CubeQueryCache(long maxTimeValues, long closeDelaySeconds, long expireSeconds) {
+    this.cache = CacheBuilder.newBuilder()
+      .maximumWeight(maxTimeValues)
+      .weigher(new Weigher<Key, Entry>() {
+        @Override
+        public int weigh(Key key, Entry entry) {
+          return entry.size;
+        }
+      })
+      .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+      .build();
+    this.closeDelaySeconds = closeDelaySeconds;
+    this.expireMillis = TimeUnit.SECONDS.toMillis(expireSeconds);
+  }
+
+  /**
+   * Returns the start of the first time bucket of the given resolution that is still open.
+   */
+  long getClosedEnd(int resolution) {
+    long closedTs = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - closeDelaySeconds;
+    return closedTs < 0 ? 0 : (closedTs / resolution) * resolution;
+  }
+
+  Entry get(Key key) {
+    Entry entry = cache.getIfPresent(key);
+    // Extending an entry resets the expiration of the cache, hence also check the age of the entry
+    if (entry != null && System.currentTimeMillis() - entry.createTime >= expireMillis) {
+      cache.invalidate(key);
+      return null;
+    }
+    return entry;
+  }
+
+  void put(Key key, Entry entry) {
+    cache.put(key, entry);
+  }
+
+  /**
+   * Removes all cached results of time buckets that contain the given timestamp or are after it.
+   */
+  void invalidate(long timestamp) {
+    // Fast path, nothing cached can be affected by data that is newer than the close delay
+    if (timestamp >= TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - closeDelaySeconds) {
+      return;
+    }
+    Iterator<Map.Entry<Key, Entry>> iterator = cache.asMap().entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Key, Entry> entry = iterator.next();
+      int resolution = entry.getKey().resolution;
+      if (entry.getValue().end > (timestamp / resolution) * resolution) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Removes all cached results.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Creates the cache key for the given query that is answered by the given aggregation.
+   */
+  static Key createKey(String aggregation, CubeQuery query) {
+    return new Key(aggregation, query.getResolution(), query.getMeasurements(),
+                   query.getDimensionValues(), query.getGroupByDimensions());
+  }
+
+  /**
+   * Copies all time values in the range {@code [startTs, endTs)} from one table to another.
+   */
+  static int copy(Table<Map<String, String>, String, Map<Long, Long>> from,
+                  Table<Map<String, String>, String, Map<Long, Long>> to, long startTs, long endTs) {
+    int count = 0;
+    for (Table.Cell<Map<String, String>, String, Map<Long, Long>> cell : from.cellSet()) {
+      Map<Long, Long> timeValues = null;
+      for (Map.Entry<Long, Long> timeValue : cell.getValue().entrySet()) {
+        if (timeValue.getKey() < startTs || timeValue.getKey() >= endTs) {
+          continue;
+        }
+        if (timeValues == null) {
+          timeValues = to.get(cell.getRowKey(), cell.getColumnKey());
+          if (timeValues == null) {
+            timeValues = Maps.newHashMap();
+            to.put(cell.getRowKey(), cell.getColumnKey(), timeValues);
+          }
+        }
+        timeValues.put(timeValue.getKey(), timeValue.getValue());
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Cached time values of a query in the closed time buckets {@code [start, end)}. Instances are immutable.
+   */
+  static final class Entry {
+    private final long start;
+    private final long end;
+    // {dimension values, measure} -> {time -> value}s
+    private final Table<Map<String, String>, String, Map<Long, Long>> values;
+    private final int size;
+    private final long createTime;
+
+    Entry(long start, long end, Table<Map<String, String>, String, Map<Long, Long>> values) {
+      this.createTime = System.currentTimeMillis();
+      this.start = start;
+      this.end = end;
+      this.values = HashBasedTable.create();
+      this.size = copy(values, this.values, start, end);
+    }
+
+    private Entry(Entry entry, long end, Table<Map<String, String>, String, Map<Long, Long>> values) {
+      this.createTime = entry.createTime;
+      this.start = entry.start;
+      this.end = end;
+      this.values = HashBasedTable.create();
+      this.size = copy(entry.values, this.values, start, entry.end) + copy(values, this.values, entry.end, end);
+    }
+
+    long getEnd() {
+      return end;
+    }
+
+    /**
+     * Returns {@code true} if the given time bucket is cached.
+     */
+    boolean covers(long timestamp) {
+      return start <= timestamp && timestamp < end;
+    }
+
+    /**
+     * Copies the cached time values in the range {@code [startTs, endTs)} to the given table.
+     */
+    void copyTo(Table<Map<String, String>, String, Map<Long, Long>> to, long startTs, long endTs) {
+      copy(values, to, Math.max(start, startTs), Math.min(end, endTs));
+    }
+
+    /**
+     * Returns a new {@link Entry} that also contains time values from the given table up to the given end.
+     */
+    Entry extend(Table<Map<String, String>, String, Map<Long, Long>> values, long end) {
+      return new Entry(this, end, values);
+    }
+  }
+
+  /**
+   * Cache key of a query, which contains everything of a query that affects the time values, except the time range.
+   */
+  static final class Key {
+    private final String aggregation;
+    private final int resolution;
+    private final Map<String, AggregationFunction> measurements;
+    private final Map<String, String> dimensionValues;
+    private final Set<String> groupByDimensions;
+    private final int hashCode;
+
+    private Key(String aggregation, int resolution, Map<String, AggregationFunction> measurements,
+                Map<String, String> dimensionValues, Iterable<String> groupByDimensions) {
+      this.aggregation = aggregation;
+      this.resolution = resolution;
+      this.measurements = Maps.newHashMap(measurements);
+      this.dimensionValues = Maps.newHashMap(dimensionValues);
+      // Order of group by dimensions doesn't affect the result
+      this.groupByDimensions = Sets.newHashSet(groupByDimensions);
+      this.hashCode = Objects.hashCode(aggregation, resolution, this.measurements,
+                                       this.dimensionValues, this.groupByDimensions);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Key other = (Key) o;
+      return resolution == other.resolution
+        && aggregation.equals(other.aggregation)
+        && measurements.equals(other.measurements)
+        && dimensionValues.equals(other.dimensionValues)
+        && groupByDimensions.equals(other.groupByDimensions);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
@@ -33,6 +33,7 @@ import co.cask.cdap.data2.dataset2.lib.timeseries.FactScan;
 import co.cask.cdap.data2.dataset2.lib.timeseries.FactScanResult;
 import co.cask.cdap.data2.dataset2.lib.timeseries.FactScanner;
 import co.cask.cdap.data2.dataset2.lib.timeseries.FactTable;
+import com.google.common.base.Throwables;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
@@ -51,7 +52,14 @@ import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
 
 /**
@@ -63,10 +71,21 @@ public class DefaultCube implements Cube, MeteredDataset {
   private static final DimensionValueComparator DIMENSION_VALUE_COMPARATOR = new DimensionValueComparator();
   // hard-limit on max records to scan
   private static final int MAX_RECORDS_TO_SCAN = 100 * 1000;
+  private static final int ROLL_TIME = 3600;
 
+  private final FactTableSupplier factTableSupplier;
   private final Map<Integer, FactTable> resolutionToFactTable;
+  // FactTables for scanning splits and building indexes concurrently, since a FactTable is not thread safe
+  private final Map<Integer, Queue<FactTable>> splitFactTables;
+  // whether the dimension value indexes are being built or done building
+  private final AtomicBoolean indexBuildStarted;
   private final Map<String, ? extends Aggregation> aggregations;
   private final Map<String, AggregationAlias> aggregationAliasMap;
+  @Nullable
+  private final CubeQueryCache queryCache;
+  @Nullable
+  private final ExecutorService scanExecutor;
+  private final int maxScanSplits;
 
   @Nullable
   private MetricsCollector metrics;
@@ -74,12 +93,39 @@ public class DefaultCube implements Cube, MeteredDataset {
   public DefaultCube(int[] resolutions, FactTableSupplier factTableSupplier,
                      Map<String, ? extends Aggregation> aggregations,
                      Map<String, AggregationAlias> aggregationAliasMap) {
+    this(resolutions, factTableSupplier, aggregations, aggregationAliasMap, null, null, 1);
+  }
+
+  /**
+   * Creates a cube that optionally uses a {@link CubeQueryCache} for query results and scans time ranges of a query
+   * concurrently.
+   *
+   * @param queryCache cache for query results, or {@code null} to not cache. The cache is only consistent with
+   *                   the data if the data in closed time buckets is only changed through this instance.
+   * @param scanExecutor executor for scanning time ranges of a query concurrently and for building the dimension
+   *                     value indexes in the background, or {@code null} to always scan sequentially and not build
+   *                     the indexes. Every split is scanned with a separate {@link FactTable} from the given
+   *                     supplier, hence the supplier must return instances that can be used concurrently with each
+   *                     other.
+   * @param maxScanSplits maximum number of time ranges a scan is split into
+   */
+  public DefaultCube(int[] resolutions, FactTableSupplier factTableSupplier,
+                     Map<String, ? extends Aggregation> aggregations,
+                     Map<String, AggregationAlias> aggregationAliasMap, @Nullable CubeQueryCache queryCache,
+                     @Nullable ExecutorService scanExecutor, int maxScanSplits) {
     this.aggregations = aggregations;
+    this.factTableSupplier = factTableSupplier;
     this.resolutionToFactTable = Maps.newHashMap();
+    this.splitFactTables = Maps.newHashMap();
     for (int resolution : resolutions) {
-      resolutionToFactTable.put(resolution, factTableSupplier.get(resolution, 3600));
+      resolutionToFactTable.put(resolution, factTableSupplier.get(resolution, ROLL_TIME));
+      splitFactTables.put(resolution, new ConcurrentLinkedQueue<FactTable>());
     }
     this.aggregationAliasMap = aggregationAliasMap;
+    this.queryCache = queryCache;
+    this.scanExecutor = scanExecutor;
+    this.maxScanSplits = maxScanSplits;
+    this.indexBuildStarted = new AtomicBoolean();
   }
 
   @Override
@@ -91,7 +137,9 @@ public class DefaultCube implements Cube, MeteredDataset {
   public void add(Collection<? extends CubeFact> facts) {
     List<Fact> toWrite = Lists.newArrayList();
     int dimValuesCount = 0;
+    long minTimestamp = Long.MAX_VALUE;
     for (CubeFact fact : facts) {
+      minTimestamp = Math.min(minTimestamp, fact.getTimestamp());
       for (Map.Entry<String, ? extends Aggregation> aggEntry : aggregations.entrySet()) {
         Aggregation agg = aggEntry.getValue();
         AggregationAlias aggregationAlias = null;
@@ -116,6 +164,9 @@ public class DefaultCube implements Cube, MeteredDataset {
     for (FactTable table : resolutionToFactTable.values()) {
       table.add(toWrite);
     }
+    if (queryCache != null && !facts.isEmpty()) {
+      queryCache.invalidate(minTimestamp);
+    }
 
     incrementMetric("cube.cubeFact.add.request.count", 1);
     incrementMetric("cube.cubeFact.added.count", facts.size());
@@ -138,6 +189,9 @@ public class DefaultCube implements Cube, MeteredDataset {
 
       Execution:
 
+      0) find resolution to scan. If the query resolution is not stored, the coarsest stored resolution that the
+         query resolution is a multiple of is scanned, and the values are rolled up to the query resolution.
+
       1) (optional, if aggregation to query in is not provided) find aggregation to supply results
 
       Here, we need aggregation that has following dimensions: 'namespace', 'app', 'program', 'dataset'.
@@ -159,12 +213,14 @@ public class DefaultCube implements Cube, MeteredDataset {
       'measureType'='COUNTER'
 
       3) While scanning build a table: dimension values -> time -> value. Use measureType as values aggregate
-         function if needed.
+         function if needed. If a CubeQueryCache is used, only time buckets that are not cached are scanned.
     */
 
     incrementMetric("cube.query.request.count", 1);
 
-    if (!resolutionToFactTable.containsKey(query.getResolution())) {
+    // 0) find resolution to scan
+    Integer scanResolution = findScanResolution(query.getResolution());
+    if (scanResolution == null) {
       incrementMetric("cube.query.request.failure.count", 1);
       throw new IllegalArgumentException("There's no data aggregated for specified resolution to satisfy the query: " +
                                            query.toString());
@@ -196,6 +252,9 @@ public class DefaultCube implements Cube, MeteredDataset {
     // tell how many queries end up querying specific pre-aggregated views and resolutions
     incrementMetric("cube.query.agg." + aggName + ".count", 1);
     incrementMetric("cube.query.res." + query.getResolution() + ".count", 1);
+    if (scanResolution != query.getResolution()) {
+      incrementMetric("cube.query.rollup.count", 1);
+    }
 
     // 2) build a scan for a query
     List<DimensionValue> dimensionValues = Lists.newArrayList();
@@ -204,13 +263,13 @@ public class DefaultCube implements Cube, MeteredDataset {
       dimensionValues.add(new DimensionValue(dimensionName, query.getDimensionValues().get(dimensionName)));
     }
 
-    FactScan scan = new FactScan(query.getStartTs(), query.getEndTs(),
-                                 query.getMeasurements().keySet(), dimensionValues);
-
     // 3) execute scan query
-    FactTable table = resolutionToFactTable.get(query.getResolution());
-    FactScanner scanner = table.scan(scan);
-    Table<Map<String, String>, String, Map<Long, Long>> resultMap = getTimeSeries(query, scanner);
+    Table<Map<String, String>, String, Map<Long, Long>> resultMap = HashBasedTable.create();
+    if (queryCache == null) {
+      scan(query, scanResolution, dimensionValues, query.getStartTs(), resultMap);
+    } else {
+      queryWithCache(query, aggName, scanResolution, dimensionValues, resultMap);
+    }
 
     incrementMetric("cube.query.request.success.count", 1);
     incrementMetric("cube.query.result.size", resultMap.size());
@@ -238,11 +297,15 @@ public class DefaultCube implements Cube, MeteredDataset {
         factTable.delete(scan);
       }
     }
+    if (queryCache != null) {
+      queryCache.invalidateAll();
+    }
   }
 
   @Override
   public Collection<DimensionValue> findDimensionValues(CubeExploreQuery query) {
     LOG.trace("Searching for next-level context, query: {}", query);
+    startIndexBuild();
 
     // In each aggregation that matches given dimensions, try to fill in value in a single null-valued given dimension.
     // NOTE: that we try to fill in first value that is non-null-valued in a stored record
@@ -270,6 +333,7 @@ public class DefaultCube implements Cube, MeteredDataset {
   @Override
   public Collection<String> findMeasureNames(CubeExploreQuery query) {
     LOG.trace("Searching for measures, query: {}", query);
+    startIndexBuild();
 
     // In each aggregation that matches given dimensions, try to find measure names
     SortedSet<String> result = Sets.newTreeSet();
@@ -291,6 +355,36 @@ public class DefaultCube implements Cube, MeteredDataset {
     return result;
   }
 
+  /**
+   * Builds the dimension value indexes of all aggregations in the background, unless they are built already, so that
+   * searches scan the facts until the indexes are built instead of waiting for it.
+   */
+  private void startIndexBuild() {
+    if (scanExecutor == null || !indexBuildStarted.compareAndSet(false, true)) {
+      return;
+    }
+    scanExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        for (int resolution : resolutionToFactTable.keySet()) {
+          FactTable table = borrowFactTable(resolution);
+          try {
+            for (Aggregation aggregation : aggregations.values()) {
+              table.buildIndex(aggregation.getDimensionNames());
+            }
+          } catch (Exception e) {
+            LOG.warn("Failed to build dimension value index of resolution {}. Will be retried on next search.",
+                     resolution, e);
+            indexBuildStarted.set(false);
+            return;
+          } finally {
+            splitFactTables.get(resolution).offer(table);
+          }
+        }
+      }
+    });
+  }
+
   /**
    * Sets {@link MetricsCollector} for metrics reporting.
    * @param metrics {@link MetricsCollector} to set.
@@ -301,6 +395,11 @@ public class DefaultCube implements Cube, MeteredDataset {
     for (FactTable factTable : resolutionToFactTable.values()) {
       factTable.setMetricsCollector(metrics);
     }
+    for (Queue<FactTable> factTables : splitFactTables.values()) {
+      for (FactTable factTable : factTables) {
+        factTable.setMetricsCollector(metrics);
+      }
+    }
   }
 
   private void incrementMetric(String metricName, long value) {
@@ -309,6 +408,174 @@ public class DefaultCube implements Cube, MeteredDataset {
     }
   }
 
+  /**
+   * Returns the resolution to scan for the given query resolution, which is either the same resolution or the
+   * coarsest stored resolution that the given resolution is a multiple of. Returns {@code null} if there is none.
+   */
+  @Nullable
+  private Integer findScanResolution(int resolution) {
+    if (resolutionToFactTable.containsKey(resolution)) {
+      return resolution;
+    }
+    Integer result = null;
+    for (int storedResolution : resolutionToFactTable.keySet()) {
+      if (storedResolution < resolution && resolution % storedResolution == 0
+        && (result == null || storedResolution > result)) {
+        result = storedResolution;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Scans the time buckets of the query resolution from the given start time to the end of the query into the
+   * given table.
+   *
+   * If a scan executor is set, the time range is split and the splits are scanned concurrently.
+   *
+   * @return {@code true} if the scan was not cut short because of the limit on the number of records to scan
+   */
+  private boolean scan(final CubeQuery query, int scanResolution, List<DimensionValue> dimensionValues, long startTs,
+                       Table<Map<String, String>, String, Map<Long, Long>> result) {
+    long endTs = query.getEndTs();
+    int rollupResolution = 0;
+    if (scanResolution != query.getResolution()) {
+      // Scan all finer buckets of the query buckets in the range
+      rollupResolution = query.getResolution();
+      startTs = ((startTs + rollupResolution - 1) / rollupResolution) * rollupResolution;
+      endTs = (endTs / rollupResolution) * rollupResolution + rollupResolution - 1;
+    }
+    FactScan scan = new FactScan(startTs, endTs, query.getMeasurements().keySet(), dimensionValues);
+    FactTable table = resolutionToFactTable.get(scanResolution);
+    List<FactScan> splits = scanExecutor == null ? ImmutableList.of(scan) : table.splitScan(scan, maxScanSplits);
+    if (splits.size() == 1) {
+      return scan(query, table, scan, rollupResolution, MAX_RECORDS_TO_SCAN, result);
+    }
+
+    // Scatter the splits, then gather the results in time order, so that later values win for LATEST
+    incrementMetric("cube.query.scan.split.count", splits.size());
+    final int splitResolution = scanResolution;
+    final int splitRollupResolution = rollupResolution;
+    final int splitMaxRecords = MAX_RECORDS_TO_SCAN / splits.size();
+    List<Future<ImmutablePair<Table<Map<String, String>, String, Map<Long, Long>>, Boolean>>> futures =
+      Lists.newArrayListWithCapacity(splits.size());
+    for (final FactScan split : splits) {
+      futures.add(scanExecutor.submit(
+        new Callable<ImmutablePair<Table<Map<String, String>, String, Map<Long, Long>>, Boolean>>() {
+          @Override
+          public ImmutablePair<Table<Map<String, String>, String, Map<Long, Long>>, Boolean> call() {
+            Table<Map<String, String>, String, Map<Long, Long>> splitResult = HashBasedTable.create();
+            FactTable splitTable = borrowFactTable(splitResolution);
+            try {
+              boolean complete = scan(query, splitTable, split, splitRollupResolution, splitMaxRecords, splitResult);
+              return ImmutablePair.of(splitResult, complete);
+            } finally {
+              splitFactTables.get(splitResolution).offer(splitTable);
+            }
+          }
+        }));
+    }
+
+    boolean complete = true;
+    try {
+      for (Future<ImmutablePair<Table<Map<String, String>, String, Map<Long, Long>>, Boolean>> future : futures) {
+        ImmutablePair<Table<Map<String, String>, String, Map<Long, Long>>, Boolean> splitResult = future.get();
+        merge(query, splitResult.getFirst(), result);
+        complete = complete && splitResult.getSecond();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Throwables.propagate(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return complete;
+  }
+
+  /**
+   * Returns a {@link FactTable} of the given resolution that is not in use by any other thread. It must be
+   * returned to {@link #splitFactTables} after use.
+   */
+  private FactTable borrowFactTable(int resolution) {
+    FactTable table = splitFactTables.get(resolution).poll();
+    if (table == null) {
+      table = factTableSupplier.get(resolution, ROLL_TIME);
+      if (metrics != null) {
+        table.setMetricsCollector(metrics);
+      }
+    }
+    return table;
+  }
+
+  private boolean scan(CubeQuery query, FactTable table, FactScan scan, int rollupResolution, int maxRecords,
+                       Table<Map<String, String>, String, Map<Long, Long>> result) {
+    FactScanner scanner = table.scan(scan);
+    try {
+      return getTimeSeries(query, scanner, rollupResolution, maxRecords, result);
+    } finally {
+      scanner.close();
+    }
+  }
+
+  /**
+   * Merges the time values of one table into another, using the aggregation function of the query.
+   */
+  private void merge(CubeQuery query, Table<Map<String, String>, String, Map<Long, Long>> from,
+                     Table<Map<String, String>, String, Map<Long, Long>> to) {
+    for (Table.Cell<Map<String, String>, String, Map<Long, Long>> cell : from.cellSet()) {
+      Map<Long, Long> timeValues = to.get(cell.getRowKey(), cell.getColumnKey());
+      if (timeValues == null) {
+        to.put(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+        continue;
+      }
+      AggregationFunction function = query.getMeasurements().get(cell.getColumnKey());
+      for (Map.Entry<Long, Long> timeValue : cell.getValue().entrySet()) {
+        aggregate(timeValues, function, timeValue.getKey(), timeValue.getValue());
+      }
+    }
+  }
+
+  /**
+   * Copies the cached time buckets of the query to the given table, scans the rest, and caches the newly scanned
+   * time buckets that are closed.
+   */
+  private void queryWithCache(CubeQuery query, String aggName, int scanResolution,
+                              List<DimensionValue> dimensionValues,
+                              Table<Map<String, String>, String, Map<Long, Long>> result) {
+    long resolution = query.getResolution();
+    long startBucket = ((query.getStartTs() + resolution - 1) / resolution) * resolution;
+    long endBucket = (query.getEndTs() / resolution) * resolution + resolution;
+
+    CubeQueryCache.Key key = CubeQueryCache.createKey(aggName, query);
+    CubeQueryCache.Entry entry = queryCache.get(key);
+    long scanStart = query.getStartTs();
+    if (entry != null && entry.covers(startBucket)) {
+      incrementMetric("cube.query.cache.hit.count", 1);
+      entry.copyTo(result, startBucket, endBucket);
+      if (entry.getEnd() >= endBucket) {
+        return;
+      }
+      scanStart = entry.getEnd();
+    } else {
+      incrementMetric("cube.query.cache.miss.count", 1);
+      entry = null;
+    }
+
+    Table<Map<String, String>, String, Map<Long, Long>> scanned = HashBasedTable.create();
+    boolean complete = scan(query, scanResolution, dimensionValues, scanStart, scanned);
+    CubeQueryCache.copy(scanned, result, Long.MIN_VALUE, Long.MAX_VALUE);
+
+    long cacheEnd = Math.min(queryCache.getClosedEnd(query.getResolution()), endBucket);
+    if (complete && cacheEnd > (entry == null ? startBucket : entry.getEnd())) {
+      queryCache.put(key, entry == null ? new CubeQueryCache.Entry(startBucket, cacheEnd, scanned)
+                                        : entry.extend(scanned, cacheEnd));
+    }
+  }
+
   @Nullable
   private ImmutablePair<String, Aggregation> findAggregation(CubeQuery query) {
     ImmutablePair<String, Aggregation> currentBest = null;
@@ -329,10 +596,15 @@ public class DefaultCube implements Cube, MeteredDataset {
     return currentBest;
   }
 
-  private Table<Map<String, String>, String, Map<Long, Long>> getTimeSeries(CubeQuery query, FactScanner scanner) {
-    // {dimension values, measure} -> {time -> value}s
-    Table<Map<String, String>, String, Map<Long, Long>> result = HashBasedTable.create();
-
+  /**
+   * Reads the scanner into the given table of {dimension values, measure} -> {time -> value}s.
+   *
+   * @param rollupResolution if not {@code 0}, the resolution that the timestamps are rolled up to
+   * @param maxRecords maximum number of records to scan
+   * @return {@code true} if the scan was not cut short because of the limit on the number of records to scan
+   */
+  private boolean getTimeSeries(CubeQuery query, FactScanner scanner, int rollupResolution, int maxRecords,
+                                Table<Map<String, String>, String, Map<Long, Long>> result) {
     int count = 0;
     while (scanner.hasNext()) {
       FactScanResult next = scanner.next();
@@ -367,37 +639,42 @@ public class DefaultCube implements Cube, MeteredDataset {
       }
 
       for (TimeValue timeValue : next) {
+        if (rollupResolution != 0) {
+          long timestamp = timeValue.getTimestamp();
+          timeValue = new TimeValue(timestamp - timestamp % rollupResolution, timeValue.getValue());
+        }
         Map<Long, Long> timeValues = result.get(seriesDimensions, next.getMeasureName());
         if (timeValues == null) {
-          result.put(seriesDimensions, next.getMeasureName(), Maps.<Long, Long>newHashMap());
-        }
-
-        AggregationFunction function = query.getMeasurements().get(next.getMeasureName());
-        if (AggregationFunction.SUM == function) {
-          Long value =  result.get(seriesDimensions, next.getMeasureName()).get(timeValue.getTimestamp());
-          value = value == null ? 0 : value;
-          value += timeValue.getValue();
-          result.get(seriesDimensions, next.getMeasureName()).put(timeValue.getTimestamp(), value);
-        } else if (AggregationFunction.MAX == function) {
-          Long value = result.get(seriesDimensions, next.getMeasureName()).get(timeValue.getTimestamp());
-          value = value != null && value > timeValue.getValue() ? value : timeValue.getValue();
-          result.get(seriesDimensions, next.getMeasureName()).put(timeValue.getTimestamp(), value);
-        } else if (AggregationFunction.MIN == function) {
-          Long value =  result.get(seriesDimensions, next.getMeasureName()).get(timeValue.getTimestamp());
-          value = value != null && value < timeValue.getValue() ? value : timeValue.getValue();
-          result.get(seriesDimensions, next.getMeasureName()).put(timeValue.getTimestamp(), value);
-        } else if (AggregationFunction.LATEST == function) {
-          result.get(seriesDimensions, next.getMeasureName()).put(timeValue.getTimestamp(), timeValue.getValue());
-        } else {
-          // should never happen: developer error
-          throw new RuntimeException("Unknown MeasureType: " + function);
+          timeValues = Maps.newHashMap();
+          result.put(seriesDimensions, next.getMeasureName(), timeValues);
         }
+        aggregate(timeValues, query.getMeasurements().get(next.getMeasureName()),
+                  timeValue.getTimestamp(), timeValue.getValue());
       }
-      if (++count >= MAX_RECORDS_TO_SCAN) {
-        break;
+      if (++count >= maxRecords) {
+        return !scanner.hasNext();
       }
     }
-    return result;
+    return true;
+  }
+
+  /**
+   * Adds a time value to the given time values, using the given aggregation function if there is a value already.
+   */
+  private void aggregate(Map<Long, Long> timeValues, AggregationFunction function, long timestamp, long value) {
+    Long current = timeValues.get(timestamp);
+    if (AggregationFunction.SUM == function) {
+      timeValues.put(timestamp, current == null ? value : current + value);
+    } else if (AggregationFunction.MAX == function) {
+      timeValues.put(timestamp, current != null && current > value ? current : value);
+    } else if (AggregationFunction.MIN == function) {
+      timeValues.put(timestamp, current != null && current < value ? current : value);
+    } else if (AggregationFunction.LATEST == function) {
+      timeValues.put(timestamp, value);
+    } else {
+      // should never happen: developer error
+      throw new RuntimeException("Unknown MeasureType: " + function);
+    }
   }
 
   private Collection<TimeSeries> convertToQueryResult(CubeQuery query,
@@ -442,6 +719,12 @@ public class DefaultCube implements Cube, MeteredDataset {
     for (FactTable factTable : resolutionToFactTable.values()) {
       factTable.close();
     }
+    for (Queue<FactTable> factTables : splitFactTables.values()) {
+      for (FactTable factTable : factTables) {
+        factTable.close();
+      }
+      factTables.clear();
+    }
   }
 
   private static final class DimensionValueComparator implements Comparator<DimensionValue> {
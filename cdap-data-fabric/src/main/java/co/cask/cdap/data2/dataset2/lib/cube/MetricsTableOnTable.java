@@ -25,6 +25,7 @@ import co.cask.cdap.data2.dataset2.lib.table.FuzzyRowFilter;
 import co.cask.cdap.data2.dataset2.lib.table.MetricsTable;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.SortedMap;
@@ -103,6 +104,13 @@ class MetricsTableOnTable implements MetricsTable {
     table.delete(row, columns);
   }
 
+  @Override
+  public void delete(SortedMap<byte[], ? extends Collection<byte[]>> deletes) {
+    for (Map.Entry<byte[], ? extends Collection<byte[]>> row : deletes.entrySet()) {
+      table.delete(row.getKey(), row.getValue().toArray(new byte[row.getValue().size()][]));
+    }
+  }
+
   @Override
   public Scanner scan(@Nullable byte[] start, @Nullable byte[] stop,
                       @Nullable FuzzyRowFilter filter) {
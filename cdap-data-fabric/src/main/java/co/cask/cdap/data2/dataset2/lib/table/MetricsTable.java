@@ -19,6 +19,7 @@ package co.cask.cdap.data2.dataset2.lib.table;
 import co.cask.cdap.api.dataset.Dataset;
 import co.cask.cdap.api.dataset.table.Scanner;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.SortedMap;
@@ -83,6 +84,13 @@ public interface MetricsTable extends Dataset {
    */
   void delete(byte[] row, byte[][] columns);
 
+  /**
+   * Deletes multiple rows, each with multiple individual columns to delete.
+   *
+   * @param deletes map from each row key to the names of the columns to delete in the row
+   */
+  void delete(SortedMap<byte[], ? extends Collection<byte[]>> deletes);
+
   /**
    * Get a scanner for a table.
    * @param start the row key of the first row to scan. If null, the scan begins at the first row of the table.
@@ -43,6 +43,7 @@ import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.util.Pair;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
@@ -232,6 +233,23 @@ public class HBaseMetricsTable implements MetricsTable {
     }
   }
 
+  @Override
+  public void delete(SortedMap<byte[], ? extends Collection<byte[]>> deletes) {
+    List<Delete> hDeletes = Lists.newArrayList();
+    for (Map.Entry<byte[], ? extends Collection<byte[]>> row : deletes.entrySet()) {
+      DeleteBuilder delete = tableUtil.buildDelete(row.getKey());
+      for (byte[] column : row.getValue()) {
+        delete.deleteColumns(columnFamily, column);
+      }
+      hDeletes.add(delete.build());
+    }
+    try {
+      hTable.delete(hDeletes);
+    } catch (IOException e) {
+      throw new DataSetException("Delete failed on table " + tableId, e);
+    }
+  }
+
   @Override
   public Scanner scan(@Nullable byte[] startRow, @Nullable byte[] stopRow,
                       @Nullable FuzzyRowFilter filter) {
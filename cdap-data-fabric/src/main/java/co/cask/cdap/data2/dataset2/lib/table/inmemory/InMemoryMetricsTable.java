@@ -28,6 +28,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.SortedMap;
@@ -114,6 +115,15 @@ public class InMemoryMetricsTable implements MetricsTable {
     }
   }
 
+  @Override
+  public void delete(SortedMap<byte[], ? extends Collection<byte[]>> deletes) {
+    for (Map.Entry<byte[], ? extends Collection<byte[]>> row : deletes.entrySet()) {
+      for (byte[] column : row.getValue()) {
+        InMemoryTableService.deleteColumns(tableName, row.getKey(), column);
+      }
+    }
+  }
+
   @Override
   public Scanner scan(@Nullable byte[] start, @Nullable byte[] stop,
                       @Nullable FuzzyRowFilter filter) {
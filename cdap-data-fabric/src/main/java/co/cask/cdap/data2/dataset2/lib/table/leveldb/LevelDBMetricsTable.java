@@ -29,6 +29,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.SortedMap;
@@ -143,6 +144,15 @@ public class LevelDBMetricsTable implements MetricsTable {
     }
   }
 
+  @Override
+  public void delete(SortedMap<byte[], ? extends Collection<byte[]>> deletes) {
+    try {
+      core.deleteColumns(deletes);
+    } catch (IOException e) {
+      throw new DataSetException("Delete failed on table " + tableName, e);
+    }
+  }
+
   @Override
   public Scanner scan(@Nullable byte[] start, @Nullable byte[] stop,
                       @Nullable FuzzyRowFilter filter) {
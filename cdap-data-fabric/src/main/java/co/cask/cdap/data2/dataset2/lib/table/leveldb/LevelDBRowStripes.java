@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.data2.dataset2.lib.table.leveldb;
+
+import co.cask.cdap.api.common.Bytes;
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Row-hash striped locks for read-modify-write operations on a LevelDB table. One instance is shared by all
+ * {@link LevelDBTableCore} of the same table, so that operations on rows of different stripes can run in parallel
+ * while operations on the same row are still atomic.
+ *
+ * Each stripe also has a queue of increments pending to be written. Whoever acquires the stripe lock writes all
+ * pending increments of the stripe with a single {@link org.iq80.leveldb.WriteBatch}.
+ */
+@ThreadSafe
+final class LevelDBRowStripes {
+
+  static final int DEFAULT_STRIPES = 64;
+
+  private final Stripe[] stripes;
+
+  LevelDBRowStripes(int size) {
+    stripes = new Stripe[size];
+    for (int i = 0; i < size; i++) {
+      stripes[i] = new Stripe(i);
+    }
+  }
+
+  /**
+   * Returns the {@link Stripe} of the given row.
+   */
+  Stripe get(byte[] row) {
+    return stripes[(Bytes.hashCode(row) & Integer.MAX_VALUE) % stripes.length];
+  }
+
+  /**
+   * Returns the distinct {@link Stripe}s of the given rows, in the order that the locks must be acquired in
+   * to avoid deadlock.
+   */
+  Collection<Stripe> get(Collection<byte[]> rows) {
+    SortedMap<Integer, Stripe> result = new TreeMap<>();
+    for (byte[] row : rows) {
+      Stripe stripe = get(row);
+      result.put(stripe.index, stripe);
+    }
+    return result.values();
+  }
+
+  /**
+   * A stripe of rows, with the lock guarding them and the queue of increments pending to be written.
+   */
+  static final class Stripe {
+
+    private final int index;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue<PendingIncrement> pending = new ConcurrentLinkedQueue<>();
+
+    private Stripe(int index) {
+      this.index = index;
+    }
+
+    ReentrantLock getLock() {
+      return lock;
+    }
+
+    void add(PendingIncrement increment) {
+      pending.add(increment);
+    }
+
+    /**
+     * Removes and returns the next pending increment, or {@code null} if there is none.
+     */
+    @Nullable
+    PendingIncrement poll() {
+      return pending.poll();
+    }
+  }
+
+  /**
+   * An increment to one row, which completes once it has been written by the holder of the stripe lock. The
+   * state is only accessed while holding the stripe lock, which also publishes it to the requesting thread.
+   */
+  static final class PendingIncrement {
+
+    private final byte[] row;
+    private final Map<byte[], Long> increments;
+    private Map<byte[], Long> result;
+    private Exception failure;
+    private boolean done;
+
+    PendingIncrement(byte[] row, Map<byte[], Long> increments) {
+      this.row = row;
+      this.increments = increments;
+    }
+
+    byte[] getRow() {
+      return row;
+    }
+
+    Map<byte[], Long> getIncrements() {
+      return increments;
+    }
+
+    boolean isDone() {
+      return done;
+    }
+
+    void complete(Map<byte[], Long> result) {
+      this.result = result;
+      this.done = true;
+    }
+
+    void fail(Exception failure) {
+      this.failure = failure;
+      this.done = true;
+    }
+
+    /**
+     * Returns the incremented values or rethrows the failure of this increment.
+     */
+    Map<byte[], Long> getResult() throws IOException {
+      if (failure != null) {
+        Throwables.propagateIfPossible(failure, IOException.class);
+        throw Throwables.propagate(failure);
+      }
+      return result;
+    }
+  }
+}
@@ -24,9 +24,10 @@ import co.cask.cdap.common.utils.ImmutablePair;
 import co.cask.cdap.data2.dataset2.lib.table.FuzzyRowFilter;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.tephra.Transaction;
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBIterator;
@@ -36,12 +37,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.locks.Lock;
 import javax.annotation.Nullable;
 
 /**
@@ -77,10 +83,12 @@ public class LevelDBTableCore {
 
   private final String tableName;
   private final LevelDBTableService service;
+  private final LevelDBRowStripes rowStripes;
 
   public LevelDBTableCore(String tableName, LevelDBTableService service) throws IOException {
     this.tableName = tableName;
     this.service = service;
+    this.rowStripes = service.getRowStripes(tableName);
   }
 
   private DB getDB() throws IOException {
@@ -92,53 +100,165 @@ public class LevelDBTableCore {
   }
 
 
-  public synchronized boolean swap(byte[] row, byte[] column, byte[] oldValue, byte[] newValue) throws IOException {
-    byte[] existing = getRow(row, new byte[][] { column }, null, null, -1, null).get(column);
-    // verify
-    if (oldValue == null && existing != null) {
-      return false;
-    }
-    if (oldValue != null && (existing == null || !Bytes.equals(oldValue, existing))) {
-      return false;
+  public boolean swap(byte[] row, byte[] column, byte[] oldValue, byte[] newValue) throws IOException {
+    Lock lock = rowStripes.get(row).getLock();
+    lock.lock();
+    try {
+      byte[] existing = getRow(row, new byte[][] { column }, null, null, -1, null).get(column);
+      // verify
+      if (oldValue == null && existing != null) {
+        return false;
+      }
+      if (oldValue != null && (existing == null || !Bytes.equals(oldValue, existing))) {
+        return false;
+      }
+      // write
+      if (newValue == null) {
+        // to-do
+        deleteColumn(row, column);
+      } else {
+        persist(Collections.singletonMap(row, Collections.singletonMap(column, newValue)),
+                System.currentTimeMillis());
+      }
+      return true;
+    } finally {
+      lock.unlock();
     }
-    // write
-    if (newValue == null) {
-      // to-do
-      deleteColumn(row, column);
-    } else {
-      persist(Collections.singletonMap(row, Collections.singletonMap(column, newValue)), System.currentTimeMillis());
+  }
+
+  /**
+   * Increments the given columns of a row and returns the incremented values. Concurrent increments to rows of
+   * the same stripe are combined, so that the thread holding the stripe lock reads each cell once and writes
+   * the increments of all waiting threads with a single {@link WriteBatch}.
+   */
+  public Map<byte[], Long> increment(byte[] row, Map<byte[], Long> increments) throws IOException {
+    LevelDBRowStripes.Stripe stripe = rowStripes.get(row);
+    LevelDBRowStripes.PendingIncrement increment = new LevelDBRowStripes.PendingIncrement(row, increments);
+    stripe.add(increment);
+
+    Lock lock = stripe.getLock();
+    lock.lock();
+    try {
+      // The increment could have been written by the previous lock holder
+      if (!increment.isDone()) {
+        writePendingIncrements(stripe);
+      }
+    } finally {
+      lock.unlock();
     }
-    return true;
+    return increment.getResult();
   }
 
-  public synchronized Map<byte[], Long> increment(byte[] row, Map<byte[], Long> increments) throws IOException {
-    Map<byte[], Long> result = getResultMap(row, increments);
-    Map<byte[], byte[]> replacing = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
-    for (Map.Entry<byte[], Long> entry : result.entrySet()) {
-      replacing.put(entry.getKey(), Bytes.toBytes(entry.getValue()));
+  public void increment(NavigableMap<byte[], NavigableMap<byte[], Long>> updates) throws IOException {
+    List<Lock> locks = new ArrayList<>();
+    for (LevelDBRowStripes.Stripe stripe : rowStripes.get(updates.keySet())) {
+      stripe.getLock().lock();
+      locks.add(stripe.getLock());
+    }
+    try {
+      Map<byte[], Map<byte[], byte[]>> resultMap = Maps.newHashMap();
+      for (NavigableMap.Entry<byte[], NavigableMap<byte[], Long>> row : updates.entrySet()) {
+        NavigableMap<byte[], Long> increments = row.getValue();
+        NavigableMap<byte[], byte[]> existing = getRow(row.getKey(), toColumns(increments.keySet()),
+                                                       null, null, -1, null);
+        Map<byte[], Long> result = getResultMap(row.getKey(), existing, increments);
+        resultMap.put(row.getKey(), toBytesMap(result));
+      }
+      persist(resultMap, System.currentTimeMillis());
+    } finally {
+      for (Lock lock : Lists.reverse(locks)) {
+        lock.unlock();
+      }
     }
-    persist(ImmutableMap.of(row, replacing), System.currentTimeMillis());
-    return result;
   }
 
+  /**
+   * Writes all increments pending in the given stripe with a single {@link WriteBatch}. Increments to the same cell
+   * are applied in the order they were requested. Must be called while holding the stripe lock.
+   */
+  private void writePendingIncrements(LevelDBRowStripes.Stripe stripe) {
+    List<LevelDBRowStripes.PendingIncrement> pending = new ArrayList<>();
+    LevelDBRowStripes.PendingIncrement increment = stripe.poll();
+    while (increment != null) {
+      pending.add(increment);
+      increment = stripe.poll();
+    }
+
+    try {
+      // Collects the columns to read for each row
+      Map<byte[], Set<byte[]>> columns = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+      for (LevelDBRowStripes.PendingIncrement p : pending) {
+        Set<byte[]> rowColumns = columns.get(p.getRow());
+        if (rowColumns == null) {
+          rowColumns = Sets.newTreeSet(Bytes.BYTES_COMPARATOR);
+          columns.put(p.getRow(), rowColumns);
+        }
+        rowColumns.addAll(p.getIncrements().keySet());
+      }
+
+      // Reads the existing values once and keep applying increments to them
+      Map<byte[], NavigableMap<byte[], byte[]>> values = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+      for (Map.Entry<byte[], Set<byte[]>> entry : columns.entrySet()) {
+        NavigableMap<byte[], byte[]> existing = getRow(entry.getKey(), toColumns(entry.getValue()),
+                                                       null, null, -1, null);
+        values.put(entry.getKey(), Maps.newTreeMap(existing));
+      }
+
+      Map<byte[], Map<byte[], byte[]>> changes = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+      List<Map<byte[], Long>> results = new ArrayList<>(pending.size());
+      for (LevelDBRowStripes.PendingIncrement p : pending) {
+        NavigableMap<byte[], byte[]> rowValues = values.get(p.getRow());
+        Map<byte[], Long> result;
+        try {
+          result = getResultMap(p.getRow(), rowValues, p.getIncrements());
+        } catch (NumberFormatException e) {
+          // Only fails this increment
+          results.add(null);
+          p.fail(e);
+          continue;
+        }
+        Map<byte[], byte[]> replacing = toBytesMap(result);
+        rowValues.putAll(replacing);
+        Map<byte[], byte[]> rowChanges = changes.get(p.getRow());
+        if (rowChanges == null) {
+          changes.put(p.getRow(), replacing);
+        } else {
+          rowChanges.putAll(replacing);
+        }
+        results.add(result);
+      }
 
-  public synchronized void increment(NavigableMap<byte[], NavigableMap<byte[], Long>> updates) throws IOException {
-    Map<byte[], Map<byte[], byte[]>> resultMap = Maps.newHashMap();
-    for (NavigableMap.Entry<byte[], NavigableMap<byte[], Long>> row : updates.entrySet()) {
-      NavigableMap<byte[], Long> increments = row.getValue();
-      Map<byte[], byte[]> replacing = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
-      Map<byte[], Long> result = getResultMap(row.getKey(), increments);
-      for (Map.Entry<byte[], Long> entry : result.entrySet()) {
-        replacing.put(entry.getKey(), Bytes.toBytes(entry.getValue()));
+      if (!changes.isEmpty()) {
+        persist(changes, System.currentTimeMillis());
       }
-      resultMap.put(row.getKey(), replacing);
+      for (int i = 0; i < pending.size(); i++) {
+        if (!pending.get(i).isDone()) {
+          pending.get(i).complete(results.get(i));
+        }
+      }
+    } catch (Exception e) {
+      for (LevelDBRowStripes.PendingIncrement p : pending) {
+        if (!p.isDone()) {
+          p.fail(e);
+        }
+      }
+    }
+  }
+
+  private static byte[][] toColumns(Set<byte[]> columns) {
+    return columns.toArray(new byte[columns.size()][]);
+  }
+
+  private static Map<byte[], byte[]> toBytesMap(Map<byte[], Long> values) {
+    Map<byte[], byte[]> result = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+    for (Map.Entry<byte[], Long> entry : values.entrySet()) {
+      result.put(entry.getKey(), Bytes.toBytes(entry.getValue()));
     }
-    persist(resultMap, System.currentTimeMillis());
+    return result;
   }
 
-  private Map<byte[], Long> getResultMap(byte[] row, Map<byte[], Long> increments) throws IOException {
-    NavigableMap<byte[], byte[]> existing =
-      getRow(row, increments.keySet().toArray(new byte[increments.size()][]), null, null, -1, null);
+  private static Map<byte[], Long> getResultMap(byte[] row, Map<byte[], byte[]> existing,
+                                                Map<byte[], Long> increments) {
     Map<byte[], Long> result = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
     for (Map.Entry<byte[], Long> increment : increments.entrySet()) {
       long existingValue = 0L;
@@ -445,6 +565,24 @@ public class LevelDBTableCore {
     }
   }
 
+  /**
+   * Deletes the given columns of multiple rows with a single {@link WriteBatch}.
+   *
+   * @param deletes map from each row key to the columns to delete in the row
+   */
+  public void deleteColumns(SortedMap<byte[], ? extends Collection<byte[]>> deletes) throws IOException {
+    DB db = getDB();
+    WriteBatch batch = db.createWriteBatch();
+    try (DBIterator iterator = db.iterator()) {
+      for (Map.Entry<byte[], ? extends Collection<byte[]>> row : deletes.entrySet()) {
+        for (byte[] column : row.getValue()) {
+          addToDeleteBatch(batch, iterator, row.getKey(), column);
+        }
+      }
+      db.write(batch);
+    }
+  }
+
   /**
    * Helper to add deletes to a batch.  The expected use case is for the caller to be iterating
    * through leveldb keys in sorted order, collecting key values to delete in batch.
@@ -60,6 +60,7 @@ public class LevelDBTableService {
   private WriteOptions writeOptions;
 
   private final ConcurrentMap<String, DB> tables = Maps.newConcurrentMap();
+  private final ConcurrentMap<String, LevelDBRowStripes> rowStripes = Maps.newConcurrentMap();
 
   /**
    * To avoid database locking issues make sure that the single LevelDBTableService instance
@@ -96,6 +97,7 @@ public class LevelDBTableService {
    */
   public void clearTables() {
     tables.clear();
+    rowStripes.clear();
   }
 
   public Collection<String> list() throws Exception {
@@ -170,6 +172,20 @@ public class LevelDBTableService {
     return db;
   }
 
+  /**
+   * Returns the {@link LevelDBRowStripes} of the given table, which is shared by all {@link LevelDBTableCore}
+   * of the table.
+   */
+  LevelDBRowStripes getRowStripes(String tableName) {
+    LevelDBRowStripes stripes = rowStripes.get(tableName);
+    if (stripes == null) {
+      stripes = new LevelDBRowStripes(LevelDBRowStripes.DEFAULT_STRIPES);
+      LevelDBRowStripes existing = rowStripes.putIfAbsent(tableName, stripes);
+      stripes = existing == null ? stripes : existing;
+    }
+    return stripes;
+  }
+
   public void ensureTableExists(String tableName) throws IOException {
     DB db = tables.get(tableName);
     if (db == null) {
@@ -224,6 +240,7 @@ public class LevelDBTableService {
     if (db != null) {
       db.close();
     }
+    rowStripes.remove(name);
     String dbPath = getDBPath(basePath, name);
     factory.destroy(new File(dbPath), new Options());
   }
@@ -35,6 +35,13 @@ public class FactCodec {
   private static final Logger LOG = LoggerFactory.getLogger(FactCodec.class);
   // current version
   private static final byte[] VERSION = new byte[] {0};
+  // prefix of the rows of the dimension value index, which sorts after all fact rows
+  private static final byte[] INDEX_PREFIX = new byte[] {1};
+  // in place of the prefix length, for the row that marks the index of an aggregation group as complete
+  private static final byte INDEX_MARKER = (byte) 0xff;
+  // first byte of the index columns
+  private static final byte INDEX_DIMENSION_COLUMN = 0;
+  private static final byte INDEX_MEASURE_COLUMN = 1;
 
   // encoding types
   private static final String TYPE_MEASURE_NAME = "measureName";
@@ -272,6 +279,103 @@ public class FactCodec {
     return timebase + leftover;
   }
 
+  /**
+   * Returns the common prefix of all fact rows of the aggregation group defined by the given dimension values.
+   */
+  public byte[] createAggGroupRowPrefix(List<DimensionValue> dimensionValues) {
+    byte[] prefix = new byte[VERSION.length + entityTable.getIdSize()];
+    writeEncodedAggGroup(dimensionValues, prefix, writeVersion(prefix));
+    return prefix;
+  }
+
+  /**
+   * Builds row key of the dimension value index. An index row contains the values of the next dimension and the
+   * measure names of all facts in the time base that have the given values in the first dimensions.
+   *
+   * @param dimensionValues dimension values of the aggregation group
+   * @param prefixLength number of dimension values from the start of the given list to include in the key
+   * @param ts timestamp
+   * @return row key
+   */
+  public byte[] createIndexRowKey(List<DimensionValue> dimensionValues, int prefixLength, long ts) {
+    // Row key format:
+    // <index prefix><encoded agg group><prefix length><encoded dimension1 value>...
+    //                                                               <encoded dimensionK value><time base>.
+    // Time base goes last, so that the index rows of a dimension values prefix in a time range are consecutive.
+    int idSize = entityTable.getIdSize();
+    byte[] rowKey = new byte[INDEX_PREFIX.length + (prefixLength + 1) * idSize + 1 + Bytes.SIZEOF_INT];
+    System.arraycopy(INDEX_PREFIX, 0, rowKey, 0, INDEX_PREFIX.length);
+    int offset = writeEncodedAggGroup(dimensionValues, rowKey, INDEX_PREFIX.length);
+    rowKey[offset++] = (byte) prefixLength;
+    for (int i = 0; i < prefixLength; i++) {
+      DimensionValue dimensionValue = dimensionValues.get(i);
+      offset = writeEncoded(dimensionValue.getName(), dimensionValue.getValue(), rowKey, offset);
+    }
+    Bytes.putInt(rowKey, offset, getTimeBase(roundToResolution(ts)));
+    return rowKey;
+  }
+
+  /**
+   * Builds the key of the row that marks the index of the aggregation group as complete.
+   */
+  public byte[] createIndexMarkerRowKey(List<DimensionValue> dimensionValues) {
+    byte[] rowKey = new byte[INDEX_PREFIX.length + entityTable.getIdSize() + 1];
+    System.arraycopy(INDEX_PREFIX, 0, rowKey, 0, INDEX_PREFIX.length);
+    int offset = writeEncodedAggGroup(dimensionValues, rowKey, INDEX_PREFIX.length);
+    rowKey[offset] = INDEX_MARKER;
+    return rowKey;
+  }
+
+  /**
+   * Builds the index column for the value of the dimension at the given position of the aggregation group.
+   */
+  public byte[] createIndexDimensionColumn(int index, DimensionValue dimensionValue) {
+    byte[] column = new byte[2 + entityTable.getIdSize()];
+    column[0] = INDEX_DIMENSION_COLUMN;
+    column[1] = (byte) index;
+    writeEncoded(dimensionValue.getName(), dimensionValue.getValue(), column, 2);
+    return column;
+  }
+
+  /**
+   * Builds the index column for the given measure name.
+   */
+  public byte[] createIndexMeasureColumn(String measureName) {
+    byte[] column = new byte[1 + entityTable.getIdSize()];
+    column[0] = INDEX_MEASURE_COLUMN;
+    writeEncoded(TYPE_MEASURE_NAME, measureName, column, 1);
+    return column;
+  }
+
+  /**
+   * Decodes the dimension value of an index column.
+   *
+   * @param dimensionNames dimension names of the aggregation group
+   * @param column index column
+   * @return the dimension value, or {@code null} if the column is not a dimension value column
+   */
+  @Nullable
+  public DimensionValue getIndexedDimensionValue(List<String> dimensionNames, byte[] column) {
+    if (column[0] != INDEX_DIMENSION_COLUMN) {
+      return null;
+    }
+    String dimensionName = dimensionNames.get(column[1] & 0xff);
+    return new DimensionValue(dimensionName, entityTable.getName(readEncoded(column, 2), dimensionName));
+  }
+
+  /**
+   * Decodes the measure name of an index column.
+   *
+   * @return the measure name, or {@code null} if the column is not a measure name column
+   */
+  @Nullable
+  public String getIndexedMeasureName(byte[] column) {
+    if (column[0] != INDEX_MEASURE_COLUMN) {
+      return null;
+    }
+    return entityTable.getName(readEncoded(column, 1), TYPE_MEASURE_NAME);
+  }
+
   static byte[][] getSplits(int aggGroupsCount) {
     // Row key format:
     // <version><encoded agg group><time base>...
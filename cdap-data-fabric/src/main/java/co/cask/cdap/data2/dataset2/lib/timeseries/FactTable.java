@@ -27,6 +27,8 @@ import co.cask.cdap.data2.dataset2.lib.table.FuzzyRowFilter;
 import co.cask.cdap.data2.dataset2.lib.table.MetricsTable;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -36,16 +38,20 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 /**
@@ -61,6 +67,15 @@ public final class FactTable implements Closeable {
   private static final int MAX_RECORDS_TO_SCAN_DURING_SEARCH = 10 * 1000 * 1000;
   private static final int MAX_SCANS_DURING_SEARCH = 10 * 1000;
 
+  // number of fact rows remembered as indexed, to avoid rewriting the same index cells on every add
+  private static final int MAX_INDEXED_ROWS_CACHE_SIZE = 100 * 1000;
+  private static final long INDEXED_ROWS_CACHE_EXPIRE_MINUTES = 10;
+  // number of fact rows to index in one batch when building the index from the existing facts
+  private static final int INDEX_BUILD_BATCH_SIZE = 1000;
+  // number of rows to delete in one batch
+  private static final int DELETE_BATCH_SIZE = 1000;
+  private static final byte[] INDEX_MARKER_COLUMN = Bytes.toBytes("built");
+
   private static final Function<byte[], Long> BYTES_TO_LONG = new Function<byte[], Long>() {
     @Override
     public Long apply(byte[] input) {
@@ -85,6 +100,15 @@ public final class FactTable implements Closeable {
 
   private final String putCountMetric;
   private final String incrementCountMetric;
+  private final String searchIndexCountMetric;
+  private final String searchScanCountMetric;
+  private final String deleteCountMetric;
+  private final String deleteBytesMetric;
+
+  // Fact row keys for which the dimension value index is known to be written
+  private final Cache<ByteBuffer, Boolean> indexedRows;
+  // Marker row keys of the aggregation groups for which the dimension value index is known to be complete
+  private final Set<ByteBuffer> indexedAggGroups;
 
   @Nullable
   private MetricsCollector metrics;
@@ -112,6 +136,15 @@ public final class FactTable implements Closeable {
     this.rollTime = rollTime;
     this.putCountMetric = "factTable." + resolution + ".put.count";
     this.incrementCountMetric = "factTable." + resolution + ".increment.count";
+    this.searchIndexCountMetric = "factTable." + resolution + ".search.index.count";
+    this.searchScanCountMetric = "factTable." + resolution + ".search.scan.count";
+    this.deleteCountMetric = "factTable." + resolution + ".delete.count";
+    this.deleteBytesMetric = "factTable." + resolution + ".delete.bytes";
+    this.indexedRows = CacheBuilder.newBuilder()
+      .maximumSize(MAX_INDEXED_ROWS_CACHE_SIZE)
+      .expireAfterWrite(INDEXED_ROWS_CACHE_EXPIRE_MINUTES, TimeUnit.MINUTES)
+      .build();
+    this.indexedAggGroups = Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
   }
 
   public void setMetricsCollector(MetricsCollector metrics) {
@@ -122,11 +155,20 @@ public final class FactTable implements Closeable {
     // Simply collecting all rows/cols/values that need to be put to the underlying table.
     NavigableMap<byte[], NavigableMap<byte[], byte[]>> gaugesTable = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
     NavigableMap<byte[], NavigableMap<byte[], byte[]>> incrementsTable = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+    NavigableMap<byte[], NavigableMap<byte[], Long>> indexTable = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+    List<ByteBuffer> newIndexedRows = Lists.newArrayList();
     for (Fact fact : facts) {
       for (Measurement measurement : fact.getMeasurements()) {
         byte[] rowKey = codec.createRowKey(fact.getDimensionValues(), measurement.getName(), fact.getTimestamp());
         byte[] column = codec.createColumn(fact.getTimestamp());
 
+        // Index cells only change when a new row is started, which happens once per time base for every series
+        ByteBuffer indexedRow = ByteBuffer.wrap(rowKey);
+        if (indexedRows.getIfPresent(indexedRow) == null) {
+          addToIndex(indexTable, fact.getDimensionValues(), measurement.getName(), fact.getTimestamp());
+          newIndexedRows.add(indexedRow);
+        }
+
         if (MeasureType.COUNTER == measurement.getType()) {
           inc(incrementsTable, rowKey, column, measurement.getValue());
         } else {
@@ -144,6 +186,12 @@ public final class FactTable implements Closeable {
     // todo: replace with single call, to be able to optimize rpcs in underlying table
     timeSeriesTable.put(convertedGaugesTable);
     timeSeriesTable.increment(convertedIncrementsTable);
+    if (!indexTable.isEmpty()) {
+      timeSeriesTable.put(indexTable);
+      for (ByteBuffer indexedRow : newIndexedRows) {
+        indexedRows.put(indexedRow, Boolean.TRUE);
+      }
+    }
     if (metrics != null) {
       metrics.increment(putCountMetric, convertedGaugesTable.size());
       metrics.increment(incrementCountMetric, convertedIncrementsTable.size());
@@ -167,6 +215,34 @@ public final class FactTable implements Closeable {
     return new FactScanner(getScanner(scan), codec, scan.getStartTs(), scan.getEndTs(), scan.getMeasureNames());
   }
 
+  /**
+   * Splits the given scan into scans of consecutive time ranges that can be executed concurrently. The time ranges
+   * are aligned with the time base of the rows, so that every row is read by exactly one of the scans.
+   *
+   * @param scan the scan to split
+   * @param maxSplits maximum number of scans to return
+   * @return list of scans, ordered by time range
+   */
+  public List<FactScan> splitScan(FactScan scan, int maxSplits) {
+    long firstTimeBase = scan.getStartTs() / rollTime * rollTime;
+    long timeBases = (scan.getEndTs() / rollTime * rollTime - firstTimeBase) / rollTime + 1;
+    int splits = (int) Math.min(maxSplits, timeBases);
+    if (splits <= 1) {
+      return ImmutableList.of(scan);
+    }
+
+    long splitInterval = (timeBases + splits - 1) / splits * rollTime;
+    List<FactScan> result = new ArrayList<>(splits);
+    long splitStart = scan.getStartTs();
+    long splitEnd = firstTimeBase - 1;
+    while (splitEnd < scan.getEndTs()) {
+      splitEnd = Math.min(splitEnd + splitInterval, scan.getEndTs());
+      result.add(new FactScan(splitStart, splitEnd, scan.getMeasureNames(), scan.getDimensionValues()));
+      splitStart = splitEnd + 1;
+    }
+    return result;
+  }
+
   private List<String> getSortedMeasures(Collection<String> measures) {
     Map<String, Long> measureToEntityMap = new HashMap<>();
     List<String> measureNames = new ArrayList<>();
@@ -217,15 +293,22 @@ public final class FactTable implements Closeable {
   /**
    * Delete entries in fact table.
    * @param scan specifies deletion criteria
+   * @return number of values deleted
    */
-  public void delete(FactScan scan) {
+  public long delete(FactScan scan) {
+    long deletedValues = 0;
+    long deletedBytes = 0;
+    NavigableMap<byte[], List<byte[]>> deletes = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+    // Index cells of the deleted facts, which may not be valid anymore
+    NavigableMap<byte[], NavigableMap<byte[], Long>> deletedIndex = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
     try (Scanner scanner = getScanner(scan)) {
       Row row;
       while ((row = scanner.next()) != null) {
         List<byte[]> columns = Lists.newArrayList();
 
         boolean exhausted = false;
-        for (byte[] column : row.getColumns().keySet()) {
+        for (Map.Entry<byte[], byte[]> cell : row.getColumns().entrySet()) {
+          byte[] column = cell.getKey();
           long ts = codec.getTimestamp(row.getRow(), column);
           if (ts < scan.getStartTs()) {
             continue;
@@ -237,22 +320,69 @@ public final class FactTable implements Closeable {
           }
 
           columns.add(column);
+          deletedBytes += row.getRow().length + column.length + cell.getValue().length;
         }
 
-        // todo: do deletes efficiently, in batches, not one-by-one
-        timeSeriesTable.delete(row.getRow(), columns.toArray(new byte[columns.size()][]));
+        if (!columns.isEmpty()) {
+          byte[] rowKey = row.getRow();
+          deletes.put(rowKey, columns);
+          deletedValues += columns.size();
+          addToIndex(deletedIndex, codec.getDimensionValues(rowKey), codec.getMeasureName(rowKey),
+                     codec.getTimestamp(rowKey, codec.createColumn(0)));
+          indexedRows.invalidate(ByteBuffer.wrap(rowKey));
+        }
+        if (deletes.size() >= DELETE_BATCH_SIZE) {
+          timeSeriesTable.delete(deletes);
+          deletes.clear();
+        }
 
         if (exhausted) {
           break;
         }
       }
     }
+    if (!deletes.isEmpty()) {
+      timeSeriesTable.delete(deletes);
+    }
+
+    if (!deletedIndex.isEmpty()) {
+      // Remove the index cells of the deleted facts, then restore those that are still valid for the facts left in
+      // the same time bases
+      NavigableMap<byte[], Collection<byte[]>> indexDeletes = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+      for (Map.Entry<byte[], NavigableMap<byte[], Long>> indexRow : deletedIndex.entrySet()) {
+        indexDeletes.put(indexRow.getKey(), indexRow.getValue().keySet());
+        if (indexDeletes.size() >= DELETE_BATCH_SIZE) {
+          timeSeriesTable.delete(indexDeletes);
+          indexDeletes.clear();
+        }
+      }
+      if (!indexDeletes.isEmpty()) {
+        timeSeriesTable.delete(indexDeletes);
+      }
+
+      List<DimensionValue> aggDimensions = Lists.newArrayList();
+      for (DimensionValue dimensionValue : scan.getDimensionValues()) {
+        aggDimensions.add(new DimensionValue(dimensionValue.getName(), null));
+      }
+      indexFacts(aggDimensions, scan.getStartTs(), scan.getEndTs(), deletedIndex);
+    }
+
+    if (metrics != null) {
+      metrics.increment(deleteCountMetric, deletedValues);
+      metrics.increment(deleteBytesMetric, deletedBytes);
+    }
+    return deletedValues;
   }
 
   /**
    * Searches for first non-null valued dimensions in records that contain given list of dimensions and match given
    * dimension values in given time range. Returned dimension values are those that are not defined in given
    * dimension values.
+   * <p>
+   * The time range is matched at the granularity of the row time base ({@code rollTime} seconds), both when the
+   * search is answered by the dimension value index and when it scans the facts: a dimension value is returned if it
+   * has a fact in a time base that overlaps with the time range, even if that fact's timestamp is outside the range.
+   * </p>
    * @param allDimensionNames list of all dimension names to be present in the record
    * @param dimensionSlice dimension values to filter by, {@code null} means any non-null value.
    * @param startTs start of the time range, in seconds
@@ -292,6 +422,20 @@ public final class FactTable implements Closeable {
       return Collections.emptySet();
     }
 
+    if (isIndexed(allDimensions, dimensionSlice)) {
+      Set<DimensionValue> result = Sets.newHashSet();
+      for (byte[] column : scanIndex(allDimensions, dimensionSlice.size(), startTs, endTs)) {
+        DimensionValue dimensionValue = codec.getIndexedDimensionValue(allDimensionNames, column);
+        if (dimensionValue != null) {
+          result.add(dimensionValue);
+        }
+      }
+      return result;
+    }
+    if (metrics != null) {
+      metrics.increment(searchScanCountMetric, 1);
+    }
+
     Set<DimensionValue> result = Sets.newHashSet();
     int scans = 0;
     int scannedRecords = 0;
@@ -365,6 +509,11 @@ public final class FactTable implements Closeable {
 
   /**
    * Finds all measure names of the facts that match given {@link DimensionValue}s and time range.
+   * <p>
+   * As with {@link #findSingleDimensionValue}, the time range is matched at the granularity of the row time base, so
+   * measure names of facts in the first and last time bases of the range are returned even if their timestamps are
+   * outside the range.
+   * </p>
    * @param allDimensionNames list of all dimension names to be present in the fact record
    * @param dimensionSlice dimension values to filter by, {@code null} means any non-null value.
    * @param startTs start timestamp, in sec
@@ -380,6 +529,20 @@ public final class FactTable implements Closeable {
       allDimensions.add(new DimensionValue(dimensionName, dimensionSlice.get(dimensionName)));
     }
 
+    if (isIndexed(allDimensions, dimensionSlice)) {
+      Set<String> result = Sets.newHashSet();
+      for (byte[] column : scanIndex(allDimensions, dimensionSlice.size(), startTs, endTs)) {
+        String measureName = codec.getIndexedMeasureName(column);
+        if (measureName != null) {
+          result.add(measureName);
+        }
+      }
+      return result;
+    }
+    if (metrics != null) {
+      metrics.increment(searchScanCountMetric, 1);
+    }
+
     byte[] startRow = codec.createStartRowKey(allDimensions, null, startTs, false);
     byte[] endRow = codec.createEndRowKey(allDimensions, null, endTs, false);
     endRow = Bytes.stopKeyForPrefix(endRow);
@@ -425,6 +588,168 @@ public final class FactTable implements Closeable {
     return FactCodec.getSplits(aggGroupsCount);
   }
 
+  /**
+   * Adds the dimension value index cells of a fact to the given table. For every prefix of the dimensions that has
+   * non-null values, the index row of the prefix gets the first non-null value after the prefix and the measure name.
+   */
+  private void addToIndex(NavigableMap<byte[], NavigableMap<byte[], Long>> indexTable,
+                          List<DimensionValue> dimensionValues, String measureName, long ts) {
+    byte[] measureColumn = codec.createIndexMeasureColumn(measureName);
+    for (int prefixLength = 0; prefixLength <= dimensionValues.size(); prefixLength++) {
+      if (prefixLength > 0 && dimensionValues.get(prefixLength - 1).getValue() == null) {
+        break;
+      }
+      byte[] rowKey = codec.createIndexRowKey(dimensionValues, prefixLength, ts);
+      setIndexCell(indexTable, rowKey, measureColumn);
+      for (int i = prefixLength; i < dimensionValues.size(); i++) {
+        if (dimensionValues.get(i).getValue() != null) {
+          setIndexCell(indexTable, rowKey, codec.createIndexDimensionColumn(i, dimensionValues.get(i)));
+          break;
+        }
+      }
+    }
+  }
+
+  private static void setIndexCell(NavigableMap<byte[], NavigableMap<byte[], Long>> indexTable,
+                                   byte[] rowKey, byte[] column) {
+    NavigableMap<byte[], Long> rowMap = indexTable.get(rowKey);
+    if (rowMap == null) {
+      rowMap = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+      indexTable.put(rowKey, rowMap);
+    }
+    rowMap.put(column, 1L);
+  }
+
+  /**
+   * Returns {@code true} if the search for the given dimension slice can be answered by the dimension value index,
+   * which is the case if the index of the aggregation group is built and the slice has non-null values for the first
+   * dimensions of the aggregation group only.
+   */
+  private boolean isIndexed(List<DimensionValue> allDimensions, Map<String, String> dimensionSlice) {
+    if (dimensionSlice.size() > allDimensions.size()) {
+      return false;
+    }
+    for (int i = 0; i < dimensionSlice.size(); i++) {
+      if (dimensionSlice.get(allDimensions.get(i).getName()) == null) {
+        return false;
+      }
+    }
+    return isIndexBuilt(allDimensions);
+  }
+
+  /**
+   * Returns {@code true} if the dimension value index of the aggregation group is built.
+   */
+  private boolean isIndexBuilt(List<DimensionValue> dimensionValues) {
+    byte[] markerRowKey = codec.createIndexMarkerRowKey(dimensionValues);
+    ByteBuffer aggGroup = ByteBuffer.wrap(markerRowKey);
+    if (indexedAggGroups.contains(aggGroup)) {
+      return true;
+    }
+    if (timeSeriesTable.get(markerRowKey, INDEX_MARKER_COLUMN) == null) {
+      return false;
+    }
+    indexedAggGroups.add(aggGroup);
+    return true;
+  }
+
+  /**
+   * Returns all the index columns of the given dimension values prefix in the time bases that overlap with the given
+   * time range. Index rows are written per time base, hence the columns of the first and last time bases may come
+   * from facts outside the time range.
+   */
+  private Set<byte[]> scanIndex(List<DimensionValue> dimensionValues, int prefixLength, long startTs, long endTs) {
+    if (metrics != null) {
+      metrics.increment(searchIndexCountMetric, 1);
+    }
+
+    byte[] startRow = codec.createIndexRowKey(dimensionValues, prefixLength, startTs);
+    byte[] endRow = Bytes.stopKeyForPrefix(codec.createIndexRowKey(dimensionValues, prefixLength, endTs));
+    Set<byte[]> columns = Sets.newTreeSet(Bytes.BYTES_COMPARATOR);
+    try (Scanner scanner = timeSeriesTable.scan(startRow, endRow, null)) {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        columns.addAll(row.getColumns().keySet());
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Builds the dimension value index of the aggregation group from the existing facts, unless it is already built.
+   * Facts written before the index was introduced are only indexed this way, and searches in the aggregation group
+   * scan the facts until the index is built. Since it scans all facts of the aggregation group, this should not be
+   * called on the query path.
+   *
+   * @param dimensionNames dimension names of the aggregation group
+   */
+  public void buildIndex(List<String> dimensionNames) {
+    List<DimensionValue> aggDimensions = Lists.newArrayList();
+    for (String dimensionName : dimensionNames) {
+      aggDimensions.add(new DimensionValue(dimensionName, null));
+    }
+    if (isIndexBuilt(aggDimensions)) {
+      return;
+    }
+
+    LOG.debug("Building dimension value index of aggregation group {} with resolution {}", dimensionNames, resolution);
+    indexFacts(aggDimensions, 0, Integer.MAX_VALUE, null);
+
+    byte[] markerRowKey = codec.createIndexMarkerRowKey(aggDimensions);
+    NavigableMap<byte[], NavigableMap<byte[], Long>> marker = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+    setIndexCell(marker, markerRowKey, INDEX_MARKER_COLUMN);
+    timeSeriesTable.put(marker);
+    indexedAggGroups.add(ByteBuffer.wrap(markerRowKey));
+  }
+
+  /**
+   * Writes the dimension value index of the facts of the aggregation group in the time bases of the given time range.
+   *
+   * @param cells if not {@code null}, only the index cells contained in it are written
+   */
+  private void indexFacts(List<DimensionValue> aggDimensions, long startTs, long endTs,
+                          @Nullable NavigableMap<byte[], NavigableMap<byte[], Long>> cells) {
+    byte[] startRow = codec.createStartRowKey(aggDimensions, null, startTs, false);
+    byte[] endRow = Bytes.stopKeyForPrefix(codec.createEndRowKey(aggDimensions, null, endTs, false));
+    NavigableMap<byte[], NavigableMap<byte[], Long>> indexTable = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+    int rows = 0;
+    try (Scanner scanner = timeSeriesTable.scan(startRow, endRow, null)) {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        byte[] rowKey = row.getRow();
+        long timeBase = codec.getTimestamp(rowKey, codec.createColumn(0));
+        addToIndex(indexTable, codec.getDimensionValues(rowKey), codec.getMeasureName(rowKey), timeBase);
+        if (++rows % INDEX_BUILD_BATCH_SIZE == 0) {
+          putIndex(indexTable, cells);
+          indexTable.clear();
+        }
+      }
+    }
+    putIndex(indexTable, cells);
+  }
+
+  private void putIndex(NavigableMap<byte[], NavigableMap<byte[], Long>> indexTable,
+                        @Nullable NavigableMap<byte[], NavigableMap<byte[], Long>> cells) {
+    if (cells != null) {
+      Iterator<Map.Entry<byte[], NavigableMap<byte[], Long>>> iterator = indexTable.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<byte[], NavigableMap<byte[], Long>> indexRow = iterator.next();
+        NavigableMap<byte[], Long> rowCells = cells.get(indexRow.getKey());
+        if (rowCells == null) {
+          iterator.remove();
+        } else {
+          indexRow.getValue().keySet().retainAll(rowCells.keySet());
+          if (indexRow.getValue().isEmpty()) {
+            iterator.remove();
+          }
+        }
+      }
+    }
+    if (!indexTable.isEmpty()) {
+      timeSeriesTable.put(indexTable);
+    }
+  }
+
   private FuzzyRowFilter createFuzzyRowFilter(FactScan scan, List<String> measureNames) {
     List<ImmutablePair<byte[], byte[]>> fuzzyPairsList = new ArrayList<>();
     for (String measureName : measureNames) {
@@ -202,6 +202,13 @@ public abstract class AbstractQueueConsumer implements QueueConsumer, Transactio
     return true;
   }
 
+  /**
+   * Returns {@code true} if there are entries fetched by previous scans that are not yet dequeued.
+   */
+  protected boolean hasCachedEntries() {
+    return !entryCache.isEmpty();
+  }
+
   /**
    * Called when the start row is updated.
    */
@@ -18,35 +18,65 @@ package co.cask.cdap.data2.transaction.queue.hbase;
 import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.common.conf.CConfiguration;
 import co.cask.cdap.common.queue.QueueName;
+import co.cask.cdap.common.utils.ImmutablePair;
 import co.cask.cdap.data2.queue.ConsumerConfig;
 import co.cask.cdap.data2.queue.DequeueResult;
 import co.cask.cdap.data2.transaction.queue.AbstractQueueConsumer;
+import co.cask.cdap.data2.transaction.queue.QueueConstants;
 import co.cask.cdap.data2.transaction.queue.QueueEntryRow;
 import co.cask.cdap.data2.transaction.queue.QueueScanner;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Threads;
 import org.apache.tephra.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 /**
  * Queue consumer for HBase.
+ *
+ * If {@link QueueConstants.ConfigKeys#DEQUEUE_PREFETCH} is enabled, after each committed transaction the consumer
+ * scans for the next batch of queue entries in a background thread, using the transaction that just committed.
+ * The next dequeue only uses the prefetched rows that are below the smallest write pointer which was in progress
+ * for the prefetch transaction but is visible to the current one; rows after that are scanned with the current
+ * transaction. Since the {@link HTable} is not thread safe, a pending prefetch is always waited for before the
+ * table is used by the consumer thread, and discarded whenever the consumer changes entry states.
  */
 abstract class HBaseQueueConsumer extends AbstractQueueConsumer {
 
+  private static final Logger LOG = LoggerFactory.getLogger(HBaseQueueConsumer.class);
+
   private final HTable hTable;
   private final HBaseConsumerState state;
   private final HBaseConsumerStateStore stateStore;
   private final HBaseQueueStrategy queueStrategy;
+  private final byte[] queueRowPrefix;
+  private final ExecutorService prefetchExecutor;
+  private Future<PrefetchedRows> prefetch;
+  private byte[] lastStartRow;
+  private int lastNumRows;
   private boolean closed;
   private boolean canConsume;
   private boolean completed;
@@ -68,6 +98,9 @@ abstract class HBaseQueueConsumer extends AbstractQueueConsumer {
     this.state = consumerState;
     this.stateStore = stateStore;
     this.queueStrategy = queueStrategy;
+    this.queueRowPrefix = QueueEntryRow.getQueueRowPrefix(queueName);
+    this.prefetchExecutor = cConf.getBoolean(QueueConstants.ConfigKeys.DEQUEUE_PREFETCH)
+      ? createPrefetchExecutor() : null;
     this.canConsume = false;
   }
 
@@ -87,6 +120,7 @@ abstract class HBaseQueueConsumer extends AbstractQueueConsumer {
 
   @Override
   protected boolean claimEntry(byte[] rowKey, byte[] claimedStateValue) throws IOException {
+    discardPrefetch();
     Put put = new Put(queueStrategy.getActualRowKey(getConfig(), rowKey));
     put.add(QueueEntryRow.COLUMN_FAMILY, stateColumnName, claimedStateValue);
     return hTable.checkAndPut(put.getRow(), QueueEntryRow.COLUMN_FAMILY,
@@ -98,6 +132,7 @@ abstract class HBaseQueueConsumer extends AbstractQueueConsumer {
     if (rowKeys.isEmpty()) {
       return;
     }
+    discardPrefetch();
     List<Put> puts = Lists.newArrayListWithCapacity(rowKeys.size());
     for (byte[] rowKey : rowKeys) {
       Put put = new Put(queueStrategy.getActualRowKey(getConfig(), rowKey));
@@ -113,6 +148,7 @@ abstract class HBaseQueueConsumer extends AbstractQueueConsumer {
     if (rowKeys.isEmpty()) {
       return;
     }
+    discardPrefetch();
     List<Row> ops = Lists.newArrayListWithCapacity(rowKeys.size());
     for (byte[] rowKey : rowKeys) {
       Delete delete = new Delete(queueStrategy.getActualRowKey(getConfig(), rowKey));
@@ -134,11 +170,13 @@ abstract class HBaseQueueConsumer extends AbstractQueueConsumer {
       }
     }
 
-    Map<String, byte[]> attributes = DequeueScanAttributes.addAttribute(transaction,
-                                     DequeueScanAttributes.addAttribute(getConfig(), new HashMap<String, byte[]>()));
-    Scan scan = createScan(startRow, getScanStopRow(stopRow), numRows, attributes);
+    // Remember where the scan starts. The start row is updated in place by the caller, hence the copy.
+    lastStartRow = Arrays.copyOf(startRow, startRow.length);
+    lastNumRows = numRows;
 
-    return queueStrategy.createScanner(getConfig(), hTable, scan, numRows);
+    byte[] scanStopRow = getScanStopRow(stopRow);
+    QueueScanner scanner = getPrefetchedScanner(startRow, scanStopRow, numRows);
+    return scanner == null ? createScanner(startRow, scanStopRow, numRows, transaction) : scanner;
   }
 
   @Override
@@ -147,6 +185,10 @@ abstract class HBaseQueueConsumer extends AbstractQueueConsumer {
       return;
     }
     closed = true;
+    discardPrefetch();
+    if (prefetchExecutor != null) {
+      prefetchExecutor.shutdownNow();
+    }
     Closeables.closeQuietly(queueStrategy);
     Closeables.closeQuietly(stateStore);
     Closeables.closeQuietly(hTable);
@@ -161,6 +203,7 @@ abstract class HBaseQueueConsumer extends AbstractQueueConsumer {
 
   @Override
   public boolean rollbackTx() throws Exception {
+    discardPrefetch();
     boolean result = super.rollbackTx();
     return stateStore.rollbackTx() && result;
   }
@@ -175,6 +218,8 @@ abstract class HBaseQueueConsumer extends AbstractQueueConsumer {
     stateStore.postTxCommit();
     if (completed) {
       Closeables.closeQuietly(this);
+    } else {
+      startPrefetch();
     }
   }
 
@@ -196,4 +241,195 @@ abstract class HBaseQueueConsumer extends AbstractQueueConsumer {
     byte[] barrierEndRow = state.getNextBarrier();
     return barrierEndRow == null || Bytes.compareTo(stopRow, barrierEndRow) < 0 ? stopRow : barrierEndRow;
   }
+
+  private QueueScanner createScanner(byte[] startRow, byte[] stopRow,
+                                     int numRows, Transaction tx) throws IOException {
+    Map<String, byte[]> attributes = DequeueScanAttributes.addAttribute(tx,
+                                     DequeueScanAttributes.addAttribute(getConfig(), new HashMap<String, byte[]>()));
+    Scan scan = createScan(startRow, stopRow, numRows, attributes);
+
+    return queueStrategy.createScanner(getConfig(), hTable, scan, numRows);
+  }
+
+  /**
+   * Starts scanning for the next dequeue in the background, using the transaction that just committed.
+   */
+  private void startPrefetch() {
+    // No need to prefetch if the next dequeue can be served from the entries cached from the last scan.
+    if (prefetchExecutor == null || closed || !canConsume || lastStartRow == null || hasCachedEntries()) {
+      return;
+    }
+
+    final Transaction tx = transaction;
+    final byte[] startRow = lastStartRow;
+    final byte[] stopRow = getScanStopRow(QueueEntryRow.getStopRowForTransaction(queueRowPrefix, tx));
+    final int numRows = lastNumRows;
+
+    prefetch = prefetchExecutor.submit(new Callable<PrefetchedRows>() {
+      @Override
+      public PrefetchedRows call() throws Exception {
+        List<ImmutablePair<byte[], Map<byte[], byte[]>>> rows = Lists.newArrayListWithCapacity(numRows);
+        QueueScanner scanner = createScanner(startRow, stopRow, numRows, tx);
+        try {
+          ImmutablePair<byte[], Map<byte[], byte[]>> row = null;
+          while (rows.size() < numRows && (row = scanner.next()) != null) {
+            rows.add(row);
+          }
+          return new PrefetchedRows(tx, startRow, stopRow, rows, row == null);
+        } finally {
+          scanner.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits for the pending prefetch to complete and returns its result.
+   *
+   * @return the prefetched rows or {@code null} if there is no pending prefetch or if it failed
+   */
+  @Nullable
+  private PrefetchedRows takePrefetch() {
+    Future<PrefetchedRows> future = prefetch;
+    prefetch = null;
+    if (future == null) {
+      return null;
+    }
+    try {
+      return Uninterruptibles.getUninterruptibly(future);
+    } catch (ExecutionException e) {
+      LOG.debug("Failed to prefetch entries for queue {}", getQueueName(), e.getCause());
+      return null;
+    }
+  }
+
+  /**
+   * Discards the pending prefetch. It waits for the prefetch to complete, since the prefetch is using the HTable.
+   */
+  private void discardPrefetch() {
+    takePrefetch();
+  }
+
+  /**
+   * Returns a {@link QueueScanner} that serves rows from the pending prefetch, or {@code null} if the prefetched
+   * rows cannot be used for the current transaction.
+   */
+  @Nullable
+  private QueueScanner getPrefetchedScanner(byte[] startRow, byte[] stopRow, int numRows) {
+    PrefetchedRows prefetched = takePrefetch();
+    if (prefetched == null || Bytes.compareTo(startRow, prefetched.startRow) < 0) {
+      return null;
+    }
+
+    // The prefetch covers everything before its stop row if the scan was exhausted,
+    // otherwise everything before the last row it got.
+    List<ImmutablePair<byte[], Map<byte[], byte[]>>> rows = prefetched.rows;
+    byte[] endRow = prefetched.exhausted || rows.isEmpty()
+      ? prefetched.stopRow : rows.get(rows.size() - 1).getFirst();
+
+    // Entries written by transactions that were in progress for the prefetch, but are visible now, can be anywhere
+    // after the row of the smallest such write pointer. The in progress list is sorted.
+    Transaction prefetchTx = prefetched.tx;
+    for (long writePointer : prefetchTx.getInProgress()) {
+      if (writePointer > prefetchTx.getReadPointer() || writePointer > transaction.getReadPointer()) {
+        break;
+      }
+      if (!transaction.isExcluded(writePointer)) {
+        endRow = min(endRow, Bytes.add(queueRowPrefix, Bytes.toBytes(writePointer)));
+        break;
+      }
+    }
+    endRow = min(endRow, stopRow);
+
+    if (Bytes.compareTo(endRow, startRow) <= 0) {
+      return null;
+    }
+    return new PrefetchedQueueScanner(rows.iterator(), startRow, endRow, stopRow, numRows);
+  }
+
+  private byte[] min(byte[] row1, byte[] row2) {
+    return Bytes.compareTo(row1, row2) <= 0 ? row1 : row2;
+  }
+
+  private ExecutorService createPrefetchExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(),
+                                                         Threads.newDaemonThreadFactory("queue-consumer-prefetch"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Result of a prefetch scan.
+   */
+  private static final class PrefetchedRows {
+    private final Transaction tx;
+    private final byte[] startRow;
+    private final byte[] stopRow;
+    private final List<ImmutablePair<byte[], Map<byte[], byte[]>>> rows;
+    private final boolean exhausted;
+
+    PrefetchedRows(Transaction tx, byte[] startRow, byte[] stopRow,
+                   List<ImmutablePair<byte[], Map<byte[], byte[]>>> rows, boolean exhausted) {
+      this.tx = tx;
+      this.startRow = startRow;
+      this.stopRow = stopRow;
+      this.rows = rows;
+      this.exhausted = exhausted;
+    }
+  }
+
+  /**
+   * A {@link QueueScanner} that returns prefetched rows in the range of [startRow, endRow), followed by rows
+   * from a scan in the range of [endRow, stopRow) with the current transaction.
+   */
+  private final class PrefetchedQueueScanner implements QueueScanner {
+
+    private final Iterator<ImmutablePair<byte[], Map<byte[], byte[]>>> prefetched;
+    private final byte[] startRow;
+    private final byte[] endRow;
+    private final byte[] stopRow;
+    private final int numRows;
+    private boolean prefetchDone;
+    private QueueScanner scanner;
+
+    PrefetchedQueueScanner(Iterator<ImmutablePair<byte[], Map<byte[], byte[]>>> prefetched,
+                           byte[] startRow, byte[] endRow, byte[] stopRow, int numRows) {
+      this.prefetched = prefetched;
+      this.startRow = startRow;
+      this.endRow = endRow;
+      this.stopRow = stopRow;
+      this.numRows = numRows;
+    }
+
+    @Override
+    public ImmutablePair<byte[], Map<byte[], byte[]>> next() throws IOException {
+      while (!prefetchDone && prefetched.hasNext()) {
+        ImmutablePair<byte[], Map<byte[], byte[]>> row = prefetched.next();
+        if (Bytes.compareTo(row.getFirst(), startRow) < 0) {
+          continue;
+        }
+        if (Bytes.compareTo(row.getFirst(), endRow) < 0) {
+          return row;
+        }
+        prefetchDone = true;
+      }
+      prefetchDone = true;
+
+      if (scanner == null) {
+        if (Bytes.compareTo(endRow, stopRow) >= 0) {
+          return null;
+        }
+        scanner = createScanner(endRow, stopRow, numRows, transaction);
+      }
+      return scanner.next();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (scanner != null) {
+        scanner.close();
+      }
+    }
+  }
 }
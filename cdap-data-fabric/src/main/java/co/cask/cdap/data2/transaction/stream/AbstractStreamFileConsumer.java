@@ -94,6 +94,18 @@ import javax.annotation.concurrent.NotThreadSafe;
  *   state = ConsumerEntryState.getState(), either CLAIMED or PROCESSED
  * }</pre>
  *
+ * Consumers that don't need to claim each entry, which are all consumers except FIFO consumers with group size
+ * greater than one, write a single PROCESSED state per stream file for each transaction instead of one per entry.
+ * The row key has the offset of the last entry in the range and the state value has the range start appended:
+ *
+ * <pre>{@code
+ *   state_value = <write_pointer> <instance_id> <state> <start_offset> <group_size>
+ *   start_offset = 8 bytes offset of the first entry in the range
+ *   group_size = 4 bytes group size of the consumer who update this state.
+ * }</pre>
+ *
+ * The range covers all entries between the start and the row offset that the consumer accepts by its
+ * group size and instance id, which can be determined after the group size is changed.
  */
 @NotThreadSafe
 public abstract class AbstractStreamFileConsumer implements StreamConsumer {
@@ -103,6 +115,9 @@ public abstract class AbstractStreamFileConsumer implements StreamConsumer {
 
   protected static final int MAX_SCAN_ROWS = 1000;
 
+  // Length of a state value for a range of entries
+  private static final int RANGE_STATE_LENGTH = Longs.BYTES + Ints.BYTES + 1 + Longs.BYTES + Ints.BYTES;
+
   // Persist state at most once per second.
   private static final long STATE_PERSIST_MIN_INTERVAL = TimeUnit.SECONDS.toNanos(1);
 
@@ -146,6 +161,7 @@ public abstract class AbstractStreamFileConsumer implements StreamConsumer {
   private final StreamConsumerStateStore consumerStateStore;
   private final FileReader<StreamEventOffset, Iterable<StreamFileOffset>> reader;
   private final ReadFilter readFilter;
+  private final boolean rangeStates;
 
   // Map from row key prefix (row key without last eight bytes offset) to a sorted map of row key to state value
   // The rows are only needed for entries that are already in the state table when this consumer start.
@@ -158,6 +174,8 @@ public abstract class AbstractStreamFileConsumer implements StreamConsumer {
   private List<PollStreamEvent> polledEvents;
   private long nextPersistStateTime;
   private boolean committed;
+  private List<byte[]> committedRangeRows;
+  private boolean otherRangesCached;
   private boolean closed;
   private StreamConsumerState lastPersistedState;
 
@@ -187,6 +205,8 @@ public abstract class AbstractStreamFileConsumer implements StreamConsumer {
     this.consumerStateStore = consumerStateStore;
     this.reader = reader;
     this.readFilter = createReadFilter(consumerConfig, extraFilter);
+    this.rangeStates = consumerConfig.getDequeueStrategy() != DequeueStrategy.FIFO
+      || consumerConfig.getGroupSize() == 1;
 
     this.entryStates = Maps.newTreeMap(ROW_PREFIX_COMPARATOR);
     this.entryStatesScanCompleted = Sets.newTreeSet(ROW_PREFIX_COMPARATOR);
@@ -336,9 +356,21 @@ public abstract class AbstractStreamFileConsumer implements StreamConsumer {
       return true;
     }
 
-    // For each polled events, set the state column to PROCESSED
-    updateState(Iterables.transform(polledEvents, EVENT_ROW_KEY), polledEvents.size(),
-                encodeStateColumn(ConsumerEntryState.PROCESSED));
+    if (rangeStates) {
+      // For each stream file, set the state column of the last polled event to PROCESSED for the range of events
+      committedRangeRows = Lists.newArrayList();
+      for (Map.Entry<byte[], byte[]> range : getRanges(polledEvents).entrySet()) {
+        byte[] startRow = range.getKey();
+        byte[] endRow = range.getValue();
+        updateState(ImmutableList.of(endRow), 1,
+                    encodeRangeStateColumn(Bytes.toLong(startRow, startRow.length - Longs.BYTES)));
+        committedRangeRows.add(endRow);
+      }
+    } else {
+      // For each polled events, set the state column to PROCESSED
+      updateState(Iterables.transform(polledEvents, EVENT_ROW_KEY), polledEvents.size(),
+                  encodeStateColumn(ConsumerEntryState.PROCESSED));
+    }
 
     committed = true;
     return true;
@@ -390,6 +422,8 @@ public abstract class AbstractStreamFileConsumer implements StreamConsumer {
       // The transaction pointer used for the entry doesn't matter.
       if (consumerConfig.getDequeueStrategy() == DequeueStrategy.FIFO && consumerConfig.getGroupSize() > 1) {
         updateState(Iterables.transform(polledEvents, EVENT_ROW_KEY), polledEvents.size(), fifoState);
+      } else if (rangeStates) {
+        undoState(committedRangeRows, committedRangeRows.size());
       } else {
         undoState(Iterables.transform(polledEvents, EVENT_ROW_KEY), polledEvents.size());
       }
@@ -429,22 +463,48 @@ public abstract class AbstractStreamFileConsumer implements StreamConsumer {
       return ReadFilter.ALWAYS_ACCEPT;
     }
 
-    // For RoundRobin and Hash partition, the claim is done by matching hashCode to instance id.
-    // For Hash, to preserve existing behavior, everything route to instance 0.
-    // For RoundRobin, the idea is to scatter the events across consumers evenly. Since there is no way to known
-    // about the absolute starting point to do true round robin, we employ a good enough hash function on the
-    // file offset as a way to spread events across consumers
     final int instanceId = consumerConfig.getInstanceId();
 
     return new ReadFilter() {
       @Override
       public boolean acceptOffset(long offset) {
-        int hashValue = Math.abs(strategy == DequeueStrategy.HASH ? 0 : ROUND_ROBIN_HASHER.hashLong(offset).hashCode());
-        return instanceId == (hashValue % groupSize);
+        return isAccepted(strategy, groupSize, instanceId, offset);
       }
     };
   }
 
+  /**
+   * Returns whether the consumer instance of a group accepts the event at the given offset.
+   */
+  private static boolean isAccepted(DequeueStrategy strategy, int groupSize, int instanceId, long offset) {
+    if (groupSize == 1 || strategy == DequeueStrategy.FIFO) {
+      return true;
+    }
+
+    // For RoundRobin and Hash partition, the claim is done by matching hashCode to instance id.
+    // For Hash, to preserve existing behavior, everything route to instance 0.
+    // For RoundRobin, the idea is to scatter the events across consumers evenly. Since there is no way to known
+    // about the absolute starting point to do true round robin, we employ a good enough hash function on the
+    // file offset as a way to spread events across consumers
+    int hashValue = Math.abs(strategy == DequeueStrategy.HASH ? 0 : ROUND_ROBIN_HASHER.hashLong(offset).hashCode());
+    return instanceId == (hashValue % groupSize);
+  }
+
+  /**
+   * Returns the first and the last state row of the given events for each stream file. The events of each file
+   * are in offset order.
+   *
+   * @return a map from the first row to the last row, sorted by stream file
+   */
+  private SortedMap<byte[], byte[]> getRanges(List<PollStreamEvent> events) {
+    // Rows of the same file are equal by ROW_PREFIX_COMPARATOR, which keeps the first row as the key
+    SortedMap<byte[], byte[]> ranges = Maps.newTreeMap(ROW_PREFIX_COMPARATOR);
+    for (PollStreamEvent event : events) {
+      ranges.put(event.getStateRow(), event.getStateRow());
+    }
+    return ranges;
+  }
+
   private int getEvents(List<? extends StreamEventOffset> source,
                          List<? super PollStreamEvent> result,
                          int maxEvents, byte[] stateContent) throws IOException {
@@ -491,6 +551,48 @@ public abstract class AbstractStreamFileConsumer implements StreamConsumer {
     return stateContent;
   }
 
+  /**
+   * Encodes the value for the state column of a range of processed entries, written by the current transaction
+   * and consumer.
+   *
+   * @param startOffset offset of the first entry in the range
+   * @return The stateContent byte array
+   */
+  private byte[] encodeRangeStateColumn(long startOffset) {
+    byte[] stateContent = Arrays.copyOf(encodeStateColumn(ConsumerEntryState.PROCESSED), RANGE_STATE_LENGTH);
+    Bytes.putLong(stateContent, Longs.BYTES + Ints.BYTES + 1, startOffset);
+    Bytes.putInt(stateContent, Longs.BYTES + Ints.BYTES + 1 + Longs.BYTES, consumerConfig.getGroupSize());
+    return stateContent;
+  }
+
+  /**
+   * Returns whether the entry at the given row is covered by a cached range of processed entries.
+   */
+  private boolean isProcessedInRange(SortedMap<byte[], byte[]> rowStates, byte[] row) {
+    long offset = Bytes.toLong(row, row.length - Longs.BYTES);
+
+    // Range rows have the offset of the last entry in the range, hence only rows at or after the given row
+    // can cover it.
+    for (byte[] stateValue : rowStates.tailMap(row).values()) {
+      if (stateValue == null || stateValue.length < RANGE_STATE_LENGTH) {
+        continue;
+      }
+      long startOffset = Bytes.toLong(stateValue, Longs.BYTES + Ints.BYTES + 1);
+      int groupSize = Bytes.toInt(stateValue, Longs.BYTES + Ints.BYTES + 1 + Longs.BYTES);
+      int instanceId = QueueEntryRow.getStateInstanceId(stateValue);
+      if (startOffset <= offset
+        && isAccepted(consumerConfig.getDequeueStrategy(), groupSize, instanceId, offset)) {
+        return true;
+      }
+      // Ranges written with the current group size by this instance don't overlap. If only those are cached,
+      // the first range after the row is the only one that can cover it.
+      if (!otherRangesCached) {
+        return false;
+      }
+    }
+    return false;
+  }
+
   /**
    * Try to claim a stream event offset.
    *
@@ -504,6 +606,11 @@ public abstract class AbstractStreamFileConsumer implements StreamConsumer {
 
     SortedMap<byte[], byte[]> rowStates = getInitRowStates(row);
 
+    // See if the entry is in a range of processed entries
+    if (isProcessedInRange(rowStates, row)) {
+      return null;
+    }
+
     // See if the entry should be ignored. If it is in the rowStates with null value, then it should be ignored.
     byte[] rowState = rowStates.get(row);
     if (rowStates.containsKey(row) && rowState == null) {
@@ -587,6 +694,10 @@ public abstract class AbstractStreamFileConsumer implements StreamConsumer {
     long offset = Bytes.toLong(row, row.length - Longs.BYTES);
     long stateWritePointer = QueueEntryRow.getStateWritePointer(stateValue);
 
+    if (stateValue.length >= RANGE_STATE_LENGTH) {
+      return storeInitRangeState(row, stateValue, stateWritePointer, cache);
+    }
+
     // If the entry offset is not accepted by the read filter, this consumer won't see this entry in future read.
     // If it is written after the current transaction, it happens with the current consumer config.
     // In both cases, no need to cache
@@ -621,6 +732,35 @@ public abstract class AbstractStreamFileConsumer implements StreamConsumer {
     return false;
   }
 
+  /**
+   * Determines if need to cache the initial state of a range of processed entries.
+   *
+   * @see #storeInitState(byte[], byte[], Map)
+   */
+  private boolean storeInitRangeState(byte[] row, byte[] stateValue, long stateWritePointer,
+                                      Map<byte[], byte[]> cache) {
+    // Ranges written after the current transaction or not committed don't need to be skipped
+    if (stateWritePointer >= transaction.getWritePointer() || !transaction.isVisible(stateWritePointer)
+      || QueueEntryRow.getState(stateValue) != ConsumerEntryState.PROCESSED) {
+      return false;
+    }
+
+    // Ranges written by other instances with the same group size don't have entries of this instance.
+    // Ranges written with a different group size can have entries of this instance.
+    int groupSize = Bytes.toInt(stateValue, Longs.BYTES + Ints.BYTES + 1 + Longs.BYTES);
+    int instanceId = QueueEntryRow.getStateInstanceId(stateValue);
+    if (groupSize == consumerConfig.getGroupSize()) {
+      if (instanceId != consumerConfig.getInstanceId()) {
+        return false;
+      }
+    } else {
+      otherRangesCached = true;
+    }
+
+    cache.put(row, stateValue);
+    return true;
+  }
+
   /**
    * Scanner for scanning state table.
    */
@@ -22,6 +22,7 @@ import co.cask.cdap.data.file.FileReader;
 import co.cask.cdap.data.file.ReadFilter;
 import co.cask.cdap.data.file.filter.TTLReadFilter;
 import co.cask.cdap.data.stream.MultiLiveStreamFileReader;
+import co.cask.cdap.data.stream.SharedStreamFileReader;
 import co.cask.cdap.data.stream.StreamEventOffset;
 import co.cask.cdap.data.stream.StreamFileOffset;
 import co.cask.cdap.data.stream.StreamFileType;
@@ -37,19 +38,24 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
 import org.apache.twill.filesystem.Location;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.URI;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import javax.annotation.Nullable;
 
 /**
  * Abstract base class for implementing {@link StreamConsumerFactory} using
- * {@link MultiLiveStreamFileReader}.
+ * {@link MultiLiveStreamFileReader}. Consumers of the same stream generation share a
+ * {@link SharedStreamFileReader} unless it is disabled by setting
+ * {@link Constants.Stream#CONSUMER_SHARED_READER_BUFFER_SIZE} to {@code 0}.
  */
 public abstract class AbstractStreamFileConsumerFactory implements StreamConsumerFactory {
 
@@ -59,6 +65,9 @@ public abstract class AbstractStreamFileConsumerFactory implements StreamConsume
   private final StreamAdmin streamAdmin;
   private final StreamConsumerStateStoreFactory stateStoreFactory;
   private final String tablePrefix;
+  private final int sharedReaderBufferSize;
+  // Shared readers by stream generation location
+  private final Map<URI, SharedStreamFileReader> sharedReaders;
 
   protected AbstractStreamFileConsumerFactory(CConfiguration cConf, StreamAdmin streamAdmin,
                                               StreamConsumerStateStoreFactory stateStoreFactory) {
@@ -67,6 +76,8 @@ public abstract class AbstractStreamFileConsumerFactory implements StreamConsume
     this.stateStoreFactory = stateStoreFactory;
     this.tablePrefix = String.format("%s.%s", NamespaceId.SYSTEM.getEntityName(),
                                      QueueConstants.QueueType.STREAM.toString());
+    this.sharedReaderBufferSize = cConf.getInt(Constants.Stream.CONSUMER_SHARED_READER_BUFFER_SIZE);
+    this.sharedReaders = Maps.newHashMap();
   }
 
   /**
@@ -148,8 +159,8 @@ public abstract class AbstractStreamFileConsumerFactory implements StreamConsume
                         String.format("%s.%s.%s", tablePrefix, streamId.getEntityName(), namespace));
   }
 
-  private MultiLiveStreamFileReader createReader(final StreamConfig streamConfig,
-                                                 StreamConsumerState consumerState) throws IOException {
+  private FileReader<StreamEventOffset, Iterable<StreamFileOffset>> createReader(
+    final StreamConfig streamConfig, StreamConsumerState consumerState) throws IOException {
     Location streamLocation = streamConfig.getLocation();
     Preconditions.checkNotNull(streamLocation, "Stream location is null for %s", streamConfig.getStreamId());
 
@@ -173,9 +184,7 @@ public abstract class AbstractStreamFileConsumerFactory implements StreamConsume
       if (useStoredStates) {
         LOG.info("Create file reader with consumer state: {}", consumerState);
         // Has existing offsets, just resume from there.
-        MultiLiveStreamFileReader reader = new MultiLiveStreamFileReader(streamConfig, consumerState.getState());
-        reader.initialize();
-        return reader;
+        return createReader(streamConfig, streamLocation, consumerState.getState());
       }
     }
 
@@ -212,8 +221,45 @@ public abstract class AbstractStreamFileConsumerFactory implements StreamConsume
     LOG.info("Empty consumer state. Create file reader with file offsets: groupId={}, instanceId={} states={}",
              consumerState.getGroupId(), consumerState.getInstanceId(), fileOffsets);
 
-    MultiLiveStreamFileReader reader = new MultiLiveStreamFileReader(streamConfig, fileOffsets);
-    reader.initialize();
+    return createReader(streamConfig, streamLocation, fileOffsets);
+  }
+
+  /**
+   * Creates an initialized reader starting from the given offsets, shared with other consumers of the same stream
+   * generation if enabled.
+   */
+  private FileReader<StreamEventOffset, Iterable<StreamFileOffset>> createReader(
+    StreamConfig streamConfig, Location generationLocation,
+    Iterable<StreamFileOffset> offsets) throws IOException {
+
+    FileReader<StreamEventOffset, Iterable<StreamFileOffset>> reader;
+    if (sharedReaderBufferSize > 0) {
+      synchronized (sharedReaders) {
+        SharedStreamFileReader sharedReader = sharedReaders.get(generationLocation.toURI());
+        reader = sharedReader == null ? null : sharedReader.createReader(offsets);
+        if (reader == null) {
+          // Remove shared readers that are closed because all their consumers are closed
+          Iterator<SharedStreamFileReader> iterator = sharedReaders.values().iterator();
+          while (iterator.hasNext()) {
+            if (iterator.next().isClosed()) {
+              iterator.remove();
+            }
+          }
+          sharedReader = new SharedStreamFileReader(streamConfig, sharedReaderBufferSize);
+          sharedReaders.put(generationLocation.toURI(), sharedReader);
+          reader = sharedReader.createReader(offsets);
+        }
+      }
+    } else {
+      reader = new MultiLiveStreamFileReader(streamConfig, offsets);
+    }
+
+    try {
+      reader.initialize();
+    } catch (IOException e) {
+      Closeables.closeQuietly(reader);
+      throw e;
+    }
     return reader;
   }
 }
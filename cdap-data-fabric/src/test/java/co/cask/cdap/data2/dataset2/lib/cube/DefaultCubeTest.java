@@ -16,14 +16,34 @@
 
 package co.cask.cdap.data2.dataset2.lib.cube;
 
+import co.cask.cdap.api.dataset.lib.cube.AggregationFunction;
 import co.cask.cdap.api.dataset.lib.cube.Cube;
+import co.cask.cdap.api.dataset.lib.cube.CubeExploreQuery;
+import co.cask.cdap.api.dataset.lib.cube.DimensionValue;
+import co.cask.cdap.api.dataset.lib.cube.TimeSeries;
+import co.cask.cdap.api.dataset.lib.cube.TimeValue;
+import co.cask.cdap.api.metrics.MetricsCollector;
+import co.cask.cdap.common.utils.Tasks;
 import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryMetricsTable;
 import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTableService;
 import co.cask.cdap.data2.dataset2.lib.timeseries.EntityTable;
 import co.cask.cdap.data2.dataset2.lib.timeseries.FactTable;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Assert;
+import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 /**
  *
@@ -32,6 +52,221 @@ public class DefaultCubeTest extends AbstractCubeTest {
 
   @Override
   protected Cube getCube(final String name, int[] resolutions, Map<String, ? extends Aggregation> aggregations) {
+    return createCube(name, resolutions, aggregations, null, null);
+  }
+
+  @Test
+  public void testRollup() throws Exception {
+    Aggregation agg = new DefaultAggregation(ImmutableList.of("dim1", "dim2"), ImmutableList.of("dim1"));
+    Cube cube = getCube("rollupCube", new int[] {1, 60}, ImmutableMap.of("agg", agg));
+
+    writeInc(cube, "metric1", 10, 1, "1", "1");
+    writeInc(cube, "metric1", 70, 2, "1", "1");
+    writeInc(cube, "metric1", 130, 4, "1", "2");
+    writeInc(cube, "metric1", 200, 8, "1", "1");
+    writeInc(cube, "metric1", 250, 16, "1", "1");
+
+    // 120 sec resolution is rolled up from 60 sec resolution
+    verifyCountQuery(cube, 0, 239, 120, "metric1", AggregationFunction.SUM, ImmutableMap.of("dim1", "1"),
+                     ImmutableList.<String>of(),
+                     ImmutableList.of(new TimeSeries("metric1", new HashMap<String, String>(),
+                                                     timeValues(0, 3, 120, 12))));
+    verifyCountQuery(cube, 0, 239, 120, "metric1", AggregationFunction.SUM, ImmutableMap.of("dim1", "1"),
+                     ImmutableList.of("dim2"),
+                     ImmutableList.of(new TimeSeries("metric1", ImmutableMap.of("dim2", "1"),
+                                                     timeValues(0, 3, 120, 8)),
+                                      new TimeSeries("metric1", ImmutableMap.of("dim2", "2"),
+                                                     timeValues(120, 4))));
+    verifyCountQuery(cube, 0, 239, 120, "metric1", AggregationFunction.MAX, ImmutableMap.of("dim1", "1"),
+                     ImmutableList.of("dim2"),
+                     ImmutableList.of(new TimeSeries("metric1", ImmutableMap.of("dim2", "1"),
+                                                     timeValues(0, 2, 120, 8)),
+                                      new TimeSeries("metric1", ImmutableMap.of("dim2", "2"),
+                                                     timeValues(120, 4))));
+
+    // 5 sec resolution is rolled up from 1 sec resolution, and the bucket containing the end is included
+    verifyCountQuery(cube, 0, 71, 5, "metric1", AggregationFunction.SUM, ImmutableMap.of("dim1", "1"),
+                     ImmutableList.<String>of(),
+                     ImmutableList.of(new TimeSeries("metric1", new HashMap<String, String>(),
+                                                     timeValues(10, 1, 70, 2))));
+  }
+
+  @Test
+  public void testQueryCache() throws Exception {
+    Aggregation agg = new DefaultAggregation(ImmutableList.of("dim1", "dim2"), ImmutableList.of("dim1"));
+    final Map<String, Long> metrics = Maps.newHashMap();
+    DefaultCube cube = createCube("cachedCube", new int[] {60}, ImmutableMap.of("agg", agg),
+                                  new CubeQueryCache(1000, 0, 3600), null);
+    cube.setMetricsCollector(new MetricsCollector() {
+      @Override
+      public void increment(String metricName, long value) {
+        Long current = metrics.get(metricName);
+        metrics.put(metricName, current == null ? value : current + value);
+      }
+
+      @Override
+      public void gauge(String metricName, long value) {
+        metrics.put(metricName, value);
+      }
+    });
+    // Simulates writes from another process, which are not seen by the cache
+    Cube otherCube = getCube("cachedCube", new int[] {60}, ImmutableMap.of("agg", agg));
+
+    long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    long closedTs = now - 600;
+    long openTs = now + 600;
+    long closedBucket = closedTs - closedTs % 60;
+    long openBucket = openTs - openTs % 60;
+
+    writeInc(cube, "metric1", closedTs, 1, "1", "1");
+    writeInc(cube, "metric1", openTs, 2, "1", "1");
+    verifyCachedQuery(cube, now, closedBucket, 1, openBucket, 2);
+    Assert.assertEquals(1L, (long) metrics.get("cube.query.cache.miss.count"));
+    Assert.assertNull(metrics.get("cube.query.cache.hit.count"));
+
+    // Closed time bucket is served from the cache, open time bucket is scanned
+    writeInc(otherCube, "metric1", closedTs, 4, "1", "1");
+    writeInc(otherCube, "metric1", openTs, 8, "1", "1");
+    verifyCachedQuery(cube, now, closedBucket, 1, openBucket, 10);
+    Assert.assertEquals(1L, (long) metrics.get("cube.query.cache.hit.count"));
+
+    // Query with a different time range that starts in the cached range uses the cache too
+    verifyCountQuery(cube, closedBucket, openTs, 60, "metric1", AggregationFunction.SUM,
+                     ImmutableMap.of("dim1", "1"), ImmutableList.<String>of(),
+                     ImmutableList.of(new TimeSeries("metric1", new HashMap<String, String>(),
+                                                     timeValues(closedBucket, 1, openBucket, 10))));
+    Assert.assertEquals(2L, (long) metrics.get("cube.query.cache.hit.count"));
+
+    // Writes into closed time buckets through the cube invalidate the cache
+    writeInc(cube, "metric1", closedTs, 16, "1", "1");
+    verifyCachedQuery(cube, now, closedBucket, 21, openBucket, 10);
+    Assert.assertEquals(2L, (long) metrics.get("cube.query.cache.miss.count"));
+  }
+
+  @Test
+  public void testQueryCacheExpiry() throws Exception {
+    Aggregation agg = new DefaultAggregation(ImmutableList.of("dim1", "dim2"), ImmutableList.of("dim1"));
+    DefaultCube cube = createCube("expiringCube", new int[] {60}, ImmutableMap.of("agg", agg),
+                                  new CubeQueryCache(1000, 0, 1), null);
+    // Simulates writes from another process, which are not seen by the cache
+    Cube otherCube = getCube("expiringCube", new int[] {60}, ImmutableMap.of("agg", agg));
+
+    long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    long closedTs = now - 600;
+    long openTs = now + 600;
+    long closedBucket = closedTs - closedTs % 60;
+    long openBucket = openTs - openTs % 60;
+
+    writeInc(cube, "metric1", closedTs, 1, "1", "1");
+    writeInc(cube, "metric1", openTs, 2, "1", "1");
+    verifyCachedQuery(cube, now, closedBucket, 1, openBucket, 2);
+
+    // Writes not done through the cube are not visible in closed time buckets until the cache entry expires
+    writeInc(otherCube, "metric1", closedTs, 4, "1", "1");
+    verifyCachedQuery(cube, now, closedBucket, 1, openBucket, 2);
+    TimeUnit.MILLISECONDS.sleep(1100);
+    verifyCachedQuery(cube, now, closedBucket, 5, openBucket, 2);
+  }
+
+  @Test
+  public void testParallelScan() throws Exception {
+    Aggregation agg = new DefaultAggregation(ImmutableList.of("dim1", "dim2"), ImmutableList.of("dim1"));
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final Map<String, Long> metrics = Maps.newHashMap();
+      DefaultCube cube = createCube("parallelCube", new int[] {1, 60}, ImmutableMap.of("agg", agg), null, executor);
+      cube.setMetricsCollector(new MetricsCollector() {
+        @Override
+        public synchronized void increment(String metricName, long value) {
+          Long current = metrics.get(metricName);
+          metrics.put(metricName, current == null ? value : current + value);
+        }
+
+        @Override
+        public synchronized void gauge(String metricName, long value) {
+          metrics.put(metricName, value);
+        }
+      });
+
+      // Write into multiple rows, each row covers one hour
+      for (int hour = 0; hour < 6; hour++) {
+        writeInc(cube, "metric1", hour * 3600 + 10, 1, "1", "1");
+        writeInc(cube, "metric1", hour * 3600 + 20, 2, "1", "2");
+        writeGauge(cube, "metric2", hour * 3600 + 10, hour, "1", "1");
+      }
+
+      List<TimeValue> expected = Lists.newArrayList();
+      for (int hour = 0; hour < 6; hour++) {
+        expected.add(new TimeValue(hour * 3600, 3));
+      }
+      verifyCountQuery(cube, 0, 6 * 3600 - 1, 3600, "metric1", AggregationFunction.SUM, ImmutableMap.of("dim1", "1"),
+                       ImmutableList.<String>of(),
+                       ImmutableList.of(new TimeSeries("metric1", new HashMap<String, String>(), expected)));
+      Assert.assertEquals(3L, (long) metrics.get("cube.query.scan.split.count"));
+
+      // Splits are merged using the aggregation function
+      verifyCountQuery(cube, 0, 6 * 3600 - 1, 6 * 3600, "metric1", AggregationFunction.SUM,
+                       ImmutableMap.of("dim1", "1"), ImmutableList.of("dim2"),
+                       ImmutableList.of(new TimeSeries("metric1", ImmutableMap.of("dim2", "1"), timeValues(0, 6)),
+                                        new TimeSeries("metric1", ImmutableMap.of("dim2", "2"), timeValues(0, 12))));
+      verifyCountQuery(cube, 0, 6 * 3600 - 1, 6 * 3600, "metric2", AggregationFunction.LATEST,
+                       ImmutableMap.of("dim1", "1"), ImmutableList.<String>of(),
+                       ImmutableList.of(new TimeSeries("metric2", new HashMap<String, String>(), timeValues(0, 5))));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testIndexBuild() throws Exception {
+    Aggregation agg = new DefaultAggregation(ImmutableList.of("dim1", "dim2"));
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final Map<String, Long> metrics = new ConcurrentHashMap<>();
+      final DefaultCube cube = createCube("indexCube", new int[] {1}, ImmutableMap.of("agg", agg), null, executor);
+      cube.setMetricsCollector(new MetricsCollector() {
+        @Override
+        public synchronized void increment(String metricName, long value) {
+          Long current = metrics.get(metricName);
+          metrics.put(metricName, current == null ? value : current + value);
+        }
+
+        @Override
+        public synchronized void gauge(String metricName, long value) {
+          metrics.put(metricName, value);
+        }
+      });
+
+      writeInc(cube, "metric1", 10, 1, "1", "1");
+      writeInc(cube, "metric1", 20, 1, "1", "2");
+
+      // The first search starts building the index in the background, searches scan the facts until it is built
+      final CubeExploreQuery query = new CubeExploreQuery(0, 59, 1, Integer.MAX_VALUE,
+                                                          ImmutableList.of(new DimensionValue("dim1", "1")));
+      Assert.assertEquals(ImmutableList.of(new DimensionValue("dim2", "1"), new DimensionValue("dim2", "2")),
+                          ImmutableList.copyOf(cube.findDimensionValues(query)));
+      Tasks.waitFor(true, new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          Assert.assertEquals(ImmutableList.of(new DimensionValue("dim2", "1"), new DimensionValue("dim2", "2")),
+                              ImmutableList.copyOf(cube.findDimensionValues(query)));
+          return metrics.containsKey("factTable.1.search.index.count");
+        }
+      }, 10, TimeUnit.SECONDS, 100, TimeUnit.MILLISECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void verifyCachedQuery(Cube cube, long now, long ts1, long value1, long ts2, long value2) throws Exception {
+    verifyCountQuery(cube, now - 3600, now + 3600, 60, "metric1", AggregationFunction.SUM,
+                     ImmutableMap.of("dim1", "1"), ImmutableList.<String>of(),
+                     ImmutableList.of(new TimeSeries("metric1", new HashMap<String, String>(),
+                                                     timeValues(ts1, value1, ts2, value2))));
+  }
+
+  private DefaultCube createCube(final String name, int[] resolutions, Map<String, ? extends Aggregation> aggregations,
+                                 @Nullable CubeQueryCache queryCache, @Nullable ExecutorService scanExecutor) {
     FactTableSupplier supplier = new FactTableSupplier() {
       @Override
       public FactTable get(int resolution, int rollTime) {
@@ -46,6 +281,7 @@ public class DefaultCubeTest extends AbstractCubeTest {
       }
     };
 
-    return new DefaultCube(resolutions, supplier, aggregations, ImmutableMap.<String, AggregationAlias>of());
+    return new DefaultCube(resolutions, supplier, aggregations, ImmutableMap.<String, AggregationAlias>of(),
+                           queryCache, scanExecutor, 4);
   }
 }
@@ -29,6 +29,7 @@ import org.apache.tephra.TransactionExecutor;
 import org.junit.ClassRule;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.SortedMap;
@@ -153,6 +154,16 @@ public class MetricsTableOnTableTest extends MetricsTableTest {
       });
     }
 
+    @Override
+    public void delete(final SortedMap<byte[], ? extends Collection<byte[]>> deletes) {
+      txnl.executeUnchecked(new TransactionExecutor.Subroutine() {
+        @Override
+        public void apply() {
+          delegate.delete(deletes);
+        }
+      });
+    }
+
     @Override
     public Scanner scan(@Nullable final byte[] start, @Nullable final byte[] stop,
                         @Nullable final FuzzyRowFilter filter) {
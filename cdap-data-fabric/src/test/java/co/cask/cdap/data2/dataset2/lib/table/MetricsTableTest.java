@@ -261,6 +261,27 @@ public abstract class MetricsTableTest {
     Assert.assertEquals(1021, countRange(table, null, null));
   }
 
+  @Test
+  public void testBatchDelete() throws Exception {
+    MetricsTable table = getTable("testBatchDelete");
+    NavigableMap<byte[], SortedMap<byte[], Long>> writes = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+    writes.put(A, mapOf(P, Bytes.toLong(X), Q, Bytes.toLong(Y)));
+    writes.put(B, mapOf(P, Bytes.toLong(X), Q, Bytes.toLong(Y)));
+    writes.put(C, mapOf(P, Bytes.toLong(X)));
+    table.put(writes);
+
+    SortedMap<byte[], List<byte[]>> deletes = Maps.newTreeMap(Bytes.BYTES_COMPARATOR);
+    deletes.put(A, ImmutableList.of(P, Q));
+    deletes.put(B, ImmutableList.of(Q));
+    table.delete(deletes);
+
+    Assert.assertNull(table.get(A, P));
+    Assert.assertNull(table.get(A, Q));
+    Assert.assertArrayEquals(X, table.get(B, P));
+    Assert.assertNull(table.get(B, Q));
+    Assert.assertArrayEquals(X, table.get(C, P));
+  }
+
   @Test
   public void testDeleteIncrements() throws Exception {
     // note: this is pretty important test case for tables with counters, e.g. metrics
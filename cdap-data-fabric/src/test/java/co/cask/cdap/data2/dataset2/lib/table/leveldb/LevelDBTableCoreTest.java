@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.data2.dataset2.lib.table.leveldb;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.conf.Constants;
+import com.google.common.collect.ImmutableMap;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the concurrent read-modify-write operations of {@link LevelDBTableCore}.
+ */
+public class LevelDBTableCoreTest {
+
+  @ClassRule
+  public static final TemporaryFolder TMP_FOLDER = new TemporaryFolder();
+
+  private static final byte[] COLUMN = Bytes.toBytes("c");
+
+  private static LevelDBTableService service;
+
+  @BeforeClass
+  public static void init() throws Exception {
+    CConfiguration cConf = CConfiguration.create();
+    cConf.set(Constants.CFG_DATA_LEVELDB_DIR, TMP_FOLDER.newFolder().getAbsolutePath());
+    cConf.setBoolean(Constants.CFG_DATA_LEVELDB_FSYNC, false);
+    service = new LevelDBTableService();
+    service.setConfiguration(cConf);
+  }
+
+  @AfterClass
+  public static void finish() throws Exception {
+    for (String table : service.list()) {
+      service.dropTable(table);
+    }
+  }
+
+  @Test
+  public void testConcurrentIncrement() throws Exception {
+    String tableName = "testConcurrentIncrement";
+    service.ensureTableExists(tableName);
+
+    final int threads = 8;
+    final int rounds = 500;
+    final int rows = 3;
+    final CyclicBarrier barrier = new CyclicBarrier(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Long>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        // Each thread has its own core, as different dataset instances of the same table do
+        final LevelDBTableCore core = new LevelDBTableCore(tableName, service);
+        futures.add(executor.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws Exception {
+            barrier.await();
+            long[] last = new long[rows];
+            for (int i = 0; i < rounds; i++) {
+              int row = i % rows;
+              long value = core.increment(Bytes.toBytes(row), ImmutableMap.of(COLUMN, 1L)).get(COLUMN);
+              // Values returned for the same row must be increasing
+              Assert.assertTrue(value > last[row]);
+              last[row] = value;
+            }
+            return last[rows - 1];
+          }
+        }));
+      }
+      for (Future<Long> future : futures) {
+        future.get(60, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    LevelDBTableCore core = new LevelDBTableCore(tableName, service);
+    long total = 0L;
+    for (int i = 0; i < rows; i++) {
+      NavigableMap<byte[], byte[]> row = core.getRow(Bytes.toBytes(i), new byte[][] { COLUMN }, null, null, -1, null);
+      total += Bytes.toLong(row.get(COLUMN));
+    }
+    Assert.assertEquals((long) threads * rounds, total);
+  }
+
+  @Test
+  public void testIncrementNonLong() throws Exception {
+    String tableName = "testIncrementNonLong";
+    service.ensureTableExists(tableName);
+    LevelDBTableCore core = new LevelDBTableCore(tableName, service);
+
+    byte[] row = Bytes.toBytes("r");
+    byte[] other = Bytes.toBytes("o");
+    core.persist(ImmutableMap.of(row, ImmutableMap.of(COLUMN, Bytes.toBytes("abc"))), System.currentTimeMillis());
+    try {
+      core.increment(row, ImmutableMap.of(COLUMN, 1L));
+      Assert.fail("Expected NumberFormatException");
+    } catch (NumberFormatException e) {
+      // Expected
+    }
+
+    // Other columns can still be incremented
+    Map<byte[], Long> result = core.increment(row, ImmutableMap.of(other, 5L));
+    Assert.assertEquals(5L, (long) result.get(other));
+    Assert.assertTrue(core.swap(row, other, Bytes.toBytes(5L), Bytes.toBytes(7L)));
+    Assert.assertEquals(8L, (long) core.increment(row, ImmutableMap.of(other, 1L)).get(other));
+  }
+}
@@ -112,6 +112,20 @@ public class LevelDBTableServiceTest {
     Assert.assertEquals(table2Size, service.getTableStats().get(tableId2).getDiskSizeBytes());
   }
 
+  @Test
+  public void testDropTableRemovesRowStripes() throws Exception {
+    String table = "cdap_default.stripedTable";
+    service.ensureTableExists(table);
+    LevelDBRowStripes stripes = service.getRowStripes(table);
+    Assert.assertSame(stripes, service.getRowStripes(table));
+
+    // Dropping the table releases its stripes, a table created with the same name gets new ones
+    service.dropTable(table);
+    service.ensureTableExists(table);
+    Assert.assertNotSame(stripes, service.getRowStripes(table));
+    service.dropTable(table);
+  }
+
   private void writeSome(String tableName) throws IOException {
     LevelDBTableCore table = new LevelDBTableCore(tableName, service);
     Random r = new Random();
@@ -22,6 +22,7 @@ import co.cask.cdap.api.dataset.lib.cube.Measurement;
 import co.cask.cdap.api.dataset.lib.cube.TimeValue;
 import co.cask.cdap.api.dataset.table.Row;
 import co.cask.cdap.api.dataset.table.Scanner;
+import co.cask.cdap.api.metrics.MetricsCollector;
 import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryMetricsTable;
 import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTableService;
 import com.google.common.collect.HashBasedTable;
@@ -136,7 +137,7 @@ public class FactTableTest {
 
     // delete the metrics data at (timestamp + 20) resolution
     scan = new FactScan(ts + resolution * 2, ts + resolution * 3, dimensionValues);
-    table.delete(scan);
+    Assert.assertEquals(3, table.delete(scan));
     for (int k = 1; k < 4; k++) {
       expected.put("metric" + k, dimensionValues, ImmutableList.of(new TimeValue(ts, 11 * k),
                                                              new TimeValue(ts + resolution, 27 * k)));
@@ -147,7 +148,7 @@ public class FactTableTest {
 
     // delete metrics for "metric1" at ts0 and verify deletion
     scan = new FactScan(ts, ts + 1, "metric1", dimensionValues);
-    table.delete(scan);
+    Assert.assertEquals(1, table.delete(scan));
     expected.clear();
     expected.put("metric1", dimensionValues, ImmutableList.of(new TimeValue(ts + resolution, 27)));
     scan = new FactScan(ts - 2 * resolution, ts + 3 * resolution, "metric1", dimensionValues);
@@ -269,6 +270,94 @@ public class FactTableTest {
 
   }
 
+  @Test
+  public void testSearchIndex() throws Exception {
+    InMemoryTableService.create("SearchIndexEntityTable");
+    InMemoryTableService.create("SearchIndexDataTable");
+    int resolution = 1;
+    int rollTimebaseInterval = 10;
+
+    InMemoryMetricsTable metricsTable = new InMemoryMetricsTable("SearchIndexDataTable");
+    FactTable table = new FactTable(metricsTable, new EntityTable(new InMemoryMetricsTable("SearchIndexEntityTable")),
+                                    resolution, rollTimebaseInterval);
+    List<String> aggregationList = ImmutableList.of("dim1", "dim2", "dim3");
+
+    writeInc(table, "metric1", 5, 1, "dim1", "value1", "dim2", "value2", "dim3", "value3");
+    writeInc(table, "metric2", 15, 1, "dim1", "value1", "dim2", null, "dim3", "x3");
+    writeInc(table, "metric3", 25, 1, "dim1", "value2", "dim2", "y2", "dim3", null);
+
+    // Remove the index to simulate facts written before the index was introduced
+    Scanner scanner = metricsTable.scan(new byte[] {1}, new byte[] {2}, null);
+    Row row;
+    while ((row = scanner.next()) != null) {
+      Set<byte[]> columns = row.getColumns().keySet();
+      metricsTable.delete(row.getRow(), columns.toArray(new byte[columns.size()][]));
+    }
+    scanner.close();
+
+    table = new FactTable(metricsTable, new EntityTable(new InMemoryMetricsTable("SearchIndexEntityTable")),
+                          resolution, rollTimebaseInterval);
+    final Map<String, Long> metrics = Maps.newHashMap();
+    table.setMetricsCollector(new MetricsCollector() {
+      @Override
+      public void increment(String metricName, long value) {
+        Long current = metrics.get(metricName);
+        metrics.put(metricName, current == null ? value : current + value);
+      }
+
+      @Override
+      public void gauge(String metricName, long value) {
+        metrics.put(metricName, value);
+      }
+    });
+
+    // Until the index is built, searches scan the facts
+    Assert.assertEquals(ImmutableSet.of(new DimensionValue("dim2", "value2"), new DimensionValue("dim3", "x3")),
+                        table.findSingleDimensionValue(aggregationList, ImmutableMap.of("dim1", "value1"), 0, 29));
+    Assert.assertEquals(1L, (long) metrics.get("factTable.1.search.scan.count"));
+    Assert.assertNull(metrics.get("factTable.1.search.index.count"));
+
+    table.buildIndex(aggregationList);
+    Assert.assertEquals(ImmutableSet.of(new DimensionValue("dim1", "value1"), new DimensionValue("dim1", "value2")),
+                        table.findSingleDimensionValue(aggregationList, ImmutableMap.<String, String>of(), 0, 29));
+    Assert.assertEquals(1L, (long) metrics.get("factTable.1.search.index.count"));
+    Assert.assertEquals(ImmutableSet.of(new DimensionValue("dim2", "value2"), new DimensionValue("dim3", "x3")),
+                        table.findSingleDimensionValue(aggregationList, ImmutableMap.of("dim1", "value1"), 0, 29));
+    Assert.assertEquals(ImmutableSet.of("metric1", "metric2"),
+                        table.findMeasureNames(aggregationList, ImmutableMap.of("dim1", "value1"), 0, 29));
+
+    // Time range is applied at the granularity of the time bases
+    Assert.assertEquals(ImmutableSet.of(new DimensionValue("dim1", "value1")),
+                        table.findSingleDimensionValue(aggregationList, ImmutableMap.<String, String>of(), 12, 19));
+    Assert.assertEquals(ImmutableSet.of("metric3"),
+                        table.findMeasureNames(aggregationList, ImmutableMap.<String, String>of(), 20, 29));
+
+    // Facts added after the index is built are indexed on write
+    writeInc(table, "metric4", 26, 1, "dim1", "value1", "dim2", "z2", "dim3", null);
+    Assert.assertEquals(ImmutableSet.of(new DimensionValue("dim2", "value2"), new DimensionValue("dim2", "z2"),
+                                        new DimensionValue("dim3", "x3")),
+                        table.findSingleDimensionValue(aggregationList, ImmutableMap.of("dim1", "value1"), 0, 29));
+
+    // Deleted facts are removed from the index
+    table.delete(new FactScan(0, 19, ImmutableList.<String>of(), dimValues("dim1", "value1", "dim2", null,
+                                                                           "dim3", null)));
+    Assert.assertEquals(ImmutableSet.of(new DimensionValue("dim2", "z2")),
+                        table.findSingleDimensionValue(aggregationList, ImmutableMap.of("dim1", "value1"), 0, 29));
+    Assert.assertEquals(ImmutableSet.of("metric3", "metric4"),
+                        table.findMeasureNames(aggregationList, ImmutableMap.<String, String>of(), 0, 29));
+
+    // Index cells of deleted facts are kept for the facts left in the same time base
+    writeInc(table, "metric5", 27, 1, "dim1", "value2", "dim2", "y2", "dim3", null);
+    table.delete(new FactScan(20, 29, ImmutableList.of("metric3"), dimValues("dim1", "value2", "dim2", "y2",
+                                                                             "dim3", null)));
+    Assert.assertEquals(ImmutableSet.of(new DimensionValue("dim1", "value1"), new DimensionValue("dim1", "value2")),
+                        table.findSingleDimensionValue(aggregationList, ImmutableMap.<String, String>of(), 20, 29));
+    Assert.assertEquals(ImmutableSet.of(new DimensionValue("dim2", "y2")),
+                        table.findSingleDimensionValue(aggregationList, ImmutableMap.of("dim1", "value2"), 20, 29));
+    Assert.assertEquals(ImmutableSet.of("metric4", "metric5"),
+                        table.findMeasureNames(aggregationList, ImmutableMap.<String, String>of(), 0, 29));
+  }
+
   private void testMetricNamesSearch(FactTable table, List<String> aggregationList ,
                                      Map<String, String> sliceBy,
                                      ImmutableSet<String> expectedResuls) throws Exception {
@@ -562,6 +651,48 @@ public class FactTableTest {
     Assert.assertEquals(3, splitsWithRows.size());
   }
 
+  @Test
+  public void testSplitScan() throws Exception {
+    InMemoryTableService.create("splitScanEntityTable");
+    InMemoryTableService.create("splitScanDataTable");
+    int resolution = 1;
+    int rollTimebaseInterval = 10;
+
+    FactTable table = new FactTable(new InMemoryMetricsTable("splitScanDataTable"),
+                                    new EntityTable(new InMemoryMetricsTable("splitScanEntityTable")),
+                                    resolution, rollTimebaseInterval);
+    for (int ts = 0; ts < 100; ts++) {
+      writeInc(table, "metric1", ts, ts, "dim1", "value1");
+    }
+
+    FactScan scan = new FactScan(5, 64, "metric1", dimValues("dim1", "value1"));
+    // Less time bases than splits
+    Assert.assertEquals(1, table.splitScan(new FactScan(5, 9, "metric1", dimValues("dim1", "value1")), 4).size());
+    Assert.assertEquals(1, table.splitScan(scan, 1).size());
+
+    // 7 time bases in 4 splits, each split covering 2 time bases
+    List<FactScan> splits = table.splitScan(scan, 4);
+    Assert.assertEquals(4, splits.size());
+    long expectedStart = 5;
+    for (FactScan split : splits) {
+      Assert.assertEquals(expectedStart, split.getStartTs());
+      expectedStart = split.getEndTs() + 1;
+    }
+    Assert.assertEquals(19, splits.get(0).getEndTs());
+    Assert.assertEquals(64, splits.get(3).getEndTs());
+
+    // The splits together return the same values as the whole scan
+    for (FactScan split : splits) {
+      Table<String, List<DimensionValue>, List<TimeValue>> expected = HashBasedTable.create();
+      List<TimeValue> timeValues = Lists.newArrayList();
+      for (long ts = split.getStartTs(); ts <= split.getEndTs(); ts++) {
+        timeValues.add(new TimeValue(ts, ts));
+      }
+      expected.put("metric1", dimValues("dim1", "value1"), timeValues);
+      assertScan(table, expected, split);
+    }
+  }
+
   private List<TimeValue> timeValues(long ts, int resolution, long... values) {
     List<TimeValue> timeValues = Lists.newArrayList();
     for (int i = 0; i < values.length; i++) {
@@ -29,6 +29,7 @@ import co.cask.cdap.common.queue.QueueName;
 import co.cask.cdap.common.security.Impersonator;
 import co.cask.cdap.common.security.UGIProvider;
 import co.cask.cdap.common.security.UnsupportedUGIProvider;
+import co.cask.cdap.common.utils.ImmutablePair;
 import co.cask.cdap.common.utils.Networks;
 import co.cask.cdap.data.hbase.HBaseTestBase;
 import co.cask.cdap.data.hbase.HBaseTestFactory;
@@ -44,12 +45,14 @@ import co.cask.cdap.data2.queue.DequeueStrategy;
 import co.cask.cdap.data2.queue.QueueClientFactory;
 import co.cask.cdap.data2.queue.QueueConsumer;
 import co.cask.cdap.data2.queue.QueueEntry;
+import co.cask.cdap.data2.queue.QueueProducer;
 import co.cask.cdap.data2.transaction.Transactions;
 import co.cask.cdap.data2.transaction.queue.QueueAdmin;
 import co.cask.cdap.data2.transaction.queue.QueueConfigurer;
 import co.cask.cdap.data2.transaction.queue.QueueConstants;
 import co.cask.cdap.data2.transaction.queue.QueueEntryRow;
 import co.cask.cdap.data2.transaction.queue.QueueMetrics;
+import co.cask.cdap.data2.transaction.queue.QueueScanner;
 import co.cask.cdap.data2.transaction.queue.QueueTest;
 import co.cask.cdap.data2.transaction.queue.hbase.coprocessor.CConfigurationReader;
 import co.cask.cdap.data2.transaction.queue.hbase.coprocessor.ConsumerConfigCache;
@@ -89,7 +92,9 @@ import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.tephra.Transaction;
 import org.apache.tephra.TransactionAware;
+import org.apache.tephra.TransactionContext;
 import org.apache.tephra.TransactionExecutor;
 import org.apache.tephra.TransactionExecutorFactory;
 import org.apache.tephra.TransactionManager;
@@ -111,7 +116,10 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * HBase queue tests.
@@ -620,6 +628,163 @@ public abstract class HBaseQueueTest extends QueueTest {
     Assert.assertEquals(ImmutableList.of(0, 1, 2, 3, 4, 5), dequeued.get(0));
   }
 
+  @Test (timeout = 30000L)
+  public void testPrefetchInProgressEnqueue() throws Exception {
+    QueueName queueName = QueueName.fromFlowlet(NamespaceId.DEFAULT.getEntityName(),
+                                                "app", "flow", "flowlet", "prefetchinprogress");
+    ConsumerConfig consumerConfig = new ConsumerConfig(0L, 0, 1, DequeueStrategy.FIFO, null);
+    configureGroups(queueName, ImmutableList.of(consumerConfig));
+
+    enqueue(queueName, 0, 5);
+
+    try (
+      QueueProducer producer = queueClientFactory.createProducer(queueName);
+      QueueConsumer consumer = queueClientFactory.createConsumer(queueName, consumerConfig, 1)
+    ) {
+      // Persist an entry with a transaction that stays in progress
+      TransactionAware txProducer = (TransactionAware) producer;
+      Transaction enqueueTx = txSystemClient.startShort();
+      txProducer.startTx(enqueueTx);
+      producer.enqueue(new QueueEntry(Bytes.toBytes(5)));
+      Assert.assertTrue(txSystemClient.canCommit(enqueueTx, txProducer.getTxChanges()));
+      Assert.assertTrue(txProducer.commitTx());
+
+      // Commit entries after it, so that the in progress write pointer is smaller than the read pointers
+      enqueue(queueName, 6, 10);
+
+      // The dequeue doesn't see the in progress entry, and its commit prefetches while the enqueue is in progress
+      Assert.assertEquals(ImmutableList.of(0, 1, 2, 3, 4, 6, 7, 8, 9), dequeue(consumer, 20));
+
+      // Commit the enqueue before the next dequeue. The entry must be dequeued even though the prefetch missed it.
+      Assert.assertTrue(txSystemClient.commit(enqueueTx));
+      txProducer.postTxCommit();
+
+      Assert.assertEquals(ImmutableList.of(5), dequeue(consumer, 20));
+      Assert.assertTrue(dequeue(consumer, 20).isEmpty());
+    }
+  }
+
+  @Test (timeout = 30000L)
+  public void testPrefetchRollbackAndClose() throws Exception {
+    QueueName queueName = QueueName.fromFlowlet(NamespaceId.DEFAULT.getEntityName(),
+                                                "app", "flow", "flowlet", "prefetchrollback");
+    ConsumerConfig consumerConfig = new ConsumerConfig(0L, 0, 1, DequeueStrategy.FIFO, null);
+    configureGroups(queueName, ImmutableList.of(consumerConfig));
+
+    enqueue(queueName, 0, 5);
+
+    try (QueueConsumer consumer = queueClientFactory.createConsumer(queueName, consumerConfig, 1)) {
+      // Dequeue everything, so that the commit starts a prefetch
+      Assert.assertEquals(ImmutableList.of(0, 1, 2, 3, 4), dequeue(consumer, 20));
+      enqueue(queueName, 5, 10);
+
+      // Rollback a transaction without dequeue while the prefetch is pending
+      TransactionContext txContext = new TransactionContext(txSystemClient, (TransactionAware) consumer);
+      txContext.start();
+      txContext.abort();
+
+      // Rollback a transaction that dequeued, the entries should be dequeued again
+      txContext.start();
+      List<Integer> dequeued = Lists.newArrayList();
+      for (byte[] data : consumer.dequeue(20)) {
+        dequeued.add(Bytes.toInt(data));
+      }
+      Assert.assertEquals(ImmutableList.of(5, 6, 7, 8, 9), dequeued);
+      txContext.abort();
+
+      Assert.assertEquals(ImmutableList.of(5, 6, 7, 8, 9), dequeue(consumer, 20));
+      Assert.assertTrue(dequeue(consumer, 20).isEmpty());
+
+      // Leave a prefetch pending when the consumer is closed
+      enqueue(queueName, 10, 15);
+    }
+
+    // A new consumer should continue from where the closed one stopped
+    try (QueueConsumer consumer = queueClientFactory.createConsumer(queueName, consumerConfig, 1)) {
+      Assert.assertEquals(ImmutableList.of(10, 11, 12, 13, 14), dequeue(consumer, 20));
+      Assert.assertTrue(dequeue(consumer, 20).isEmpty());
+    }
+  }
+
+  @Test (timeout = 30000L)
+  public void testPrefetchFifoGroup() throws Exception {
+    QueueName queueName = QueueName.fromFlowlet(NamespaceId.DEFAULT.getEntityName(),
+                                                "app", "flow", "flowlet", "prefetchfifo");
+    ConsumerGroupConfig groupConfig = new ConsumerGroupConfig(0L, 2, DequeueStrategy.FIFO, null);
+    configureGroups(queueName, ImmutableList.of(groupConfig));
+
+    List<Integer> dequeued = Lists.newArrayList();
+    try (
+      QueueConsumer consumer0 = queueClientFactory.createConsumer(queueName, new ConsumerConfig(groupConfig, 0), 1);
+      QueueConsumer consumer1 = queueClientFactory.createConsumer(queueName, new ConsumerConfig(groupConfig, 1), 1)
+    ) {
+      // Each consumer dequeues everything it sees, so that every commit starts a prefetch. The next dequeue
+      // needs to claim entries that were enqueued after the prefetch, some of them claimed by the other consumer.
+      for (int i = 0; i < 5; i++) {
+        enqueue(queueName, i * 10, i * 10 + 5);
+        dequeued.addAll(dequeue(consumer0, 20));
+        enqueue(queueName, i * 10 + 5, i * 10 + 10);
+        dequeued.addAll(dequeue(consumer1, 20));
+      }
+      while (dequeued.size() < 50) {
+        dequeued.addAll(dequeue(consumer0, 20));
+        dequeued.addAll(dequeue(consumer1, 20));
+      }
+
+      Assert.assertTrue(dequeue(consumer0, 20).isEmpty());
+      Assert.assertTrue(dequeue(consumer1, 20).isEmpty());
+    }
+
+    // Every entry is dequeued exactly once
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < 50; i++) {
+      expected.add(i);
+    }
+    Collections.sort(dequeued);
+    Assert.assertEquals(expected, dequeued);
+  }
+
+  @Test (timeout = 30000L)
+  public void testPrefetchStartRowBefore() throws Exception {
+    QueueName queueName = QueueName.fromFlowlet(NamespaceId.DEFAULT.getEntityName(),
+                                                "app", "flow", "flowlet", "prefetchstartrow");
+    ConsumerConfig consumerConfig = new ConsumerConfig(0L, 0, 1, DequeueStrategy.FIFO, null);
+    configureGroups(queueName, ImmutableList.of(consumerConfig));
+
+    enqueue(queueName, 0, 10);
+
+    try (HBaseQueueConsumer consumer = createHBaseQueueConsumer(queueName, consumerConfig)) {
+      Assert.assertEquals(ImmutableList.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), dequeue(consumer, 20));
+
+      // Dequeue a few more times, so that the scan start row moves past the processed entries
+      // and the pending prefetch starts after them
+      for (int i = 0; i < 3; i++) {
+        Assert.assertTrue(dequeue(consumer, 20).isEmpty());
+      }
+
+      // Scan from a row before the prefetch start. It must not be served from the prefetch.
+      Transaction tx = txSystemClient.startShort();
+      consumer.startTx(tx);
+      QueueScanner scanner = consumer.getScanner(
+        QueueEntryRow.getQueueEntryRowKey(queueName, 0L, 0),
+        QueueEntryRow.getStopRowForTransaction(QueueEntryRow.getQueueRowPrefix(queueName), tx), 20);
+      try {
+        ImmutablePair<byte[], Map<byte[], byte[]>> row = scanner.next();
+        Assert.assertNotNull(row);
+        Assert.assertEquals(0, Bytes.toInt(row.getSecond().get(QueueEntryRow.DATA_COLUMN)));
+      } finally {
+        scanner.close();
+      }
+      Assert.assertTrue(consumer.rollbackTx());
+      txSystemClient.abort(tx);
+
+      // Dequeue should continue normally
+      enqueue(queueName, 10, 15);
+      Assert.assertEquals(ImmutableList.of(10, 11, 12, 13, 14), dequeue(consumer, 20));
+      Assert.assertTrue(dequeue(consumer, 20).isEmpty());
+    }
+  }
+
   @Override
   protected void verifyConsumerConfigExists(QueueName... queueNames) throws Exception {
     for (QueueName queueName : queueNames) {
@@ -795,4 +960,67 @@ public abstract class HBaseQueueTest extends QueueTest {
       });
     }
   }
+
+  /**
+   * Enqueues the integers in the range of [from, to) in one transaction.
+   */
+  private void enqueue(QueueName queueName, final int from, final int to) throws Exception {
+    try (final QueueProducer producer = queueClientFactory.createProducer(queueName)) {
+      Transactions.createTransactionExecutor(executorFactory, (TransactionAware) producer)
+        .execute(new TransactionExecutor.Subroutine() {
+          @Override
+          public void apply() throws Exception {
+            for (int i = from; i < to; i++) {
+              producer.enqueue(new QueueEntry(Bytes.toBytes(i)));
+            }
+          }
+        });
+    }
+  }
+
+  /**
+   * Dequeues with the given consumer in one transaction and returns the dequeued integers.
+   */
+  private List<Integer> dequeue(final QueueConsumer consumer, final int maxBatchSize) throws Exception {
+    final List<Integer> dequeued = Lists.newArrayList();
+    Transactions.createTransactionExecutor(executorFactory, (TransactionAware) consumer)
+      .execute(new TransactionExecutor.Subroutine() {
+        @Override
+        public void apply() throws Exception {
+          for (byte[] data : consumer.dequeue(maxBatchSize)) {
+            dequeued.add(Bytes.toInt(data));
+          }
+        }
+      });
+    return dequeued;
+  }
+
+  /**
+   * Creates a {@link HBaseQueueConsumer} for the current state of the given consumer, the same way as
+   * {@link HBaseQueueClientFactory} does, so that tests can access it directly.
+   */
+  private HBaseQueueConsumer createHBaseQueueConsumer(QueueName queueName,
+                                                      final ConsumerConfig consumerConfig) throws Exception {
+    HBaseQueueAdmin hbaseQueueAdmin = (HBaseQueueAdmin) queueAdmin;
+    HBaseQueueClientFactory hBaseQueueClientFactory = (HBaseQueueClientFactory) queueClientFactory;
+
+    HBaseConsumerState state;
+    try (final HBaseConsumerStateStore stateStore = hbaseQueueAdmin.getConsumerStateStore(queueName)) {
+      state = Transactions.createTransactionExecutor(executorFactory, stateStore)
+        .execute(new Callable<HBaseConsumerState>() {
+          @Override
+          public HBaseConsumerState call() throws Exception {
+            return stateStore.getState(consumerConfig.getGroupId(), consumerConfig.getInstanceId());
+          }
+        });
+    }
+
+    HTable hTable = hBaseQueueClientFactory.createHTable(
+      hbaseQueueAdmin.getDataTableId(queueName, QueueConstants.QueueType.SHARDED_QUEUE));
+    HBaseQueueStrategy queueStrategy = new ShardedHBaseQueueStrategy(
+      tableUtil, hBaseQueueClientFactory.getDistributorBuckets(hTable.getTableDescriptor()));
+    return new HBaseQueueUtilFactory().get().getQueueConsumer(cConf, hTable, queueName, state,
+                                                              hbaseQueueAdmin.getConsumerStateStore(queueName),
+                                                              queueStrategy);
+  }
 }
@@ -21,6 +21,7 @@ import co.cask.cdap.api.messaging.TopicNotFoundException;
 import co.cask.cdap.common.ServiceUnavailableException;
 import co.cask.cdap.proto.id.NamespaceId;
 import co.cask.cdap.proto.id.TopicId;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
 import java.util.List;
@@ -108,6 +109,22 @@ public interface MessagingService {
   @Nullable
   RollbackDetail publish(StoreRequest request) throws TopicNotFoundException, IOException;
 
+  /**
+   * Publishes a list of messages to the messaging system asynchronously. The calling thread is not blocked
+   * while the messages are being persisted. The given {@link StoreRequest} may be consumed after this method
+   * returned, hence it must not be modified until the returned future is completed.
+   *
+   * @param request the {@link StoreRequest} containing messages to be published
+   * @return a {@link ListenableFuture} that will be completed when the messages are published. If the store request
+   *         is transactional, the future carries a {@link RollbackDetail} containing information for rollback;
+   *         otherwise the future carries {@code null}. The future fails with {@link TopicNotFoundException}
+   *         or {@link IOException} if failed to publish messages.
+   * @throws TopicNotFoundException if the topic doesn't exist
+   * @throws IOException if failed to submit the publish request
+   * @throws ServiceUnavailableException if the messaging service is not available
+   */
+  ListenableFuture<RollbackDetail> publishAsync(StoreRequest request) throws TopicNotFoundException, IOException;
+
   /**
    * Stores a list of messages to the messaging system. It is for long / distributed transactional publishing use case.
    *
@@ -118,6 +135,20 @@ public interface MessagingService {
    */
   void storePayload(StoreRequest request) throws TopicNotFoundException, IOException;
 
+  /**
+   * Stores a list of messages to the messaging system asynchronously. It is the asynchronous version of
+   * {@link #storePayload(StoreRequest)}. The given {@link StoreRequest} may be consumed after this method
+   * returned, hence it must not be modified until the returned future is completed.
+   *
+   * @param request the {@link StoreRequest} containing messages to be stored
+   * @return a {@link ListenableFuture} that will be completed when the messages are stored. The future fails with
+   *         {@link TopicNotFoundException} or {@link IOException} if failed to store messages.
+   * @throws TopicNotFoundException if the topic doesn't exist
+   * @throws IOException if failed to submit the store request
+   * @throws ServiceUnavailableException if the messaging service is not available
+   */
+  ListenableFuture<Void> storePayloadAsync(StoreRequest request) throws TopicNotFoundException, IOException;
+
   /**
    * Rollbacks messages published to the given topic with the given transaction.
    *
@@ -22,6 +22,7 @@ import co.cask.cdap.api.dataset.lib.CloseableIterator;
 import co.cask.cdap.api.messaging.TopicAlreadyExistsException;
 import co.cask.cdap.api.messaging.TopicNotFoundException;
 import co.cask.cdap.common.ServiceUnavailableException;
+import co.cask.cdap.common.conf.CConfiguration;
 import co.cask.cdap.common.conf.Constants;
 import co.cask.cdap.common.discovery.EndpointStrategy;
 import co.cask.cdap.common.discovery.RandomEndpointStrategy;
@@ -32,7 +33,10 @@ import co.cask.cdap.messaging.RollbackDetail;
 import co.cask.cdap.messaging.Schemas;
 import co.cask.cdap.messaging.StoreRequest;
 import co.cask.cdap.messaging.TopicMetadata;
+import co.cask.cdap.messaging.data.MessageCompression;
 import co.cask.cdap.messaging.data.RawMessage;
+import co.cask.cdap.messaging.data.RawMessageBlockDecoder;
+import co.cask.cdap.messaging.data.RawMessageBlockEncoder;
 import co.cask.cdap.proto.id.NamespaceId;
 import co.cask.cdap.proto.id.TopicId;
 import co.cask.common.http.HttpRequest;
@@ -46,6 +50,9 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import com.google.common.io.ByteStreams;
 import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import com.google.inject.Inject;
@@ -61,6 +68,7 @@ import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.io.Encoder;
 import org.apache.avro.io.EncoderFactory;
 import org.apache.tephra.TransactionCodec;
+import org.apache.twill.common.Threads;
 import org.apache.twill.discovery.Discoverable;
 import org.apache.twill.discovery.DiscoveryServiceClient;
 
@@ -80,6 +88,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
@@ -101,11 +112,37 @@ public final class ClientMessagingService implements MessagingService {
   private static final Type TOPIC_PROPERTY_TYPE = new TypeToken<Map<String, String>>() { }.getType();
   private static final Type TOPIC_LIST_TYPE = new TypeToken<List<String>>() { }.getType();
 
+  // Maximum number of concurrent requests issued by the async publish and store calls. It matches the default
+  // number of keep-alive connections per destination maintained by HttpURLConnection (the "http.maxConnections"
+  // system property), so that the async requests are sent through persistent connections.
+  private static final int MAX_ASYNC_REQUESTS = 5;
+
   private final Supplier<EndpointStrategy> endpointStrategy;
+  private final Supplier<ListeningExecutorService> asyncExecutor;
+  private final MessageCompression fetchCompression;
 
-  @VisibleForTesting
   @Inject
-  public ClientMessagingService(final DiscoveryServiceClient discoveryServiceClient) {
+  ClientMessagingService(CConfiguration cConf, DiscoveryServiceClient discoveryServiceClient) {
+    this(discoveryServiceClient,
+         MessageCompression.parse(cConf.get(Constants.MessagingSystem.CLIENT_FETCH_COMPRESSION)));
+  }
+
+  @VisibleForTesting
+  public ClientMessagingService(DiscoveryServiceClient discoveryServiceClient) {
+    this(discoveryServiceClient, MessageCompression.NONE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param discoveryServiceClient the {@link DiscoveryServiceClient} for discovering the messaging service
+   * @param fetchCompression the compression to request for fetch responses encoded in the binary block format,
+   *                         or {@code null} to request fetch responses encoded in avro
+   */
+  @VisibleForTesting
+  public ClientMessagingService(final DiscoveryServiceClient discoveryServiceClient,
+                                @Nullable MessageCompression fetchCompression) {
+    this.fetchCompression = fetchCompression;
     // Use a supplier to delay the discovery until the first time it is being used.
     this.endpointStrategy = Suppliers.memoize(new Supplier<EndpointStrategy>() {
       @Override
@@ -113,6 +150,18 @@ public final class ClientMessagingService implements MessagingService {
         return new RandomEndpointStrategy(discoveryServiceClient.discover(Constants.Service.MESSAGING_SERVICE));
       }
     });
+    // Use a supplier to delay the thread pool creation until the first async call.
+    this.asyncExecutor = Suppliers.memoize(new Supplier<ListeningExecutorService>() {
+      @Override
+      public ListeningExecutorService get() {
+        // Threads are daemon and will time out when idle, since this class doesn't have a lifecycle to release them.
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+          MAX_ASYNC_REQUESTS, MAX_ASYNC_REQUESTS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          Threads.createDaemonThreadFactory("messaging-client-async-%d"));
+        executor.allowCoreThreadTimeOut(true);
+        return MoreExecutors.listeningDecorator(executor);
+      }
+    });
   }
 
   @Override
@@ -201,21 +250,39 @@ public final class ClientMessagingService implements MessagingService {
   @Nullable
   @Override
   public RollbackDetail publish(StoreRequest request) throws TopicNotFoundException, IOException {
-    HttpResponse response = performWriteRequest(request, true);
-
-    byte[] body = response.getResponseBody();
-    if (body.length == 0) {
-      return null;
-    }
+    return toRollbackDetail(performWriteRequest(request.getTopicId(), createWriteRequest(request, true), true));
+  }
 
-    // It has rollback detail, verify the content-type and decode it
-    verifyContentType(response.getHeaders().asMap(), "avro/binary");
-    return new ClientRollbackDetail(body);
+  @Override
+  public ListenableFuture<RollbackDetail> publishAsync(StoreRequest request)
+    throws TopicNotFoundException, IOException {
+    // Encode the request in the caller thread, so that the StoreRequest is no longer needed after this method returned
+    final TopicId topicId = request.getTopicId();
+    final HttpRequest httpRequest = createWriteRequest(request, true);
+    return asyncExecutor.get().submit(new Callable<RollbackDetail>() {
+      @Override
+      public RollbackDetail call() throws Exception {
+        return toRollbackDetail(performWriteRequest(topicId, httpRequest, true));
+      }
+    });
   }
 
   @Override
   public void storePayload(StoreRequest request) throws TopicNotFoundException, IOException {
-    performWriteRequest(request, false);
+    performWriteRequest(request.getTopicId(), createWriteRequest(request, false), false);
+  }
+
+  @Override
+  public ListenableFuture<Void> storePayloadAsync(StoreRequest request) throws TopicNotFoundException, IOException {
+    final TopicId topicId = request.getTopicId();
+    final HttpRequest httpRequest = createWriteRequest(request, false);
+    return asyncExecutor.get().submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        performWriteRequest(topicId, httpRequest, false);
+        return null;
+      }
+    });
   }
 
   @Override
@@ -240,16 +307,15 @@ public final class ClientMessagingService implements MessagingService {
   }
 
   /**
-   * Makes a request to the server for writing to the messaging system
+   * Creates a {@link HttpRequest} for writing to the messaging system. The payloads in the given
+   * {@link StoreRequest} will be consumed.
    *
    * @param request contains information about what to write
    * @param publish {@code true} to make publish call, {@code false} to make store call.
-   * @return the response from the server
-   * @throws IOException if failed to perform the write operation
-   * @throws TopicNotFoundException if the topic to write to does not exist
+   * @return the {@link HttpRequest} to be sent to the server
+   * @throws IOException if failed to encode the request
    */
-  private HttpResponse performWriteRequest(StoreRequest request,
-                                           boolean publish) throws IOException, TopicNotFoundException {
+  private HttpRequest createWriteRequest(StoreRequest request, boolean publish) throws IOException {
     GenericRecord record = new GenericData.Record(Schemas.V1.PublishRequest.SCHEMA);
     if (request.isTransactional()) {
       record.put("transactionWritePointer", request.getTransactionWritePointer());
@@ -263,24 +329,53 @@ public final class ClientMessagingService implements MessagingService {
     DatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>(Schemas.V1.PublishRequest.SCHEMA);
     datumWriter.write(record, encoder);
 
-    // Make the publish request
+    // Create the publish request
     String writeType = publish ? "publish" : "store";
-    TopicId topicId = request.getTopicId();
-    HttpRequest httpRequest = HttpRequest
-      .post(createURL(createTopicPath(topicId) + "/" + writeType))
+    return HttpRequest
+      .post(createURL(createTopicPath(request.getTopicId()) + "/" + writeType))
       .addHeader(HttpHeaders.CONTENT_TYPE, "avro/binary")
       .withBody(os.toByteBuffer())
       .build();
+  }
 
+  /**
+   * Makes a request to the server for writing to the messaging system
+   *
+   * @param topicId the topic to write to
+   * @param httpRequest the request created by {@link #createWriteRequest(StoreRequest, boolean)}
+   * @param publish {@code true} if it is a publish call, {@code false} if it is a store call.
+   * @return the response from the server
+   * @throws IOException if failed to perform the write operation
+   * @throws TopicNotFoundException if the topic to write to does not exist
+   */
+  private HttpResponse performWriteRequest(TopicId topicId, HttpRequest httpRequest,
+                                           boolean publish) throws IOException, TopicNotFoundException {
     HttpResponse response = HttpRequests.execute(httpRequest, HTTP_REQUEST_CONFIG);
 
     if (response.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
       throw new TopicNotFoundException(topicId.getNamespace(), topicId.getTopic());
     }
-    handleError(response, "Failed to " + writeType + " message to topic " + topicId);
+    handleError(response, "Failed to " + (publish ? "publish" : "store") + " message to topic " + topicId);
     return response;
   }
 
+  /**
+   * Decodes the {@link RollbackDetail} from the response of a publish call.
+   *
+   * @return the {@link RollbackDetail} or {@code null} if the publish was non-transactional
+   */
+  @Nullable
+  private RollbackDetail toRollbackDetail(HttpResponse response) {
+    byte[] body = response.getResponseBody();
+    if (body.length == 0) {
+      return null;
+    }
+
+    // It has rollback detail, verify the content-type and decode it
+    verifyContentType(response.getHeaders().asMap(), "avro/binary");
+    return new ClientRollbackDetail(body);
+  }
+
   /**
    * Creates the URL path for making HTTP requests for the given topic.
    */
@@ -436,12 +531,30 @@ public final class ClientMessagingService implements MessagingService {
 
       // The cask common http library doesn't support read streaming, and we don't want to buffer all messages
       // in memory, hence we use the HttpURLConnection directly instead.
-      URL url = createURL(createTopicPath(topicId) + "/poll");
+      // For long-poll, the server may hold the request up to the wait timeout before responding
+      long waitTimeoutMillis = getWaitTimeoutMillis();
+      String path = createTopicPath(topicId) + "/poll";
+      int readTimeout = HTTP_REQUEST_CONFIG.getReadTimeout();
+      if (waitTimeoutMillis > 0) {
+        path += "?timeout=" + waitTimeoutMillis;
+        if (readTimeout > 0) {
+          readTimeout = (int) Math.min(Integer.MAX_VALUE, readTimeout + waitTimeoutMillis);
+        }
+      }
+
+      URL url = createURL(path);
       final HttpURLConnection urlConn = (HttpURLConnection)  url.openConnection();
       urlConn.setConnectTimeout(HTTP_REQUEST_CONFIG.getConnectTimeout());
-      urlConn.setReadTimeout(HTTP_REQUEST_CONFIG.getReadTimeout());
+      urlConn.setReadTimeout(readTimeout);
       urlConn.setRequestMethod("POST");
       urlConn.setRequestProperty(HttpHeaders.CONTENT_TYPE, "avro/binary");
+      if (fetchCompression != null) {
+        // Ask for the binary block format. Server that doesn't support it will respond in avro.
+        urlConn.setRequestProperty(HttpHeaders.ACCEPT, RawMessageBlockEncoder.CONTENT_TYPE + ", avro/binary");
+        if (fetchCompression.isAvailable()) {
+          urlConn.setRequestProperty(RawMessageBlockEncoder.COMPRESSION_HEADER, fetchCompression.name());
+        }
+      }
       urlConn.setDoInput(true);
       urlConn.setDoOutput(true);
 
@@ -468,6 +581,10 @@ public final class ClientMessagingService implements MessagingService {
           }
         }
       }, "Failed to update topic " + topicId);
+
+      if (RawMessageBlockEncoder.CONTENT_TYPE.equals(urlConn.getContentType())) {
+        return decodeBlocks(urlConn);
+      }
       verifyContentType(urlConn.getHeaderFields(), "avro/binary");
 
       // Decode the avro array manually instead of using DatumReader in order to support streaming decode.
@@ -512,5 +629,28 @@ public final class ClientMessagingService implements MessagingService {
         }
       };
     }
+
+    /**
+     * Returns a {@link CloseableIterator} that decodes messages in the binary block format from the response.
+     */
+    private CloseableIterator<RawMessage> decodeBlocks(final HttpURLConnection urlConn) throws IOException {
+      final RawMessageBlockDecoder decoder = new RawMessageBlockDecoder(urlConn.getInputStream());
+      return new AbstractCloseableIterator<RawMessage>() {
+        @Override
+        protected RawMessage computeNext() {
+          try {
+            RawMessage message = decoder.next();
+            return message == null ? endOfData() : message;
+          } catch (IOException e) {
+            throw Throwables.propagate(e);
+          }
+        }
+
+        @Override
+        public void close() {
+          urlConn.disconnect();
+        }
+      };
+    }
   }
 }
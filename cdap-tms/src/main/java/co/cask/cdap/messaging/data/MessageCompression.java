@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.messaging.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * Compression codecs supported for blocks of messages encoded by {@link RawMessageBlockEncoder}.
+ */
+public enum MessageCompression {
+
+  NONE(0) {
+    @Override
+    public boolean isAvailable() {
+      return true;
+    }
+
+    @Override
+    int maxCompressedLength(int length) {
+      return length;
+    }
+
+    @Override
+    int compress(byte[] input, int length, byte[] output) {
+      System.arraycopy(input, 0, output, 0, length);
+      return length;
+    }
+
+    @Override
+    int uncompress(byte[] input, int length, byte[] output) throws IOException {
+      if (length > output.length) {
+        throw new IOException("Uncompressed length " + length + " exceeds the expected length " + output.length);
+      }
+      System.arraycopy(input, 0, output, 0, length);
+      return length;
+    }
+  },
+
+  SNAPPY(1) {
+    @Override
+    public boolean isAvailable() {
+      return SnappyAvailability.AVAILABLE;
+    }
+
+    @Override
+    int maxCompressedLength(int length) {
+      return Snappy.maxCompressedLength(length);
+    }
+
+    @Override
+    int compress(byte[] input, int length, byte[] output) throws IOException {
+      return Snappy.compress(input, 0, length, output, 0);
+    }
+
+    @Override
+    int uncompress(byte[] input, int length, byte[] output) throws IOException {
+      // Check the length recorded in the compressed data, so that a corrupted block is not uncompressed beyond
+      // the end of the output array
+      int uncompressedLength = Snappy.uncompressedLength(input, 0, length);
+      if (uncompressedLength < 0 || uncompressedLength > output.length) {
+        throw new IOException("Uncompressed length " + uncompressedLength
+                                + " exceeds the expected length " + output.length);
+      }
+      return Snappy.uncompress(input, 0, length, output, 0);
+    }
+  };
+
+  private static final Logger LOG = LoggerFactory.getLogger(MessageCompression.class);
+
+  private final int id;
+
+  MessageCompression(int id) {
+    this.id = id;
+  }
+
+  /**
+   * Returns the id of this compression as written in the encoded blocks.
+   */
+  int getId() {
+    return id;
+  }
+
+  /**
+   * Returns {@code true} if this compression can be used in the current JVM.
+   */
+  public abstract boolean isAvailable();
+
+  /**
+   * Returns the maximum length of the compressed data for input of the given length.
+   */
+  abstract int maxCompressedLength(int length);
+
+  /**
+   * Compresses the input to the output array and returns the compressed length.
+   */
+  abstract int compress(byte[] input, int length, byte[] output) throws IOException;
+
+  /**
+   * Uncompresses the input to the output array and returns the uncompressed length.
+   *
+   * @throws IOException if the input is corrupted or the uncompressed data doesn't fit in the output array
+   */
+  abstract int uncompress(byte[] input, int length, byte[] output) throws IOException;
+
+  /**
+   * Returns the {@link MessageCompression} of the given id.
+   *
+   * @throws IOException if the id is not a known compression
+   */
+  static MessageCompression fromId(int id) throws IOException {
+    for (MessageCompression compression : values()) {
+      if (compression.id == id) {
+        return compression;
+      }
+    }
+    throw new IOException("Unsupported message compression id " + id);
+  }
+
+  /**
+   * Returns the {@link MessageCompression} of the given name or {@link #NONE} if the name is not recognized or
+   * the compression is not available.
+   */
+  public static MessageCompression parse(@Nullable String name) {
+    if (name == null) {
+      return NONE;
+    }
+    for (MessageCompression compression : values()) {
+      if (compression.name().equalsIgnoreCase(name.trim())) {
+        return compression.isAvailable() ? compression : NONE;
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Holder for lazily checking if the snappy native library can be loaded.
+   */
+  private static final class SnappyAvailability {
+    private static final boolean AVAILABLE = checkAvailable();
+
+    private static boolean checkAvailable() {
+      try {
+        Snappy.uncompress(Snappy.compress(new byte[1]));
+        return true;
+      } catch (Throwable t) {
+        LOG.warn("Snappy compression is not available for messages: {}", t.getMessage());
+        return false;
+      }
+    }
+  }
+}
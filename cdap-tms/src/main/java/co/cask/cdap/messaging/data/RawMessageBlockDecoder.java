@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.messaging.data;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Decodes {@link RawMessage}s encoded by {@link RawMessageBlockEncoder}. Blocks are read from the
+ * {@link InputStream} one at a time as messages are being consumed.
+ */
+@NotThreadSafe
+public final class RawMessageBlockDecoder {
+
+  // Far larger than the blocks written by the messaging service, which are about the consume chunk size plus
+  // one message. It only guards against allocating memory for a corrupted length.
+  private static final int MAX_BLOCK_LENGTH = 512 * 1024 * 1024;
+
+  private final InputStream input;
+  private byte[] data;
+  private byte[] block;
+  private int blockLength;
+  private int position;
+  private int remaining;
+  private int blockIndex;
+  private boolean ended;
+
+  public RawMessageBlockDecoder(InputStream input) {
+    this.input = input;
+    this.data = new byte[0];
+    this.block = new byte[0];
+  }
+
+  /**
+   * Returns the next {@link RawMessage} or {@code null} if there is no more message.
+   */
+  @Nullable
+  public RawMessage next() throws IOException {
+    if (remaining == 0 && !readBlock()) {
+      return null;
+    }
+    remaining--;
+    byte[] id = readBytes();
+    byte[] payload = readBytes();
+    return new RawMessage(id, payload);
+  }
+
+  /**
+   * Reads the next block from the input stream.
+   *
+   * @return {@code true} if a block is read; {@code false} if reached the end of blocks
+   */
+  private boolean readBlock() throws IOException {
+    if (ended) {
+      return false;
+    }
+    blockIndex++;
+    int count = readVarInt();
+    if (count == 0) {
+      ended = true;
+      return false;
+    }
+    MessageCompression compression;
+    try {
+      compression = MessageCompression.fromId(readVarInt());
+    } catch (IOException e) {
+      throw corrupted(e.getMessage(), e);
+    }
+    int uncompressedLength = readVarInt();
+    int dataLength = readVarInt();
+
+    // Each message takes at least two bytes for the lengths of its id and payload
+    if (count < 0 || uncompressedLength < 0 || uncompressedLength > MAX_BLOCK_LENGTH
+      || count > uncompressedLength / 2) {
+      throw corrupted("invalid message count " + count + " for uncompressed length " + uncompressedLength);
+    }
+    if (dataLength < 0 || dataLength > compression.maxCompressedLength(uncompressedLength)) {
+      throw corrupted("invalid data length " + dataLength + " for uncompressed length " + uncompressedLength);
+    }
+
+    if (compression == MessageCompression.NONE) {
+      if (dataLength != uncompressedLength) {
+        throw corrupted("data length " + dataLength + " differs from uncompressed length " + uncompressedLength);
+      }
+      block = ensureCapacity(block, dataLength);
+      ByteStreams.readFully(input, block, 0, dataLength);
+    } else {
+      data = ensureCapacity(data, dataLength);
+      ByteStreams.readFully(input, data, 0, dataLength);
+      block = ensureCapacity(block, uncompressedLength);
+      int length;
+      try {
+        length = compression.uncompress(data, dataLength, block);
+      } catch (IOException e) {
+        throw corrupted(e.getMessage(), e);
+      }
+      if (length != uncompressedLength) {
+        throw corrupted("uncompressed " + length + " bytes instead of " + uncompressedLength);
+      }
+    }
+    blockLength = uncompressedLength;
+    position = 0;
+    remaining = count;
+    return true;
+  }
+
+  /**
+   * Reads a length prefixed byte array from the current block.
+   */
+  private byte[] readBytes() throws IOException {
+    int length = 0;
+    int shift = 0;
+    byte b;
+    do {
+      if (position >= blockLength || shift > 28) {
+        throw corrupted("unexpected end of message block");
+      }
+      b = block[position++];
+      length |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+
+    if (length < 0 || length > blockLength - position) {
+      throw corrupted("invalid length " + length + " at position " + position);
+    }
+    byte[] bytes = Arrays.copyOfRange(block, position, position + length);
+    position += length;
+    return bytes;
+  }
+
+  private int readVarInt() throws IOException {
+    int value = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = input.read();
+      if (b < 0) {
+        throw new EOFException("Unexpected end of message stream");
+      }
+      if (shift > 28) {
+        throw corrupted("variable length integer is too long");
+      }
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private IOException corrupted(String reason) {
+    return corrupted(reason, null);
+  }
+
+  private IOException corrupted(String reason, @Nullable Throwable cause) {
+    return new IOException("Corrupted message block " + blockIndex + ": " + reason, cause);
+  }
+
+  private static byte[] ensureCapacity(byte[] buffer, int capacity) {
+    return buffer.length >= capacity ? buffer : new byte[capacity];
+  }
+}
@@ -28,6 +28,7 @@ import co.cask.cdap.messaging.server.MessagingHttpService;
 import co.cask.cdap.messaging.server.MetadataHandler;
 import co.cask.cdap.messaging.server.StoreHandler;
 import co.cask.cdap.messaging.service.CoreMessagingService;
+import co.cask.cdap.messaging.service.PublishNotifier;
 import co.cask.cdap.messaging.store.TableFactory;
 import co.cask.cdap.messaging.store.hbase.HBaseTableFactory;
 import co.cask.cdap.messaging.store.leveldb.LevelDBTableFactory;
@@ -65,6 +66,7 @@ public class MessagingServerRuntimeModule extends RuntimeModule {
         bind(TableFactory.class).to(HBaseTableFactory.class);
         expose(TableFactory.class);
 
+        bind(PublishNotifier.class).in(Scopes.SINGLETON);
         bind(MessagingService.class).to(CoreMessagingService.class).in(Scopes.SINGLETON);
         expose(MessagingService.class);
 
@@ -93,6 +95,7 @@ public class MessagingServerRuntimeModule extends RuntimeModule {
     @Override
     protected void configure() {
       bind(TableFactory.class).to(LevelDBTableFactory.class).in(Scopes.SINGLETON);
+      bind(PublishNotifier.class).in(Scopes.SINGLETON);
       bind(MessagingService.class).to(CoreMessagingService.class).in(Scopes.SINGLETON);
       expose(MessagingService.class);
 
@@ -20,19 +20,26 @@ import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.api.dataset.lib.CloseableIterator;
 import co.cask.cdap.api.messaging.TopicNotFoundException;
 import co.cask.cdap.common.BadRequestException;
+import co.cask.cdap.common.HttpExceptionHandler;
 import co.cask.cdap.common.conf.CConfiguration;
 import co.cask.cdap.common.conf.Constants;
 import co.cask.cdap.common.io.ByteBuffers;
 import co.cask.cdap.messaging.MessageFetcher;
 import co.cask.cdap.messaging.MessagingService;
 import co.cask.cdap.messaging.Schemas;
+import co.cask.cdap.messaging.data.MessageCompression;
 import co.cask.cdap.messaging.data.RawMessage;
+import co.cask.cdap.messaging.data.RawMessageBlockEncoder;
+import co.cask.cdap.messaging.service.PublishNotifier;
 import co.cask.cdap.proto.id.NamespaceId;
 import co.cask.cdap.proto.id.TopicId;
 import co.cask.http.AbstractHttpHandler;
 import co.cask.http.BodyProducer;
+import co.cask.http.ExceptionHandler;
+import co.cask.http.HandlerContext;
 import co.cask.http.HttpResponder;
 import com.google.common.collect.ImmutableMultimap;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumReader;
@@ -45,6 +52,7 @@ import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.io.Encoder;
 import org.apache.avro.io.EncoderFactory;
 import org.apache.tephra.TransactionCodec;
+import org.apache.twill.common.Threads;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.buffer.ChannelBufferOutputStream;
@@ -56,14 +64,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
 
 /**
  * A netty http handler for handling message fetching REST API for the messaging system.
@@ -73,21 +89,47 @@ public final class FetchHandler extends AbstractHttpHandler {
 
   private static final Logger LOG = LoggerFactory.getLogger(FetchHandler.class);
   private static final TransactionCodec TRANSACTION_CODEC = new TransactionCodec();
+  private static final int POLL_EXECUTOR_THREADS = 4;
+  // For handling failures of long-poll requests, which are not propagated to the http service
+  private static final ExceptionHandler EXCEPTION_HANDLER = new HttpExceptionHandler();
 
   private final MessagingService messagingService;
+  private final PublishNotifier publishNotifier;
+  private final long maxWaitMillis;
   private int messageChunkSize;
+  private ScheduledExecutorService pollExecutor;
 
   @Inject
-  FetchHandler(CConfiguration cConf, MessagingService messagingService) {
+  FetchHandler(CConfiguration cConf, MessagingService messagingService, PublishNotifier publishNotifier) {
     this.messagingService = messagingService;
+    this.publishNotifier = publishNotifier;
+    this.maxWaitMillis = getMaxWaitMillis(cConf);
     this.messageChunkSize = cConf.getInt(Constants.MessagingSystem.HTTP_SERVER_CONSUME_CHUNK_SIZE);
   }
 
+  @Override
+  public void init(HandlerContext context) {
+    super.init(context);
+    // Executor for fetching messages for long-poll requests when new messages arrived or when the wait timed out.
+    pollExecutor = Executors.newScheduledThreadPool(
+      POLL_EXECUTOR_THREADS, Threads.createDaemonThreadFactory("messaging-long-poll-%d"));
+  }
+
+  @Override
+  public void destroy(HandlerContext context) {
+    try {
+      pollExecutor.shutdownNow();
+    } finally {
+      super.destroy(context);
+    }
+  }
+
   @POST
   @Path("poll")
   public void poll(HttpRequest request, HttpResponder responder,
                    @PathParam("namespace") String namespace,
-                   @PathParam("topic") String topic) throws Exception {
+                   @PathParam("topic") String topic,
+                   @QueryParam("timeout") @DefaultValue("0") long timeoutMillis) throws Exception {
 
     TopicId topicId = new NamespaceId(namespace).topic(topic);
 
@@ -95,15 +137,78 @@ public final class FetchHandler extends AbstractHttpHandler {
     if (!"avro/binary".equals(request.getHeader(HttpHeaders.Names.CONTENT_TYPE))) {
       throw new BadRequestException("Only avro/binary content type is supported.");
     }
+    if (timeoutMillis < 0) {
+      throw new BadRequestException("Poll timeout must be >= 0. Timeout: " + timeoutMillis);
+    }
 
     // Decode the poll request
     Decoder decoder = DecoderFactory.get().directBinaryDecoder(new ChannelBufferInputStream(request.getContent()),
                                                                null);
     DatumReader<GenericRecord> datumReader = new GenericDatumReader<>(Schemas.V1.ConsumeRequest.SCHEMA);
+    GenericRecord fetchRequest = datumReader.read(null, decoder);
+
+    long waitMillis = Math.min(timeoutMillis, maxWaitMillis);
+    if (waitMillis <= 0) {
+      // Fetch the messages
+      sendMessages(request, responder, fetchMessages(fetchRequest, topicId));
+      return;
+    }
 
-    // Fetch the messages
-    CloseableIterator<RawMessage> iterator = fetchMessages(datumReader.read(null, decoder), topicId);
+    // For long-poll, register for the publish notification before fetching, so that messages published
+    // right after the fetch will not be missed.
+    ListenableFuture<TopicId> published = publishNotifier.awaitPublish(topicId);
+    CloseableIterator<RawMessage> iterator;
     try {
+      iterator = fetchMessages(fetchRequest, topicId);
+    } catch (Throwable t) {
+      published.cancel(false);
+      throw t;
+    }
+    if (iterator.hasNext()) {
+      published.cancel(false);
+      sendMessages(request, responder, iterator);
+      return;
+    }
+    iterator.close();
+
+    // No message available. Park the request without blocking the handler thread, and fetch again
+    // when there are new messages published to the topic or when the wait timed out.
+    PendingPoll pendingPoll = new PendingPoll(request, responder, topicId, fetchRequest, published);
+    pendingPoll.timeout = pollExecutor.schedule(pendingPoll, waitMillis, TimeUnit.MILLISECONDS);
+    published.addListener(pendingPoll, pollExecutor);
+  }
+
+  /**
+   * Returns the maximum time that a poll request can wait for new messages. Long-poll is disabled if there are
+   * more than one messaging service instance, since messages published through other instances won't trigger
+   * the publish notification of this instance.
+   */
+  private static long getMaxWaitMillis(CConfiguration cConf) {
+    int instances = cConf.getInt(Constants.MessagingSystem.CONTAINER_INSTANCES, 1);
+    if (instances > 1) {
+      LOG.info("Long-poll fetch is disabled since there are {} messaging service instances", instances);
+      return 0L;
+    }
+    return cConf.getLong(Constants.MessagingSystem.HTTP_SERVER_MAX_POLL_WAIT_MS);
+  }
+
+  /**
+   * Sends the messages from the given iterator as the response. Messages are encoded in the binary block format
+   * if the client accepts it, otherwise in avro.
+   */
+  private void sendMessages(HttpRequest request, HttpResponder responder,
+                            CloseableIterator<RawMessage> iterator) throws Exception {
+    try {
+      String accept = request.getHeader(HttpHeaders.Names.ACCEPT);
+      if (accept != null && accept.contains(RawMessageBlockEncoder.CONTENT_TYPE)) {
+        MessageCompression compression =
+          MessageCompression.parse(request.getHeader(RawMessageBlockEncoder.COMPRESSION_HEADER));
+        responder.sendContent(HttpResponseStatus.OK,
+                              new BlockMessagesBodyProducer(iterator, messageChunkSize, compression),
+                              ImmutableMultimap.of(HttpHeaders.Names.CONTENT_TYPE,
+                                                   RawMessageBlockEncoder.CONTENT_TYPE));
+        return;
+      }
       responder.sendContent(HttpResponseStatus.OK, new MessagesBodyProducer(iterator, messageChunkSize),
                             ImmutableMultimap.of(HttpHeaders.Names.CONTENT_TYPE, "avro/binary"));
     } catch (Throwable t) {
@@ -146,6 +251,50 @@ public final class FetchHandler extends AbstractHttpHandler {
     return fetcher.fetch();
   }
 
+  /**
+   * A parked long-poll request. It runs at most once, either when new messages are published to the topic or
+   * when the wait timed out, whichever comes first.
+   */
+  private final class PendingPoll implements Runnable {
+
+    private final HttpRequest request;
+    private final HttpResponder responder;
+    private final TopicId topicId;
+    private final GenericRecord fetchRequest;
+    private final ListenableFuture<TopicId> published;
+    private final AtomicBoolean completed;
+    private volatile ScheduledFuture<?> timeout;
+
+    PendingPoll(HttpRequest request, HttpResponder responder, TopicId topicId,
+                GenericRecord fetchRequest, ListenableFuture<TopicId> published) {
+      this.request = request;
+      this.responder = responder;
+      this.topicId = topicId;
+      this.fetchRequest = fetchRequest;
+      this.published = published;
+      this.completed = new AtomicBoolean();
+    }
+
+    @Override
+    public void run() {
+      if (!completed.compareAndSet(false, true)) {
+        return;
+      }
+      // Release the notification and timeout, whichever is still pending
+      published.cancel(false);
+      ScheduledFuture<?> timeout = this.timeout;
+      if (timeout != null) {
+        timeout.cancel(false);
+      }
+
+      try {
+        sendMessages(request, responder, fetchMessages(fetchRequest, topicId));
+      } catch (Throwable t) {
+        EXCEPTION_HANDLER.handle(t, request, responder);
+      }
+    }
+  }
+
   /**
    * A {@link BodyProducer} to encode and send back messages.
    * Instead of using GenericDatumWriter, we perform the array encoding manually so that we don't have to buffer
@@ -248,4 +397,72 @@ public final class FetchHandler extends AbstractHttpHandler {
       }
     }
   }
+
+  /**
+   * A {@link BodyProducer} to encode and send back messages in the binary block format,
+   * with each chunk containing one block.
+   */
+  private static final class BlockMessagesBodyProducer extends BodyProducer {
+
+    private final CloseableIterator<RawMessage> iterator;
+    private final List<RawMessage> messages;
+    private final int messageChunkSize;
+    private final ChannelBuffer chunk;
+    private final OutputStream output;
+    private final RawMessageBlockEncoder encoder;
+    private boolean ended;
+
+    BlockMessagesBodyProducer(CloseableIterator<RawMessage> iterator, int messageChunkSize,
+                              MessageCompression compression) {
+      this.iterator = iterator;
+      this.messages = new ArrayList<>();
+      this.messageChunkSize = messageChunkSize;
+      this.chunk = ChannelBuffers.dynamicBuffer(messageChunkSize);
+      this.output = new ChannelBufferOutputStream(chunk);
+      this.encoder = new RawMessageBlockEncoder(compression);
+    }
+
+    @Override
+    public ChannelBuffer nextChunk() throws Exception {
+      // Already sent all messages, return empty to signal the end of response
+      if (ended) {
+        return ChannelBuffers.EMPTY_BUFFER;
+      }
+
+      chunk.clear();
+
+      // Try to buffer up to buffer size
+      int size = 0;
+      messages.clear();
+      while (iterator.hasNext() && size < messageChunkSize) {
+        RawMessage message = iterator.next();
+        messages.add(message);
+        size += message.getId().length + message.getPayload().length;
+      }
+
+      if (!messages.isEmpty()) {
+        encoder.writeBlock(messages, output);
+      }
+      if (!iterator.hasNext()) {
+        ended = true;
+        encoder.writeEnd(output);
+      }
+      return chunk;
+    }
+
+    @Override
+    public void finished() throws Exception {
+      iterator.close();
+    }
+
+    @Override
+    public void handleError(@Nullable Throwable cause) {
+      iterator.close();
+      if (cause instanceof SocketException) {
+        LOG.debug("Socket exception raised when sending messages back to client", cause);
+      } else {
+        LOG.warn("Exception raised when sending messages back to client", cause);
+      }
+    }
+  }
 }
@@ -17,6 +17,7 @@
 package co.cask.cdap.messaging.server;
 
 import co.cask.cdap.common.BadRequestException;
+import co.cask.cdap.common.HttpExceptionHandler;
 import co.cask.cdap.common.io.ByteBuffers;
 import co.cask.cdap.messaging.MessagingService;
 import co.cask.cdap.messaging.RollbackDetail;
@@ -25,7 +26,10 @@ import co.cask.cdap.messaging.StoreRequest;
 import co.cask.cdap.proto.id.NamespaceId;
 import co.cask.cdap.proto.id.TopicId;
 import co.cask.http.AbstractHttpHandler;
+import co.cask.http.ExceptionHandler;
 import co.cask.http.HttpResponder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.inject.Inject;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
@@ -61,6 +65,9 @@ import javax.ws.rs.PathParam;
 @Path("/v1/namespaces/{namespace}/topics/{topic}")
 public final class StoreHandler extends AbstractHttpHandler {
 
+  // For handling failures of asynchronous publish and store, which are not propagated to the http service
+  private static final ExceptionHandler EXCEPTION_HANDLER = new HttpExceptionHandler();
+
   private final MessagingService messagingService;
 
   @Inject
@@ -70,7 +77,7 @@ public final class StoreHandler extends AbstractHttpHandler {
 
   @POST
   @Path("/publish")
-  public void publish(HttpRequest request, HttpResponder responder,
+  public void publish(final HttpRequest request, final HttpResponder responder,
                       @PathParam("namespace") String namespace,
                       @PathParam("topic") String topic) throws Exception {
 
@@ -83,20 +90,33 @@ public final class StoreHandler extends AbstractHttpHandler {
                                       + topicId);
     }
 
-    // Publish the message and response with the rollback information
-    RollbackDetail rollbackInfo = messagingService.publish(storeRequest);
-    if (rollbackInfo == null) {
-      // Non-tx publish doesn't have rollback info.
-      responder.sendStatus(HttpResponseStatus.OK);
-      return;
-    }
-    ChannelBuffer response = encodeRollbackDetail(rollbackInfo);
-    responder.sendContent(HttpResponseStatus.OK, response, "avro/binary", null);
+    // Publish the message asynchronously and response with the rollback information when it is completed,
+    // so that the handler thread is not blocked while the message is being persisted.
+    Futures.addCallback(messagingService.publishAsync(storeRequest), new FutureCallback<RollbackDetail>() {
+      @Override
+      public void onSuccess(@Nullable RollbackDetail rollbackInfo) {
+        if (rollbackInfo == null) {
+          // Non-tx publish doesn't have rollback info.
+          responder.sendStatus(HttpResponseStatus.OK);
+          return;
+        }
+        try {
+          responder.sendContent(HttpResponseStatus.OK, encodeRollbackDetail(rollbackInfo), "avro/binary", null);
+        } catch (IOException e) {
+          onFailure(e);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        EXCEPTION_HANDLER.handle(t, request, responder);
+      }
+    });
   }
 
   @POST
   @Path("/store")
-  public void store(HttpRequest request, HttpResponder responder,
+  public void store(final HttpRequest request, final HttpResponder responder,
                     @PathParam("namespace") String namespace,
                     @PathParam("topic") String topic) throws Exception {
 
@@ -108,8 +128,17 @@ public final class StoreHandler extends AbstractHttpHandler {
       throw new BadRequestException("Store request must be transactional with payload. Topic: " + topicId);
     }
 
-    messagingService.storePayload(storeRequest);
-    responder.sendStatus(HttpResponseStatus.OK);
+    Futures.addCallback(messagingService.storePayloadAsync(storeRequest), new FutureCallback<Void>() {
+      @Override
+      public void onSuccess(@Nullable Void result) {
+        responder.sendStatus(HttpResponseStatus.OK);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        EXCEPTION_HANDLER.handle(t, request, responder);
+      }
+    });
   }
 
   @POST
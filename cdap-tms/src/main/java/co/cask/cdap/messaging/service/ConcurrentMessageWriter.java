@@ -21,16 +21,32 @@ import co.cask.cdap.api.metrics.NoopMetricsContext;
 import co.cask.cdap.messaging.RollbackDetail;
 import co.cask.cdap.messaging.StoreRequest;
 import co.cask.cdap.messaging.TopicMetadata;
+import co.cask.cdap.proto.id.TopicId;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.twill.common.Threads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
@@ -38,35 +54,47 @@ import javax.annotation.concurrent.ThreadSafe;
 /**
  * Class to support writing to message/payload tables with high concurrency.
  *
- * It uses a non-blocking algorithm to batch writes from concurrent threads. The algorithm is the same as
- * the one used in ConcurrentStreamWriter.
- *
- * The algorithm is like this:
- *
- * When a thread that received a request, performs the following:
+ * It uses group commit to batch writes from concurrent threads. The algorithm is like this:
  *
  * <pre>
- * 1. Constructs a PendingStoreRequest locally and enqueue it to a ConcurrentLinkedQueue.
- * 2. Use CAS to set an AtomicBoolean flag to true.
- * 3. If successfully set the flag to true, this thread becomes the writer and proceed to run step 4-7.
- * 4. Provides an Iterator of PendingStoreRequest, which consumes from the ConcurrentLinkedQueue mentioned in step 1.
- * 5. The message table store method will consume the Iterator until it is empty
- * 6. Set the state of each PendingStoreRequest that are written to COMPLETED (succeed/failure).
- * 7. Set the AtomicBoolean flag back to false.
- * 8. If the PendingStoreRequest enqueued by this thread is NOT COMPLETED, go back to step 2.
+ * 1. A thread that received a request constructs a PendingStoreRequest and enqueues it to a BlockingQueue.
+ * 2. The thread then parks on the completion future of the PendingStoreRequest.
+ * 3. If no flush of this writer is scheduled, the thread schedules one on the flusher executor, which is shared by
+ *    the writers of all topics. The flush takes the first PendingStoreRequest from the queue. It then keeps
+ *    collecting requests from the queue until the batch reaches the max batch size or the linger time of the first
+ *    request has passed, whichever comes first.
+ * 4. The whole batch is written with the StoreRequestWriter in one call.
+ * 5. Each PendingStoreRequest in the batch is completed (succeed/failure), which wakes up the waiting threads.
+ * 6. If more requests are in the queue, another flush is scheduled, so that the executor threads are shared
+ *    fairly among topics.
  * </pre>
  *
- * The spin lock between step 2 to step 8 is necessary as it guarantees events enqueued by all threads would eventually
- * get written and flushed.
+ * Requests enqueued while a batch is being written are picked up as the next batch, hence the batch size
+ * grows naturally with the write concurrency, even without any linger time.
  */
 @ThreadSafe
 final class ConcurrentMessageWriter implements Closeable {
 
+  private static final Logger LOG = LoggerFactory.getLogger(ConcurrentMessageWriter.class);
+
+  @VisibleForTesting
+  static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
   private final StoreRequestWriter<?> messagesWriter;
   private final MetricsCollector metricsCollector;
-  private final PendingStoreQueue pendingStoreQueue;
-  private final AtomicBoolean writerFlag;
+  private final BlockingQueue<PendingStoreRequest> writeQueue;
+  private final int maxBatchSize;
+  private final long lingerNanos;
+  private final LatencyStats latencyStats;
+  private final PublishNotifier publishNotifier;
+  private final Executor flushExecutor;
+  // The executor created by this instance, which is shut down on close, or null if the executor is shared
+  private final ExecutorService ownedExecutor;
+  private final Flusher flusher;
+  private final AtomicBoolean flushScheduled;
   private final AtomicBoolean closed;
+  private final AtomicBoolean writerClosed;
+  private final SettableFuture<Void> closeCompletion;
 
   /**
    * Constructor with a {@link NoopMetricsContext}. This constructor should only be used in unit-testing.
@@ -76,18 +104,62 @@ final class ConcurrentMessageWriter implements Closeable {
     this(messagesWriter, new NoopMetricsContext());
   }
 
+  /**
+   * Constructor with default max batch size and no linger time. This constructor should only be used
+   * in unit-testing.
+   */
+  @VisibleForTesting
+  ConcurrentMessageWriter(StoreRequestWriter<?> messagesWriter, MetricsCollector metricsCollector) {
+    this(messagesWriter, metricsCollector, "concurrent-message-writer", DEFAULT_MAX_BATCH_SIZE, 0L);
+  }
+
+  /**
+   * Constructor with a flusher thread owned by the writer and without {@link PublishNotifier}.
+   * This constructor should only be used in unit-testing.
+   */
+  @VisibleForTesting
+  ConcurrentMessageWriter(StoreRequestWriter<?> messagesWriter, MetricsCollector metricsCollector,
+                          String name, int maxBatchSize, long lingerMillis) {
+    this(messagesWriter, metricsCollector, maxBatchSize, lingerMillis, null,
+         Executors.newSingleThreadExecutor(Threads.createDaemonThreadFactory(name)), true);
+  }
+
   /**
    * Constructor.
    *
    * @param messagesWriter the {@link StoreRequestWriter} for persisting {@link StoreRequest}.
    * @param metricsCollector the {@link MetricsCollector} for collecting metrics emitted by this class.
+   * @param maxBatchSize maximum number of {@link StoreRequest} to be written in one batch
+   * @param lingerMillis maximum time in milliseconds that a request waits for more requests to join the batch
+   * @param publishNotifier an optional {@link PublishNotifier} to notify after each successful batch write
+   * @param flushExecutor the {@link Executor} for writing batches, which can be shared by multiple writers
    */
-  ConcurrentMessageWriter(StoreRequestWriter<?> messagesWriter, MetricsCollector metricsCollector) {
+  ConcurrentMessageWriter(StoreRequestWriter<?> messagesWriter, MetricsCollector metricsCollector,
+                          int maxBatchSize, long lingerMillis,
+                          @Nullable PublishNotifier publishNotifier, Executor flushExecutor) {
+    this(messagesWriter, metricsCollector, maxBatchSize, lingerMillis, publishNotifier, flushExecutor, false);
+  }
+
+  private ConcurrentMessageWriter(StoreRequestWriter<?> messagesWriter, MetricsCollector metricsCollector,
+                                  int maxBatchSize, long lingerMillis, @Nullable PublishNotifier publishNotifier,
+                                  Executor flushExecutor, boolean ownExecutor) {
+    Preconditions.checkArgument(maxBatchSize > 0, "Max batch size must be positive: %s", maxBatchSize);
+    Preconditions.checkArgument(lingerMillis >= 0, "Linger time must not be negative: %s", lingerMillis);
+
     this.messagesWriter = messagesWriter;
     this.metricsCollector = metricsCollector;
-    this.pendingStoreQueue = new PendingStoreQueue(metricsCollector);
-    this.writerFlag = new AtomicBoolean();
+    this.writeQueue = new LinkedBlockingQueue<>();
+    this.maxBatchSize = maxBatchSize;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    this.latencyStats = new LatencyStats();
+    this.publishNotifier = publishNotifier;
+    this.flushExecutor = flushExecutor;
+    this.ownedExecutor = ownExecutor ? (ExecutorService) flushExecutor : null;
+    this.flusher = new Flusher();
+    this.flushScheduled = new AtomicBoolean();
     this.closed = new AtomicBoolean();
+    this.writerClosed = new AtomicBoolean();
+    this.closeCompletion = SettableFuture.create();
   }
 
   /**
@@ -102,130 +174,264 @@ final class ConcurrentMessageWriter implements Closeable {
    */
   @Nullable
   RollbackDetail persist(StoreRequest storeRequest, TopicMetadata metadata) throws IOException {
+    try {
+      return Uninterruptibles.getUninterruptibly(persistAsync(storeRequest, metadata));
+    } catch (ExecutionException e) {
+      // The future returned by persistAsync always fails with IOException
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Persists the given {@link StoreRequest} to the {@link StoreRequestWriter} in this class asynchronously.
+   * The {@link StoreRequest} will be written by a flush on the flusher executor. This method is safe to be called
+   * concurrently from multiple threads.
+   *
+   * @param storeRequest contains information about payload to be store
+   * @param metadata {@link TopicMetadata} for the topic in the {@link StoreRequest}
+   * @return a {@link ListenableFuture} that will be completed when the request is persisted. If the store request
+   *         is transactional, the future carries a {@link RollbackDetail} containing information for rollback;
+   *         otherwise it carries {@code null}. The future fails with {@link IOException} if failed to persist the data.
+   */
+  ListenableFuture<RollbackDetail> persistAsync(final StoreRequest storeRequest, TopicMetadata metadata) {
     if (closed.get()) {
-      throw new IOException("Message writer is already closed");
+      return Futures.immediateFailedFuture(new IOException("Message writer is already closed"));
     }
 
     PendingStoreRequest pendingStoreRequest = new PendingStoreRequest(storeRequest, metadata);
-    pendingStoreQueue.enqueue(pendingStoreRequest);
+    writeQueue.add(pendingStoreRequest);
 
     metricsCollector.increment("persist.requested", 1L);
 
-    while (!pendingStoreRequest.isCompleted()) {
-      if (!tryWrite()) {
-        Thread.yield();
-      }
+    // If the writer got closed concurrently, the request might be enqueued after the final drain of the queue.
+    // If the request can be removed from the queue, no one else is going to complete it.
+    if (closed.get() && writeQueue.remove(pendingStoreRequest)) {
+      return Futures.immediateFailedFuture(new IOException("Message writer is already closed"));
     }
+    scheduleFlush();
+
+    return Futures.transform(pendingStoreRequest.getCompletion(),
+                             new AsyncFunction<PendingStoreRequest, RollbackDetail>() {
+      @Override
+      public ListenableFuture<RollbackDetail> apply(PendingStoreRequest request) {
+        if (!request.isSuccess()) {
+          metricsCollector.increment("persist.failure", 1L);
+          Throwable cause = request.getFailureCause();
+          return Futures.immediateFailedFuture(
+            cause instanceof IOException
+              ? cause
+              : new IOException("Unable to write message to " + storeRequest.getTopicId(), cause));
+        }
 
-    if (pendingStoreRequest.isSuccess()) {
-      metricsCollector.increment("persist.success", 1L);
-      if (!pendingStoreRequest.isTransactional()) {
-        return null;
+        metricsCollector.increment("persist.success", 1L);
+        if (!request.isTransactional()) {
+          return Futures.immediateFuture(null);
+        }
+        return Futures.<RollbackDetail>immediateFuture(
+          new SimpleRollbackDetail(request.getTransactionWritePointer(),
+                                   request.getStartTimestamp(), request.getStartSequenceId(),
+                                   request.getEndTimestamp(), request.getEndSequenceId()));
       }
-      return new SimpleRollbackDetail(pendingStoreRequest.getTransactionWritePointer(),
-                                      pendingStoreRequest.getStartTimestamp(), pendingStoreRequest.getStartSequenceId(),
-                                      pendingStoreRequest.getEndTimestamp(), pendingStoreRequest.getEndSequenceId());
-    } else {
-      metricsCollector.increment("persist.failure", 1L);
-      Throwables.propagateIfInstanceOf(pendingStoreRequest.getFailureCause(), IOException.class);
-      throw new IOException("Unable to write message to " + storeRequest.getTopicId(),
-                            pendingStoreRequest.getFailureCause());
-    }
+    });
   }
 
   /**
-   * Tries to acquire the writer flag and persist the pending requests.
+   * Closes this writer without blocking. Requests already enqueued are written out by the flusher executor,
+   * after which the underlying {@link StoreRequestWriter} is closed.
    *
-   * @return {@code true} if acquired the writer flag and called {@link PendingStoreQueue#persist(StoreRequestWriter)};
-   *         otherwise {@code false} will be returned.
+   * @return a {@link ListenableFuture} that completes when the underlying {@link StoreRequestWriter} is closed
    */
-  private boolean tryWrite() {
-    if (!writerFlag.compareAndSet(false, true)) {
-      return false;
+  ListenableFuture<Void> closeAsync() {
+    if (closed.compareAndSet(false, true)) {
+      // The last flush closes the underlying writer once the queue is drained
+      scheduleFlush();
     }
-    try {
-      pendingStoreQueue.persist(messagesWriter);
-    } finally {
-      writerFlag.set(false);
-    }
-    return true;
+    return closeCompletion;
   }
 
+  /**
+   * Closes this writer and waits for the pending requests to be written and the underlying
+   * {@link StoreRequestWriter} to be closed.
+   */
   @Override
   public void close() throws IOException {
-    if (!closed.compareAndSet(false, true)) {
+    try {
+      Uninterruptibles.getUninterruptibly(closeAsync());
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Schedules a flush on the flusher executor if there is none scheduled. At most one flush of this writer runs
+   * at a time. If the executor is shut down, the flush runs in the calling thread.
+   */
+  private void scheduleFlush() {
+    if (!flushScheduled.compareAndSet(false, true)) {
       return;
     }
-    // Flush everything in the queue.
-    // When this thread can grab the writer flag, all pending write requests must be completed since the closed
-    // flag was already set to false.
-    while (!tryWrite()) {
-      Thread.yield();
+    try {
+      flushExecutor.execute(flusher);
+    } catch (RejectedExecutionException e) {
+      flusher.run();
     }
-    messagesWriter.close();
   }
 
   /**
-   * A resettable {@link Iterator} to provide {@link StoreRequest} to {@link StoreRequestWriter}.
-   * Except the {@link #enqueue(PendingStoreRequest)} method, all methods on this class can only be
-   * called while holding the writer flag.
+   * Closes the underlying {@link StoreRequestWriter} once, after the last request is written.
    */
-  private static final class PendingStoreQueue {
+  private void closeWriter() {
+    if (!writerClosed.compareAndSet(false, true)) {
+      return;
+    }
+    // Fail the requests that were enqueued after the final flush.
+    List<PendingStoreRequest> remaining = new ArrayList<>();
+    writeQueue.drainTo(remaining);
+    IOException failure = new IOException("Message writer is already closed");
+    for (PendingStoreRequest request : remaining) {
+      request.completed(failure);
+    }
+    try {
+      messagesWriter.close();
+      closeCompletion.set(null);
+    } catch (Throwable t) {
+      closeCompletion.setException(t);
+    } finally {
+      if (ownedExecutor != null) {
+        ownedExecutor.shutdown();
+      }
+    }
+  }
 
-    private final MetricsCollector metricsCollector;
-    private final Queue<PendingStoreRequest> writeQueue;
-    private final List<PendingStoreRequest> inflightRequests;
+  /**
+   * The {@link Runnable} for writing one batch of pending requests. It reschedules itself as long as there are
+   * pending requests, and closes the underlying writer when this writer is closed and there is nothing left.
+   */
+  private final class Flusher implements Runnable {
+
+    private final List<PendingStoreRequest> batch = new ArrayList<>(100);
 
-    private PendingStoreQueue(MetricsCollector metricsCollector) {
-      this.metricsCollector = metricsCollector;
-      this.writeQueue = new ConcurrentLinkedQueue<>();
-      this.inflightRequests = new ArrayList<>(100);
+    @Override
+    public void run() {
+      try {
+        PendingStoreRequest request = writeQueue.poll();
+        if (request != null) {
+          batch.add(request);
+          fillBatch(request.getEnqueueNanos() + lingerNanos);
+          writeBatch();
+        }
+      } catch (Throwable t) {
+        LOG.error("Unexpected exception when writing messages", t);
+      } finally {
+        flushScheduled.set(false);
+        if (!writeQueue.isEmpty()) {
+          scheduleFlush();
+        } else if (closed.get()) {
+          closeWriter();
+        }
+      }
     }
 
     /**
-     * Puts the given {@link PendingStoreRequest} to the concurrent queue.
+     * Collects more pending requests into the current batch, waiting until the given deadline for
+     * new requests to arrive as long as the batch is not full.
      */
-    void enqueue(PendingStoreRequest storeRequest) {
-      writeQueue.add(storeRequest);
+    private void fillBatch(long deadlineNanos) {
+      writeQueue.drainTo(batch, maxBatchSize - batch.size());
+
+      long waitNanos = deadlineNanos - System.nanoTime();
+      while (batch.size() < maxBatchSize && waitNanos > 0) {
+        PendingStoreRequest request;
+        try {
+          request = writeQueue.poll(waitNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+          // Write out the current batch without waiting for more requests
+          Thread.currentThread().interrupt();
+          return;
+        }
+        if (request == null) {
+          return;
+        }
+        batch.add(request);
+        writeQueue.drainTo(batch, maxBatchSize - batch.size());
+        waitNanos = deadlineNanos - System.nanoTime();
+      }
     }
 
     /**
-     * Persists all {@link PendingStoreRequest} currently in the queue with the given writer.
+     * Writes all requests in the current batch and completes them.
      */
-    void persist(StoreRequestWriter<?> writer) {
-      // Capture all current events.
-      // The reason for capturing instead of using a live iterator is to avoid the possible case of infinite write
-      // time. E.g. while generating the entry to write to the storage table, a new store request get enqueued.
-      // The number of requests in the queue is bounded by the number of threads that call this method.
-      // Since this method is expected to be called (indirectly) from a http handler thread, that is bounded by
-      // the thread pool size used by the http service.
-      inflightRequests.clear();
-      PendingStoreRequest request = writeQueue.poll();
-      while (request != null) {
-        inflightRequests.add(request);
-        request = writeQueue.poll();
-      }
-
-      metricsCollector.gauge("persist.queue.size", inflightRequests.size());
+    private void writeBatch() {
+      metricsCollector.gauge("persist.batch.size", batch.size());
+      metricsCollector.gauge("persist.queue.size", writeQueue.size());
 
+      Throwable failureCause = null;
       try {
-        writer.write(inflightRequests.iterator());
-        completeAll(null);
+        messagesWriter.write(batch.iterator());
       } catch (Throwable t) {
-        completeAll(t);
+        failureCause = t;
+      }
+
+      long now = System.nanoTime();
+      for (PendingStoreRequest request : batch) {
+        latencyStats.add(now - request.getEnqueueNanos());
+        request.completed(failureCause);
       }
+      if (failureCause == null && publishNotifier != null) {
+        notifyPublished(batch);
+      }
+      batch.clear();
+      latencyStats.report(now);
     }
+  }
 
-    /**
-     * Marks all inflight requests as collected through the {@link Iterator#next()} method as completed.
-     * This method must be called while holding the writer flag.
-     */
-    void completeAll(@Nullable Throwable failureCause) {
-      Iterator<PendingStoreRequest> iterator = inflightRequests.iterator();
-      while (iterator.hasNext()) {
-        iterator.next().completed(failureCause);
-        iterator.remove();
+  /**
+   * Notifies the {@link PublishNotifier} for topics in the given batch. Normally all requests in a batch are
+   * for the same topic, since a writer is created per topic.
+   */
+  private void notifyPublished(List<PendingStoreRequest> requests) {
+    TopicId lastTopicId = null;
+    for (PendingStoreRequest request : requests) {
+      TopicId topicId = request.getTopicId();
+      if (!topicId.equals(lastTopicId)) {
+        publishNotifier.published(topicId);
+        lastTopicId = topicId;
+      }
+    }
+  }
+
+  /**
+   * Collects the commit latency of requests, measured from when a request is enqueued until it is completed,
+   * and periodically emits the percentiles as gauge metrics. This class is only used by one flush at a time.
+   */
+  private final class LatencyStats {
+
+    private static final int MAX_SAMPLES = 1024;
+
+    private final long reportIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+    private final long[] samples = new long[MAX_SAMPLES];
+    private int count;
+    private long lastReportNanos = System.nanoTime();
+
+    void add(long latencyNanos) {
+      // Keep the most recent samples if there are more than MAX_SAMPLES requests within one report interval
+      samples[count++ % MAX_SAMPLES] = latencyNanos;
+    }
+
+    void report(long now) {
+      if (count == 0 || now - lastReportNanos < reportIntervalNanos) {
+        return;
       }
+      int size = Math.min(count, MAX_SAMPLES);
+      Arrays.sort(samples, 0, size);
+      metricsCollector.gauge("persist.latency.p50.us", TimeUnit.NANOSECONDS.toMicros(samples[(size - 1) / 2]));
+      metricsCollector.gauge("persist.latency.p99.us",
+                             TimeUnit.NANOSECONDS.toMicros(samples[(int) Math.ceil(size * 0.99) - 1]));
+      metricsCollector.gauge("persist.latency.max.us", TimeUnit.NANOSECONDS.toMicros(samples[size - 1]));
+      count = 0;
+      lastReportNanos = now;
     }
   }
 
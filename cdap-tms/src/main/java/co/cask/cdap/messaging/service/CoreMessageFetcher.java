@@ -16,6 +16,7 @@
 
 package co.cask.cdap.messaging.service;
 
+import co.cask.cdap.api.dataset.lib.AbstractCloseableIterator;
 import co.cask.cdap.api.dataset.lib.CloseableIterator;
 import co.cask.cdap.messaging.MessageFetcher;
 import co.cask.cdap.messaging.TopicMetadata;
@@ -25,12 +26,17 @@ import co.cask.cdap.messaging.store.MessageTable;
 import co.cask.cdap.messaging.store.PayloadTable;
 import co.cask.cdap.proto.id.TopicId;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.annotation.Nullable;
 
 /**
@@ -44,20 +50,100 @@ final class CoreMessageFetcher extends MessageFetcher {
   private final TopicMetadata topicMetadata;
   private final TableProvider<MessageTable> messageTableProvider;
   private final TableProvider<PayloadTable> payloadTableProvider;
+  private final PublishNotifier publishNotifier;
+  private final MessageTailCache tailCache;
 
   CoreMessageFetcher(TopicMetadata topicMetadata,
                      TableProvider<MessageTable> messageTableProvider,
-                     TableProvider<PayloadTable> payloadTableProvider) {
+                     TableProvider<PayloadTable> payloadTableProvider,
+                     PublishNotifier publishNotifier,
+                     @Nullable MessageTailCache tailCache) {
     this.topicMetadata = topicMetadata;
     this.messageTableProvider = messageTableProvider;
     this.payloadTableProvider = payloadTableProvider;
+    this.publishNotifier = publishNotifier;
+    this.tailCache = tailCache;
   }
 
   @Override
   public CloseableIterator<RawMessage> fetch() throws IOException {
+    long waitTimeoutMillis = getWaitTimeoutMillis();
+    if (waitTimeoutMillis <= 0) {
+      return fetchMessages();
+    }
+
+    // Register for the publish notification before fetching, so that messages published right after
+    // the fetch will not be missed.
+    ListenableFuture<TopicId> published = publishNotifier.awaitPublish(topicMetadata.getTopicId());
+    try {
+      CloseableIterator<RawMessage> iterator = fetchMessages();
+      if (iterator.hasNext()) {
+        return iterator;
+      }
+      iterator.close();
+
+      // Wait for new messages to be published and fetch again
+      try {
+        published.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        // No new message, the fetch below will return an empty iterator (unless it races with a publish)
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // Shouldn't happen since the future never fails
+        LOG.debug("Unexpected failure when waiting for messages published to {}", topicMetadata.getTopicId(), e);
+      }
+      return fetchMessages();
+    } finally {
+      published.cancel(false);
+    }
+  }
+
+  /**
+   * Creates a {@link CloseableIterator} to fetch messages. Message table entries are served from the
+   * {@link MessageTailCache} if it contains all entries starting from the fetch start position,
+   * otherwise they are fetched from the message table.
+   */
+  private CloseableIterator<RawMessage> fetchMessages() throws IOException {
+    int messageLimit = getLimit();
+    long ttl = topicMetadata.getTTL();
+    MessageId startOffset = getStartOffset() == null ? null : new MessageId(getStartOffset());
+    Long startTime = getStartTime();
+
+    // Lower bound of messages that are still valid
+    long smallestPublishTime = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ttl);
+
+    // If there is no startOffset or if the publish time in the startOffset is smaller then TTL,
+    // do the scanning based on time. The smallest start time should be the currentTime - TTL.
+    // Otherwise, start scanning based on the start message id. If the message ID refers to payload table,
+    // scan the message table with the reference message ID inclusively.
+    boolean timeBased = startOffset == null || startOffset.getPublishTimestamp() < smallestPublishTime;
+    long fetchStartTime = Math.max(smallestPublishTime, startTime == null ? smallestPublishTime : startTime);
+    boolean inclusive = timeBased || startOffset.getPayloadWriteTimestamp() != 0L || isIncludeStart();
+
+    if (tailCache != null) {
+      List<MessageTable.Entry> entries = timeBased
+        ? tailCache.fetch(topicMetadata, fetchStartTime, (short) 0, true, messageLimit, getTransaction())
+        : tailCache.fetch(topicMetadata, startOffset.getPublishTimestamp(), startOffset.getSequenceId(),
+                          inclusive, messageLimit, getTransaction());
+      if (entries != null) {
+        return new MessageCloseableIterator(null, new CachedEntryIterator(entries.iterator()));
+      }
+    }
+
     MessageTable messageTable = messageTableProvider.get();
     try {
-      return new MessageCloseableIterator(messageTable);
+      CloseableIterator<MessageTable.Entry> messageIterator;
+      if (timeBased) {
+        messageIterator = messageTable.fetch(topicMetadata, fetchStartTime, messageLimit, getTransaction());
+      } else if (startOffset.getPayloadWriteTimestamp() != 0L) {
+        messageIterator = messageTable.fetch(topicMetadata, createMessageTableMessageId(startOffset),
+                                             true, messageLimit, getTransaction());
+      } else {
+        messageIterator = messageTable.fetch(topicMetadata, startOffset, isIncludeStart(),
+                                             messageLimit, getTransaction());
+      }
+      return new MessageCloseableIterator(messageTable, messageIterator);
     } catch (Throwable t) {
       closeQuietly(messageTable);
       throw t;
@@ -107,6 +193,28 @@ final class CoreMessageFetcher extends MessageFetcher {
     }
   }
 
+  /**
+   * A {@link CloseableIterator} of {@link MessageTable.Entry} over entries fetched from the {@link MessageTailCache}.
+   */
+  private static final class CachedEntryIterator extends AbstractCloseableIterator<MessageTable.Entry> {
+
+    private final Iterator<MessageTable.Entry> entries;
+
+    CachedEntryIterator(Iterator<MessageTable.Entry> entries) {
+      this.entries = entries;
+    }
+
+    @Override
+    protected MessageTable.Entry computeNext() {
+      return entries.hasNext() ? entries.next() : endOfData();
+    }
+
+    @Override
+    public void close() {
+      // No-op
+    }
+  }
+
   /**
    * A {@link CloseableIterator} of {@link RawMessage} implementation that contains the core message fetching logic
    * by combine scanning on both {@link MessageTable} and {@link PayloadTable}.
@@ -123,37 +231,13 @@ final class CoreMessageFetcher extends MessageFetcher {
     private int messageLimit;
     private PayloadTable payloadTable;
 
-    MessageCloseableIterator(MessageTable messageTable) throws IOException {
+    MessageCloseableIterator(@Nullable MessageTable messageTable,
+                             CloseableIterator<MessageTable.Entry> messageIterator) {
       this.topicId = topicMetadata.getTopicId();
       this.messageTable = messageTable;
+      this.messageIterator = messageIterator;
       this.inclusive = isIncludeStart();
       this.messageLimit = getLimit();
-
-      long ttl = topicMetadata.getTTL();
-      MessageId startOffset = getStartOffset() == null ? null : new MessageId(getStartOffset());
-      Long startTime = getStartTime();
-
-      // Lower bound of messages that are still valid
-      long smallestPublishTime = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ttl);
-
-      CloseableIterator<MessageTable.Entry> messageIterator;
-      // If there is no startOffset or if the publish time in the startOffset is smaller then TTL,
-      // do the scanning based on time. The smallest start time should be the currentTime - TTL.
-      if (startOffset == null || startOffset.getPublishTimestamp() < smallestPublishTime) {
-        long fetchStartTime = Math.max(smallestPublishTime, startTime == null ? smallestPublishTime : startTime);
-        messageIterator = messageTable.fetch(topicMetadata, fetchStartTime, messageLimit, getTransaction());
-      } else {
-        // Start scanning based on the start message id
-        if (startOffset.getPayloadWriteTimestamp() != 0L) {
-          // This message ID refer to payload table. Scan the message table with the reference message ID inclusively.
-          messageIterator = messageTable.fetch(topicMetadata, createMessageTableMessageId(startOffset),
-                                               true, messageLimit, getTransaction());
-        } else {
-          messageIterator = messageTable.fetch(topicMetadata, startOffset, isIncludeStart(),
-                                               messageLimit, getTransaction());
-        }
-      }
-      this.messageIterator = messageIterator;
     }
 
     @Override
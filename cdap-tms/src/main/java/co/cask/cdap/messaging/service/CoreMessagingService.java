@@ -36,7 +36,10 @@ import co.cask.cdap.messaging.store.TableFactory;
 import co.cask.cdap.proto.id.NamespaceId;
 import co.cask.cdap.proto.id.TopicId;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Functions;
 import com.google.common.base.Objects;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -45,6 +48,9 @@ import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
 import org.apache.twill.common.Threads;
 import org.slf4j.Logger;
@@ -59,8 +65,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
@@ -81,18 +90,25 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
   private final LoadingCache<TopicId, ConcurrentMessageWriter> payloadTableWriterCache;
   private final TimeProvider timeProvider;
   private final MetricsCollectionService metricsCollectionService;
+  private final PublishNotifier publishNotifier;
+  private final MessageTailCache messageTailCache;
+  // Shared by the message writers of all topics for writing batches to the tables
+  private final ExecutorService writerFlushExecutor;
 
   @Inject
   CoreMessagingService(CConfiguration cConf, TableFactory tableFactory,
-                       MetricsCollectionService metricsCollectionService) {
-    this(cConf, tableFactory, TimeProvider.SYSTEM_TIME, metricsCollectionService);
+                       MetricsCollectionService metricsCollectionService, PublishNotifier publishNotifier) {
+    this(cConf, tableFactory, TimeProvider.SYSTEM_TIME, metricsCollectionService, publishNotifier);
   }
 
   @VisibleForTesting
   CoreMessagingService(CConfiguration cConf, TableFactory tableFactory, TimeProvider timeProvider,
-                       MetricsCollectionService metricsCollectionService) {
+                       MetricsCollectionService metricsCollectionService, PublishNotifier publishNotifier) {
     this.cConf = cConf;
     this.tableFactory = tableFactory;
+    this.publishNotifier = publishNotifier;
+    this.messageTailCache = createMessageTailCache(cConf);
+    this.writerFlushExecutor = createWriterFlushExecutor(cConf);
     this.topicCache = createTopicCache();
     this.messageTableWriterCache = createTableWriterCache(true, cConf);
     this.payloadTableWriterCache = createTableWriterCache(false, cConf);
@@ -126,6 +142,7 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
       properties.putAll(topicMetadata.getProperties());
       metadataTable.updateTopic(new TopicMetadata(topicMetadata.getTopicId(), properties, true));
       topicCache.invalidate(topicMetadata.getTopicId());
+      invalidateTailCache(topicMetadata.getTopicId());
     }
   }
 
@@ -136,6 +153,7 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
       topicCache.invalidate(topicId);
       messageTableWriterCache.invalidate(topicId);
       payloadTableWriterCache.invalidate(topicId);
+      invalidateTailCache(topicId);
     }
   }
 
@@ -170,7 +188,7 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
       public PayloadTable get() throws IOException {
         return createPayloadTable(metadata);
       }
-    });
+    }, publishNotifier, messageTailCache);
   }
 
   @Nullable
@@ -186,6 +204,19 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
     }
   }
 
+  @Override
+  public ListenableFuture<RollbackDetail> publishAsync(StoreRequest request)
+    throws TopicNotFoundException, IOException {
+    try {
+      TopicMetadata metadata = topicCache.get(request.getTopicId());
+      return messageTableWriterCache.get(request.getTopicId()).persistAsync(request, metadata);
+    } catch (ExecutionException e) {
+      Throwable cause = Objects.firstNonNull(e.getCause(), e);
+      Throwables.propagateIfPossible(cause, TopicNotFoundException.class, IOException.class);
+      throw Throwables.propagate(e);
+    }
+  }
+
   @Override
   public void storePayload(StoreRequest request) throws TopicNotFoundException, IOException {
     try {
@@ -198,6 +229,19 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
     }
   }
 
+  @Override
+  public ListenableFuture<Void> storePayloadAsync(StoreRequest request) throws TopicNotFoundException, IOException {
+    try {
+      TopicMetadata metadata = topicCache.get(request.getTopicId());
+      return Futures.transform(payloadTableWriterCache.get(request.getTopicId()).persistAsync(request, metadata),
+                               Functions.<Void>constant(null));
+    } catch (ExecutionException e) {
+      Throwable cause = Objects.firstNonNull(e.getCause(), e);
+      Throwables.propagateIfPossible(cause, TopicNotFoundException.class, IOException.class);
+      throw Throwables.propagate(e);
+    }
+  }
+
   @Override
   public void rollback(TopicId topicId, RollbackDetail rollbackDetail) throws TopicNotFoundException, IOException {
     TopicMetadata metadata = getTopic(topicId);
@@ -207,6 +251,9 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
       messageTable.rollback(metadata, rollbackDetail);
     } catch (Exception e) {
       failure = e;
+    } finally {
+      // Rolled back entries are marked in the message table, hence need to remove the cached ones
+      invalidateTailCache(topicId);
     }
 
     // Throw if there is any failure in rollback.
@@ -288,6 +335,12 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
     messageTableWriterCache.invalidateAll();
     messageTableWriterCache.invalidateAll();
     payloadTableWriterCache.invalidateAll();
+
+    // Let the writers closed above write out the pending requests
+    writerFlushExecutor.shutdown();
+    if (!writerFlushExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+      LOG.warn("Timeout when waiting for pending messages to be written");
+    }
     LOG.info("Core Messaging Service stopped");
   }
 
@@ -335,6 +388,45 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
     }
   }
 
+  /**
+   * Removes cached messages of the given topic from the {@link MessageTailCache}.
+   */
+  private void invalidateTailCache(TopicId topicId) {
+    if (messageTailCache != null) {
+      messageTailCache.invalidate(topicId);
+    }
+  }
+
+  /**
+   * Creates a {@link MessageTailCache} for serving fetches of recently published messages. Returns {@code null}
+   * if the cache is disabled, or if there are more than one messaging service instance, since in that case
+   * messages published through other instances won't be in the cache.
+   */
+  @Nullable
+  private MessageTailCache createMessageTailCache(final CConfiguration cConf) {
+    long maxTopicBytes = cConf.getLong(Constants.MessagingSystem.TAIL_CACHE_TOPIC_MAX_BYTES);
+    int maxTopics = cConf.getInt(Constants.MessagingSystem.TAIL_CACHE_MAX_TOPICS);
+    int instances = cConf.getInt(Constants.MessagingSystem.CONTAINER_INSTANCES, 1);
+    if (maxTopicBytes <= 0 || maxTopics <= 0) {
+      return null;
+    }
+    if (instances > 1) {
+      LOG.info("Message tail cache is disabled since there are {} messaging service instances", instances);
+      return null;
+    }
+
+    // The metrics context is created lazily due to the circular dependency described in the constructor
+    return new MessageTailCache(maxTopicBytes, maxTopics, Suppliers.memoize(new Supplier<MetricsContext>() {
+      @Override
+      public MetricsContext get() {
+        return metricsCollectionService.getContext(ImmutableMap.of(
+          Constants.Metrics.Tag.COMPONENT, Constants.Service.MESSAGING_SERVICE,
+          Constants.Metrics.Tag.INSTANCE_ID, cConf.get(Constants.MessagingSystem.CONTAINER_INSTANCE_ID, "0")
+        ));
+      }
+    }));
+  }
+
   /**
    * Creates a loading cache for {@link TopicMetadata}.
    */
@@ -361,20 +453,31 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
   private LoadingCache<TopicId, ConcurrentMessageWriter> createTableWriterCache(final boolean messageTable,
                                                                                 final CConfiguration cConf) {
     long expireSecs = cConf.getLong(Constants.MessagingSystem.TABLE_CACHE_EXPIRATION_SECONDS);
+    final int maxBatchSize = cConf.getInt(Constants.MessagingSystem.WRITER_MAX_BATCH_SIZE);
+    final long lingerMillis = cConf.getLong(Constants.MessagingSystem.WRITER_LINGER_MS);
 
     return CacheBuilder.newBuilder()
       .expireAfterAccess(expireSecs, TimeUnit.SECONDS)
       .removalListener(new RemovalListener<TopicId, ConcurrentMessageWriter>() {
         @Override
-        public void onRemoval(RemovalNotification<TopicId, ConcurrentMessageWriter> notification) {
+        public void onRemoval(final RemovalNotification<TopicId, ConcurrentMessageWriter> notification) {
           ConcurrentMessageWriter writer = notification.getValue();
-          if (writer != null) {
-            try {
-              writer.close();
-            } catch (IOException e) {
-              LOG.warn("Exception raised when closing message writer for topic {}", notification.getKey(), e);
-            }
+          if (writer == null) {
+            return;
           }
+          // Don't block the cache operation that triggered the eviction. Pending requests are written out and
+          // the writer is closed by the flusher executor.
+          Futures.addCallback(writer.closeAsync(), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+              // No-op
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              LOG.warn("Exception raised when closing message writer for topic {}", notification.getKey(), t);
+            }
+          });
         }
       })
       .build(new CacheLoader<TopicId, ConcurrentMessageWriter>() {
@@ -382,7 +485,7 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
         public ConcurrentMessageWriter load(TopicId topicId) throws Exception {
           TopicMetadata metadata = getTopic(topicId);
           StoreRequestWriter<?> messagesWriter = messageTable
-            ? new MessageTableStoreRequestWriter(createMessageTable(metadata), timeProvider)
+            ? new MessageTableStoreRequestWriter(createMessageTable(metadata), timeProvider, messageTailCache)
             : new PayloadTableStoreRequestWriter(createPayloadTable(metadata), timeProvider);
 
           MetricsContext metricsContext = metricsCollectionService.getContext(ImmutableMap.of(
@@ -392,11 +495,27 @@ public class CoreMessagingService extends AbstractIdleService implements Messagi
             Constants.Metrics.Tag.TABLE, messageTable ? "message" : "payload"
           ));
 
-          return new ConcurrentMessageWriter(messagesWriter, metricsContext);
+          // Only notify for writes to the message table, since messages in the payload table are not visible
+          // until the transaction is committed by publishing to the message table
+          return new ConcurrentMessageWriter(messagesWriter, metricsContext, maxBatchSize, lingerMillis,
+                                             messageTable ? publishNotifier : null, writerFlushExecutor);
         }
       });
   }
 
+  /**
+   * Creates the {@link ExecutorService} shared by all {@link ConcurrentMessageWriter} for writing batches.
+   * The number of threads is bounded, so that the number of threads doesn't grow with the number of topics.
+   */
+  private ExecutorService createWriterFlushExecutor(CConfiguration cConf) {
+    int threads = cConf.getInt(Constants.MessagingSystem.WRITER_FLUSH_THREADS);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(),
+                                                         Threads.createDaemonThreadFactory("messaging-writer-%d"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   /**
    * Creates a new instance of {@link MetadataTable}.
    */
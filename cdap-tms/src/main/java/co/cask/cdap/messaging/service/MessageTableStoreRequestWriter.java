@@ -21,9 +21,12 @@ import co.cask.cdap.messaging.StoreRequest;
 import co.cask.cdap.messaging.TopicMetadata;
 import co.cask.cdap.messaging.store.MessageTable;
 import co.cask.cdap.proto.id.TopicId;
+import com.google.common.collect.AbstractIterator;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -35,11 +38,25 @@ final class MessageTableStoreRequestWriter extends StoreRequestWriter<MessageTab
 
   private final MessageTable messageTable;
   private final MutableMessageTableEntry entry;
+  private final MessageTailCache tailCache;
 
   MessageTableStoreRequestWriter(MessageTable messageTable, TimeProvider timeProvider) {
+    this(messageTable, timeProvider, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param messageTable the {@link MessageTable} to write to
+   * @param timeProvider the {@link TimeProvider} for generating the publish timestamp
+   * @param tailCache an optional {@link MessageTailCache} to add entries to after they are written to the table
+   */
+  MessageTableStoreRequestWriter(MessageTable messageTable, TimeProvider timeProvider,
+                                 @Nullable MessageTailCache tailCache) {
     super(timeProvider, true);
     this.messageTable = messageTable;
     this.entry = new MutableMessageTableEntry();
+    this.tailCache = tailCache;
   }
 
   @Override
@@ -56,8 +73,26 @@ final class MessageTableStoreRequestWriter extends StoreRequestWriter<MessageTab
   }
 
   @Override
-  protected void doWrite(Iterator<MessageTable.Entry> entries) throws IOException {
-    messageTable.store(entries);
+  protected void doWrite(final Iterator<MessageTable.Entry> entries) throws IOException {
+    if (tailCache == null) {
+      messageTable.store(entries);
+      return;
+    }
+
+    // Copy the entries while storing, since the same entry instance is reused
+    final List<MessageTable.Entry> written = new ArrayList<>();
+    messageTable.store(new AbstractIterator<MessageTable.Entry>() {
+      @Override
+      protected MessageTable.Entry computeNext() {
+        if (!entries.hasNext()) {
+          return endOfData();
+        }
+        MessageTable.Entry next = entries.next();
+        written.add(MutableMessageTableEntry.copyOf(next));
+        return next;
+      }
+    });
+    tailCache.append(written);
   }
 
   @Override
@@ -78,6 +113,20 @@ final class MessageTableStoreRequestWriter extends StoreRequestWriter<MessageTab
     private short sequenceId;
     private byte[] payload;
 
+    /**
+     * Returns a new {@link MutableMessageTableEntry} with the same values as the given entry.
+     */
+    static MutableMessageTableEntry copyOf(MessageTable.Entry entry) {
+      return new MutableMessageTableEntry()
+        .setTopicId(entry.getTopicId())
+        .setGeneration(entry.getGeneration())
+        .setTransactional(entry.isTransactional())
+        .setTransactionWritePointer(entry.getTransactionWritePointer())
+        .setPublishTimestamp(entry.getPublishTimestamp())
+        .setSequenceId(entry.getSequenceId())
+        .setPayload(entry.getPayload());
+    }
+
     MutableMessageTableEntry setTopicId(TopicId topicId) {
       this.topicId = topicId;
       return this;
@@ -0,0 +1,244 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.messaging.service;
+
+import co.cask.cdap.api.metrics.MetricsContext;
+import co.cask.cdap.messaging.TopicMetadata;
+import co.cask.cdap.messaging.store.MessageTable;
+import co.cask.cdap.proto.id.TopicId;
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.tephra.Transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An in-memory cache of the most recent {@link MessageTable.Entry} written to the {@link MessageTable} for each
+ * topic. Most consumers fetch from the tail of a topic, which can be served from this cache without scanning the
+ * message table.
+ *
+ * For each topic, the cache contains every entry written through this process starting from the oldest entry
+ * in the cache. Hence a fetch that starts at or after the oldest entry can be served entirely from the cache.
+ * Entries are evicted from the oldest one when the memory used by a topic exceeds the configured limit.
+ * This only holds if all writes to the message table go through this process, which is the case when there
+ * is only one messaging service instance.
+ */
+@ThreadSafe
+final class MessageTailCache {
+
+  // Approximated memory overhead of each cached entry, excluding the payload
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private final long maxTopicBytes;
+  private final ConcurrentMap<TopicId, TopicTail> tails;
+  private final Supplier<MetricsContext> metricsContext;
+
+  /**
+   * Constructor.
+   *
+   * @param maxTopicBytes maximum number of bytes of entries to cache per topic
+   * @param maxTopics maximum number of topics to cache; least recently used topics will get evicted first
+   * @param metricsContext a {@link Supplier} of {@link MetricsContext} for emitting cache hit and miss metrics
+   */
+  MessageTailCache(long maxTopicBytes, int maxTopics, Supplier<MetricsContext> metricsContext) {
+    this.maxTopicBytes = maxTopicBytes;
+    Cache<TopicId, TopicTail> cache = CacheBuilder.newBuilder().maximumSize(maxTopics).build();
+    this.tails = cache.asMap();
+    this.metricsContext = metricsContext;
+  }
+
+  /**
+   * Appends the given list of entries that were just persisted to the message table. Entries must be sorted
+   * in the same order as they are stored in the message table.
+   */
+  void append(List<? extends MessageTable.Entry> entries) {
+    TopicTail tail = null;
+    for (MessageTable.Entry entry : entries) {
+      if (tail == null || !tail.topicId.equals(entry.getTopicId()) || tail.generation != entry.getGeneration()) {
+        tail = getTail(entry.getTopicId(), entry.getGeneration());
+      }
+      if (!tail.append(entry)) {
+        // Entry is out of order. Start a new tail, which starts covering the table from this entry.
+        TopicTail newTail = new TopicTail(entry.getTopicId(), entry.getGeneration(), maxTopicBytes);
+        newTail.append(entry);
+        tails.put(entry.getTopicId(), newTail);
+        tail = newTail;
+      }
+    }
+  }
+
+  /**
+   * Fetches entries from the cache.
+   *
+   * @param metadata {@link TopicMetadata} of the topic to fetch from
+   * @param startTimestamp the publish timestamp to start fetching from
+   * @param startSequenceId the sequence id to start fetching from
+   * @param inclusive {@code true} to include the entry at the start position
+   * @param limit maximum number of entries to fetch
+   * @param transaction an optional {@link Transaction} to use for fetching
+   * @return a {@link List} of entries in the same order as fetching from the message table or {@code null}
+   *         if the cache doesn't have all the entries starting from the start position
+   */
+  @Nullable
+  List<MessageTable.Entry> fetch(TopicMetadata metadata, long startTimestamp, short startSequenceId,
+                                 boolean inclusive, int limit, @Nullable Transaction transaction) {
+    TopicTail tail = tails.get(metadata.getTopicId());
+    List<MessageTable.Entry> entries = null;
+    if (tail != null && tail.generation == metadata.getGeneration()) {
+      entries = tail.fetch(toKey(startTimestamp, startSequenceId), inclusive, limit, transaction);
+    }
+    metricsContext.get().increment(entries == null ? "fetch.tail.cache.miss" : "fetch.tail.cache.hit", 1L);
+    return entries;
+  }
+
+  /**
+   * Removes all cached entries of the given topic.
+   */
+  void invalidate(TopicId topicId) {
+    tails.remove(topicId);
+  }
+
+  private TopicTail getTail(TopicId topicId, int generation) {
+    TopicTail tail = tails.get(topicId);
+    if (tail != null && tail.generation == generation) {
+      return tail;
+    }
+    TopicTail newTail = new TopicTail(topicId, generation, maxTopicBytes);
+    if (tail == null) {
+      tail = tails.putIfAbsent(topicId, newTail);
+      return tail == null ? newTail : tail;
+    }
+    tails.put(topicId, newTail);
+    return newTail;
+  }
+
+  /**
+   * Returns the key for ordering entries, which is the same order as the message table row key.
+   */
+  private static long toKey(long publishTimestamp, short sequenceId) {
+    return (publishTimestamp << Short.SIZE) | (sequenceId & 0xFFFF);
+  }
+
+  /**
+   * Returns whether a message table entry is visible to the given transaction, using the same rules as
+   * the {@link MessageTable} fetch. Returns {@code null} if the entry is not yet committed, meaning
+   * fetching should stop to preserve ordering.
+   */
+  @Nullable
+  private static Boolean isVisible(MessageTable.Entry entry, @Nullable Transaction transaction) {
+    if (transaction == null || !entry.isTransactional()) {
+      return true;
+    }
+    long txWritePtr = entry.getTransactionWritePointer();
+    if (transaction.isVisible(txWritePtr)) {
+      return true;
+    }
+    if (Arrays.binarySearch(transaction.getInvalids(), txWritePtr) >= 0) {
+      return false;
+    }
+    return null;
+  }
+
+  /**
+   * The cached entries of a topic.
+   */
+  private static final class TopicTail {
+
+    private final TopicId topicId;
+    private final int generation;
+    private final long maxBytes;
+    private final ConcurrentNavigableMap<Long, MessageTable.Entry> entries;
+    private long bytes;
+    private long lastKey = Long.MIN_VALUE;
+
+    TopicTail(TopicId topicId, int generation, long maxBytes) {
+      this.topicId = topicId;
+      this.generation = generation;
+      this.maxBytes = maxBytes;
+      this.entries = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Appends an entry to the end of this tail.
+     *
+     * @return {@code true} if the entry is appended; {@code false} if the entry is not newer than the last entry
+     */
+    synchronized boolean append(MessageTable.Entry entry) {
+      long key = toKey(entry.getPublishTimestamp(), entry.getSequenceId());
+      if (key <= lastKey) {
+        return false;
+      }
+      entries.put(key, entry);
+      lastKey = key;
+      bytes += getSize(entry);
+
+      // Evicts from the oldest entry
+      while (bytes > maxBytes) {
+        Map.Entry<Long, MessageTable.Entry> evicted = entries.pollFirstEntry();
+        if (evicted == null) {
+          break;
+        }
+        bytes -= getSize(evicted.getValue());
+      }
+      return true;
+    }
+
+    @Nullable
+    List<MessageTable.Entry> fetch(long startKey, boolean inclusive, int limit, @Nullable Transaction transaction) {
+      if (!isCovered(startKey)) {
+        return null;
+      }
+
+      List<MessageTable.Entry> result = new ArrayList<>();
+      Iterator<MessageTable.Entry> iterator = entries.tailMap(startKey, inclusive).values().iterator();
+      while (result.size() < limit && iterator.hasNext()) {
+        MessageTable.Entry entry = iterator.next();
+        Boolean visible = isVisible(entry, transaction);
+        if (visible == null) {
+          break;
+        }
+        if (visible) {
+          result.add(entry);
+        }
+      }
+
+      // Entries are only evicted from the oldest one. If the start key is still covered, then no entry
+      // after the start key was evicted while iterating.
+      return isCovered(startKey) ? result : null;
+    }
+
+    private boolean isCovered(long startKey) {
+      Map.Entry<Long, MessageTable.Entry> first = entries.firstEntry();
+      return first != null && first.getKey() <= startKey;
+    }
+
+    private int getSize(MessageTable.Entry entry) {
+      byte[] payload = entry.getPayload();
+      return ENTRY_OVERHEAD + (payload == null ? 0 : payload.length);
+    }
+  }
+}
@@ -18,6 +18,8 @@ package co.cask.cdap.messaging.service;
 
 import co.cask.cdap.messaging.StoreRequest;
 import co.cask.cdap.messaging.TopicMetadata;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 import javax.annotation.Nullable;
 
@@ -28,8 +30,9 @@ final class PendingStoreRequest extends StoreRequest {
 
   private final StoreRequest originalRequest;
   private final TopicMetadata metadata;
+  private final SettableFuture<PendingStoreRequest> completion;
+  private final long enqueueNanos;
 
-  private boolean completed;
   private long startTimestamp;
   private long endTimestamp;
   private int startSequenceId;
@@ -41,6 +44,8 @@ final class PendingStoreRequest extends StoreRequest {
           originalRequest.getTransactionWritePointer());
     this.originalRequest = originalRequest;
     this.metadata = topicMetadata;
+    this.completion = SettableFuture.create();
+    this.enqueueNanos = System.nanoTime();
   }
 
   TopicMetadata getTopicMetadata() {
@@ -48,7 +53,23 @@ final class PendingStoreRequest extends StoreRequest {
   }
 
   boolean isCompleted() {
-    return completed;
+    return completion.isDone();
+  }
+
+  /**
+   * Returns a {@link ListenableFuture} that completes with this request when it is completed
+   * through the {@link #completed(Throwable)} method. The future always completes successfully;
+   * failure of the write is reflected by {@link #isSuccess()} and {@link #getFailureCause()}.
+   */
+  ListenableFuture<PendingStoreRequest> getCompletion() {
+    return completion;
+  }
+
+  /**
+   * Returns the value of {@link System#nanoTime()} when this request was created.
+   */
+  long getEnqueueNanos() {
+    return enqueueNanos;
   }
 
   boolean isSuccess() {
@@ -64,8 +85,8 @@ final class PendingStoreRequest extends StoreRequest {
   }
 
   void completed(@Nullable Throwable failureCause) {
-    completed = true;
     this.failureCause = failureCause;
+    completion.set(this);
   }
 
   void setStartTimestamp(long startTimestamp) {
@@ -109,7 +130,7 @@ final class PendingStoreRequest extends StoreRequest {
   @Override
   public String toString() {
     return "PendingStoreRequest{" +
-      "completed=" + completed +
+      "completed=" + isCompleted() +
       ", startTimestamp=" + startTimestamp +
       ", startSequenceId=" + startSequenceId +
       ", endTimestamp=" + endTimestamp +
@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.messaging.service;
+
+import co.cask.cdap.proto.id.TopicId;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Provides notification on new messages being published to topics. It is used for long-poll message fetching,
+ * such that fetch requests on idle topics can wait for new messages instead of repeatedly scanning the message table.
+ * Notifications are emitted by {@link ConcurrentMessageWriter} after messages are persisted to the message table.
+ */
+@ThreadSafe
+public final class PublishNotifier {
+
+  private final ConcurrentMap<TopicId, Set<SettableFuture<TopicId>>> waiters = new ConcurrentHashMap<>();
+
+  /**
+   * Returns a {@link ListenableFuture} that will be completed when there are new messages published to the
+   * given topic after this method is called. Caller should cancel the future if no longer interested in the
+   * notification, so that the resources associated with it can be released.
+   *
+   * @param topicId the topic to watch for
+   * @return a {@link ListenableFuture} that carries the topic id when completed
+   */
+  public ListenableFuture<TopicId> awaitPublish(final TopicId topicId) {
+    final SettableFuture<TopicId> future = SettableFuture.create();
+    final Set<SettableFuture<TopicId>> topicWaiters;
+
+    // Registration and removal are done while holding the lock, so that an empty set can be removed from the map
+    // without racing with a new registration to the same set.
+    synchronized (waiters) {
+      Set<SettableFuture<TopicId>> existing = waiters.get(topicId);
+      if (existing == null) {
+        existing = Sets.newSetFromMap(new ConcurrentHashMap<SettableFuture<TopicId>, Boolean>());
+        waiters.put(topicId, existing);
+      }
+      topicWaiters = existing;
+      topicWaiters.add(future);
+    }
+
+    // Remove the future when it is completed or cancelled, and remove the topic entry if there is no more waiter
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (waiters) {
+          topicWaiters.remove(future);
+          if (topicWaiters.isEmpty()) {
+            waiters.remove(topicId, topicWaiters);
+          }
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return future;
+  }
+
+  /**
+   * Returns the number of topics that currently have waiters.
+   */
+  @VisibleForTesting
+  int getWaitingTopics() {
+    return waiters.size();
+  }
+
+  /**
+   * Notifies all waiters on the given topic that new messages were published.
+   */
+  void published(TopicId topicId) {
+    Set<SettableFuture<TopicId>> topicWaiters = waiters.get(topicId);
+    if (topicWaiters == null || topicWaiters.isEmpty()) {
+      return;
+    }
+    for (SettableFuture<TopicId> future : topicWaiters) {
+      future.set(topicId);
+    }
+  }
+}
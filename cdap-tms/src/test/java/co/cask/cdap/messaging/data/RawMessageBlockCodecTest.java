@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.messaging.data;
+
+import co.cask.cdap.api.common.Bytes;
+import com.google.common.base.Strings;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link RawMessageBlockEncoder} and {@link RawMessageBlockDecoder}.
+ */
+public class RawMessageBlockCodecTest {
+
+  @Test
+  public void testEmpty() throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new RawMessageBlockEncoder(MessageCompression.SNAPPY).writeEnd(os);
+
+    RawMessageBlockDecoder decoder = new RawMessageBlockDecoder(new ByteArrayInputStream(os.toByteArray()));
+    Assert.assertNull(decoder.next());
+    Assert.assertNull(decoder.next());
+  }
+
+  @Test
+  public void testNoCompression() throws IOException {
+    testRoundTrip(MessageCompression.NONE);
+  }
+
+  @Test
+  public void testSnappy() throws IOException {
+    Assert.assertTrue(MessageCompression.SNAPPY.isAvailable());
+    int compressedSize = testRoundTrip(MessageCompression.SNAPPY);
+    int uncompressedSize = testRoundTrip(MessageCompression.NONE);
+    Assert.assertTrue(compressedSize < uncompressedSize);
+  }
+
+  @Test
+  public void testParse() {
+    Assert.assertEquals(MessageCompression.SNAPPY, MessageCompression.parse("snappy"));
+    Assert.assertEquals(MessageCompression.SNAPPY, MessageCompression.parse("SNAPPY"));
+    Assert.assertEquals(MessageCompression.NONE, MessageCompression.parse("unknown"));
+    Assert.assertEquals(MessageCompression.NONE, MessageCompression.parse(null));
+  }
+
+  @Test
+  public void testTruncated() throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new RawMessageBlockEncoder(MessageCompression.NONE).writeBlock(
+      Arrays.asList(new RawMessage(Bytes.toBytes(1), Bytes.toBytes("payload"))), os);
+
+    byte[] encoded = Arrays.copyOf(os.toByteArray(), os.size() - 1);
+    try {
+      new RawMessageBlockDecoder(new ByteArrayInputStream(encoded)).next();
+      Assert.fail("Expected IOException on truncated input");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testCorrupted() throws IOException {
+    // count, compression, uncompressed length, data length
+    assertCorrupted(header(1, 0, -1, 0));
+    assertCorrupted(header(1, 0, Integer.MAX_VALUE, Integer.MAX_VALUE));
+    assertCorrupted(header(100, 0, 10, 10));
+    assertCorrupted(header(1, 0, 10, 5));
+    assertCorrupted(header(1, 0, 10, -1));
+    assertCorrupted(header(1, 5, 10, 10));
+
+    // A second block with a length inside the block pointing beyond its end
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    RawMessageBlockEncoder encoder = new RawMessageBlockEncoder(MessageCompression.NONE);
+    encoder.writeBlock(Arrays.asList(new RawMessage(Bytes.toBytes(1), Bytes.toBytes("payload"))), os);
+    os.write(header(1, 0, 3, 3));
+    os.write(new byte[] {1, 1, 5});
+    RawMessageBlockDecoder decoder = new RawMessageBlockDecoder(new ByteArrayInputStream(os.toByteArray()));
+    Assert.assertNotNull(decoder.next());
+    try {
+      decoder.next();
+      Assert.fail("Expected IOException on corrupted block");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("block 2"));
+    }
+
+    // Snappy data that uncompresses to a different length than recorded in the block
+    byte[] block = new byte[1024];
+    byte[] compressed = new byte[MessageCompression.SNAPPY.maxCompressedLength(block.length)];
+    int compressedLength = MessageCompression.SNAPPY.compress(block, block.length, compressed);
+    for (int uncompressedLength : new int[] { block.length - 1, block.length + 1 }) {
+      os.reset();
+      os.write(header(1, 1, uncompressedLength, compressedLength));
+      os.write(compressed, 0, compressedLength);
+      assertCorrupted(os.toByteArray());
+    }
+  }
+
+  private void assertCorrupted(byte[] encoded) {
+    try {
+      new RawMessageBlockDecoder(new ByteArrayInputStream(encoded)).next();
+      Assert.fail("Expected IOException on corrupted block");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("block 1"));
+    }
+  }
+
+  /**
+   * Returns the given values encoded as unsigned variable length integers, as in a block header.
+   */
+  private byte[] header(int... values) {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    for (int value : values) {
+      while ((value & ~0x7F) != 0) {
+        os.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      os.write(value);
+    }
+    return os.toByteArray();
+  }
+
+  /**
+   * Encodes and decodes blocks of messages with the given compression and returns the encoded size.
+   */
+  private int testRoundTrip(MessageCompression compression) throws IOException {
+    List<List<RawMessage>> blocks = new ArrayList<>();
+    int count = 0;
+    for (int i = 0; i < 5; i++) {
+      List<RawMessage> block = new ArrayList<>();
+      for (int j = 0; j <= i * 10; j++) {
+        // Includes an empty payload
+        String payload = Strings.repeat("payload" + count, count % 20);
+        block.add(new RawMessage(Bytes.toBytes(count), Bytes.toBytes(payload)));
+        count++;
+      }
+      blocks.add(block);
+    }
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    RawMessageBlockEncoder encoder = new RawMessageBlockEncoder(compression);
+    for (List<RawMessage> block : blocks) {
+      encoder.writeBlock(block, os);
+    }
+    encoder.writeEnd(os);
+
+    RawMessageBlockDecoder decoder = new RawMessageBlockDecoder(new ByteArrayInputStream(os.toByteArray()));
+    for (List<RawMessage> block : blocks) {
+      for (RawMessage expected : block) {
+        RawMessage message = decoder.next();
+        Assert.assertNotNull(message);
+        Assert.assertArrayEquals(expected.getId(), message.getId());
+        Assert.assertArrayEquals(expected.getPayload(), message.getPayload());
+      }
+    }
+    Assert.assertNull(decoder.next());
+    return os.size();
+  }
+}
@@ -31,13 +31,17 @@ import co.cask.cdap.messaging.RollbackDetail;
 import co.cask.cdap.messaging.TopicMetadata;
 import co.cask.cdap.messaging.client.ClientMessagingService;
 import co.cask.cdap.messaging.client.StoreRequestBuilder;
+import co.cask.cdap.messaging.data.MessageCompression;
 import co.cask.cdap.messaging.data.MessageId;
 import co.cask.cdap.messaging.data.RawMessage;
 import co.cask.cdap.messaging.guice.MessagingServerRuntimeModule;
 import co.cask.cdap.proto.id.NamespaceId;
 import co.cask.cdap.proto.id.TopicId;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
@@ -56,6 +60,12 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests for {@link MessagingHttpService}.
@@ -68,6 +78,7 @@ public class MessagingHttpServiceTest {
   private static CConfiguration cConf;
   private static MessagingHttpService httpService;
   private static MessagingService client;
+  private static DiscoveryServiceClient discoveryServiceClient;
 
   @BeforeClass
   public static void init() throws IOException {
@@ -90,7 +101,8 @@ public class MessagingHttpServiceTest {
     httpService = injector.getInstance(MessagingHttpService.class);
     httpService.startAndWait();
 
-    client = new ClientMessagingService(injector.getInstance(DiscoveryServiceClient.class));
+    discoveryServiceClient = injector.getInstance(DiscoveryServiceClient.class);
+    client = new ClientMessagingService(discoveryServiceClient);
   }
 
   @AfterClass
@@ -373,6 +385,93 @@ public class MessagingHttpServiceTest {
     client.deleteTopic(topicId);
   }
 
+  @Test
+  public void testAsyncPublish() throws Exception {
+    TopicId topicId = new NamespaceId("ns1").topic("testAsyncPublish");
+
+    // Publish to a non-existing topic should fail with not found exception
+    try {
+      client.publishAsync(StoreRequestBuilder.of(topicId).addPayloads("a").build()).get();
+      Assert.fail("Expected TopicNotFoundException");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof TopicNotFoundException);
+    }
+
+    client.createTopic(new TopicMetadata(topicId));
+
+    // Publish multiple requests concurrently without waiting for each of them
+    int requestCount = 20;
+    List<ListenableFuture<RollbackDetail>> futures = new ArrayList<>();
+    for (int i = 0; i < requestCount; i++) {
+      futures.add(client.publishAsync(StoreRequestBuilder.of(topicId).addPayloads(Integer.toString(i)).build()));
+    }
+    // Non-tx publish doesn't have RollbackDetail
+    for (RollbackDetail rollbackDetail : Futures.allAsList(futures).get(10, TimeUnit.SECONDS)) {
+      Assert.assertNull(rollbackDetail);
+    }
+
+    // Store a payload and publish transactionally, which should return a RollbackDetail
+    client.storePayloadAsync(StoreRequestBuilder.of(topicId).addPayloads("p").setTransaction(1L).build())
+      .get(10, TimeUnit.SECONDS);
+    RollbackDetail rollbackDetail = client.publishAsync(StoreRequestBuilder.of(topicId).setTransaction(1L).build())
+      .get(10, TimeUnit.SECONDS);
+    Assert.assertNotNull(rollbackDetail);
+    Assert.assertEquals(1L, rollbackDetail.getTransactionWritePointer());
+
+    // Fetch all messages. There should be all the non-tx messages plus the one from the payload table.
+    Set<String> payloads = new HashSet<>();
+    try (CloseableIterator<RawMessage> iterator = client.prepareFetch(topicId).fetch()) {
+      while (iterator.hasNext()) {
+        payloads.add(Bytes.toString(iterator.next().getPayload()));
+      }
+    }
+    Assert.assertEquals(requestCount + 1, payloads.size());
+    Assert.assertTrue(payloads.contains("p"));
+
+    client.deleteTopic(topicId);
+  }
+
+  @Test
+  public void testLongPoll() throws Exception {
+    final TopicId topicId = new NamespaceId("ns1").topic("testLongPoll");
+    client.createTopic(new TopicMetadata(topicId));
+
+    // Long-poll on an empty topic should return empty after the wait timeout
+    Stopwatch stopwatch = new Stopwatch().start();
+    try (CloseableIterator<RawMessage> iterator = client.prepareFetch(topicId)
+                                                        .setWaitTimeout(500, TimeUnit.MILLISECONDS).fetch()) {
+      Assert.assertFalse(iterator.hasNext());
+    }
+    Assert.assertTrue(stopwatch.elapsedMillis() >= 500);
+
+    // Long-poll in another thread, it should return as soon as a message is published
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<String>> future = executor.submit(new Callable<List<String>>() {
+        @Override
+        public List<String> call() throws Exception {
+          List<String> payloads = new ArrayList<>();
+          try (CloseableIterator<RawMessage> iterator = client.prepareFetch(topicId)
+                                                              .setWaitTimeout(1, TimeUnit.MINUTES).fetch()) {
+            while (iterator.hasNext()) {
+              payloads.add(Bytes.toString(iterator.next().getPayload()));
+            }
+          }
+          return payloads;
+        }
+      });
+
+      // Wait a bit to have the fetch request parked on the server
+      TimeUnit.MILLISECONDS.sleep(500);
+      client.publish(StoreRequestBuilder.of(topicId).addPayloads("m0", "m1").build());
+      Assert.assertEquals(Arrays.asList("m0", "m1"), future.get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    client.deleteTopic(topicId);
+  }
+
   @Test
   public void testChunkConsume() throws Exception {
     // This test is to verify the message fetching body producer works correctly
@@ -387,17 +486,24 @@ public class MessagingHttpServiceTest {
       client.publish(StoreRequestBuilder.of(topicId).addPayloads(payload).build());
     }
 
-    // Fetch messages. All of them should be fetched correctly
-    List<RawMessage> messages = new ArrayList<>();
-    try (CloseableIterator<RawMessage> iterator = client.prepareFetch(topicId).fetch()) {
-      Iterators.addAll(messages, iterator);
-    }
-    Assert.assertEquals(10, messages.size());
-    for (int i = 0; i < 10; i++) {
-      RawMessage message = messages.get(i);
-      Assert.assertEquals(payloadSize, message.getPayload().length);
-      String payload = Strings.repeat(Integer.toString(i), payloadSize);
-      Assert.assertEquals(payload, Bytes.toString(message.getPayload()));
+    // Fetch messages with the avro and the binary block formats. All of them should be fetched correctly
+    List<MessagingService> clients = Arrays.<MessagingService>asList(
+      new ClientMessagingService(discoveryServiceClient, null),
+      new ClientMessagingService(discoveryServiceClient, MessageCompression.NONE),
+      new ClientMessagingService(discoveryServiceClient, MessageCompression.SNAPPY)
+    );
+    for (MessagingService fetchClient : clients) {
+      List<RawMessage> messages = new ArrayList<>();
+      try (CloseableIterator<RawMessage> iterator = fetchClient.prepareFetch(topicId).fetch()) {
+        Iterators.addAll(messages, iterator);
+      }
+      Assert.assertEquals(10, messages.size());
+      for (int i = 0; i < 10; i++) {
+        RawMessage message = messages.get(i);
+        Assert.assertEquals(payloadSize, message.getPayload().length);
+        String payload = Strings.repeat(Integer.toString(i), payloadSize);
+        Assert.assertEquals(payload, Bytes.toString(message.getPayload()));
+      }
     }
 
     client.deleteTopic(topicId);
@@ -18,7 +18,9 @@ package co.cask.cdap.messaging.service;
 
 import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.api.metrics.MetricsCollector;
+import co.cask.cdap.api.metrics.NoopMetricsContext;
 import co.cask.cdap.common.utils.TimeProvider;
+import co.cask.cdap.messaging.RollbackDetail;
 import co.cask.cdap.messaging.StoreRequest;
 import co.cask.cdap.messaging.TopicMetadata;
 import co.cask.cdap.messaging.data.MessageId;
@@ -28,6 +30,8 @@ import co.cask.cdap.proto.id.TopicId;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.Assert;
 import org.junit.Test;
@@ -37,14 +41,16 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
@@ -149,25 +155,19 @@ public class ConcurrentMessageWriterTest {
     }
 
     TestStoreRequestWriter testWriter = new TestStoreRequestWriter(new TimeProvider.IncrementalTimeProvider());
-    // We use a custom metrics collector here to make all the persist calls reached the same latch,
-    // since we know that the ConcurrentMessageWriter will emit a metrics "persist.requested" after enqueued but
-    // before flushing.
-    // This will make all requests batched together
-    final CountDownLatch latch = new CountDownLatch(requestCount);
+    // We use a max batch size that equals to the number of requests, with a long linger time, so that the flusher
+    // will wait for all requests before writing. This will make all requests batched together.
     final ConcurrentMessageWriter writer = new ConcurrentMessageWriter(testWriter, new MetricsCollector() {
       @Override
       public void increment(String metricName, long value) {
-        if ("persist.requested".equals(metricName)) {
-          latch.countDown();
-          Uninterruptibles.awaitUninterruptibly(latch);
-        }
+        LOG.info("MetricsContext.increment: {} = {}", metricName, value);
       }
 
       @Override
       public void gauge(String metricName, long value) {
         LOG.info("MetricsContext.gauge: {} = {}", metricName, value);
       }
-    });
+    }, "test-writer", requestCount, TimeUnit.MINUTES.toMillis(1));
 
     ExecutorService executor = Executors.newFixedThreadPool(3);
     for (final StoreRequest request : requests) {
@@ -268,6 +268,119 @@ public class ConcurrentMessageWriterTest {
     }
   }
 
+  @Test
+  public void testMaxBatchSize() throws Exception {
+    final TopicId topicId = NamespaceId.DEFAULT.topic("t");
+    final TopicMetadata metadata = new TopicMetadata(topicId, new HashMap<String, String>(), 1);
+    int requestCount = 10;
+    int maxBatchSize = 3;
+
+    // Use a long linger time so that batches are only written out when they are full, except the last one
+    final List<Long> batchSizes = Collections.synchronizedList(new ArrayList<Long>());
+    TestStoreRequestWriter testWriter = new TestStoreRequestWriter(new TimeProvider.IncrementalTimeProvider());
+    final ConcurrentMessageWriter writer = new ConcurrentMessageWriter(testWriter, new MetricsCollector() {
+      @Override
+      public void increment(String metricName, long value) {
+        // No-op
+      }
+
+      @Override
+      public void gauge(String metricName, long value) {
+        if ("persist.batch.size".equals(metricName)) {
+          batchSizes.add(value);
+        }
+      }
+    }, "test-writer", maxBatchSize, 500L);
+
+    ExecutorService executor = Executors.newFixedThreadPool(requestCount);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < requestCount; i++) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            writer.persist(new TestStoreRequest(topicId, Collections.singletonList("payload")), metadata);
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(10, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Assert.assertEquals(requestCount, testWriter.getMessages().get(topicId).size());
+
+    long total = 0;
+    for (long batchSize : batchSizes) {
+      Assert.assertTrue(batchSize <= maxBatchSize);
+      total += batchSize;
+    }
+    Assert.assertEquals(requestCount, total);
+
+    // Persist after close should fail
+    writer.close();
+    try {
+      writer.persist(new TestStoreRequest(topicId, Collections.singletonList("payload")), metadata);
+      Assert.fail("Expected IOException when persisting with a closed writer");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testSharedExecutor() throws Exception {
+    TopicId topicId1 = NamespaceId.DEFAULT.topic("t1");
+    TopicId topicId2 = NamespaceId.DEFAULT.topic("t2");
+    TopicMetadata metadata1 = new TopicMetadata(topicId1, new HashMap<String, String>(), 1);
+    TopicMetadata metadata2 = new TopicMetadata(topicId2, new HashMap<String, String>(), 1);
+
+    // Two writers share a single flusher thread
+    ExecutorService flushExecutor = Executors.newSingleThreadExecutor();
+    try {
+      TestStoreRequestWriter testWriter1 = new TestStoreRequestWriter(new TimeProvider.IncrementalTimeProvider(),
+                                                                      100L);
+      TestStoreRequestWriter testWriter2 = new TestStoreRequestWriter(new TimeProvider.IncrementalTimeProvider());
+      ConcurrentMessageWriter writer1 = new ConcurrentMessageWriter(testWriter1, new NoopMetricsContext(),
+                                                                    10, 0L, null, flushExecutor);
+      ConcurrentMessageWriter writer2 = new ConcurrentMessageWriter(testWriter2, new NoopMetricsContext(),
+                                                                    10, 0L, null, flushExecutor);
+
+      List<ListenableFuture<RollbackDetail>> futures = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        futures.add(writer1.persistAsync(new TestStoreRequest(topicId1, Collections.singletonList("a" + i)),
+                                         metadata1));
+        futures.add(writer2.persistAsync(new TestStoreRequest(topicId2, Collections.singletonList("b" + i)),
+                                         metadata2));
+      }
+
+      // Closing doesn't wait for the slow writes, but pending requests are still written
+      Stopwatch stopwatch = new Stopwatch().start();
+      ListenableFuture<Void> closeCompletion = writer1.closeAsync();
+      Assert.assertTrue(stopwatch.elapsedMillis() < 100L);
+      closeCompletion.get(10, TimeUnit.SECONDS);
+      Futures.allAsList(futures).get(10, TimeUnit.SECONDS);
+      Assert.assertEquals(5, testWriter1.getMessages().get(topicId1).size());
+      Assert.assertEquals(5, testWriter2.getMessages().get(topicId2).size());
+
+      // The other writer is not affected by the close
+      writer2.persist(new TestStoreRequest(topicId2, Collections.singletonList("c")), metadata2);
+      Assert.assertEquals(6, testWriter2.getMessages().get(topicId2).size());
+      try {
+        writer1.persist(new TestStoreRequest(topicId1, Collections.singletonList("c")), metadata1);
+        Assert.fail("Expected IOException when persisting with a closed writer");
+      } catch (IOException e) {
+        // Expected
+      }
+      writer2.close();
+      Assert.assertFalse(flushExecutor.isShutdown());
+    } finally {
+      flushExecutor.shutdownNow();
+    }
+  }
+
   /**
    * A {@link StoreRequestWriter} that turns all payloads to {@link RawMessage} and stores it in a List.
    */
@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.messaging.service;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.metrics.MetricsContext;
+import co.cask.cdap.api.metrics.NoopMetricsContext;
+import co.cask.cdap.messaging.TopicMetadata;
+import co.cask.cdap.messaging.store.MessageTable;
+import co.cask.cdap.proto.id.NamespaceId;
+import co.cask.cdap.proto.id.TopicId;
+import com.google.common.base.Suppliers;
+import org.apache.tephra.Transaction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Unit-test for {@link MessageTailCache}.
+ */
+public class MessageTailCacheTest {
+
+  private static final TopicId TOPIC_ID = NamespaceId.DEFAULT.topic("tail");
+  private static final TopicMetadata METADATA = new TopicMetadata(TOPIC_ID, TopicMetadata.GENERATION_KEY, 1);
+
+  @Test
+  public void testFetch() {
+    MessageTailCache cache = createCache(Long.MAX_VALUE);
+
+    // Nothing cached yet, should be a miss
+    Assert.assertNull(cache.fetch(METADATA, 0L, (short) 0, true, Integer.MAX_VALUE, null));
+
+    cache.append(Arrays.asList(new TestEntry(10L, 0, "1"), new TestEntry(10L, 1, "2"), new TestEntry(11L, 0, "3")));
+    cache.append(Arrays.asList(new TestEntry(12L, 0, "4"), new TestEntry(12L, 1, "5")));
+
+    // Fetch from the first entry
+    Assert.assertEquals(Arrays.asList("1", "2", "3", "4", "5"),
+                        getPayloads(cache.fetch(METADATA, 10L, (short) 0, true, Integer.MAX_VALUE, null)));
+    // Fetch with exclusive start and limit
+    Assert.assertEquals(Arrays.asList("2", "3"),
+                        getPayloads(cache.fetch(METADATA, 10L, (short) 0, false, 2, null)));
+    // Fetch by time
+    Assert.assertEquals(Arrays.asList("4", "5"),
+                        getPayloads(cache.fetch(METADATA, 12L, (short) 0, true, Integer.MAX_VALUE, null)));
+    // Fetch after the last entry should be a hit with no entry
+    Assert.assertEquals(new ArrayList<String>(),
+                        getPayloads(cache.fetch(METADATA, 13L, (short) 0, true, Integer.MAX_VALUE, null)));
+    // Fetch before the first entry is a miss, since there can be entries in the table that are not cached
+    Assert.assertNull(cache.fetch(METADATA, 9L, (short) 0, true, Integer.MAX_VALUE, null));
+
+    // Fetch with a different generation is a miss
+    TopicMetadata newMetadata = new TopicMetadata(TOPIC_ID, TopicMetadata.GENERATION_KEY, 2);
+    Assert.assertNull(cache.fetch(newMetadata, 10L, (short) 0, true, Integer.MAX_VALUE, null));
+
+    // Invalidate the topic
+    cache.invalidate(TOPIC_ID);
+    Assert.assertNull(cache.fetch(METADATA, 10L, (short) 0, true, Integer.MAX_VALUE, null));
+  }
+
+  @Test
+  public void testEviction() {
+    // Only enough space for about two entries
+    MessageTailCache cache = createCache(250L);
+    cache.append(Arrays.asList(new TestEntry(10L, 0, "1"), new TestEntry(11L, 0, "2"), new TestEntry(12L, 0, "3")));
+
+    Assert.assertNull(cache.fetch(METADATA, 10L, (short) 0, true, Integer.MAX_VALUE, null));
+    Assert.assertEquals(Arrays.asList("2", "3"),
+                        getPayloads(cache.fetch(METADATA, 11L, (short) 0, true, Integer.MAX_VALUE, null)));
+
+    // Appending an out of order entry restarts the cache from that entry
+    cache.append(Arrays.asList(new TestEntry(5L, 0, "4")));
+    Assert.assertNull(cache.fetch(METADATA, 4L, (short) 0, true, Integer.MAX_VALUE, null));
+    Assert.assertEquals(Arrays.asList("4"),
+                        getPayloads(cache.fetch(METADATA, 5L, (short) 0, true, Integer.MAX_VALUE, null)));
+  }
+
+  @Test
+  public void testTransaction() {
+    MessageTailCache cache = createCache(Long.MAX_VALUE);
+    cache.append(Arrays.asList(new TestEntry(10L, 0, "1"),
+                               new TestEntry(11L, 0, "2", 5L),
+                               new TestEntry(12L, 0, "3", 6L),
+                               new TestEntry(13L, 0, "4", 7L),
+                               new TestEntry(14L, 0, "5")));
+
+    // Transaction 5 is committed, 6 is invalid and 7 is in progress
+    Transaction tx = new Transaction(7L, 8L, new long[] { 6L }, new long[] { 7L }, 7L);
+
+    // Should skip the invalid one and stop at the uncommitted one
+    Assert.assertEquals(Arrays.asList("1", "2"),
+                        getPayloads(cache.fetch(METADATA, 10L, (short) 0, true, Integer.MAX_VALUE, tx)));
+
+    // Without transaction, all entries are returned
+    Assert.assertEquals(Arrays.asList("1", "2", "3", "4", "5"),
+                        getPayloads(cache.fetch(METADATA, 10L, (short) 0, true, Integer.MAX_VALUE, null)));
+  }
+
+  private MessageTailCache createCache(long maxTopicBytes) {
+    return new MessageTailCache(maxTopicBytes, 10, Suppliers.<MetricsContext>ofInstance(new NoopMetricsContext()));
+  }
+
+  private List<String> getPayloads(@Nullable List<MessageTable.Entry> entries) {
+    Assert.assertNotNull(entries);
+    List<String> payloads = new ArrayList<>();
+    for (MessageTable.Entry entry : entries) {
+      payloads.add(Bytes.toString(entry.getPayload()));
+    }
+    return payloads;
+  }
+
+  /**
+   * A {@link MessageTable.Entry} for testing.
+   */
+  private static final class TestEntry implements MessageTable.Entry {
+
+    private final long publishTimestamp;
+    private final short sequenceId;
+    private final byte[] payload;
+    private final Long txWritePointer;
+
+    TestEntry(long publishTimestamp, int sequenceId, String payload) {
+      this(publishTimestamp, sequenceId, payload, null);
+    }
+
+    TestEntry(long publishTimestamp, int sequenceId, String payload, @Nullable Long txWritePointer) {
+      this.publishTimestamp = publishTimestamp;
+      this.sequenceId = (short) sequenceId;
+      this.payload = Bytes.toBytes(payload);
+      this.txWritePointer = txWritePointer;
+    }
+
+    @Override
+    public TopicId getTopicId() {
+      return TOPIC_ID;
+    }
+
+    @Override
+    public int getGeneration() {
+      return METADATA.getGeneration();
+    }
+
+    @Override
+    public boolean isPayloadReference() {
+      return false;
+    }
+
+    @Override
+    public boolean isTransactional() {
+      return txWritePointer != null;
+    }
+
+    @Override
+    public long getTransactionWritePointer() {
+      return txWritePointer == null ? -1L : txWritePointer;
+    }
+
+    @Override
+    public byte[] getPayload() {
+      return payload;
+    }
+
+    @Override
+    public long getPublishTimestamp() {
+      return publishTimestamp;
+    }
+
+    @Override
+    public short getSequenceId() {
+      return sequenceId;
+    }
+  }
+}
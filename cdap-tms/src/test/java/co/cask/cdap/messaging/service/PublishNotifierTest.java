@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.messaging.service;
+
+import co.cask.cdap.proto.id.NamespaceId;
+import co.cask.cdap.proto.id.TopicId;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit-test for {@link PublishNotifier}.
+ */
+public class PublishNotifierTest {
+
+  @Test
+  public void testNotifyAndCleanup() throws Exception {
+    PublishNotifier notifier = new PublishNotifier();
+    TopicId topic1 = NamespaceId.DEFAULT.topic("topic1");
+    TopicId topic2 = NamespaceId.DEFAULT.topic("topic2");
+
+    ListenableFuture<TopicId> future1 = notifier.awaitPublish(topic1);
+    ListenableFuture<TopicId> future2 = notifier.awaitPublish(topic1);
+    ListenableFuture<TopicId> future3 = notifier.awaitPublish(topic2);
+    Assert.assertEquals(2, notifier.getWaitingTopics());
+
+    // Publish to topic1 should only complete the waiters on topic1
+    notifier.published(topic1);
+    Assert.assertEquals(topic1, future1.get(1, TimeUnit.SECONDS));
+    Assert.assertEquals(topic1, future2.get(1, TimeUnit.SECONDS));
+    Assert.assertFalse(future3.isDone());
+
+    // The topic1 entry should be removed since it has no more waiter
+    Assert.assertEquals(1, notifier.getWaitingTopics());
+
+    // Cancelling the last waiter should remove the topic2 entry as well
+    future3.cancel(false);
+    Assert.assertEquals(0, notifier.getWaitingTopics());
+
+    // Waiting on a topic again after cleanup should still get notified
+    ListenableFuture<TopicId> future4 = notifier.awaitPublish(topic2);
+    notifier.published(topic2);
+    Assert.assertEquals(topic2, future4.get(1, TimeUnit.SECONDS));
+    Assert.assertEquals(0, notifier.getWaitingTopics());
+  }
+}
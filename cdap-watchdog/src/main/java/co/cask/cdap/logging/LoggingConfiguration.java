@@ -42,11 +42,14 @@ public final class LoggingConfiguration {
   public static final String LOG_SAVER_MAX_FILE_LIFETIME = "log.saver.max.file.lifetime.ms";
   public static final String LOG_SAVER_CHECKPOINT_INTERVAL_MS = "log.saver.checkpoint.interval.ms";
   public static final String LOG_SAVER_TOPIC_WAIT_SLEEP_MS = "log.saver.topic.wait.sleep.ms";
+  public static final String LOG_SAVER_WRITE_QUEUE_SIZE = "log.saver.write.queue.size";
   public static final String LOG_RETENTION_DURATION_DAYS = "log.retention.duration.days";
   public static final String LOG_MAX_FILE_SIZE_BYTES = "log.max.file.size.bytes";
   public static final String KAFKA_PRODUCER_TYPE = "kafka.producer.type";
   public static final String KAFKA_PROCUDER_BUFFER_MS = "kafka.producer.buffer.ms";
   public static final String LOG_CLEANUP_RUN_INTERVAL_MINS = "log.cleanup.run.interval.mins";
+  public static final String LOG_READER_TAIL_CACHE_MAX_BYTES = "log.reader.tail.cache.max.bytes";
+  public static final String LOG_READER_TAIL_CACHE_MAX_EVENTS = "log.reader.tail.cache.max.events";
 
   // Constants
   // Table used to store log metadata
@@ -64,6 +67,9 @@ public final class LoggingConfiguration {
   public static final long DEFAULT_LOG_SAVER_CHECKPOINT_INTERVAL_MS = 60 * 1000;
   public static final long DEFAULT_LOG_RETENTION_DURATION_DAYS = 30;
   public static final long DEFAULT_LOG_SAVER_TOPIC_WAIT_SLEEP_MS = TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS);
+  public static final int DEFAULT_LOG_SAVER_WRITE_QUEUE_SIZE = 4;
+  public static final long DEFAULT_LOG_READER_TAIL_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+  public static final int DEFAULT_LOG_READER_TAIL_CACHE_MAX_EVENTS = 1000;
 
   private LoggingConfiguration() {}
 
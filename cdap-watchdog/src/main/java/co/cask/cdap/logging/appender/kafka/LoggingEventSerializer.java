@@ -21,17 +21,14 @@ import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.common.logging.LoggingContext;
 import co.cask.cdap.logging.serialize.LogSchema;
 import co.cask.cdap.logging.serialize.LoggingEvent;
-import com.google.common.base.Throwables;
+import co.cask.cdap.logging.serialize.LoggingEventEncoder;
+import com.google.common.base.Preconditions;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericDatumReader;
-import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.io.BinaryDecoder;
-import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.DecoderFactory;
-import org.apache.avro.io.EncoderFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import javax.annotation.concurrent.NotThreadSafe;
@@ -44,6 +41,7 @@ import javax.annotation.concurrent.NotThreadSafe;
 public final class LoggingEventSerializer {
 
   private final GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(getAvroSchema());
+  private final LoggingEventEncoder encoder = new LoggingEventEncoder();
   private BinaryDecoder decoder;
 
   /**
@@ -53,16 +51,18 @@ public final class LoggingEventSerializer {
     return LogSchema.LoggingEvent.SCHEMA;
   }
 
+  /**
+   * Encodes the given {@link ILoggingEvent} with the system tags of the given {@link LoggingContext} added to
+   * its MDC, based on the schema returned by the {@link #getAvroSchema()} method.
+   *
+   * @param loggingEvent the event to encode
+   * @param loggingContext the logging context of the event
+   * @return a new byte array containing the encoded event
+   */
   public byte[] toBytes(ILoggingEvent loggingEvent, LoggingContext loggingContext) {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
-    GenericDatumWriter<GenericRecord> writer = new GenericDatumWriter<>(getAvroSchema());
-    try {
-      writer.write(LoggingEvent.encode(getAvroSchema(), loggingEvent, loggingContext), encoder);
-    } catch (IOException e) {
-      throw Throwables.propagate(e);
-    }
-    return out.toByteArray();
+    Preconditions.checkState(loggingContext != null, "Logging context not setup correctly for MDC %s",
+                             loggingEvent.getMDCPropertyMap());
+    return Bytes.toBytes(encoder.encode(loggingEvent, loggingContext));
   }
 
   /**
@@ -17,6 +17,7 @@
 package co.cask.cdap.logging.framework;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import co.cask.cdap.logging.serialize.LoggingEventEncoder;
 import com.google.common.io.Closeables;
 import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileWriter;
@@ -46,6 +47,7 @@ class LogFileOutputStream implements Closeable, Flushable {
   private final long createTime;
   private final Schema schema;
   private final Closeable closeable;
+  private final LoggingEventEncoder encoder;
 
   private OutputStream outputStream;
   private DataFileWriter<GenericRecord> dataFileWriter;
@@ -55,6 +57,7 @@ class LogFileOutputStream implements Closeable, Flushable {
     this.location = location;
     this.schema = schema;
     this.closeable = closeable;
+    this.encoder = new LoggingEventEncoder();
     try {
       this.outputStream = location.getOutputStream();
       this.dataFileWriter = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema));
@@ -73,7 +76,8 @@ class LogFileOutputStream implements Closeable, Flushable {
   }
 
   void append(ILoggingEvent event) throws IOException {
-    dataFileWriter.append(co.cask.cdap.logging.serialize.LoggingEvent.encode(schema, event));
+    // The event is encoded directly instead of going through a GenericRecord
+    dataFileWriter.appendEncoded(encoder.encode(event, null));
   }
 
   /**
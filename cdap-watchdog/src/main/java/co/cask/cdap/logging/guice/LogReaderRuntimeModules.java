@@ -22,6 +22,7 @@ import co.cask.cdap.common.security.UGIProvider;
 import co.cask.cdap.logging.read.DistributedLogReader;
 import co.cask.cdap.logging.read.FileLogReader;
 import co.cask.cdap.logging.read.LogReader;
+import co.cask.cdap.logging.read.LogTailCache;
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
 import com.google.inject.Scopes;
@@ -57,6 +58,7 @@ public final class LogReaderRuntimeModules extends RuntimeModule {
       @Override
       protected void configure() {
         bind(LogReader.class).to(DistributedLogReader.class);
+        bind(LogTailCache.class).in(Scopes.SINGLETON);
         bind(UGIProvider.class).to(RemoteUGIProvider.class).in(Scopes.SINGLETON);
       }
     };
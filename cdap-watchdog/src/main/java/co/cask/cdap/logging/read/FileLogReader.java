@@ -94,7 +94,7 @@ public class FileLogReader implements LogReader {
       }
 
       List<Location> filesInRange = getFilesInRange(sortedFiles, readRange.getFromMillis(), readRange.getToMillis());
-      AvroFileReader logReader = new AvroFileReader(schema);
+      IndexedLogFileReader logReader = new IndexedLogFileReader(schema);
       NamespaceId namespaceId = LoggingContextHelper.getNamespaceId(loggingContext);
       for (Location file : filesInRange) {
         try {
@@ -132,7 +132,7 @@ public class FileLogReader implements LogReader {
       LOG.trace("Using fromTimeMs={}, readRange={}", fromTimeMs, readRange);
       List<Location> filesInRange = getFilesInRange(sortedFiles, readRange.getFromMillis(), readRange.getToMillis());
       List<Collection<LogEvent>> logSegments = Lists.newLinkedList();
-      AvroFileReader logReader = new AvroFileReader(schema);
+      IndexedLogFileReader logReader = new IndexedLogFileReader(schema);
       int count = 0;
       NamespaceId namespaceId = LoggingContextHelper.getNamespaceId(loggingContext);
       for (Location file : Lists.reverse(filesInRange)) {
@@ -187,7 +187,7 @@ public class FileLogReader implements LogReader {
 
       List<Location> filesInRange = getFilesInRange(sortedFiles, fromTimeMs, toTimeMs);
 
-      final AvroFileReader avroFileReader = new AvroFileReader(schema);
+      final IndexedLogFileReader logFileReader = new IndexedLogFileReader(schema);
       final Iterator<Location> filesIter = filesInRange.iterator();
       final NamespaceId namespaceId = LoggingContextHelper.getNamespaceId(loggingContext);
 
@@ -213,8 +213,8 @@ public class FileLogReader implements LogReader {
           }
           Location file = filesIter.next();
           LOG.trace("Reading file {}", file);
-          curr = avroFileReader.readLog(file, logFilter, fromTimeMs, toTimeMs, Integer.MAX_VALUE,
-                                        namespaceId, impersonator);
+          curr = logFileReader.readLog(file, logFilter, fromTimeMs, toTimeMs, Integer.MAX_VALUE,
+                                       namespaceId, impersonator);
           return curr;
         }
 
@@ -0,0 +1,591 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.read;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import co.cask.cdap.api.dataset.lib.AbstractCloseableIterator;
+import co.cask.cdap.api.dataset.lib.CloseableIterator;
+import co.cask.cdap.common.io.Locations;
+import co.cask.cdap.common.io.SeekableInputStream;
+import co.cask.cdap.common.security.Impersonator;
+import co.cask.cdap.logging.filter.AndFilter;
+import co.cask.cdap.logging.filter.Filter;
+import co.cask.cdap.logging.filter.LogLevelExpression;
+import co.cask.cdap.logging.serialize.IndexedLogFile;
+import co.cask.cdap.logging.serialize.LoggingEvent;
+import co.cask.cdap.proto.id.NamespaceId;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.common.io.CountingInputStream;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.twill.filesystem.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.annotation.Nullable;
+
+/**
+ * Reads log events from a file in the {@link IndexedLogFile} format. Blocks that cannot contain matching events
+ * according to their index are skipped without being read. Files in other formats are read with
+ * {@link AvroFileReader}.
+ */
+public class IndexedLogFileReader {
+  private static final Logger LOG = LoggerFactory.getLogger(IndexedLogFileReader.class);
+
+  private final Schema schema;
+  private final AvroFileReader avroFileReader;
+
+  public IndexedLogFileReader(Schema schema) {
+    this.schema = schema;
+    this.avroFileReader = new AvroFileReader(schema);
+  }
+
+  public CloseableIterator<LogEvent> readLog(Location file, Filter logFilter, long fromTimeMs, long toTimeMs,
+                                             int maxEvents, NamespaceId namespaceId, Impersonator impersonator) {
+    LogFile logFile;
+    try {
+      logFile = LogFile.open(file, schema, namespaceId, impersonator);
+    } catch (Exception e) {
+      // we want to ignore invalid or missing log files
+      LOG.error("Got exception while reading log file {}", file, e);
+      return new AbstractCloseableIterator<LogEvent>() {
+        @Override
+        protected LogEvent computeNext() {
+          endOfData();
+          return null;
+        }
+
+        @Override
+        public void close() {
+          // no-op
+        }
+      };
+    }
+    if (logFile == null) {
+      return avroFileReader.readLog(file, logFilter, fromTimeMs, toTimeMs, maxEvents, namespaceId, impersonator);
+    }
+    return new LogEventIterator(logFile, logFilter, fromTimeMs, toTimeMs, maxEvents);
+  }
+
+  public void readLog(Location file, Filter logFilter, long fromTimeMs, long toTimeMs,
+                      int maxEvents, Callback callback, NamespaceId namespaceId, Impersonator impersonator)
+    throws IOException {
+    try (CloseableIterator<LogEvent> logEventIter =
+           readLog(file, logFilter, fromTimeMs, toTimeMs, maxEvents, namespaceId, impersonator)) {
+      while (logEventIter.hasNext()) {
+        callback.handle(logEventIter.next());
+      }
+    }
+  }
+
+  /**
+   * Returns the last {@code maxEvents} events of the file that match the filter and are not after the given time.
+   */
+  public Collection<LogEvent> readLogPrev(Location file, Filter logFilter, long fromTimeMs, int maxEvents,
+                                          NamespaceId namespaceId, Impersonator impersonator) throws IOException {
+    LogFile logFile = LogFile.open(file, schema, namespaceId, impersonator);
+    if (logFile == null) {
+      return avroFileReader.readLogPrev(file, logFilter, fromTimeMs, maxEvents, namespaceId, impersonator);
+    }
+
+    try {
+      int minLevel = getMinLevel(logFilter);
+      List<List<LogEvent>> logSegments = Lists.newArrayList();
+      int count = 0;
+
+      // Blocks after the last valid trailer, which exist if the file length is not up to date for an open file
+      long end = logFile.getLastBlockEnd();
+      for (BlockIndexEntry entry : Lists.reverse(logFile.readIndexes(end))) {
+        count += readBlockPrev(logFile, entry, logFilter, fromTimeMs, minLevel, logSegments);
+        if (count >= maxEvents) {
+          break;
+        }
+      }
+
+      while (count < maxEvents && end > logFile.getDataStart()) {
+        BlockIndexEntry entry = logFile.readIndexBefore(end);
+        if (entry == null) {
+          LOG.warn("Invalid block before position {} in log file {}", end, file);
+          break;
+        }
+        count += readBlockPrev(logFile, entry, logFilter, fromTimeMs, minLevel, logSegments);
+        end = entry.offset;
+      }
+
+      int skip = count >= maxEvents ? count - maxEvents : 0;
+      return Lists.newArrayList(Iterables.skip(Iterables.concat(Lists.reverse(logSegments)), skip));
+    } finally {
+      Closeables.closeQuietly(logFile);
+    }
+  }
+
+  /**
+   * Reads the events of a block that are not after the given time and adds them to the given list of segments,
+   * unless the index of the block shows that none of them can match.
+   *
+   * @return number of events added
+   */
+  private int readBlockPrev(LogFile logFile, BlockIndexEntry entry, Filter logFilter, long fromTimeMs,
+                            int minLevel, List<List<LogEvent>> logSegments) throws IOException {
+    if (entry.index.getMinTimestamp() > fromTimeMs || entry.index.getMaxLevel() < minLevel) {
+      return 0;
+    }
+    Block block = logFile.readBlock(entry);
+    List<LogEvent> logSegment = new ArrayList<>();
+    for (int i = 0; i < block.getEventCount(); i++) {
+      if (block.getTimestamp(i) > fromTimeMs || block.getLevel(i) < minLevel) {
+        continue;
+      }
+      ILoggingEvent loggingEvent = block.decode(i);
+      if (logFilter.match(loggingEvent)) {
+        logSegment.add(new LogEvent(loggingEvent,
+                                    new LogOffset(LogOffset.INVALID_KAFKA_OFFSET, loggingEvent.getTimeStamp())));
+      }
+    }
+    if (!logSegment.isEmpty()) {
+      logSegments.add(logSegment);
+    }
+    return logSegment.size();
+  }
+
+  /**
+   * Returns the minimum level of events that can match the given filter.
+   */
+  private static int getMinLevel(Filter filter) {
+    if (filter instanceof LogLevelExpression) {
+      return ((LogLevelExpression) filter).getLevel().toInt();
+    }
+    int minLevel = Level.ALL_INT;
+    if (filter instanceof AndFilter) {
+      for (Filter expression : ((AndFilter) filter).getExpressions()) {
+        minLevel = Math.max(minLevel, getMinLevel(expression));
+      }
+    }
+    return minLevel;
+  }
+
+  private static final class LogEventIterator implements CloseableIterator<LogEvent> {
+
+    private final LogFile logFile;
+    private final Filter logFilter;
+    private final long fromTimeMs;
+    private final long toTimeMs;
+    private final long maxEvents;
+    private final int minLevel;
+
+    private long nextBlockOffset;
+    private Block block;
+    private int blockPos;
+    private boolean done;
+
+    private int count = 0;
+    private long prevTimestamp = -1;
+
+    private LogEvent next;
+
+    LogEventIterator(LogFile logFile, Filter logFilter, long fromTimeMs, long toTimeMs, long maxEvents) {
+      this.logFile = logFile;
+      this.logFilter = logFilter;
+      this.fromTimeMs = fromTimeMs;
+      this.toTimeMs = toTimeMs;
+      this.maxEvents = maxEvents;
+      this.minLevel = getMinLevel(logFilter);
+      this.nextBlockOffset = logFile.getDataStart();
+
+      // populate the first element
+      computeNext();
+    }
+
+    // will compute the next LogEvent and set the field 'next', unless its already set
+    private void computeNext() {
+      try {
+        while (next == null && !done) {
+          if (block == null || blockPos >= block.getEventCount()) {
+            block = nextBlock();
+            blockPos = 0;
+            done = block == null;
+            continue;
+          }
+
+          int pos = blockPos++;
+          long timestamp = block.getTimestamp(pos);
+          if (timestamp >= fromTimeMs && block.getLevel(pos) >= minLevel) {
+            ILoggingEvent loggingEvent = block.decode(pos);
+            if (logFilter.match(loggingEvent)) {
+              ++count;
+              if ((count > maxEvents || timestamp >= toTimeMs) && timestamp != prevTimestamp) {
+                done = true;
+                break;
+              }
+              next = new LogEvent(loggingEvent, new LogOffset(LogOffset.INVALID_KAFKA_OFFSET, timestamp));
+            }
+          }
+          prevTimestamp = timestamp;
+        }
+      } catch (Exception e) {
+        // We want to ignore invalid log files.
+        // If the 'next' variable wasn't set by this method call, then the 'hasNext' method
+        // will return false, and no more events will be read from this file.
+        LOG.error("Got exception while reading log file {}", logFile.getLocation(), e);
+        done = true;
+      }
+    }
+
+    /**
+     * Returns the next block that can contain events in the time range and with the levels matching the filter,
+     * or {@code null} if there is no more block.
+     */
+    @Nullable
+    private Block nextBlock() throws IOException {
+      BlockIndexEntry entry = logFile.readIndex(nextBlockOffset);
+      while (entry != null) {
+        nextBlockOffset = entry.getEnd();
+        if (entry.index.getMaxTimestamp() >= fromTimeMs && entry.index.getMaxLevel() >= minLevel) {
+          return logFile.readBlock(entry);
+        }
+        entry = logFile.readIndex(nextBlockOffset);
+      }
+      return null;
+    }
+
+    @Override
+    public void close() {
+      Closeables.closeQuietly(logFile);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public LogEvent next() {
+      if (this.next == null) {
+        throw new NoSuchElementException();
+      }
+      LogEvent toReturn = this.next;
+      this.next = null;
+      computeNext();
+      return toReturn;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Remove not supported");
+    }
+  }
+
+  /**
+   * A {@link IndexedLogFile.BlockIndex} together with the position of its block in the file.
+   */
+  private static final class BlockIndexEntry {
+    private final long offset;
+    private final long payloadOffset;
+    private final IndexedLogFile.BlockIndex index;
+
+    BlockIndexEntry(long offset, long payloadOffset, IndexedLogFile.BlockIndex index) {
+      this.offset = offset;
+      this.payloadOffset = payloadOffset;
+      this.index = index;
+    }
+
+    /**
+     * Returns the position right after the trailer of the block.
+     */
+    long getEnd() {
+      return payloadOffset + index.getPayloadLength() + IndexedLogFile.TRAILER_LENGTH;
+    }
+  }
+
+  /**
+   * An open file in the {@link IndexedLogFile} format.
+   */
+  private static final class LogFile implements Closeable {
+    private final Location location;
+    private final SeekableInputStream input;
+    private final long dataStart;
+    private final GenericDatumReader<GenericRecord> datumReader;
+    private final Inflater inflater;
+
+    private BinaryDecoder decoder;
+    private GenericRecord datum;
+
+    /**
+     * Opens the given file, or returns {@code null} if the file is not in the {@link IndexedLogFile} format.
+     */
+    @Nullable
+    static LogFile open(final Location location, Schema schema, NamespaceId namespaceId,
+                        Impersonator impersonator) throws IOException {
+      SeekableInputStream input;
+      try {
+        input = impersonator.doAs(namespaceId, new Callable<SeekableInputStream>() {
+          @Override
+          public SeekableInputStream call() throws Exception {
+            return Locations.newInputSupplier(location).getInput();
+          }
+        });
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        // should not happen
+        throw Throwables.propagate(e);
+      }
+
+      try {
+        DataInputStream dataInput = new DataInputStream(input);
+        byte[] magic = new byte[IndexedLogFile.MAGIC.length];
+        dataInput.readFully(magic);
+        if (!IndexedLogFile.hasMagic(magic)) {
+          input.close();
+          return null;
+        }
+        byte[] schemaBytes = new byte[dataInput.readInt()];
+        dataInput.readFully(schemaBytes);
+        Schema writerSchema = new Schema.Parser().parse(new String(schemaBytes, Charsets.UTF_8));
+        return new LogFile(location, input, input.getPos(), new GenericDatumReader<GenericRecord>(writerSchema,
+                                                                                                   schema));
+      } catch (EOFException e) {
+        // Too short for the file header, which can happen for an empty Avro file
+        input.close();
+        return null;
+      } catch (IOException | RuntimeException e) {
+        input.close();
+        throw e;
+      }
+    }
+
+    private LogFile(Location location, SeekableInputStream input, long dataStart,
+                    GenericDatumReader<GenericRecord> datumReader) {
+      this.location = location;
+      this.input = input;
+      this.dataStart = dataStart;
+      this.datumReader = datumReader;
+      this.inflater = new Inflater();
+    }
+
+    Location getLocation() {
+      return location;
+    }
+
+    /**
+     * Returns the position of the first block.
+     */
+    long getDataStart() {
+      return dataStart;
+    }
+
+    /**
+     * Returns the end position of the last block that can be located from the file length.
+     */
+    long getLastBlockEnd() throws IOException {
+      long length = location.length();
+      if (readIndexBefore(length) != null) {
+        return length;
+      }
+      // The file is being written, or its last block is incomplete. Find the end of the last complete block.
+      long end = dataStart;
+      BlockIndexEntry entry = readIndex(end);
+      while (entry != null && entry.getEnd() <= length) {
+        end = entry.getEnd();
+        entry = readIndex(end);
+      }
+      return end;
+    }
+
+    /**
+     * Reads the indexes of all complete blocks starting from the given position.
+     */
+    List<BlockIndexEntry> readIndexes(long offset) throws IOException {
+      List<BlockIndexEntry> entries = new ArrayList<>();
+      BlockIndexEntry entry = readIndex(offset);
+      while (entry != null) {
+        entries.add(entry);
+        entry = readIndex(entry.getEnd());
+      }
+      return entries;
+    }
+
+    /**
+     * Reads the index of the block at the given position, or returns {@code null} if there is no complete block.
+     */
+    @Nullable
+    BlockIndexEntry readIndex(long offset) throws IOException {
+      input.seek(offset);
+      CountingInputStream counting = new CountingInputStream(new BufferedInputStream(input, 512));
+      DataInputStream dataInput = new DataInputStream(counting);
+      IndexedLogFile.BlockIndex index;
+      try {
+        if (dataInput.readInt() != IndexedLogFile.BLOCK_MARKER) {
+          return null;
+        }
+        index = IndexedLogFile.BlockIndex.read(dataInput);
+      } catch (EOFException | UTFDataFormatException e) {
+        return null;
+      }
+      if (index.getPayloadLength() < 0 || index.getDataLength() < 0 || index.getEventCount() < 0) {
+        return null;
+      }
+      BlockIndexEntry entry = new BlockIndexEntry(offset, offset + counting.getCount(), index);
+
+      // Make sure the block is complete by validating its trailer
+      input.seek(entry.getEnd() - IndexedLogFile.TRAILER_LENGTH);
+      dataInput = new DataInputStream(input);
+      try {
+        if (dataInput.readInt() != entry.getEnd() - IndexedLogFile.TRAILER_LENGTH - offset
+          || dataInput.readInt() != IndexedLogFile.BLOCK_MARKER) {
+          return null;
+        }
+      } catch (EOFException e) {
+        return null;
+      }
+      return entry;
+    }
+
+    /**
+     * Reads the index of the block that ends at the given position, or returns {@code null} if there is no
+     * complete block ending there.
+     */
+    @Nullable
+    BlockIndexEntry readIndexBefore(long end) throws IOException {
+      if (end - IndexedLogFile.TRAILER_LENGTH <= dataStart) {
+        return null;
+      }
+      input.seek(end - IndexedLogFile.TRAILER_LENGTH);
+      DataInputStream dataInput = new DataInputStream(input);
+      int blockLength;
+      try {
+        blockLength = dataInput.readInt();
+        if (dataInput.readInt() != IndexedLogFile.BLOCK_MARKER) {
+          return null;
+        }
+      } catch (EOFException e) {
+        return null;
+      }
+      long offset = end - IndexedLogFile.TRAILER_LENGTH - blockLength;
+      if (blockLength <= 0 || offset < dataStart) {
+        return null;
+      }
+      BlockIndexEntry entry = readIndex(offset);
+      return entry != null && entry.getEnd() == end ? entry : null;
+    }
+
+    Block readBlock(BlockIndexEntry entry) throws IOException {
+      byte[] payload = new byte[entry.index.getPayloadLength()];
+      input.seek(entry.payloadOffset);
+      new DataInputStream(input).readFully(payload);
+
+      byte[] data = new byte[entry.index.getDataLength()];
+      inflater.reset();
+      inflater.setInput(payload);
+      try {
+        int length = 0;
+        while (length < data.length && !inflater.finished()) {
+          int inflated = inflater.inflate(data, length, data.length - length);
+          if (inflated == 0 && inflater.needsInput()) {
+            break;
+          }
+          length += inflated;
+        }
+        if (length != data.length) {
+          throw new IOException(String.format("Corrupted block at position %d in log file %s",
+                                              entry.offset, location));
+        }
+      } catch (DataFormatException e) {
+        throw new IOException(String.format("Corrupted block at position %d in log file %s",
+                                            entry.offset, location), e);
+      }
+      return new Block(this, entry.index.getEventCount(), data);
+    }
+
+    ILoggingEvent decode(byte[] data, int offset, int length) throws IOException {
+      decoder = DecoderFactory.get().binaryDecoder(data, offset, length, decoder);
+      datum = datumReader.read(datum, decoder);
+      return LoggingEvent.decode(datum);
+    }
+
+    @Override
+    public void close() throws IOException {
+      inflater.end();
+      input.close();
+    }
+  }
+
+  /**
+   * The decompressed payload of a block.
+   */
+  private static final class Block {
+    private final LogFile logFile;
+    private final int eventCount;
+    private final byte[] data;
+    private final ByteBuffer buffer;
+    private final int[] recordOffsets;
+
+    Block(LogFile logFile, int eventCount, byte[] data) {
+      this.logFile = logFile;
+      this.eventCount = eventCount;
+      this.data = data;
+      this.buffer = ByteBuffer.wrap(data);
+      this.recordOffsets = new int[eventCount + 1];
+
+      int offset = eventCount * (Long.SIZE + Integer.SIZE * 2) / Byte.SIZE;
+      int lengthsOffset = eventCount * (Long.SIZE + Integer.SIZE) / Byte.SIZE;
+      for (int i = 0; i < eventCount; i++) {
+        recordOffsets[i] = offset;
+        offset += buffer.getInt(lengthsOffset + i * Integer.SIZE / Byte.SIZE);
+      }
+      recordOffsets[eventCount] = offset;
+    }
+
+    int getEventCount() {
+      return eventCount;
+    }
+
+    long getTimestamp(int pos) {
+      return buffer.getLong(pos * Long.SIZE / Byte.SIZE);
+    }
+
+    int getLevel(int pos) {
+      return buffer.getInt(eventCount * Long.SIZE / Byte.SIZE + pos * Integer.SIZE / Byte.SIZE);
+    }
+
+    ILoggingEvent decode(int pos) throws IOException {
+      return logFile.decode(data, recordOffsets[pos], recordOffsets[pos + 1] - recordOffsets[pos]);
+    }
+  }
+}
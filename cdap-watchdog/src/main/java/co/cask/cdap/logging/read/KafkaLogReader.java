@@ -38,6 +38,9 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 
 /**
  * Reads log events stored in Kafka.
@@ -52,13 +55,15 @@ public class KafkaLogReader implements LogReader {
   private final String topic;
   private final LoggingEventSerializer serializer;
   private final StringPartitioner partitioner;
+  private final LogTailCache tailCache;
 
   /**
    * Creates a Kafka log reader object.
    * @param cConf configuration object containing Kafka seed brokers and number of Kafka partitions for log topic.
+   * @param tailCache cache of the most recent events of each logging context
    */
   @Inject
-  KafkaLogReader(CConfiguration cConf, StringPartitioner partitioner) {
+  KafkaLogReader(CConfiguration cConf, StringPartitioner partitioner, LogTailCache tailCache) {
     try {
       this.seedBrokers = LoggingConfiguration.getKafkaSeedBrokers(
         cConf.get(LoggingConfiguration.KAFKA_SEED_BROKERS));
@@ -69,6 +74,7 @@ public class KafkaLogReader implements LogReader {
 
       this.partitioner = partitioner;
       this.serializer = new LoggingEventSerializer();
+      this.tailCache = tailCache;
 
     } catch (Exception e) {
       throw Throwables.propagate(e);
@@ -145,6 +151,14 @@ public class KafkaLogReader implements LogReader {
 
       long latestOffset = kafkaConsumer.fetchOffsetBefore(KafkaConsumer.LATEST_OFFSET);
       long earliestOffset = kafkaConsumer.fetchOffsetBefore(KafkaConsumer.EARLIEST_OFFSET);
+
+      // Requests for the latest events are served from the tail cache when it goes back far enough
+      if (readRange.getKafkaOffset() < 0 && readRange.getToMillis() == Long.MAX_VALUE && tailCache.isEnabled() &&
+        getLogTail(kafkaConsumer, loggingContext, readRange, maxEvents, filter, callback,
+                   earliestOffset, latestOffset)) {
+        return;
+      }
+
       long stopOffset;
       long startOffset;
 
@@ -205,6 +219,80 @@ public class KafkaLogReader implements LogReader {
 
   }
 
+  /**
+   * Reads the events of the logging context that are new since the previous call into the {@link LogTailCache},
+   * and serves the latest events from there. The events returned are the same as the Kafka scan would return:
+   * the matching events of the most recent window of {@code maxEvents} offsets that contains any, walking back
+   * no further than {@link #MAX_READ_EVENTS_KAFKA} offsets.
+   *
+   * @return {@code true} if the events were served, or {@code false} if the cache does not go back as far as the
+   *         Kafka scan would, in which case nothing has been passed to the callback
+   */
+  private boolean getLogTail(KafkaConsumer kafkaConsumer, LoggingContext loggingContext, ReadRange readRange,
+                             int maxEvents, Filter filter, Callback callback, long earliestOffset, long latestOffset) {
+    LogTailCache.Tail tail = tailCache.getTail(loggingContext);
+    long fetchOffset;
+    synchronized (tail) {
+      fetchOffset = tail.getNextOffset();
+      if (fetchOffset < earliestOffset || fetchOffset > latestOffset
+        || latestOffset - fetchOffset > MAX_READ_EVENTS_KAFKA) {
+        // The tail is new, has been removed from Kafka by retention, or is too far behind to catch up with
+        tail.reset(Math.max(earliestOffset, latestOffset - MAX_READ_EVENTS_KAFKA));
+        fetchOffset = tail.getNextOffset();
+      }
+    }
+
+    // Read the new events without holding the lock, so that requests for the same logging context don't wait
+    // for each other's Kafka fetches
+    TailCallback tailCallback = new TailCallback(LoggingContextHelper.createFilter(loggingContext), serializer,
+                                                 fetchOffset, latestOffset);
+    long offset = fetchOffset;
+    while (offset < latestOffset) {
+      kafkaConsumer.fetchMessages(offset, tailCallback);
+      // No more Kafka messages
+      if (tailCallback.getLastOffset() < offset) {
+        break;
+      }
+      offset = tailCallback.getLastOffset() + 1;
+    }
+    long fetchedOffset = Math.min(offset, latestOffset);
+
+    List<LogEvent> events;
+    synchronized (tail) {
+      // Concurrent requests may have added some of the events already, or reset the tail in the meantime
+      long nextOffset = tail.getNextOffset();
+      if (nextOffset >= fetchOffset && nextOffset < fetchedOffset) {
+        for (Map.Entry<Long, ILoggingEvent> entry : tailCallback.getEvents().tailMap(nextOffset).entrySet()) {
+          tail.add(entry.getValue(), entry.getKey());
+        }
+        tail.setNextOffset(fetchedOffset);
+        tailCache.update(loggingContext, tail);
+      }
+      if (tail.getNextOffset() < latestOffset) {
+        return false;
+      }
+
+      // Walk back the same windows of offsets as the Kafka scan in getLogPrev, which gives up after reading
+      // about MAX_READ_EVENTS_KAFKA messages
+      long minOffset = Math.max(earliestOffset, latestOffset - MAX_READ_EVENTS_KAFKA);
+      long stopOffset = latestOffset;
+      events = ImmutableList.of();
+      while (events.isEmpty() && stopOffset > minOffset) {
+        long startOffset = Math.max(minOffset, stopOffset - maxEvents);
+        if (startOffset < tail.getFirstOffset()) {
+          return false;
+        }
+        events = tail.getEvents(filter, readRange.getFromMillis(), startOffset, stopOffset);
+        stopOffset = startOffset;
+      }
+    }
+
+    for (LogEvent event : events) {
+      callback.handle(event);
+    }
+    return true;
+  }
+
   private int fetchLogEvents(KafkaConsumer kafkaConsumer, KafkaCallback kafkaCallback,
                              long startOffset, long stopOffset, int maxEvents, ReadRange readRange) {
     while (kafkaCallback.getEventsMatched() < maxEvents && startOffset < stopOffset) {
@@ -294,4 +382,56 @@ public class KafkaLogReader implements LogReader {
       return eventsRead;
     }
   }
+
+  /**
+   * Kafka callback that collects the events of a logging context, to be added to a {@link LogTailCache.Tail}.
+   */
+  private static class TailCallback implements co.cask.cdap.logging.kafka.Callback {
+    private final Filter contextFilter;
+    private final LoggingEventSerializer serializer;
+    private final long stopOffset;
+    private final NavigableMap<Long, ILoggingEvent> events;
+
+    private long lastOffset;
+
+    private TailCallback(Filter contextFilter, LoggingEventSerializer serializer, long startOffset, long stopOffset) {
+      this.contextFilter = contextFilter;
+      this.serializer = serializer;
+      this.stopOffset = stopOffset;
+      this.events = new TreeMap<>();
+      this.lastOffset = startOffset - 1;
+    }
+
+    @Override
+    public void handle(long offset, ByteBuffer msgBuffer) {
+      // A fetch can return messages before the requested offset, which have been added already
+      if (offset <= lastOffset) {
+        return;
+      }
+      lastOffset = offset;
+      if (offset >= stopOffset) {
+        return;
+      }
+      try {
+        ILoggingEvent event = serializer.fromBytes(msgBuffer);
+        if (contextFilter.match(event)) {
+          events.put(offset, event);
+        }
+      } catch (IOException e) {
+        LOG.warn("Ignore logging event due to decode failure: {}", e.getMessage());
+        LOG.debug("Ignore logging event stack trace", e);
+      }
+    }
+
+    public long getLastOffset() {
+      return lastOffset;
+    }
+
+    /**
+     * Returns the events of the logging context read, keyed by Kafka offset.
+     */
+    public NavigableMap<Long, ILoggingEvent> getEvents() {
+      return events;
+    }
+  }
 }
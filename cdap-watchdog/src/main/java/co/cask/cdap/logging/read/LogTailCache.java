@@ -0,0 +1,305 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.read;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.logging.LoggingContext;
+import co.cask.cdap.logging.LoggingConfiguration;
+import co.cask.cdap.logging.filter.Filter;
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
+
+/**
+ * In-memory cache of the most recent log events of each {@link LoggingContext}, used to serve requests for the
+ * latest logs without reading them again from Kafka. Every {@link Tail} in the cache keeps the events of a logging
+ * context read from the Kafka offset it was created at, up to a maximum number of events, together with the offset
+ * to continue reading from, so that only the new events need to be read for the next request.
+ *
+ * The cache is bounded by the estimated memory used by the events it holds and evicts the least recently used
+ * tails first.
+ */
+public final class LogTailCache {
+
+  private final Cache<String, Tail> cache;
+  private final long maxBytes;
+  private final int maxEvents;
+
+  @Inject
+  LogTailCache(CConfiguration cConf) {
+    this(cConf.getLong(LoggingConfiguration.LOG_READER_TAIL_CACHE_MAX_BYTES,
+                       LoggingConfiguration.DEFAULT_LOG_READER_TAIL_CACHE_MAX_BYTES),
+         cConf.getInt(LoggingConfiguration.LOG_READER_TAIL_CACHE_MAX_EVENTS,
+                      LoggingConfiguration.DEFAULT_LOG_READER_TAIL_CACHE_MAX_EVENTS));
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param maxBytes maximum estimated memory in bytes used by the events in the cache
+   * @param maxEvents maximum number of events to keep for each logging context
+   */
+  public LogTailCache(long maxBytes, int maxEvents) {
+    this.cache = CacheBuilder.newBuilder()
+      .maximumWeight(maxBytes)
+      .weigher(new Weigher<String, Tail>() {
+        @Override
+        public int weigh(String key, Tail tail) {
+          return tail.getSize();
+        }
+      })
+      .build();
+    this.maxBytes = maxBytes;
+    this.maxEvents = maxEvents;
+  }
+
+  /**
+   * Returns {@code true} if the cache can hold any event.
+   */
+  public boolean isEnabled() {
+    return maxBytes > 0 && maxEvents > 0;
+  }
+
+  /**
+   * Returns the {@link Tail} of the given logging context, creating an empty one if there is none.
+   * Callers need to synchronize on the returned {@link Tail} when using it.
+   */
+  public Tail getTail(LoggingContext loggingContext) {
+    try {
+      return cache.get(getKey(loggingContext), new Callable<Tail>() {
+        @Override
+        public Tail call() throws Exception {
+          return new Tail(maxEvents);
+        }
+      });
+    } catch (ExecutionException e) {
+      // Cannot happen, since creating a Tail does not throw
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Updates the cache after the given {@link Tail} has been modified, so that its new size is accounted for.
+   */
+  public void update(LoggingContext loggingContext, Tail tail) {
+    // Replacing recomputes the weight. A tail that has been evicted in the meantime is not put back.
+    cache.asMap().replace(getKey(loggingContext), tail, tail);
+  }
+
+  /**
+   * Returns a rough estimate of the memory in bytes used by a decoded event held in the cache. The decoded form
+   * is several times larger than the serialized one, since strings are held as UTF-16 and every object has a header.
+   */
+  static int estimateSize(ILoggingEvent event) {
+    // The event, level, LogEvent, LogOffset and CachedEvent objects
+    int size = 200;
+    size += estimateSize(event.getThreadName());
+    size += estimateSize(event.getLoggerName());
+    size += estimateSize(event.getMessage());
+    size += estimateSize(event.getFormattedMessage());
+    Object[] arguments = event.getArgumentArray();
+    if (arguments != null) {
+      for (Object argument : arguments) {
+        size += 16 + (argument == null ? 0 : estimateSize(argument.toString()));
+      }
+    }
+    Map<String, String> mdc = event.getMDCPropertyMap();
+    if (mdc != null) {
+      for (Map.Entry<String, String> entry : mdc.entrySet()) {
+        size += 32 + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+      }
+    }
+    // Calling getCallerData() on an event without caller data would compute it
+    if (event.hasCallerData()) {
+      size += estimateSize(event.getCallerData());
+    }
+    return size + estimateSize(event.getThrowableProxy());
+  }
+
+  private static int estimateSize(@Nullable IThrowableProxy proxy) {
+    int size = 0;
+    while (proxy != null) {
+      size += 64 + estimateSize(proxy.getClassName()) + estimateSize(proxy.getMessage());
+      StackTraceElementProxy[] frames = proxy.getStackTraceElementProxyArray();
+      if (frames != null) {
+        for (StackTraceElementProxy frame : frames) {
+          size += 24 + (frame == null ? 0 : estimateSize(frame.getStackTraceElement()));
+        }
+      }
+      IThrowableProxy[] suppressed = proxy.getSuppressed();
+      if (suppressed != null) {
+        for (IThrowableProxy suppressedProxy : suppressed) {
+          size += estimateSize(suppressedProxy);
+        }
+      }
+      proxy = proxy.getCause();
+    }
+    return size;
+  }
+
+  private static int estimateSize(@Nullable StackTraceElement[] elements) {
+    int size = 0;
+    if (elements != null) {
+      for (StackTraceElement element : elements) {
+        size += estimateSize(element);
+      }
+    }
+    return size;
+  }
+
+  private static int estimateSize(@Nullable StackTraceElement element) {
+    if (element == null) {
+      return 0;
+    }
+    return 32 + estimateSize(element.getClassName()) + estimateSize(element.getMethodName())
+      + estimateSize(element.getFileName());
+  }
+
+  private static int estimateSize(@Nullable String str) {
+    return str == null ? 0 : 40 + 2 * str.length();
+  }
+
+  private String getKey(LoggingContext loggingContext) {
+    Map<String, String> tags = new TreeMap<>();
+    for (LoggingContext.SystemTag tag : loggingContext.getSystemTags()) {
+      tags.put(tag.getName(), tag.getValue());
+    }
+    return Joiner.on(',').withKeyValueSeparator("=").useForNull("").join(tags);
+  }
+
+  /**
+   * The most recent events of a logging context. Instances of this class are not thread-safe.
+   */
+  public static final class Tail {
+    private final int maxEvents;
+    private final Deque<CachedEvent> events;
+    private long firstOffset;
+    private long nextOffset;
+    private int size;
+
+    private Tail(int maxEvents) {
+      this.maxEvents = maxEvents;
+      this.events = new ArrayDeque<>();
+      this.firstOffset = -1;
+      this.nextOffset = -1;
+    }
+
+    /**
+     * Returns the Kafka offset from which all events of the logging context are in this tail, or {@code -1} if
+     * nothing has been read yet.
+     */
+    public long getFirstOffset() {
+      return firstOffset;
+    }
+
+    /**
+     * Returns the Kafka offset to continue reading new events from, or {@code -1} if nothing has been read yet.
+     */
+    public long getNextOffset() {
+      return nextOffset;
+    }
+
+    /**
+     * Removes all events, and starts over reading from the given Kafka offset.
+     */
+    public void reset(long offset) {
+      events.clear();
+      size = 0;
+      firstOffset = offset;
+      nextOffset = offset;
+    }
+
+    /**
+     * Adds an event read from Kafka. Events need to be added in the order of their offsets.
+     *
+     * @param event the event
+     * @param offset Kafka offset of the event
+     */
+    public void add(ILoggingEvent event, long offset) {
+      int eventSize = estimateSize(event);
+      events.addLast(new CachedEvent(new LogEvent(event, new LogOffset(offset, event.getTimeStamp())), eventSize));
+      size += eventSize;
+      if (events.size() > maxEvents) {
+        CachedEvent removed = events.removeFirst();
+        size -= removed.size;
+        // Messages between the removed event and the new first one belong to other logging contexts
+        firstOffset = removed.logEvent.getOffset().getKafkaOffset() + 1;
+      }
+    }
+
+    /**
+     * Sets the Kafka offset to continue reading new events from.
+     */
+    public void setNextOffset(long nextOffset) {
+      this.nextOffset = nextOffset;
+    }
+
+    /**
+     * Returns the events matching the filter that are after the given time, with Kafka offsets in the range
+     * {@code [startOffset, stopOffset)}, in the order of their offsets.
+     */
+    public List<LogEvent> getEvents(Filter filter, long fromTimeMs, long startOffset, long stopOffset) {
+      List<LogEvent> result = Lists.newArrayList();
+      Iterator<CachedEvent> iterator = events.descendingIterator();
+      while (iterator.hasNext()) {
+        LogEvent logEvent = iterator.next().logEvent;
+        long offset = logEvent.getOffset().getKafkaOffset();
+        if (offset < startOffset) {
+          break;
+        }
+        if (offset < stopOffset && logEvent.getLoggingEvent().getTimeStamp() > fromTimeMs
+          && filter.match(logEvent.getLoggingEvent())) {
+          result.add(logEvent);
+        }
+      }
+      return Lists.reverse(result);
+    }
+
+    int getSize() {
+      return size;
+    }
+  }
+
+  /**
+   * A {@link LogEvent} with its estimated size in memory.
+   */
+  private static final class CachedEvent {
+    private final LogEvent logEvent;
+    private final int size;
+
+    CachedEvent(LogEvent logEvent, int size) {
+      this.logEvent = logEvent;
+      this.size = size;
+    }
+  }
+}
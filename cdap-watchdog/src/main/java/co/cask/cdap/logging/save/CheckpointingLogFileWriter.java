@@ -29,7 +29,8 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * LogFileWriter that checkpoints kafka offsets for each partition.
+ * LogFileWriter that checkpoints kafka offsets for each partition. Appended events are not flushed until the next
+ * call to {@link #flush(boolean)}, so that the files appended to in between are flushed together.
  */
 public class CheckpointingLogFileWriter implements LogFileWriter<KafkaLogEvent> {
   private static final Logger LOG = LoggerFactory.getLogger(CheckpointingLogFileWriter.class);
@@ -67,9 +68,9 @@ public class CheckpointingLogFileWriter implements LogFileWriter<KafkaLogEvent>
       }
     }
 
+    // Only advance the checkpoint once the events are appended, so that a failed append never gets checkpointed
+    avroFileWriter.append(events, false);
     partitionCheckpointMap.put(partition, maxCheckpoint);
-
-    avroFileWriter.append(events);
   }
 
   @Override
@@ -92,6 +93,8 @@ public class CheckpointingLogFileWriter implements LogFileWriter<KafkaLogEvent>
     try {
       long currentTs = System.currentTimeMillis();
       if (!force && currentTs - lastCheckpointTime < flushIntervalMs) {
+        // Make the appended events visible to readers, syncing and checkpointing is done every flushIntervalMs
+        avroFileWriter.flushAppended();
         return;
       }
 
@@ -16,6 +16,8 @@
 
 package co.cask.cdap.logging.save;
 
+import co.cask.cdap.api.metrics.MetricsCollectionService;
+import co.cask.cdap.api.metrics.MetricsContext;
 import co.cask.cdap.common.conf.CConfiguration;
 import co.cask.cdap.common.conf.Constants;
 import co.cask.cdap.common.io.RootLocationFactory;
@@ -30,9 +32,11 @@ import co.cask.cdap.logging.write.AvroFileWriter;
 import co.cask.cdap.logging.write.FileMetaDataManager;
 import co.cask.cdap.logging.write.LogCleanup;
 import co.cask.cdap.logging.write.LogFileWriter;
+import co.cask.cdap.proto.id.NamespaceId;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.PeekingIterator;
@@ -49,12 +53,17 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Plugin that writes the log data.
+ * Plugin that writes the log data. Events are processed in a pipeline of stages that run in separate threads:
+ * the Kafka consumer thread buckets events by time, a {@link LogWriter} groups the events of completed buckets by
+ * logging context, and a {@link LogBatchWriter} appends them to the log files, flushing all files written to once
+ * per batch. The stages are connected by bounded buffers, hence a slow stage throttles the ones before it.
  */
 public class KafkaLogWriterPlugin extends AbstractKafkaLogProcessor {
   private static final Logger LOG = LoggerFactory.getLogger(KafkaLogWriterPlugin.class);
@@ -73,6 +82,8 @@ public class KafkaLogWriterPlugin extends AbstractKafkaLogProcessor {
   private final LoggingEventSerializer serializer;
   private final LogCleanup logCleanup;
   private final CheckpointManager checkpointManager;
+  private final int writeQueueSize;
+  private final MetricsContext metricsContext;
 
   private ListeningScheduledExecutorService scheduledExecutor;
   private CountDownLatch countDownLatch;
@@ -81,7 +92,8 @@ public class KafkaLogWriterPlugin extends AbstractKafkaLogProcessor {
   KafkaLogWriterPlugin(CConfiguration cConf, FileMetaDataManager fileMetaDataManager,
                        CheckpointManagerFactory checkpointManagerFactory, RootLocationFactory rootLocationFactory,
                        NamespaceQueryAdmin namespaceQueryAdmin, NamespacedLocationFactory namespacedLocationFactory,
-                       Impersonator impersonator) throws Exception {
+                       Impersonator impersonator, MetricsCollectionService metricsCollectionService)
+    throws Exception {
 
     this.serializer = new LoggingEventSerializer();
     this.messageTable = TreeBasedTable.create();
@@ -138,6 +150,10 @@ public class KafkaLogWriterPlugin extends AbstractKafkaLogProcessor {
     Preconditions.checkArgument(topicCreationSleepMs > 0,
                                 "Topic creation wait sleep is invalid: %s", topicCreationSleepMs);
 
+    this.writeQueueSize = cConf.getInt(LoggingConfiguration.LOG_SAVER_WRITE_QUEUE_SIZE,
+                                       LoggingConfiguration.DEFAULT_LOG_SAVER_WRITE_QUEUE_SIZE);
+    Preconditions.checkArgument(this.writeQueueSize > 0, "Write queue size is invalid: %s", this.writeQueueSize);
+
     logCleanupIntervalMins = cConf.getInt(LoggingConfiguration.LOG_CLEANUP_RUN_INTERVAL_MINS,
                                           LoggingConfiguration.DEFAULT_LOG_CLEANUP_RUN_INTERVAL_MINS);
     Preconditions.checkArgument(logCleanupIntervalMins > 0,
@@ -154,6 +170,9 @@ public class KafkaLogWriterPlugin extends AbstractKafkaLogProcessor {
     long retentionDurationMs = TimeUnit.MILLISECONDS.convert(retentionDurationDays, TimeUnit.DAYS);
     this.logCleanup = new LogCleanup(fileMetaDataManager, rootLocationFactory, namespaceQueryAdmin,
                                      namespacedLocationFactory, logBaseDir, retentionDurationMs, impersonator);
+    this.metricsContext = metricsCollectionService.getContext(
+      ImmutableMap.of(Constants.Metrics.Tag.NAMESPACE, NamespaceId.SYSTEM.getNamespace(),
+                      Constants.Metrics.Tag.COMPONENT, Constants.Service.LOGSAVER));
   }
 
   @Override
@@ -163,20 +182,24 @@ public class KafkaLogWriterPlugin extends AbstractKafkaLogProcessor {
     super.init(checkpoint);
 
     // We schedule clean up task if partition is zero, so that only one cleanup task gets scheduled
+    // One thread each is used for grouping and writing events
+    scheduledExecutor = MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(
+      partition == 0 ? 3 : 2, Threads.createDaemonThreadFactory("log-saver-log-processor-" + partition)));
     if (partition == 0) {
-      scheduledExecutor = MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(2,
-        Threads.createDaemonThreadFactory("log-saver-log-processor-" + partition)));
       LOG.info("Scheduling cleanup task");
       scheduledExecutor.scheduleAtFixedRate(logCleanup, 10, logCleanupIntervalMins, TimeUnit.MINUTES);
-    } else {
-      scheduledExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadScheduledExecutor(
-        Threads.createDaemonThreadFactory("log-saver-log-processor-" + partition)));
     }
 
     countDownLatch = new CountDownLatch(1);
-    LogWriter logWriter = new LogWriter(logFileWriter, messageTable,
-                                        eventBucketIntervalMs, maxNumberOfBucketsInTable, countDownLatch);
+    BlockingQueue<List<List<KafkaLogEvent>>> writeQueue = new ArrayBlockingQueue<>(writeQueueSize);
+    MetricsContext partitionMetricsContext = metricsContext.childContext(Constants.Metrics.Tag.PARTITION,
+                                                                         Integer.toString(partition));
+    LogWriter logWriter = new LogWriter(messageTable, writeQueue, eventBucketIntervalMs, maxNumberOfBucketsInTable,
+                                        countDownLatch, partitionMetricsContext);
+    LogBatchWriter logBatchWriter = new LogBatchWriter(logFileWriter, writeQueue, countDownLatch,
+                                                       partitionMetricsContext);
     scheduledExecutor.execute(logWriter);
+    scheduledExecutor.execute(logBatchWriter);
   }
 
   @Override
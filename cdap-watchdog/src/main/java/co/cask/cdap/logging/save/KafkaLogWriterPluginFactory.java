@@ -16,6 +16,7 @@
 
 package co.cask.cdap.logging.save;
 
+import co.cask.cdap.api.metrics.MetricsCollectionService;
 import co.cask.cdap.common.conf.CConfiguration;
 import co.cask.cdap.common.io.RootLocationFactory;
 import co.cask.cdap.common.namespace.NamespaceQueryAdmin;
@@ -35,13 +36,15 @@ public class KafkaLogWriterPluginFactory implements KafkaLogProcessorFactory {
   private final CheckpointManagerFactory checkpointManagerFactory;
   private final Impersonator impersonator;
   private final NamespaceQueryAdmin namespaceQueryAdmin;
+  private final MetricsCollectionService metricsCollectionService;
 
   @Inject
   public KafkaLogWriterPluginFactory(CConfiguration cConfig, FileMetaDataManager fileMetaDataManager,
                                      RootLocationFactory rootLocationFactory,
                                      NamespaceQueryAdmin namespaceQueryAdmin,
                                      NamespacedLocationFactory namespacedLocationFactory,
-                                     CheckpointManagerFactory checkpointManagerFactory, Impersonator impersonator) {
+                                     CheckpointManagerFactory checkpointManagerFactory, Impersonator impersonator,
+                                     MetricsCollectionService metricsCollectionService) {
     this.cConfig = cConfig;
     this.fileMetaDataManager = fileMetaDataManager;
     this.rootLocationFactory = rootLocationFactory;
@@ -49,11 +52,13 @@ public class KafkaLogWriterPluginFactory implements KafkaLogProcessorFactory {
     this.checkpointManagerFactory = checkpointManagerFactory;
     this.impersonator = impersonator;
     this.namespaceQueryAdmin = namespaceQueryAdmin;
+    this.metricsCollectionService = metricsCollectionService;
   }
 
   @Override
   public KafkaLogProcessor create() throws Exception {
     return new KafkaLogWriterPlugin(cConfig, fileMetaDataManager, checkpointManagerFactory, rootLocationFactory,
-                                    namespaceQueryAdmin, namespacedLocationFactory, impersonator);
+                                    namespaceQueryAdmin, namespacedLocationFactory, impersonator,
+                                    metricsCollectionService);
   }
 }
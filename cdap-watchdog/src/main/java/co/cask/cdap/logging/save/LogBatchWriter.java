@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.save;
+
+import co.cask.cdap.api.metrics.MetricsContext;
+import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.logging.kafka.KafkaLogEvent;
+import co.cask.cdap.logging.write.LogFileWriter;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the batches of logs grouped by {@link LogWriter}. All batches waiting in the write queue are appended
+ * before the log files are flushed, so that files written to by many batches are flushed only once.
+ */
+public class LogBatchWriter implements Runnable {
+  private static final Logger LOG = LoggerFactory.getLogger(LogBatchWriter.class);
+  private static final long SLEEP_TIME_MS = 100;
+
+  private final LogFileWriter<KafkaLogEvent> logFileWriter;
+  private final BlockingQueue<List<List<KafkaLogEvent>>> writeQueue;
+  private final CountDownLatch stopLatch;
+  private final ExponentialBackoff exponentialBackoff;
+  private final MetricsContext metricsContext;
+
+  // Lists of events taken from the write queue that are not written yet
+  private final List<List<KafkaLogEvent>> writeList = Lists.newArrayList();
+
+  public LogBatchWriter(LogFileWriter<KafkaLogEvent> logFileWriter,
+                        BlockingQueue<List<List<KafkaLogEvent>>> writeQueue, final CountDownLatch stopLatch,
+                        MetricsContext metricsContext) {
+    this.logFileWriter = logFileWriter;
+    this.writeQueue = writeQueue;
+    this.stopLatch = stopLatch;
+    this.metricsContext = metricsContext;
+    this.exponentialBackoff =
+      new ExponentialBackoff(1, 60,
+                             new ExponentialBackoff.BackoffHandler() {
+                               @Override
+                               public void handle(long backoff) throws InterruptedException {
+                                 // Use stop latch for waiting so that we can exit immediately
+                                 // when stopped.
+                                 stopLatch.await(backoff, TimeUnit.SECONDS);
+                               }
+                             });
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        // Take new batches only if previous write was successful.
+        if (writeList.isEmpty()) {
+          List<List<KafkaLogEvent>> batch = writeQueue.poll(SLEEP_TIME_MS, TimeUnit.MILLISECONDS);
+          if (batch != null) {
+            writeList.addAll(batch);
+            // Write all waiting batches together
+            List<List<List<KafkaLogEvent>>> batches = Lists.newArrayList();
+            writeQueue.drainTo(batches);
+            for (List<List<KafkaLogEvent>> b : batches) {
+              writeList.addAll(b);
+            }
+          }
+        }
+
+        if (stopLatch.await(1, TimeUnit.NANOSECONDS)) {
+          // if count down occurred return
+          LOG.debug("Returning since stop latch is cancelled");
+          return;
+        }
+
+        boolean written = !writeList.isEmpty();
+        long startTime = System.currentTimeMillis();
+        for (Iterator<List<KafkaLogEvent>> it = writeList.iterator(); it.hasNext(); ) {
+          logFileWriter.append(it.next());
+          // Remove successfully written message
+          it.remove();
+        }
+
+        long writeTime = System.currentTimeMillis();
+        logFileWriter.flush(false);
+        if (written) {
+          metricsContext.gauge(Constants.Metrics.Name.Log.SAVER_WRITE_LATENCY, writeTime - startTime);
+          metricsContext.gauge(Constants.Metrics.Name.Log.SAVER_FLUSH_LATENCY, System.currentTimeMillis() - writeTime);
+        }
+
+        // Reset backoff after a successful save
+        exponentialBackoff.reset();
+      } catch (Throwable e) {
+        LOG.error("Caught exception during save, will try again with backoff.", e);
+        try {
+          exponentialBackoff.backoff();
+        } catch (InterruptedException e1) {
+          // Okay to ignore since we'll check stop latch in the next run, and exit if stopped
+        }
+      }
+    }
+  }
+}
@@ -16,132 +16,148 @@
 
 package co.cask.cdap.logging.save;
 
+import co.cask.cdap.api.metrics.MetricsContext;
+import co.cask.cdap.common.conf.Constants;
 import co.cask.cdap.logging.kafka.KafkaLogEvent;
-import co.cask.cdap.logging.write.LogFileWriter;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.RowSortedTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.SortedSet;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Persists bucketized logs stored by {@link KafkaMessageCallback}.
+ * Groups the bucketized logs stored by {@link KafkaMessageCallback} by logging context, and hands them to the
+ * {@link LogBatchWriter} to persist through the write queue. Each batch put in the queue is a list of time sorted
+ * events for each logging context. Since the write queue is bounded, a slow writer holds events in the buckets,
+ * which in turn throttles consumption from Kafka.
  */
 public class LogWriter implements Runnable {
   private static final Logger LOG = LoggerFactory.getLogger(LogWriter.class);
-  private static final long SLEEP_TIME_NS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long SLEEP_TIME_MS = 100;
 
-  private final LogFileWriter<KafkaLogEvent> logFileWriter;
   private final RowSortedTable<Long, String, Entry<Long, List<KafkaLogEvent>>> messageTable;
+  private final BlockingQueue<List<List<KafkaLogEvent>>> writeQueue;
   private final long eventBucketIntervalMs;
   private final long maxNumberOfBucketsInTable;
   private final CountDownLatch stopLatch;
-  private final ExponentialBackoff exponentialBackoff;
+  private final MetricsContext metricsContext;
 
-  private final ListMultimap<String, KafkaLogEvent> writeListMap = ArrayListMultimap.create();
+  private List<List<KafkaLogEvent>> batch;
 
-  public LogWriter(LogFileWriter<KafkaLogEvent> logFileWriter,
-                   RowSortedTable<Long, String, Entry<Long, List<KafkaLogEvent>>> messageTable,
-                   long eventBucketIntervalMs, long maxNumberOfBucketsInTable, final CountDownLatch stopLatch) {
-    this.logFileWriter = logFileWriter;
+  public LogWriter(RowSortedTable<Long, String, Entry<Long, List<KafkaLogEvent>>> messageTable,
+                   BlockingQueue<List<List<KafkaLogEvent>>> writeQueue, long eventBucketIntervalMs,
+                   long maxNumberOfBucketsInTable, CountDownLatch stopLatch,
+                   MetricsContext metricsContext) {
     this.messageTable = messageTable;
+    this.writeQueue = writeQueue;
     this.eventBucketIntervalMs = eventBucketIntervalMs;
     this.maxNumberOfBucketsInTable = maxNumberOfBucketsInTable;
     this.stopLatch = stopLatch;
-    this.exponentialBackoff =
-      new ExponentialBackoff(1, 60,
-                             new ExponentialBackoff.BackoffHandler() {
-                               @Override
-                               public void handle(long backoff) throws InterruptedException {
-                                 // Use stop latch for waiting so that we can exit immediately
-                                 // when stopped.
-                                 stopLatch.await(backoff, TimeUnit.SECONDS);
-                               }
-                             });
+    this.metricsContext = metricsContext;
   }
 
   @Override
   public void run() {
     while (true) {
       try {
-        // Read new messages only if previous write was successful.
-        if (writeListMap.isEmpty()) {
-          int messages = 0;
-
-          // The newest event that we can write to disk
-          // We try to buffer events up to (eventBucketIntervalMs * maxNumberOfBucketsInTable) time
-          // so that we collect almost all events for a time bucket before we sort it.
-          long limitKey = (System.currentTimeMillis() / eventBucketIntervalMs) - maxNumberOfBucketsInTable;
-          synchronized (messageTable) {
-            SortedSet<Long> rowKeySet = messageTable.rowKeySet();
-            if (!rowKeySet.isEmpty()) {
-              int numBuckets = rowKeySet.size();
-              long oldestBucketKey = rowKeySet.first();
-
-              Map<String, Entry<Long, List<KafkaLogEvent>>> row = messageTable.row(oldestBucketKey);
-              for (Iterator<Map.Entry<String, Entry<Long, List<KafkaLogEvent>>>> it = row.entrySet().iterator();
-                   it.hasNext(); ) {
-                Map.Entry<String, Entry<Long, List<KafkaLogEvent>>> mapEntry = it.next();
-                // Stop if event arrival time is more than the limit (this is for events being generated now)
-                // However, if we have reached maxNumberOfBucketsInTable then it means we are reading old
-                // events and we can write as soon as we fill up maxNumberOfBucketsInTable
-                if (numBuckets < maxNumberOfBucketsInTable &&
-                  limitKey < mapEntry.getValue().getKey()) {
-                  break;
-                }
-                writeListMap.putAll(mapEntry.getKey(), mapEntry.getValue().getValue());
-                messages += mapEntry.getValue().getValue().size();
-                it.remove();
-              }
-            }
-          }
+        // Group new messages only if the previous batch has been handed to the writer
+        if (batch == null) {
+          batch = groupMessages();
+        }
 
-          LOG.trace("Got {} log messages to save", messages);
+        if (batch.isEmpty()) {
+          batch = null;
+          // Wait for more data to arrive, or return if stopped
+          if (stopLatch.await(SLEEP_TIME_MS, TimeUnit.MILLISECONDS)) {
+            LOG.debug("Returning since stop latch is cancelled");
+            return;
+          }
+          continue;
         }
 
-        long sleepTimeNanos = writeListMap.isEmpty() ? SLEEP_TIME_NS : 1;
+        // Wait for the writer to catch up if the write queue is full
+        if (writeQueue.offer(batch, SLEEP_TIME_MS, TimeUnit.MILLISECONDS)) {
+          batch = null;
+        }
+        metricsContext.gauge(Constants.Metrics.Name.Log.SAVER_WRITE_QUEUE_SIZE, writeQueue.size());
 
-        // Wait for more data to arrive if writeListMap is empty, otherwise check if stopped
-        if (stopLatch.await(sleepTimeNanos, TimeUnit.NANOSECONDS)) {
-          // if count down occurred return
+        if (stopLatch.await(1, TimeUnit.NANOSECONDS)) {
           LOG.debug("Returning since stop latch is cancelled");
           return;
-        } else {
-          LOG.trace("Waiting for events, sleeping for {} ns", sleepTimeNanos);
         }
+      } catch (InterruptedException e) {
+        // Okay to ignore since we'll check stop latch in the next run, and exit if stopped
+        LOG.trace("Interrupted while grouping log messages", e);
+      } catch (Throwable e) {
+        LOG.error("Caught exception while grouping log messages.", e);
+      }
+    }
+  }
 
-        for (Iterator<Entry<String, Collection<KafkaLogEvent>>> it = writeListMap.asMap().entrySet().iterator();
+  /**
+   * Removes the buckets that are ready to be written from the message table, and returns their events as a list of
+   * time sorted events for each logging context.
+   */
+  private List<List<KafkaLogEvent>> groupMessages() {
+    long startTime = System.currentTimeMillis();
+    Map<String, List<KafkaLogEvent>> writeListMap = Maps.newLinkedHashMap();
+    int messages = 0;
+    int numBuckets = 0;
+
+    // The newest event that we can write to disk
+    // We try to buffer events up to (eventBucketIntervalMs * maxNumberOfBucketsInTable) time
+    // so that we collect almost all events for a time bucket before we sort it.
+    long limitKey = (System.currentTimeMillis() / eventBucketIntervalMs) - maxNumberOfBucketsInTable;
+    synchronized (messageTable) {
+      SortedSet<Long> rowKeySet = messageTable.rowKeySet();
+      if (!rowKeySet.isEmpty()) {
+        numBuckets = rowKeySet.size();
+        long oldestBucketKey = rowKeySet.first();
+
+        Map<String, Entry<Long, List<KafkaLogEvent>>> row = messageTable.row(oldestBucketKey);
+        for (Iterator<Map.Entry<String, Entry<Long, List<KafkaLogEvent>>>> it = row.entrySet().iterator();
              it.hasNext(); ) {
-          Entry<String, Collection<KafkaLogEvent>> mapEntry = it.next();
-          List<KafkaLogEvent> list = (List<KafkaLogEvent>) mapEntry.getValue();
-          Collections.sort(list);
-          logFileWriter.append(list);
-          // Remove successfully written message
+          Map.Entry<String, Entry<Long, List<KafkaLogEvent>>> mapEntry = it.next();
+          // Stop if event arrival time is more than the limit (this is for events being generated now)
+          // However, if we have reached maxNumberOfBucketsInTable then it means we are reading old
+          // events and we can write as soon as we fill up maxNumberOfBucketsInTable
+          if (numBuckets < maxNumberOfBucketsInTable &&
+            limitKey < mapEntry.getValue().getKey()) {
+            break;
+          }
+          List<KafkaLogEvent> list = writeListMap.get(mapEntry.getKey());
+          if (list == null) {
+            list = Lists.newArrayList();
+            writeListMap.put(mapEntry.getKey(), list);
+          }
+          list.addAll(mapEntry.getValue().getValue());
+          messages += mapEntry.getValue().getValue().size();
           it.remove();
         }
+      }
+    }
+    metricsContext.gauge(Constants.Metrics.Name.Log.SAVER_BUFFERED_BUCKETS, numBuckets);
 
-        logFileWriter.flush(false);
+    List<List<KafkaLogEvent>> result = Lists.newArrayList();
+    for (List<KafkaLogEvent> list : writeListMap.values()) {
+      Collections.sort(list);
+      result.add(list);
+    }
 
-        // Reset backoff after a successful save
-        exponentialBackoff.reset();
-      } catch (Throwable e) {
-        LOG.error("Caught exception during save, will try again with backoff.", e);
-        try {
-          exponentialBackoff.backoff();
-        } catch (InterruptedException e1) {
-          // Okay to ignore since we'll check stop latch in the next run, and exit if stopped
-        }
-      }
+    if (messages > 0) {
+      LOG.trace("Got {} log messages to save", messages);
+      metricsContext.gauge(Constants.Metrics.Name.Log.SAVER_GROUP_LATENCY, System.currentTimeMillis() - startTime);
     }
+    return result;
   }
 }
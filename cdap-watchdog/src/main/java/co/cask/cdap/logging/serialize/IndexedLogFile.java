@@ -0,0 +1,144 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.serialize;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Describes the indexed log file format. An indexed log file has the following layout:
+ *
+ * <pre>
+ *   file    := MAGIC schemaLength(int) schema(UTF-8 JSON) block*
+ *   block   := BLOCK_MARKER index payload trailer
+ *   index   := payloadLength(int) dataLength(int) eventCount(int) minTimestamp(long) maxTimestamp(long)
+ *              minLevel(int) maxLevel(int) minLogger(UTF) maxLogger(UTF)
+ *   payload := deflate(timestamp(long)* level(int)* recordLength(int)* record*)
+ *   trailer := blockLength(int) BLOCK_MARKER
+ * </pre>
+ *
+ * Each record is a logging event encoded in Avro binary with the schema in the file header. The columns of
+ * timestamps and levels in the payload allow filtering events without decoding the records, while the index of a
+ * block allows skipping the whole block. The trailer holds the length of the block without the trailer, so that the
+ * blocks can also be traversed backwards from the end of the file.
+ */
+public final class IndexedLogFile {
+
+  public static final byte[] MAGIC = new byte[] { 'C', 'L', 'F', 1 };
+  public static final int BLOCK_MARKER = 0x434c4642;
+  public static final int TRAILER_LENGTH = 8;
+
+  private IndexedLogFile() {
+  }
+
+  /**
+   * Returns {@code true} if the given bytes start with the magic of the indexed log file format.
+   */
+  public static boolean hasMagic(byte[] bytes) {
+    return bytes.length >= MAGIC.length && Arrays.equals(MAGIC, Arrays.copyOf(bytes, MAGIC.length));
+  }
+
+  /**
+   * The index of a block, which contains the min-max range of the timestamps, levels and logger names of the
+   * events in the block.
+   */
+  public static final class BlockIndex {
+    private final int payloadLength;
+    private final int dataLength;
+    private final int eventCount;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+    private final int minLevel;
+    private final int maxLevel;
+    private final String minLogger;
+    private final String maxLogger;
+
+    public BlockIndex(int payloadLength, int dataLength, int eventCount, long minTimestamp, long maxTimestamp,
+                      int minLevel, int maxLevel, String minLogger, String maxLogger) {
+      this.payloadLength = payloadLength;
+      this.dataLength = dataLength;
+      this.eventCount = eventCount;
+      this.minTimestamp = minTimestamp;
+      this.maxTimestamp = maxTimestamp;
+      this.minLevel = minLevel;
+      this.maxLevel = maxLevel;
+      this.minLogger = minLogger;
+      this.maxLogger = maxLogger;
+    }
+
+    /**
+     * Returns the length of the compressed payload of the block.
+     */
+    public int getPayloadLength() {
+      return payloadLength;
+    }
+
+    /**
+     * Returns the length of the payload of the block after decompression.
+     */
+    public int getDataLength() {
+      return dataLength;
+    }
+
+    public int getEventCount() {
+      return eventCount;
+    }
+
+    public long getMinTimestamp() {
+      return minTimestamp;
+    }
+
+    public long getMaxTimestamp() {
+      return maxTimestamp;
+    }
+
+    public int getMinLevel() {
+      return minLevel;
+    }
+
+    public int getMaxLevel() {
+      return maxLevel;
+    }
+
+    public String getMinLogger() {
+      return minLogger;
+    }
+
+    public String getMaxLogger() {
+      return maxLogger;
+    }
+
+    public void write(DataOutput output) throws IOException {
+      output.writeInt(payloadLength);
+      output.writeInt(dataLength);
+      output.writeInt(eventCount);
+      output.writeLong(minTimestamp);
+      output.writeLong(maxTimestamp);
+      output.writeInt(minLevel);
+      output.writeInt(maxLevel);
+      output.writeUTF(minLogger);
+      output.writeUTF(maxLogger);
+    }
+
+    public static BlockIndex read(DataInput input) throws IOException {
+      return new BlockIndex(input.readInt(), input.readInt(), input.readInt(), input.readLong(), input.readLong(),
+                            input.readInt(), input.readInt(), input.readUTF(), input.readUTF());
+    }
+  }
+}
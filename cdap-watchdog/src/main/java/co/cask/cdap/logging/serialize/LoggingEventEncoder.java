@@ -0,0 +1,352 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.serialize;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ClassPackagingData;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import co.cask.cdap.common.logging.LoggingContext;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Encodes {@link ILoggingEvent} in the Avro binary form of {@link LogSchema.LoggingEvent#SCHEMA}. Unlike
+ * {@link LoggingEvent#encode(org.apache.avro.Schema, ILoggingEvent, LoggingContext)}, the event is written directly
+ * into a buffer that is reused for every event, without building a {@link org.apache.avro.generic.GenericRecord}.
+ * The result decodes to the same record as the one created by {@link LoggingEvent}.
+ */
+@NotThreadSafe
+public final class LoggingEventEncoder {
+
+  private static final int MAX_MDC_TAGS = 12;
+  private static final String MDC_NULL_KEY = ".null";
+
+  private byte[] buffer = new byte[1024];
+  private int size;
+
+  /**
+   * Encodes the given event. The returned {@link ByteBuffer} is backed by the buffer of this encoder, hence it is
+   * only valid until the next call to this method.
+   *
+   * @param event the event to encode
+   * @param loggingContext if not {@code null}, the system tags of the logging context are added to the MDC of
+   *                       the event, and reserved tags in the event MDC are dropped
+   * @return a buffer containing the encoded event
+   */
+  public ByteBuffer encode(ILoggingEvent event, @Nullable LoggingContext loggingContext) {
+    event.prepareForDeferredProcessing();
+    size = 0;
+
+    writeLong(event.getTimeStamp());
+    writeInt(event.getLevel() == null ? Level.ERROR_INT : event.getLevel().toInt());
+    writeMdc(event.getMDCPropertyMap(), loggingContext);
+    // Marker is never written
+    writeInt(0);
+    writeNullableString(event.getThreadName());
+    writeNullableString(event.getMessage());
+    writeArguments(event.getArgumentArray());
+    writeNullableString(event.getFormattedMessage());
+    writeNullableString(event.getLoggerName());
+    writeLoggerContext(event.getLoggerContextVO());
+    writeThrowableProxy(event.getThrowableProxy());
+
+    // Caller data is computed by getCallerData() if needed, which sets hasCallerData()
+    StackTraceElement[] callerData = event.getCallerData();
+    boolean hasCallerData = event.hasCallerData();
+    writeBoolean(hasCallerData);
+    if (hasCallerData && callerData != null) {
+      writeInt(1);
+      writeArrayStart(callerData.length);
+      for (StackTraceElement element : callerData) {
+        writeStackTraceElement(element);
+      }
+      writeArrayEnd();
+    } else {
+      writeInt(0);
+    }
+
+    return ByteBuffer.wrap(buffer, 0, size);
+  }
+
+  private void writeMdc(@Nullable Map<String, String> mdc, @Nullable LoggingContext loggingContext) {
+    if (loggingContext == null) {
+      if (mdc == null) {
+        writeInt(0);
+        return;
+      }
+      writeInt(1);
+      writeArrayStart(mdc.size());
+      for (Map.Entry<String, String> entry : mdc.entrySet()) {
+        // AVRO does not allow null map keys.
+        writeString(entry.getKey() == null ? MDC_NULL_KEY : entry.getKey());
+        writeNullableString(entry.getValue());
+      }
+      writeArrayEnd();
+      return;
+    }
+
+    // Same as LoggingEvent.generateContextMdc. The map is written in two blocks, the event MDC followed by the
+    // system tags, so that the system tags replace event tags of the same name when decoded.
+    writeInt(1);
+    if (mdc != null) {
+      writeFilteredMdc(mdc);
+    }
+    Map<String, LoggingContext.SystemTag> systemTags = loggingContext.getSystemTagsMap();
+    writeArrayStart(systemTags.size());
+    for (Map.Entry<String, LoggingContext.SystemTag> entry : systemTags.entrySet()) {
+      writeString(entry.getKey());
+      writeNullableString(entry.getValue().getValue());
+    }
+    writeArrayEnd();
+  }
+
+  /**
+   * Writes a block of map entries that contains the tags kept by {@link LoggingEvent#encodeMdcMap(Map)}, without
+   * the end of map marker.
+   */
+  private void writeFilteredMdc(Map<String, String> mdc) {
+    int count = 0;
+    int i = 0;
+    for (Map.Entry<String, String> entry : mdc.entrySet()) {
+      if (i++ > MAX_MDC_TAGS) {
+        break;
+      }
+      if (entry.getKey() == null || !entry.getKey().startsWith(".")) {
+        count++;
+      }
+    }
+    if (count == 0) {
+      return;
+    }
+
+    writeLong(count);
+    i = 0;
+    for (Map.Entry<String, String> entry : mdc.entrySet()) {
+      if (i++ > MAX_MDC_TAGS) {
+        break;
+      }
+      // Any tag beginning with . is reserved
+      if (entry.getKey() == null || !entry.getKey().startsWith(".")) {
+        // AVRO does not allow null map keys.
+        writeString(entry.getKey() == null ? MDC_NULL_KEY : entry.getKey());
+        writeNullableString(entry.getValue());
+      }
+    }
+  }
+
+  private void writeArguments(@Nullable Object[] arguments) {
+    if (arguments == null) {
+      writeInt(0);
+      return;
+    }
+    writeInt(1);
+    writeArrayStart(arguments.length);
+    for (Object argument : arguments) {
+      writeNullableString(argument == null ? null : argument.toString());
+    }
+    writeArrayEnd();
+  }
+
+  private void writeLoggerContext(@Nullable LoggerContextVO context) {
+    if (context == null) {
+      writeInt(0);
+      return;
+    }
+    writeInt(1);
+    writeNullableString(context.getName());
+    Map<String, String> propertyMap = context.getPropertyMap();
+    if (propertyMap == null) {
+      writeInt(0);
+    } else {
+      writeInt(1);
+      writeFilteredMdc(propertyMap);
+      writeLong(0);
+    }
+    writeLong(context.getBirthTime());
+  }
+
+  private void writeThrowableProxy(@Nullable IThrowableProxy throwableProxy) {
+    if (throwableProxy == null) {
+      writeInt(0);
+      return;
+    }
+    writeInt(1);
+    writeNullableString(throwableProxy.getClassName());
+    writeNullableString(throwableProxy.getMessage());
+    writeInt(throwableProxy.getCommonFrames());
+
+    StackTraceElementProxy[] stackTrace = throwableProxy.getStackTraceElementProxyArray();
+    if (stackTrace == null) {
+      writeInt(0);
+    } else {
+      writeInt(1);
+      writeArrayStart(stackTrace.length);
+      for (StackTraceElementProxy proxy : stackTrace) {
+        writeStackTraceElement(proxy.getStackTraceElement());
+        writeClassPackagingData(proxy.getClassPackagingData());
+      }
+      writeArrayEnd();
+    }
+
+    writeThrowableProxy(throwableProxy.getCause());
+
+    IThrowableProxy[] suppressed = throwableProxy.getSuppressed();
+    if (suppressed == null) {
+      writeInt(0);
+    } else {
+      writeInt(1);
+      writeArrayStart(suppressed.length);
+      for (IThrowableProxy proxy : suppressed) {
+        writeThrowableProxy(proxy);
+      }
+      writeArrayEnd();
+    }
+  }
+
+  private void writeStackTraceElement(@Nullable StackTraceElement element) {
+    if (element == null) {
+      writeInt(0);
+      return;
+    }
+    writeInt(1);
+    writeNullableString(element.getClassName());
+    writeNullableString(element.getMethodName());
+    writeNullableString(element.getFileName());
+    writeInt(element.getLineNumber());
+  }
+
+  private void writeClassPackagingData(@Nullable ClassPackagingData data) {
+    if (data == null) {
+      writeInt(0);
+      return;
+    }
+    writeInt(1);
+    writeNullableString(data.getCodeLocation());
+    writeNullableString(data.getVersion());
+    writeBoolean(data.isExact());
+  }
+
+  /**
+   * Writes the start of an array or map. Nothing is written for an empty one, which is written by
+   * {@link #writeArrayEnd()} alone.
+   */
+  private void writeArrayStart(int count) {
+    if (count > 0) {
+      writeLong(count);
+    }
+  }
+
+  private void writeArrayEnd() {
+    writeLong(0);
+  }
+
+  private void writeNullableString(@Nullable String value) {
+    if (value == null) {
+      writeInt(0);
+    } else {
+      writeInt(1);
+      writeString(value);
+    }
+  }
+
+  /**
+   * Writes a string as its UTF-8 length followed by the UTF-8 bytes, encoding the characters directly into the
+   * buffer.
+   */
+  private void writeString(String value) {
+    int length = value.length();
+    int utf8Length = 0;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        utf8Length++;
+      } else if (c < 0x800) {
+        utf8Length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        utf8Length += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        utf8Length++;
+      } else {
+        utf8Length += 3;
+      }
+    }
+
+    writeLong(utf8Length);
+    ensureCapacity(utf8Length);
+    byte[] buf = buffer;
+    int pos = size;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        buf[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        buf[pos++] = (byte) (0xc0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        // Unpaired surrogates are replaced, same as String.getBytes used by the Avro encoder
+        buf[pos++] = (byte) '?';
+      } else {
+        buf[pos++] = (byte) (0xe0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    size = pos;
+  }
+
+  private void writeBoolean(boolean value) {
+    ensureCapacity(1);
+    buffer[size++] = (byte) (value ? 1 : 0);
+  }
+
+  private void writeInt(int value) {
+    writeLong(value);
+  }
+
+  /**
+   * Writes a long in the zig-zag variable length encoding used by Avro.
+   */
+  private void writeLong(long value) {
+    ensureCapacity(10);
+    long n = (value << 1) ^ (value >> 63);
+    while ((n & ~0x7FL) != 0) {
+      buffer[size++] = (byte) ((n & 0x7f) | 0x80);
+      n >>>= 7;
+    }
+    buffer[size++] = (byte) n;
+  }
+
+  private void ensureCapacity(int length) {
+    if (size + length > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+    }
+  }
+}
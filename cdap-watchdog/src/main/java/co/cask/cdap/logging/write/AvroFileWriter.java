@@ -20,13 +20,12 @@ import co.cask.cdap.common.logging.LoggingContext;
 import co.cask.cdap.common.namespace.NamespacedLocationFactory;
 import co.cask.cdap.common.security.Impersonator;
 import co.cask.cdap.logging.context.LoggingContextHelper;
+import co.cask.cdap.logging.serialize.IndexedLogFile;
 import co.cask.cdap.proto.id.NamespaceId;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.avro.Schema;
-import org.apache.avro.file.DataFileWriter;
-import org.apache.avro.generic.GenericDatumWriter;
-import org.apache.avro.generic.GenericRecord;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.twill.filesystem.Location;
 import org.slf4j.Logger;
@@ -40,12 +39,14 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Helper class that manages writing of KafkaLogEvent to Avro files. The events are written into appropriate files
- * based on the LoggingContext of the event. The files are also rotated based on size. This class is not thread-safe.
+ * Helper class that manages writing of KafkaLogEvent to log files. The events are written into appropriate files
+ * based on the LoggingContext of the event. The files are also rotated based on size. The events are Avro encoded
+ * and written in the {@link IndexedLogFile} format. This class is not thread-safe.
  */
 public final class AvroFileWriter implements Closeable, Flushable {
   private static final Logger LOG = LoggerFactory.getLogger(AvroFileWriter.class);
@@ -56,6 +57,7 @@ public final class AvroFileWriter implements Closeable, Flushable {
   private final Schema schema;
   private final int syncIntervalBytes;
   private final Map<String, AvroFile> fileMap;
+  private final Set<AvroFile> unflushedFiles;
   private final long maxFileSize;
   private final long maxFileLifetimeMs;
   private final Impersonator impersonator;
@@ -68,8 +70,8 @@ public final class AvroFileWriter implements Closeable, Flushable {
    * @param namespacedLocationFactory the namespaced location factory
    * @param logBaseDir the basedirectory for logs as defined in configuration
    * @param schema schema of the Avro data to be written.
-   * @param maxFileSize Avro files greater than maxFileSize will get rotated.
-   * @param syncIntervalBytes the approximate number of uncompressed bytes to write in each block.
+   * @param maxFileSize log files greater than maxFileSize will get rotated.
+   * @param syncIntervalBytes the approximate number of uncompressed bytes of events to write in each block.
    * @param maxFileLifetimeMs files that are older than maxFileLifetimeMs will be closed.
    */
   public AvroFileWriter(FileMetaDataManager fileMetaDataManager, NamespacedLocationFactory namespacedLocationFactory,
@@ -81,18 +83,31 @@ public final class AvroFileWriter implements Closeable, Flushable {
     this.schema = schema;
     this.syncIntervalBytes = syncIntervalBytes;
     this.fileMap = Maps.newHashMap();
+    this.unflushedFiles = Sets.newLinkedHashSet();
     this.maxFileSize = maxFileSize;
     this.maxFileLifetimeMs = maxFileLifetimeMs;
     this.impersonator = impersonator;
   }
 
   /**
-   * Appends a log event to an appropriate Avro file based on LoggingContext. If the log event does not contain
+   * Appends a log event to an appropriate log file based on LoggingContext. If the log event does not contain
    * LoggingContext then the event will be dropped.
    * @param events Log event
    * @throws IOException
    */
   public void append(List<? extends LogWriteEvent> events) throws Exception {
+    append(events, true);
+  }
+
+  /**
+   * Appends log events of one LoggingContext to the appropriate log file.
+   * @param events Log event
+   * @param flush whether to flush the file after appending. Files that are not flushed are flushed with the next
+   *              call to {@link #flushAppended()} or {@link #flush()}, so that appends to many files can be
+   *              flushed together.
+   * @throws IOException
+   */
+  public void append(List<? extends LogWriteEvent> events, boolean flush) throws Exception {
     if (events.isEmpty()) {
       LOG.debug("Empty append list.");
       return;
@@ -113,7 +128,27 @@ public final class AvroFileWriter implements Closeable, Flushable {
     for (LogWriteEvent e : events) {
       avroFile.append(e);
     }
-    avroFile.flush();
+    if (flush) {
+      avroFile.flush();
+    } else {
+      unflushedFiles.add(avroFile);
+    }
+  }
+
+  /**
+   * Flushes the files appended to without flushing since the last flush, making the events visible to readers.
+   * Unlike {@link #flush()}, this does not sync the files to disk.
+   */
+  public void flushAppended() throws IOException {
+    try {
+      for (AvroFile avroFile : unflushedFiles) {
+        if (avroFile.isOpen()) {
+          avroFile.flush();
+        }
+      }
+    } finally {
+      unflushedFiles.clear();
+    }
   }
 
   @Override
@@ -144,6 +179,7 @@ public final class AvroFileWriter implements Closeable, Flushable {
   @Override
   public void flush() throws IOException {
     long currentTs = System.currentTimeMillis();
+    unflushedFiles.clear();
 
     for (Iterator<Map.Entry<String, AvroFile>> it = fileMap.entrySet().iterator(); it.hasNext();) {
       AvroFile avroFile = it.next().getValue();
@@ -182,7 +218,7 @@ public final class AvroFileWriter implements Closeable, Flushable {
   private AvroFile createAvroFile(LoggingContext loggingContext, long timestamp) throws IOException {
     long currentTs = System.currentTimeMillis();
     Location location = createLocation(loggingContext, currentTs);
-    LOG.info("Creating Avro file {}", location);
+    LOG.info("Creating log file {}", location);
     AvroFile avroFile = new AvroFile(location);
     try {
       avroFile.open();
@@ -203,7 +239,7 @@ public final class AvroFileWriter implements Closeable, Flushable {
   private Location createLocation(LoggingContext loggingContext, long timestamp)
     throws IOException {
     String date = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
-    String fileName = String.format("%s.avro", timestamp);
+    String fileName = String.format("%s.log", timestamp);
     final NamespaceId namespaceId = LoggingContextHelper.getNamespaceId(loggingContext);
     Location namespaceLocation;
     try {
@@ -261,7 +297,7 @@ public final class AvroFileWriter implements Closeable, Flushable {
   }
 
   /**
-   * Represents an Avro file.
+   * Represents a log file in the {@link IndexedLogFile} format.
    *
    * Since there is no way to check the state of the underlying file on an exception,
    * all methods of this class assume that the file state is bad on any exception and close the file.
@@ -269,7 +305,7 @@ public final class AvroFileWriter implements Closeable, Flushable {
   public class AvroFile implements Closeable {
     private final Location location;
     private FSDataOutputStream outputStream;
-    private DataFileWriter<GenericRecord> dataFileWriter;
+    private IndexedLogFileWriter logFileWriter;
     private long createTime;
     private boolean isOpen = false;
 
@@ -286,11 +322,9 @@ public final class AvroFileWriter implements Closeable, Flushable {
     void open() throws IOException {
       try {
         this.outputStream = new FSDataOutputStream(location.getOutputStream(), null);
-        this.dataFileWriter = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema));
-        this.dataFileWriter.create(schema, this.outputStream);
-        this.dataFileWriter.setSyncInterval(syncIntervalBytes);
+        this.logFileWriter = new IndexedLogFileWriter(this.outputStream, schema, syncIntervalBytes);
         this.createTime = System.currentTimeMillis();
-        // Sync the file as soon as it is created, otherwise a zero length Avro file can get created on OOM
+        // Sync the file as soon as it is created, otherwise a zero length log file can get created on OOM
         sync();
       } catch (Exception e) {
         close();
@@ -309,7 +343,7 @@ public final class AvroFileWriter implements Closeable, Flushable {
 
     public void append(LogWriteEvent event) throws IOException {
       try {
-        dataFileWriter.append(event.getGenericRecord());
+        logFileWriter.append(event.getGenericRecord());
       } catch (Exception e) {
         close();
         throw new IOException("Exception while appending to file " + location, e);
@@ -331,7 +365,7 @@ public final class AvroFileWriter implements Closeable, Flushable {
 
     public void flush() throws IOException {
       try {
-        dataFileWriter.flush();
+        logFileWriter.flush();
         outputStream.hflush();
       } catch (Exception e) {
         close();
@@ -341,7 +375,7 @@ public final class AvroFileWriter implements Closeable, Flushable {
 
     public void sync() throws IOException {
       try {
-        dataFileWriter.flush();
+        logFileWriter.flush();
         outputStream.hsync();
       } catch (Exception e) {
         close();
@@ -359,8 +393,8 @@ public final class AvroFileWriter implements Closeable, Flushable {
       isOpen = false;
 
       try {
-        if (dataFileWriter != null) {
-          dataFileWriter.close();
+        if (logFileWriter != null) {
+          logFileWriter.close();
         }
       } finally {
         if (outputStream != null) {
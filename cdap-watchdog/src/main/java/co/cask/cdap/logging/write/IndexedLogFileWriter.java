@@ -0,0 +1,183 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.write;
+
+import ch.qos.logback.classic.Level;
+import co.cask.cdap.logging.serialize.IndexedLogFile;
+import com.google.common.base.Charsets;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static co.cask.cdap.logging.serialize.Util.stringOrNull;
+
+/**
+ * Writes logging events to an {@link OutputStream} in the {@link IndexedLogFile} format. Events are buffered in
+ * memory and written as one compressed block when the buffered events reach the block size, or when the writer
+ * is flushed. This class is not thread-safe.
+ */
+public final class IndexedLogFileWriter implements Closeable, Flushable {
+
+  private final OutputStream outputStream;
+  private final int blockSizeBytes;
+  private final GenericDatumWriter<GenericRecord> datumWriter;
+  private final ByteArrayOutputStream records;
+  private final Deflater deflater;
+
+  private BinaryEncoder encoder;
+  private long[] timestamps;
+  private int[] levels;
+  private int[] recordLengths;
+  private int eventCount;
+  private String minLogger;
+  private String maxLogger;
+
+  /**
+   * Creates a new writer and writes the file header to the given stream.
+   *
+   * @param outputStream stream to write to. It is closed when this writer is closed.
+   * @param schema schema of the logging event records
+   * @param blockSizeBytes the approximate number of uncompressed bytes to write in each block
+   */
+  public IndexedLogFileWriter(OutputStream outputStream, Schema schema, int blockSizeBytes) throws IOException {
+    this.outputStream = outputStream;
+    this.blockSizeBytes = blockSizeBytes;
+    this.datumWriter = new GenericDatumWriter<>(schema);
+    this.records = new ByteArrayOutputStream();
+    this.deflater = new Deflater(Deflater.BEST_SPEED);
+    this.timestamps = new long[64];
+    this.levels = new int[64];
+    this.recordLengths = new int[64];
+
+    byte[] schemaBytes = schema.toString().getBytes(Charsets.UTF_8);
+    DataOutputStream header = new DataOutputStream(outputStream);
+    header.write(IndexedLogFile.MAGIC);
+    header.writeInt(schemaBytes.length);
+    header.write(schemaBytes);
+  }
+
+  /**
+   * Appends a logging event record encoded with {@link co.cask.cdap.logging.serialize.LoggingEvent}.
+   */
+  public void append(GenericRecord datum) throws IOException {
+    int size = records.size();
+    encoder = EncoderFactory.get().directBinaryEncoder(records, encoder);
+    datumWriter.write(datum, encoder);
+
+    if (eventCount == timestamps.length) {
+      timestamps = Arrays.copyOf(timestamps, eventCount * 2);
+      levels = Arrays.copyOf(levels, eventCount * 2);
+      recordLengths = Arrays.copyOf(recordLengths, eventCount * 2);
+    }
+    Integer level = (Integer) datum.get("level");
+    String logger = stringOrNull(datum.get("loggerName"));
+    logger = logger == null ? "" : logger;
+
+    timestamps[eventCount] = (Long) datum.get("timestamp");
+    levels[eventCount] = level == null ? Level.ERROR_INT : level;
+    recordLengths[eventCount] = records.size() - size;
+    minLogger = minLogger == null || logger.compareTo(minLogger) < 0 ? logger : minLogger;
+    maxLogger = maxLogger == null || logger.compareTo(maxLogger) > 0 ? logger : maxLogger;
+    eventCount++;
+
+    if (records.size() >= blockSizeBytes) {
+      writeBlock();
+    }
+  }
+
+  /**
+   * Writes the buffered events as a block and flushes the underlying stream.
+   */
+  @Override
+  public void flush() throws IOException {
+    writeBlock();
+    outputStream.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      deflater.end();
+      outputStream.close();
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    if (eventCount == 0) {
+      return;
+    }
+
+    long minTimestamp = Long.MAX_VALUE;
+    long maxTimestamp = Long.MIN_VALUE;
+    int minLevel = Integer.MAX_VALUE;
+    int maxLevel = Integer.MIN_VALUE;
+
+    ByteArrayOutputStream payload = new ByteArrayOutputStream(records.size() / 4 + 64);
+    deflater.reset();
+    DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(payload, deflater);
+    DataOutputStream data = new DataOutputStream(deflaterOutput);
+    for (int i = 0; i < eventCount; i++) {
+      data.writeLong(timestamps[i]);
+      minTimestamp = Math.min(minTimestamp, timestamps[i]);
+      maxTimestamp = Math.max(maxTimestamp, timestamps[i]);
+    }
+    for (int i = 0; i < eventCount; i++) {
+      data.writeInt(levels[i]);
+      minLevel = Math.min(minLevel, levels[i]);
+      maxLevel = Math.max(maxLevel, levels[i]);
+    }
+    for (int i = 0; i < eventCount; i++) {
+      data.writeInt(recordLengths[i]);
+    }
+    records.writeTo(data);
+    data.flush();
+    deflaterOutput.finish();
+
+    IndexedLogFile.BlockIndex index = new IndexedLogFile.BlockIndex(payload.size(), data.size(), eventCount,
+                                                                    minTimestamp, maxTimestamp, minLevel, maxLevel,
+                                                                    minLogger, maxLogger);
+
+    // Write the whole block with one write, so that readers of an open file see either all or none of it
+    ByteArrayOutputStream block = new ByteArrayOutputStream(payload.size() + 128);
+    DataOutputStream blockOutput = new DataOutputStream(block);
+    blockOutput.writeInt(IndexedLogFile.BLOCK_MARKER);
+    index.write(blockOutput);
+    payload.writeTo(blockOutput);
+    blockOutput.writeInt(blockOutput.size());
+    blockOutput.writeInt(IndexedLogFile.BLOCK_MARKER);
+    block.writeTo(outputStream);
+
+    records.reset();
+    eventCount = 0;
+    minLogger = null;
+    maxLogger = null;
+  }
+}
@@ -22,6 +22,7 @@ import co.cask.cdap.common.io.Locations;
 import co.cask.cdap.common.io.SeekableInputStream;
 import co.cask.cdap.common.security.Impersonator;
 import co.cask.cdap.logging.filter.Filter;
+import co.cask.cdap.logging.read.IndexedLogFileReader;
 import co.cask.cdap.logging.read.LogEvent;
 import co.cask.cdap.logging.read.LogOffset;
 import co.cask.cdap.logging.serialize.LogSchema;
@@ -108,6 +109,13 @@ public class LogLocation {
    * @return closeable iterator of log events
    */
   public CloseableIterator<LogEvent> readLog(Filter logFilter, long fromTimeMs, long toTimeMs, int maxEvents) {
+    if (VERSION_0.equals(frameworkVersion)) {
+      // Files of the old framework are written by AvroFileWriter in the indexed log file format, unless they were
+      // written before the format was introduced. The reader falls back to Avro for files without the format magic.
+      return new IndexedLogFileReader(LogSchema.LoggingEvent.SCHEMA).readLog(location, logFilter, fromTimeMs,
+                                                                               toTimeMs, maxEvents, namespaceId,
+                                                                               impersonator);
+    }
     return new LogEventIterator(logFilter, fromTimeMs, toTimeMs, maxEvents);
   }
 
@@ -17,23 +17,18 @@ package co.cask.cdap.metrics.collect;
 
 import co.cask.cdap.api.metrics.MetricStore;
 import co.cask.cdap.api.metrics.MetricValues;
-import co.cask.cdap.common.conf.CConfiguration;
 import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.metrics.store.MetricsCompactionService;
 import co.cask.cdap.proto.Id;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import org.apache.twill.common.Threads;
 
 import java.util.Iterator;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 /**
  * A {@link co.cask.cdap.api.metrics.MetricsCollectionService} that writes to MetricsTable directly.
- * It also has a scheduling job that clean up old metrics periodically.
+ * It also runs the {@link MetricsCompactionService} to clean up old metrics periodically.
  */
 @Singleton
 public final class LocalMetricsCollectionService extends AggregatedMetricsCollectionService {
@@ -42,15 +37,15 @@ public final class LocalMetricsCollectionService extends AggregatedMetricsCollec
     ImmutableMap.of(Constants.Metrics.Tag.NAMESPACE, Id.Namespace.SYSTEM.getId(),
                     Constants.Metrics.Tag.COMPONENT, Constants.Service.METRICS_PROCESSOR);
 
-  private final CConfiguration cConf;
   private final MetricStore metricStore;
-  private ScheduledExecutorService scheduler;
+  private final MetricsCompactionService compactionService;
 
   @Inject
-  public LocalMetricsCollectionService(CConfiguration cConf, MetricStore metricStore) {
-    this.cConf = cConf;
+  public LocalMetricsCollectionService(MetricStore metricStore, MetricsCompactionService compactionService) {
     this.metricStore = metricStore;
+    this.compactionService = compactionService;
     metricStore.setMetricsContext(this.getContext(METRICS_PROCESSOR_CONTEXT));
+    compactionService.setMetricsContext(this.getContext(METRICS_PROCESSOR_CONTEXT));
   }
 
   @Override
@@ -63,42 +58,13 @@ public final class LocalMetricsCollectionService extends AggregatedMetricsCollec
 
   @Override
   protected void startUp() throws Exception {
-    // It will only do cleanup if the underlying table doesn't supports TTL.
-    scheduler = Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("metrics-cleanup"));
-    long retentionSecs = cConf.getLong(Constants.Metrics.RETENTION_SECONDS + ".1.seconds",
-                                       TimeUnit.HOURS.toSeconds(Constants.Metrics.DEFAULT_RETENTION_HOURS));
-
-    // Try right away if there's anything to cleanup, then we'll schedule to do that periodically
-    scheduler.schedule(createCleanupTask(retentionSecs), 1, TimeUnit.SECONDS);
+    // Compaction is only needed here, since the underlying table doesn't support TTL.
+    compactionService.startAndWait();
   }
 
   @Override
   protected void shutDown() throws Exception {
-    if (scheduler != null) {
-      scheduler.shutdownNow();
-    }
+    compactionService.stopAndWait();
     super.shutDown();
   }
-
-  /**
-   * Creates a task for cleanup.
-   * @param retention Retention in seconds.
-   */
-  private Runnable createCleanupTask(final long retention) {
-    return new Runnable() {
-      @Override
-      public void run() {
-        // We perform CleanUp only in LocalMetricsCollectionService , where TTL is NOT supported
-        // by underlying data store.
-        long currentTime = TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
-        long deleteBefore = currentTime - retention;
-        try {
-          metricStore.deleteBefore(deleteBefore);
-        } catch (Exception e) {
-          throw Throwables.propagate(e);
-        }
-        scheduler.schedule(this, 1, TimeUnit.HOURS);
-      }
-    };
-  }
 }
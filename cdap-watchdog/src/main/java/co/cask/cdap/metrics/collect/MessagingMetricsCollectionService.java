@@ -23,19 +23,28 @@ import co.cask.cdap.common.io.BinaryEncoder;
 import co.cask.cdap.common.io.Encoder;
 import co.cask.cdap.internal.io.DatumWriter;
 import co.cask.cdap.messaging.MessagingService;
+import co.cask.cdap.messaging.RollbackDetail;
 import co.cask.cdap.messaging.client.StoreRequestBuilder;
 import co.cask.cdap.proto.id.NamespaceId;
 import co.cask.cdap.proto.id.TopicId;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
 
 /**
  * An {@link AggregatedMetricsCollectionService} that uses TMS to publish {@link co.cask.cdap.api.metrics.MetricValues}.
@@ -43,6 +52,8 @@ import java.util.List;
 @Singleton
 public class MessagingMetricsCollectionService extends AggregatedMetricsCollectionService {
 
+  private static final Logger LOG = LoggerFactory.getLogger(MessagingMetricsCollectionService.class);
+
   private final MessagingService messagingService;
   private final List<TopicId> metricsTopics;
   private final int totalTopicNum;
@@ -50,6 +61,7 @@ public class MessagingMetricsCollectionService extends AggregatedMetricsCollecti
   private final ByteArrayOutputStream encoderOutputStream;
   private final Encoder encoder;
   private final List<List<byte[]>> payloadsList;
+  private ListenableFuture<?> publishFuture;
 
   @Inject
   public MessagingMetricsCollectionService(@Named(Constants.Metrics.TOPIC_PREFIX) String topicPrefix,
@@ -71,10 +83,15 @@ public class MessagingMetricsCollectionService extends AggregatedMetricsCollecti
     for (int i = 0; i < totalTopicNum; i++) {
       payloadsList.add(new ArrayList<byte[]>());
     }
+    this.publishFuture = Futures.immediateFuture(null);
   }
 
   @Override
   protected void publish(Iterator<MetricValues> metrics) throws Exception {
+    // Wait for the previous round of publishing to complete. This limits the number of in-flight publish requests
+    // and make sure metrics are published in order.
+    waitForPublish();
+
     while (metrics.hasNext()) {
       encoderOutputStream.reset();
       MetricValues metricValues = metrics.next();
@@ -88,14 +105,50 @@ public class MessagingMetricsCollectionService extends AggregatedMetricsCollecti
     publishMetric(payloadsList);
   }
 
+  @Override
+  protected void shutDown() throws Exception {
+    try {
+      super.shutDown();
+    } finally {
+      // Make sure the last round of metrics is published before returning
+      waitForPublish();
+    }
+  }
+
   private void publishMetric(List<List<byte[]>> payloadsList) throws IOException, TopicNotFoundException {
+    List<ListenableFuture<RollbackDetail>> futures = new ArrayList<>();
     for (int topicNum = 0; topicNum < totalTopicNum; topicNum++) {
       List<byte[]> payloads = payloadsList.get(topicNum);
       if (!payloads.isEmpty()) {
-        messagingService.publish(StoreRequestBuilder.of(metricsTopics.get(topicNum))
-                                   .addPayloads(payloads.iterator()).build());
+        // Publish asynchronously so that the metrics emission thread is not blocked by the publish calls.
+        final TopicId topicId = metricsTopics.get(topicNum);
+        ListenableFuture<RollbackDetail> future = messagingService.publishAsync(
+          StoreRequestBuilder.of(topicId).addPayloads(payloads.iterator()).build());
+        Futures.addCallback(future, new FutureCallback<RollbackDetail>() {
+          @Override
+          public void onSuccess(@Nullable RollbackDetail result) {
+            // No-op
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            LOG.error("Failed in publishing metrics to topic {}.", topicId, t);
+          }
+        });
+        futures.add(future);
+
+        // The payloads list can be consumed after the publishAsync call returned, hence use a new list.
+        payloadsList.set(topicNum, new ArrayList<byte[]>());
       }
-      payloads.clear();
     }
+    publishFuture = Futures.successfulAsList(futures);
+  }
+
+  /**
+   * Blocks until the last round of publishing is completed.
+   */
+  private void waitForPublish() throws ExecutionException {
+    // Failures are already logged in the callback and the future returned by successfulAsList never fails.
+    Uninterruptibles.getUninterruptibly(publishFuture);
   }
 }
@@ -39,12 +39,12 @@ import co.cask.cdap.proto.id.NamespaceId;
 import co.cask.cdap.proto.id.TopicId;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
 import com.google.common.reflect.TypeToken;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.name.Named;
+import org.apache.twill.common.Threads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,17 +52,37 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 /**
  * Process metrics by consuming metrics being published to TMS.
+ *
+ * Each topic is consumed by its own thread, which buffers the metrics in memory. When the buffer is written,
+ * the metrics are partitioned by their namespace and the partitions are written to the {@link MetricStore} in
+ * parallel by a bounded pool of writer threads shared by all topics. Every aggregation of the metric store
+ * includes the namespace tag, so values of different namespaces never update the same row, while values that
+ * may update the same row are always written by the same partition, in order. Partitions of different topics
+ * can still update the same rows concurrently, the same as when each topic wrote its own buffer.
+ *
+ * The topic thread keeps fetching while the partitions are written, and the id of the last message of a topic
+ * is only persisted after all partitions that contain its metrics are written. A partition that fails is written
+ * again, but partitions that succeeded are not, so that counters are not incremented twice. If the thread is
+ * stopped before all partitions succeed, the whole buffer is processed again on restart.
  */
 public class MessagingMetricsProcessorService extends AbstractExecutionThreadService {
   private static final Logger LOG = LoggerFactory.getLogger(MessagingMetricsProcessorService.class);
+  // Maximum time for each fetch to wait for new metrics when the topic is idle
+  private static final long FETCH_WAIT_SECONDS = 5L;
 
   private final MetricDatasetFactory metricDatasetFactory;
   private final List<TopicId> metricsTopics;
@@ -71,6 +91,10 @@ public class MessagingMetricsProcessorService extends AbstractExecutionThreadSer
   private final Schema recordSchema;
   private final MetricStore metricStore;
   private final int fetcherLimit;
+  private final long flushIntervalMillis;
+  private final int maxBufferedValues;
+  private final int writerThreads;
+  private final int writerQueueSize;
 
   private long lastLoggedMillis;
   private long recordsProcessed;
@@ -78,6 +102,7 @@ public class MessagingMetricsProcessorService extends AbstractExecutionThreadSer
   private Map<String, String> metricsContextMap;
   private List<ProcessMetricsThread> processMetricsThreads;
   private MetricsConsumerMetaTable metaTable;
+  private ThreadPoolExecutor writerExecutor;
 
   private volatile boolean stopping;
 
@@ -89,7 +114,12 @@ public class MessagingMetricsProcessorService extends AbstractExecutionThreadSer
                                           SchemaGenerator schemaGenerator,
                                           DatumReaderFactory readerFactory,
                                           MetricStore metricStore,
-                                          @Named(Constants.Metrics.MESSAGING_FETCHER_LIMIT) int fetcherLimit) {
+                                          @Named(Constants.Metrics.MESSAGING_FETCHER_LIMIT) int fetcherLimit,
+                                          @Named(Constants.Metrics.MESSAGING_FLUSH_INTERVAL_MS) long flushInterval,
+                                          @Named(Constants.Metrics.MESSAGING_MAX_BUFFERED_VALUES)
+                                            int maxBufferedValues,
+                                          @Named(Constants.Metrics.MESSAGING_WRITER_THREADS) int writerThreads,
+                                          @Named(Constants.Metrics.MESSAGING_WRITER_QUEUE_SIZE) int writerQueueSize) {
     this.metricDatasetFactory = metricDatasetFactory;
     this.metricsTopics = new ArrayList<>();
     for (int topicNum : topicNumbers) {
@@ -105,6 +135,10 @@ public class MessagingMetricsProcessorService extends AbstractExecutionThreadSer
     }
     this.metricStore = metricStore;
     this.fetcherLimit = fetcherLimit;
+    this.flushIntervalMillis = flushInterval;
+    this.maxBufferedValues = maxBufferedValues;
+    this.writerThreads = writerThreads;
+    this.writerQueueSize = writerQueueSize;
     this.metricsContextMap = Collections.emptyMap();
     this.processMetricsThreads = new ArrayList<>();
   }
@@ -161,20 +195,43 @@ public class MessagingMetricsProcessorService extends AbstractExecutionThreadSer
       return;
     }
 
-    for (ProcessMetricsThread thread : processMetricsThreads) {
-      thread.start();
-    }
+    writerExecutor = createWriterExecutor();
+    try {
+      for (ProcessMetricsThread thread : processMetricsThreads) {
+        thread.start();
+      }
 
-    for (ProcessMetricsThread thread : processMetricsThreads) {
-      try {
-        thread.join();
-      } catch (InterruptedException e) {
-        LOG.info("Thread {} is being terminated while waiting for it to finish.", thread.getName());
-        Thread.currentThread().interrupt();
+      for (ProcessMetricsThread thread : processMetricsThreads) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          LOG.info("Thread {} is being terminated while waiting for it to finish.", thread.getName());
+          Thread.currentThread().interrupt();
+        }
       }
+    } finally {
+      writerExecutor.shutdown();
     }
   }
 
+  /**
+   * Creates the executor for writing partitions of metrics to the metric store. When all threads are busy and the
+   * queue is full, the partition is written by the submitting thread, which slows down fetching of new metrics.
+   */
+  private ThreadPoolExecutor createWriterExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+      writerThreads, writerThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(writerQueueSize),
+      Threads.createDaemonThreadFactory("metrics-writer-%d"), new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+          // Always run it, even after shutdown, since the submitting thread waits for the write to complete
+          runnable.run();
+        }
+      });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   @Override
   protected void triggerShutdown() {
     LOG.info("Stopping Metrics Processing Service.");
@@ -187,95 +244,252 @@ public class MessagingMetricsProcessorService extends AbstractExecutionThreadSer
 
   private class ProcessMetricsThread extends Thread {
     private final TopicIdMetaKey topicIdMetaKey;
-    private final List<MetricValues> records;
+    private final String topicMetricPrefix;
+    private final MetricsAggregationBuffer buffer;
     private final PayloadInputStream payloadInput;
     private final BinaryDecoder decoder;
+    // Partitions of the last buffer written that are not yet completed
+    private final List<PartitionWrite> pendingWrites;
+    // Id of the last message added to the buffer. It is persisted after the buffer is written to the metric store.
     private byte[] lastMessageId;
+    // Id of the last message covered by the pending writes
+    private byte[] pendingMessageId;
+    private long pendingWriteStartMillis;
+    private long lastWriteMillis;
+    // Whether the last fetch waited for new messages to be published
+    private boolean fetchWaited;
 
     ProcessMetricsThread(TopicIdMetaKey topicIdMetaKey, @Nullable byte[] messageId) {
       super(String.format("ProcessMetricsThread-%s", topicIdMetaKey.getTopicId()));
       setDaemon(true);
       this.lastMessageId = messageId;
       this.topicIdMetaKey = topicIdMetaKey;
-      this.records = Lists.newArrayList();
+      this.topicMetricPrefix = "metrics.process." + topicIdMetaKey.getTopicId().getTopic();
+      this.buffer = new MetricsAggregationBuffer();
       this.payloadInput = new PayloadInputStream();
       this.decoder = new BinaryDecoder(payloadInput);
+      this.pendingWrites = new ArrayList<>();
     }
 
     @Override
     public void run() {
       while (isRunning()) {
         try {
-          processMetrics();
-          TimeUnit.SECONDS.sleep(1);
+          // Only sleep if processMetrics didn't already wait for new metrics
+          if (processMetrics()) {
+            TimeUnit.SECONDS.sleep(1);
+          }
         } catch (InterruptedException e) {
           // It's triggered by stop
           Thread.currentThread().interrupt();
         }
       }
-    }
 
-    private void processMetrics() {
-      // Decode the metrics records.
+      // Write out what is buffered before exiting. Clear the interrupt flag so that the write is not affected.
+      boolean interrupted = Thread.interrupted();
       try {
-        MessageFetcher fetcher = messagingService.prepareFetch(topicIdMetaKey.getTopicId());
-        fetcher.setLimit(fetcherLimit);
-        if (lastMessageId != null) {
-          fetcher.setStartMessage(lastMessageId, false);
-        } else {
-          fetcher.setStartTime(0L);
+        if (awaitPendingWritesOnStop() && !buffer.isEmpty()) {
+          writeBuffer();
+          awaitPendingWritesOnStop();
+        }
+        if (!pendingWrites.isEmpty() || !buffer.isEmpty()) {
+          LOG.warn("Failed to persist buffered metrics in thread {} on stop. They will be processed again on restart.",
+                   getName());
+        }
+      } catch (Exception e) {
+        LOG.warn("Failed to persist buffered metrics in thread {} on stop. They will be processed again on restart.",
+                 getName(), e);
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
         }
+      }
+    }
 
-        byte[] nextMessageId = null;
-        try (CloseableIterator<RawMessage> iterator = fetcher.fetch()) {
-          while (iterator.hasNext() && isRunning()) {
-            RawMessage input = iterator.next();
-            try {
-              payloadInput.reset(input.getPayload());
-              MetricValues metricValues = recordReader.read(decoder, recordSchema);
-              records.add(metricValues);
-              nextMessageId = input.getId();
-              LOG.trace("Received message {} with metrics: {}", Bytes.toStringBinary(lastMessageId), metricValues);
-            } catch (IOException e) {
-              LOG.warn("Failed to decode message to MetricValue. Skipped. {}", e.getMessage());
-            }
+    /**
+     * Fetches metrics from the topic into the buffer, and writes the buffer to the metric store if it is due.
+     *
+     * @return {@code true} if the caller should sleep before calling this method again. That is the case if there
+     *         was a failure, if the buffer is full and the last write is not yet completed, or if no message was
+     *         fetched and the fetch returned without waiting for new messages (e.g. long-poll is disabled on the
+     *         messaging service). Otherwise {@code false}, such that fetching continues immediately.
+     */
+    private boolean processMetrics() throws InterruptedException {
+      try {
+        // Stop fetching when the buffer is full but cannot be written because the last write is still in progress
+        if (buffer.getValueCount() < maxBufferedValues) {
+          // Decode the metrics records.
+          boolean fetched = fetchMetrics();
+          // Keep fetching without sleeping while there are messages, or if the fetch already waited for messages
+          boolean shouldSleep = !fetched && !fetchWaited;
+          if (buffer.isEmpty()) {
+            LOG.trace("No metrics record to process.");
+            return shouldSleep;
           }
-        }
 
-        if (records.isEmpty()) {
-          LOG.trace("No metrics record to process.");
-          return;
+          if (buffer.getValueCount() < maxBufferedValues
+            && System.currentTimeMillis() - buffer.getFirstAddMillis() < flushIntervalMillis) {
+            return shouldSleep;
+          }
         }
 
-        persistRecords(records);
-        records.clear();
-        lastMessageId = nextMessageId;
-        persistMessageId(lastMessageId);
+        // Only one write per topic can be in progress, so that message ids are persisted in order
+        if (awaitPendingWrites(true)) {
+          writeBuffer();
+          // Fetch more metrics while the buffer is being written
+          return false;
+        }
+      } catch (InterruptedException e) {
+        throw e;
       } catch (Exception e) {
         LOG.error("Failed to process metrics. Will be retried in next iteration.", e);
       }
+      return true;
     }
 
-    private void persistRecords(List<MetricValues> metricValues) throws Exception {
+    /**
+     * Fetches metrics from the topic into the buffer.
+     *
+     * @return {@code true} if any message was fetched
+     */
+    private boolean fetchMetrics() throws Exception {
+      MessageFetcher fetcher = messagingService.prepareFetch(topicIdMetaKey.getTopicId());
+      fetcher.setLimit(fetcherLimit);
+      // Long-poll for new metrics to avoid repeatedly scanning idle topics, but not beyond the time that
+      // the buffer should be written
+      long waitMillis = TimeUnit.SECONDS.toMillis(FETCH_WAIT_SECONDS);
+      if (!buffer.isEmpty()) {
+        long bufferedMillis = System.currentTimeMillis() - buffer.getFirstAddMillis();
+        waitMillis = Math.max(0L, Math.min(waitMillis, flushIntervalMillis - bufferedMillis));
+      }
+      fetcher.setWaitTimeout(waitMillis, TimeUnit.MILLISECONDS);
+      if (lastMessageId != null) {
+        fetcher.setStartMessage(lastMessageId, false);
+      } else {
+        fetcher.setStartTime(0L);
+      }
+
+      boolean fetched = false;
+      long fetchStartMillis = System.currentTimeMillis();
+      try (CloseableIterator<RawMessage> iterator = fetcher.fetch()) {
+        while (iterator.hasNext() && isRunning()) {
+          RawMessage input = iterator.next();
+          fetched = true;
+          try {
+            payloadInput.reset(input.getPayload());
+            MetricValues metricValues = recordReader.read(decoder, recordSchema);
+            buffer.add(metricValues);
+            LOG.trace("Received message {} with metrics: {}", Bytes.toStringBinary(input.getId()), metricValues);
+          } catch (IOException e) {
+            LOG.warn("Failed to decode message to MetricValue. Skipped. {}", e.getMessage());
+          }
+          // Messages failed to decode are also skipped when the buffer is persisted
+          lastMessageId = input.getId();
+        }
+      }
+      // An empty fetch returns early if the messaging service doesn't support waiting for messages
+      fetchWaited = fetched || System.currentTimeMillis() - fetchStartMillis >= waitMillis;
+      return fetched;
+    }
+
+    /**
+     * Partitions the buffered metrics by tags and submits the partitions to the writer threads. The buffer is
+     * cleared, and the id of the last message in the buffer is persisted once all partitions are written.
+     */
+    private void writeBuffer() {
       long now = System.currentTimeMillis();
+      List<MetricValues> metricValues = buffer.getMetricValues();
       addProcessingStats(metricValues, now);
-      metricStore.add(metricValues);
-      recordsProcessed += metricValues.size();
+
+      // Values of the same namespace always go to the same partition, since they may update the same rows of
+      // the coarser aggregations. This also preserves the order of gauges.
+      List<List<MetricValues>> partitions = new ArrayList<>(writerThreads);
+      for (int i = 0; i < writerThreads; i++) {
+        partitions.add(new ArrayList<MetricValues>());
+      }
+      for (MetricValues values : metricValues) {
+        String namespace = values.getTags().get(Constants.Metrics.Tag.NAMESPACE);
+        int hash = namespace == null ? 0 : namespace.hashCode();
+        partitions.get((hash & Integer.MAX_VALUE) % writerThreads).add(values);
+      }
+
+      pendingWriteStartMillis = now;
+      for (List<MetricValues> partition : partitions) {
+        if (!partition.isEmpty()) {
+          PartitionWrite write = new PartitionWrite(partition);
+          pendingWrites.add(write);
+          write.submit();
+        }
+      }
+      pendingMessageId = lastMessageId;
+
+      recordsProcessed += buffer.getRecordCount();
       // avoid logging more than once a minute
       if (now > lastLoggedMillis + TimeUnit.MINUTES.toMillis(1)) {
         lastLoggedMillis = now;
         LOG.debug("{} metrics records processed in thread {}. Last record time: {}.",
-                 recordsProcessed, getName(), metricValues.get(metricValues.size() - 1).getTimestamp());
+                 recordsProcessed, getName(), buffer.getLastTimestamp());
+      }
+      buffer.clear();
+    }
+
+    /**
+     * Waits for the pending partition writes to complete and persists the message id covered by them. Partitions
+     * that succeeded are removed from the pending writes, so that they are never written again.
+     *
+     * @param retryFailed whether to submit the failed partitions again
+     * @return {@code true} if there is no pending write left
+     */
+    private boolean awaitPendingWrites(boolean retryFailed) throws InterruptedException {
+      if (pendingWrites.isEmpty()) {
+        return true;
+      }
+      Iterator<PartitionWrite> iterator = pendingWrites.iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().await()) {
+          iterator.remove();
+        }
+      }
+      if (!pendingWrites.isEmpty()) {
+        if (retryFailed) {
+          LOG.warn("Failed to write {} metrics partitions in thread {}. Will be retried.",
+                   pendingWrites.size(), getName());
+          for (PartitionWrite write : pendingWrites) {
+            write.submit();
+          }
+        }
+        return false;
       }
+      lastWriteMillis = System.currentTimeMillis() - pendingWriteStartMillis;
+      pendingWrites.clear();
+      persistMessageId(pendingMessageId);
+      return true;
+    }
+
+    /**
+     * Waits for the pending partition writes on stop. Failed partitions are retried once, and no write is left
+     * in progress when this method returns.
+     */
+    private boolean awaitPendingWritesOnStop() throws InterruptedException {
+      return awaitPendingWrites(true) || awaitPendingWrites(false);
     }
 
     private void addProcessingStats(List<MetricValues> records, long currentTime) {
-      int count = records.size();
-      long delay = currentTime - TimeUnit.SECONDS.toMillis(records.get(records.size() - 1).getTimestamp());
+      int count = buffer.getRecordCount();
+      int written = buffer.getValueCount();
+      long delay = currentTime - TimeUnit.SECONDS.toMillis(buffer.getLastTimestamp());
       records.add(
         new MetricValues(metricsContextMap, TimeUnit.MILLISECONDS.toSeconds(currentTime),
                          ImmutableList.of(new MetricValue("metrics.process.count", MetricType.COUNTER, count),
-                                          new MetricValue("metrics.process.delay.ms", MetricType.GAUGE, delay))));
+                                          new MetricValue("metrics.process.written.count", MetricType.COUNTER,
+                                                          written),
+                                          new MetricValue("metrics.process.delay.ms", MetricType.GAUGE, delay),
+                                          new MetricValue(topicMetricPrefix + ".count", MetricType.COUNTER, count),
+                                          new MetricValue(topicMetricPrefix + ".written.count", MetricType.COUNTER,
+                                                          written),
+                                          new MetricValue(topicMetricPrefix + ".delay.ms", MetricType.GAUGE, delay),
+                                          new MetricValue(topicMetricPrefix + ".write.ms", MetricType.GAUGE,
+                                                          lastWriteMillis))));
     }
 
     private void persistMessageId(byte[] messageId) {
@@ -287,6 +501,46 @@ public class MessagingMetricsProcessorService extends AbstractExecutionThreadSer
         LOG.error("Failed to persist consumed messageId {}", Bytes.toStringBinary(messageId), e);
       }
     }
+
+    /**
+     * Writes one partition of the buffered metrics to the metric store.
+     */
+    private final class PartitionWrite implements Runnable {
+      private final List<MetricValues> metricValues;
+      private Future<?> future;
+
+      PartitionWrite(List<MetricValues> metricValues) {
+        this.metricValues = metricValues;
+      }
+
+      @Override
+      public void run() {
+        try {
+          metricStore.add(metricValues);
+        } catch (Exception e) {
+          throw Throwables.propagate(e);
+        }
+      }
+
+      void submit() {
+        future = writerExecutor.submit(this);
+      }
+
+      /**
+       * Waits for the write to complete.
+       *
+       * @return {@code true} if the write completed successfully
+       */
+      boolean await() throws InterruptedException {
+        try {
+          future.get();
+          return true;
+        } catch (ExecutionException e) {
+          LOG.warn("Failed to write {} metrics in thread {}.", metricValues.size(), getName(), e.getCause());
+          return false;
+        }
+      }
+    }
   }
 
   private class TopicIdMetaKey implements MetricsMetaKey {
@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.metrics.process;
+
+import co.cask.cdap.api.metrics.MetricType;
+import co.cask.cdap.api.metrics.MetricValue;
+import co.cask.cdap.api.metrics.MetricValues;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Buffers {@link MetricValues} in memory and merges values of the same metric that have the same tags and timestamp
+ * before they are written to the {@link co.cask.cdap.api.metrics.MetricStore}. Counters are summed up and for gauges
+ * the last value added is kept, which gives the same result in the metric store as writing all the values added.
+ * Since every aggregation in the metric store is a projection of the tags, merging on the full tags also merges the
+ * increments of every aggregation and resolution.
+ */
+@NotThreadSafe
+final class MetricsAggregationBuffer {
+
+  // tags -> timestamp -> metric name -> value, in the order the values are first added
+  private final Map<Map<String, String>, Map<Long, Map<String, AggregatedValue>>> values = new LinkedHashMap<>();
+  private int recordCount;
+  private int valueCount;
+  private long lastTimestamp;
+  private long firstAddMillis;
+
+  /**
+   * Adds the given {@link MetricValues} to this buffer.
+   */
+  void add(MetricValues metricValues) {
+    if (recordCount == 0) {
+      firstAddMillis = System.currentTimeMillis();
+    }
+    recordCount++;
+    lastTimestamp = metricValues.getTimestamp();
+
+    Map<Long, Map<String, AggregatedValue>> timestampValues = values.get(metricValues.getTags());
+    if (timestampValues == null) {
+      timestampValues = new LinkedHashMap<>();
+      values.put(metricValues.getTags(), timestampValues);
+    }
+    Map<String, AggregatedValue> metrics = timestampValues.get(metricValues.getTimestamp());
+    if (metrics == null) {
+      metrics = new LinkedHashMap<>();
+      timestampValues.put(metricValues.getTimestamp(), metrics);
+    }
+
+    for (MetricValue metricValue : metricValues.getMetrics()) {
+      AggregatedValue value = metrics.get(metricValue.getName());
+      if (value == null) {
+        metrics.put(metricValue.getName(), new AggregatedValue(metricValue.getType(), metricValue.getValue()));
+        valueCount++;
+      } else {
+        value.update(metricValue.getType(), metricValue.getValue());
+      }
+    }
+  }
+
+  /**
+   * Returns {@code true} if nothing is buffered.
+   */
+  boolean isEmpty() {
+    return recordCount == 0;
+  }
+
+  /**
+   * Returns the number of {@link MetricValues} added since the last {@link #clear()}.
+   */
+  int getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Returns the number of distinct values buffered, which is the number of values that will be written.
+   */
+  int getValueCount() {
+    return valueCount;
+  }
+
+  /**
+   * Returns the timestamp of the last {@link MetricValues} added.
+   */
+  long getLastTimestamp() {
+    return lastTimestamp;
+  }
+
+  /**
+   * Returns the time in milliseconds when the first {@link MetricValues} was added since the last {@link #clear()}.
+   */
+  long getFirstAddMillis() {
+    return firstAddMillis;
+  }
+
+  /**
+   * Returns the merged values as a list of {@link MetricValues}, one per distinct tags and timestamp.
+   */
+  List<MetricValues> getMetricValues() {
+    List<MetricValues> result = new ArrayList<>();
+    for (Map.Entry<Map<String, String>, Map<Long, Map<String, AggregatedValue>>> tagsEntry : values.entrySet()) {
+      for (Map.Entry<Long, Map<String, AggregatedValue>> timestampEntry : tagsEntry.getValue().entrySet()) {
+        List<MetricValue> metrics = new ArrayList<>(timestampEntry.getValue().size());
+        for (Map.Entry<String, AggregatedValue> metricEntry : timestampEntry.getValue().entrySet()) {
+          AggregatedValue value = metricEntry.getValue();
+          metrics.add(new MetricValue(metricEntry.getKey(), value.type, value.value));
+        }
+        result.add(new MetricValues(tagsEntry.getKey(), timestampEntry.getKey(), metrics));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Removes everything from this buffer.
+   */
+  void clear() {
+    values.clear();
+    recordCount = 0;
+    valueCount = 0;
+  }
+
+  /**
+   * A mutable metric value, to avoid creating new objects when merging.
+   */
+  private static final class AggregatedValue {
+    private MetricType type;
+    private long value;
+
+    AggregatedValue(MetricType type, long value) {
+      this.type = type;
+      this.value = value;
+    }
+
+    void update(MetricType type, long value) {
+      if (type == MetricType.COUNTER && this.type == MetricType.COUNTER) {
+        this.value += value;
+      } else {
+        // A gauge overrides whatever was there, same as the put to the metrics table.
+        // A counter after a gauge is turned into a gauge, since the increment would be applied to the gauge value.
+        this.value = type == MetricType.COUNTER ? this.value + value : value;
+        this.type = MetricType.GAUGE;
+      }
+    }
+  }
+}
@@ -95,6 +95,7 @@ public class MetricsHandler extends AbstractHttpHandler {
       .put(Constants.Metrics.Tag.COMPONENT, "component")
       .put(Constants.Metrics.Tag.HANDLER, "handler")
       .put(Constants.Metrics.Tag.METHOD, "method")
+      .put(Constants.Metrics.Tag.PARTITION, "partition")
 
       .put(Constants.Metrics.Tag.STREAM, "stream")
 
@@ -214,5 +214,33 @@ public final class MetricsProcessorTwillRunnable extends AbstractMasterTwillRunn
     public int providesFetcherPersistThreshold(CConfiguration cConf) {
       return cConf.getInt(Constants.Metrics.MESSAGING_FETCHER_LIMIT);
     }
+
+    @SuppressWarnings("unused")
+    @Provides
+    @Named(Constants.Metrics.MESSAGING_FLUSH_INTERVAL_MS)
+    public long providesFlushInterval(CConfiguration cConf) {
+      return cConf.getLong(Constants.Metrics.MESSAGING_FLUSH_INTERVAL_MS);
+    }
+
+    @SuppressWarnings("unused")
+    @Provides
+    @Named(Constants.Metrics.MESSAGING_MAX_BUFFERED_VALUES)
+    public int providesMaxBufferedValues(CConfiguration cConf) {
+      return cConf.getInt(Constants.Metrics.MESSAGING_MAX_BUFFERED_VALUES);
+    }
+
+    @SuppressWarnings("unused")
+    @Provides
+    @Named(Constants.Metrics.MESSAGING_WRITER_THREADS)
+    public int providesWriterThreads(CConfiguration cConf) {
+      return cConf.getInt(Constants.Metrics.MESSAGING_WRITER_THREADS);
+    }
+
+    @SuppressWarnings("unused")
+    @Provides
+    @Named(Constants.Metrics.MESSAGING_WRITER_QUEUE_SIZE)
+    public int providesWriterQueueSize(CConfiguration cConf) {
+      return cConf.getInt(Constants.Metrics.MESSAGING_WRITER_QUEUE_SIZE);
+    }
   }
 }
@@ -71,16 +71,28 @@ public class DefaultMetricDatasetFactory implements MetricDatasetFactory {
 
       @Override
       public EntityTable get() {
-        String tableName = cConf.get(Constants.Metrics.ENTITY_TABLE_NAME,
-                                     Constants.Metrics.DEFAULT_ENTITY_TABLE_NAME);
-        return new EntityTable(getOrCreateMetricsTable(tableName, DatasetProperties.EMPTY));
+        return createEntityTable();
       }
     });
   }
 
+  private EntityTable createEntityTable() {
+    String tableName = cConf.get(Constants.Metrics.ENTITY_TABLE_NAME, Constants.Metrics.DEFAULT_ENTITY_TABLE_NAME);
+    return new EntityTable(getOrCreateMetricsTable(tableName, DatasetProperties.EMPTY));
+  }
+
   // todo: figure out roll time based on resolution from config? See DefaultMetricsTableFactory for example
   @Override
   public FactTable getOrCreateFactTable(int resolution) {
+    return getOrCreateFactTable(resolution, entityTable.get());
+  }
+
+  @Override
+  public FactTable getOrCreateUnsharedFactTable(int resolution) {
+    return getOrCreateFactTable(resolution, createEntityTable());
+  }
+
+  private FactTable getOrCreateFactTable(int resolution, EntityTable entityTable) {
     String tableName = cConf.get(Constants.Metrics.METRICS_TABLE_PREFIX,
                                  Constants.Metrics.DEFAULT_METRIC_TABLE_PREFIX) + ".ts." + resolution;
     int ttl = cConf.getInt(Constants.Metrics.RETENTION_SECONDS + "." + resolution + ".seconds", -1);
@@ -98,7 +110,7 @@ public class DefaultMetricDatasetFactory implements MetricDatasetFactory {
 
     MetricsTable table = getOrCreateMetricsTable(tableName, props.build());
     LOG.info("FactTable created: {}", tableName);
-    return new FactTable(table, entityTable.get(), resolution, getRollTime(resolution));
+    return new FactTable(table, entityTable, resolution, getRollTime(resolution));
   }
 
   @Override
@@ -38,6 +38,7 @@ import co.cask.cdap.api.metrics.TagValue;
 import co.cask.cdap.common.conf.Constants;
 import co.cask.cdap.data2.dataset2.lib.cube.Aggregation;
 import co.cask.cdap.data2.dataset2.lib.cube.AggregationAlias;
+import co.cask.cdap.data2.dataset2.lib.cube.CubeQueryCache;
 import co.cask.cdap.data2.dataset2.lib.cube.DefaultAggregation;
 import co.cask.cdap.data2.dataset2.lib.cube.DefaultCube;
 import co.cask.cdap.data2.dataset2.lib.cube.FactTableSupplier;
@@ -51,12 +52,17 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
+import org.apache.twill.common.Threads;
 
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 /**
@@ -64,8 +70,13 @@ import javax.annotation.Nullable;
  */
 public class DefaultMetricStore implements MetricStore {
   public static final int TOTALS_RESOLUTION = Integer.MAX_VALUE;
+  // 1 sec, 1 min, 1 hour and "all time totals"
+  static final int[] RESOLUTIONS = {1, 60, 3600, TOTALS_RESOLUTION};
   static final Map<String, Aggregation> AGGREGATIONS;
 
+  // Maximum number of concurrent scans for a query, and the number of threads for executing them
+  private static final int QUERY_SCAN_THREADS = 8;
+
   private static final String BY_NAMESPACE = "namespace";
   private static final String BY_APP = "app";
   private static final String BY_FLOW = "flow";
@@ -78,6 +89,7 @@ public class DefaultMetricStore implements MetricStore {
   private static final String BY_STREAM = "stream";
   private static final String BY_DATASET = "dataset";
   private static final String BY_COMPONENT = "component";
+  private static final String BY_COMPONENT_PARTITION = "component.partition";
   private static final Map<String, AggregationAlias> AGGREGATIONS_ALIAS_DIMENSIONS =
     ImmutableMap.of(BY_WORKFLOW,
                     new AggregationAlias(ImmutableMap.of(Constants.Metrics.Tag.RUN_ID,
@@ -192,36 +204,56 @@ public class DefaultMetricStore implements MetricStore {
                        Constants.Metrics.Tag.HANDLER, Constants.Metrics.Tag.METHOD),
       // i.e. for components only
       ImmutableList.of(Constants.Metrics.Tag.NAMESPACE, Constants.Metrics.Tag.COMPONENT)));
+    // i.e. for components that process partitioned input, such as the log saver
+    aggs.put(BY_COMPONENT_PARTITION, new DefaultAggregation(
+      ImmutableList.of(Constants.Metrics.Tag.NAMESPACE, Constants.Metrics.Tag.COMPONENT,
+                       Constants.Metrics.Tag.PARTITION),
+      ImmutableList.of(Constants.Metrics.Tag.NAMESPACE, Constants.Metrics.Tag.COMPONENT,
+                       Constants.Metrics.Tag.PARTITION)));
 
     AGGREGATIONS = Collections.unmodifiableMap(aggs);
   }
 
   @Inject
-  public DefaultMetricStore(final MetricDatasetFactory dsFactory) {
-    // 1 sec, 1 min, 1 hour and "all time totals"
-    this(dsFactory, new int[] {1, 60, 3600, TOTALS_RESOLUTION});
+  DefaultMetricStore(MetricDatasetFactory dsFactory, MetricsQueryCache queryCache) {
+    this(dsFactory, RESOLUTIONS, queryCache.getCache());
   }
 
   // NOTE: should never be used apart from data migration during cdap upgrade
   public DefaultMetricStore(final MetricDatasetFactory dsFactory, final int resolutions[]) {
+    this(dsFactory, resolutions, null);
+  }
+
+  private DefaultMetricStore(final MetricDatasetFactory dsFactory, final int resolutions[],
+                             @Nullable final CubeQueryCache queryCache) {
     this.resolutions = resolutions;
     final FactTableSupplier factTableSupplier = new FactTableSupplier() {
       @Override
       public FactTable get(int resolution, int ignoredRollTime) {
         // roll time will be taken from configuration todo: clean this up
-        return dsFactory.getOrCreateFactTable(resolution);
+        // The cube scans splits of a query concurrently with separate tables, which must not share the HTables
+        return dsFactory.getOrCreateUnsharedFactTable(resolution);
       }
     };
     this.cube = Suppliers.memoize(new Supplier<Cube>() {
       @Override
       public Cube get() {
-        DefaultCube cube = new DefaultCube(resolutions, factTableSupplier, AGGREGATIONS, AGGREGATIONS_ALIAS_DIMENSIONS);
+        DefaultCube cube = new DefaultCube(resolutions, factTableSupplier, AGGREGATIONS, AGGREGATIONS_ALIAS_DIMENSIONS,
+                                           queryCache, createScanExecutor(), QUERY_SCAN_THREADS);
         cube.setMetricsCollector(metricsContext);
         return cube;
       }
     });
   }
 
+  private static ExecutorService createScanExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(QUERY_SCAN_THREADS, QUERY_SCAN_THREADS,
+                                                         60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                         Threads.createDaemonThreadFactory("metrics-query-scan-%d"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   @Override
   public void setMetricsContext(MetricsContext metricsContext) {
     this.metricsContext = metricsContext;
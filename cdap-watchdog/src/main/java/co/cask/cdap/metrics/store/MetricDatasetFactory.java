@@ -30,6 +30,13 @@ public interface MetricDatasetFactory {
    */
   FactTable getOrCreateFactTable(int resolution);
 
+  /**
+   * @param resolution resolution of {@link FactTable}
+   * @return A new instance of {@link FactTable} that doesn't share any table instance with other {@link FactTable}s,
+   *         so that it can be used concurrently with them.
+   */
+  FactTable getOrCreateUnsharedFactTable(int resolution);
+
   /**
    * @return A new instance of {@link MetricsConsumerMetaTable}.
    */
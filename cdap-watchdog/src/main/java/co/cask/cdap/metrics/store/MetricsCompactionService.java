@@ -0,0 +1,206 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.metrics.store;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.lib.cube.DimensionValue;
+import co.cask.cdap.api.metrics.MetricsContext;
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.data2.dataset2.lib.cube.Aggregation;
+import co.cask.cdap.data2.dataset2.lib.timeseries.FactScan;
+import co.cask.cdap.data2.dataset2.lib.timeseries.FactTable;
+import co.cask.cdap.metrics.process.MetricsConsumerMetaTable;
+import co.cask.cdap.metrics.process.MetricsMetaKey;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.inject.Inject;
+import org.apache.twill.common.Threads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service that periodically deletes the metrics of each resolution that are older than the retention configured for
+ * the resolution, for metric stores whose tables do not support TTL. Since every metric is written to all
+ * resolutions, the values of the deleted fine resolutions remain available rolled up in the coarser resolutions,
+ * which are retained for longer.
+ *
+ * The deletion proceeds in time slices. The end of the last slice deleted is persisted per resolution, so that the
+ * compaction resumes from there after a restart and every run only scans the data that aged since the previous run.
+ */
+public class MetricsCompactionService extends AbstractScheduledService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MetricsCompactionService.class);
+
+  private final CConfiguration cConf;
+  private final MetricDatasetFactory dsFactory;
+  private final MetricsQueryCache queryCache;
+  private final long intervalSeconds;
+  private final long sliceSeconds;
+  private final Map<Integer, FactTable> factTables;
+
+  private MetricsConsumerMetaTable metaTable;
+  private MetricsContext metricsContext;
+  private ScheduledExecutorService executor;
+
+  @Inject
+  MetricsCompactionService(CConfiguration cConf, MetricDatasetFactory dsFactory, MetricsQueryCache queryCache) {
+    this.cConf = cConf;
+    this.dsFactory = dsFactory;
+    this.queryCache = queryCache;
+    this.intervalSeconds = cConf.getLong(Constants.Metrics.COMPACTION_INTERVAL_SECONDS, TimeUnit.HOURS.toSeconds(1));
+    this.sliceSeconds = cConf.getLong(Constants.Metrics.COMPACTION_SLICE_SECONDS, TimeUnit.HOURS.toSeconds(1));
+    this.factTables = new HashMap<>();
+  }
+
+  public void setMetricsContext(MetricsContext metricsContext) {
+    this.metricsContext = metricsContext;
+  }
+
+  @Override
+  protected void runOneIteration() throws Exception {
+    long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    for (int resolution : DefaultMetricStore.RESOLUTIONS) {
+      long retention = getRetentionSeconds(resolution);
+      if (retention <= 0 || !isRunning()) {
+        continue;
+      }
+      try {
+        compact(resolution, now - retention);
+      } catch (Exception e) {
+        // Progress is persisted per slice, hence the next run continues from the last slice completed
+        LOG.warn("Failed to compact metrics of resolution {}. Will be retried in next run.", resolution, e);
+      }
+    }
+  }
+
+  @Override
+  protected Scheduler scheduler() {
+    return Scheduler.newFixedDelaySchedule(1, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  @Override
+  protected ScheduledExecutorService executor() {
+    executor = Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("metrics-compaction"));
+    return executor;
+  }
+
+  @Override
+  protected void shutDown() throws Exception {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns the retention of the given resolution in seconds, or {@code -1} if the data of the resolution is kept
+   * forever.
+   */
+  private long getRetentionSeconds(int resolution) {
+    // NOTE: we do not purge on TTL the "totals" currently, as there might be system components dependent on it
+    if (resolution == DefaultMetricStore.TOTALS_RESOLUTION) {
+      return -1;
+    }
+    long defaultRetention = resolution == 1 ? TimeUnit.HOURS.toSeconds(Constants.Metrics.DEFAULT_RETENTION_HOURS) : -1;
+    return cConf.getLong(Constants.Metrics.RETENTION_SECONDS + "." + resolution + ".seconds", defaultRetention);
+  }
+
+  /**
+   * Deletes the metrics of the given resolution that are older than the given timestamp, one slice at a time.
+   *
+   * @return number of values deleted
+   */
+  private long compact(int resolution, long deleteBefore) throws Exception {
+    if (metaTable == null) {
+      metaTable = dsFactory.createConsumerMeta();
+    }
+    CompactionMetaKey metaKey = new CompactionMetaKey(resolution);
+    long start = metaTable.get(metaKey);
+    long deleted = 0;
+    while (start < deleteBefore && isRunning()) {
+      // The first run deletes everything before the retention at once, since there is no knowing where data starts
+      long end = start < 0 ? deleteBefore : Math.min(start + sliceSeconds, deleteBefore);
+      deleted += deleteSlice(resolution, Math.max(start, 0), end);
+      metaTable.save(ImmutableMap.of(metaKey, end));
+      start = end;
+    }
+
+    if (deleted > 0) {
+      // Deletes are done on the fact tables directly, hence cached query results need to be removed explicitly
+      queryCache.invalidateAll();
+      LOG.debug("Deleted {} metric values of resolution {} older than {}.", deleted, resolution, deleteBefore);
+    }
+    if (metricsContext != null) {
+      metricsContext.increment("metrics.compaction." + resolution + ".deleted.count", deleted);
+    }
+    return deleted;
+  }
+
+  /**
+   * Deletes the metrics of all aggregations of the given resolution in the time range {@code [start, end)}.
+   *
+   * @return number of values deleted
+   */
+  private long deleteSlice(int resolution, long start, long end) {
+    FactTable factTable = getFactTable(resolution);
+    long deleted = 0;
+    for (Aggregation aggregation : DefaultMetricStore.AGGREGATIONS.values()) {
+      List<DimensionValue> dimensionValues = Lists.newArrayList();
+      for (String dimensionName : aggregation.getDimensionNames()) {
+        dimensionValues.add(new DimensionValue(dimensionName, null));
+      }
+      deleted += factTable.delete(new FactScan(start, end - 1, dimensionValues));
+    }
+    return deleted;
+  }
+
+  private FactTable getFactTable(int resolution) {
+    FactTable factTable = factTables.get(resolution);
+    if (factTable == null) {
+      factTable = dsFactory.getOrCreateFactTable(resolution);
+      if (metricsContext != null) {
+        factTable.setMetricsCollector(metricsContext);
+      }
+      factTables.put(resolution, factTable);
+    }
+    return factTable;
+  }
+
+  /**
+   * Key of the compaction progress of a resolution in the {@link MetricsConsumerMetaTable}.
+   */
+  private static final class CompactionMetaKey implements MetricsMetaKey {
+    private final byte[] key;
+
+    CompactionMetaKey(int resolution) {
+      this.key = Bytes.toBytes("compaction." + resolution);
+    }
+
+    @Override
+    public byte[] getKey() {
+      return key;
+    }
+  }
+}
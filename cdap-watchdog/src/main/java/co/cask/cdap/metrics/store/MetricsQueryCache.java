@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.metrics.store;
+
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.data2.dataset2.lib.cube.CubeQueryCache;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import javax.annotation.Nullable;
+
+/**
+ * Holds the {@link CubeQueryCache} shared by all {@link DefaultMetricStore} instances of an injector, so that metrics
+ * written or deleted through any of them, or by the {@link MetricsCompactionService}, invalidate the cached query
+ * results. The cache is only enabled if {@link Constants.Metrics#QUERY_CACHE_ENABLED} is {@code true}.
+ */
+@Singleton
+final class MetricsQueryCache {
+
+  private final CubeQueryCache cache;
+
+  @Inject
+  MetricsQueryCache(CConfiguration cConf) {
+    this.cache = cConf.getBoolean(Constants.Metrics.QUERY_CACHE_ENABLED)
+      ? new CubeQueryCache(cConf.getLong(Constants.Metrics.QUERY_CACHE_MAX_TIME_VALUES),
+                           cConf.getLong(Constants.Metrics.QUERY_CACHE_CLOSE_DELAY_SECONDS),
+                           cConf.getLong(Constants.Metrics.QUERY_CACHE_EXPIRE_SECONDS))
+      : null;
+  }
+
+  /**
+   * Returns the {@link CubeQueryCache} or {@code null} if the cache is disabled.
+   */
+  @Nullable
+  CubeQueryCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Removes all cached query results.
+   */
+  void invalidateAll() {
+    if (cache != null) {
+      cache.invalidateAll();
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.read;
+
+import ch.qos.logback.classic.Level;
+import co.cask.cdap.api.dataset.lib.CloseableIterator;
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.io.Locations;
+import co.cask.cdap.common.security.DefaultImpersonator;
+import co.cask.cdap.common.security.Impersonator;
+import co.cask.cdap.logging.filter.Filter;
+import co.cask.cdap.logging.filter.LogLevelExpression;
+import co.cask.cdap.logging.serialize.LogSchema;
+import co.cask.cdap.logging.serialize.LoggingEvent;
+import co.cask.cdap.logging.write.IndexedLogFileWriter;
+import co.cask.cdap.logging.write.LogLocation;
+import co.cask.cdap.proto.id.NamespaceId;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.twill.filesystem.LocalLocationFactory;
+import org.apache.twill.filesystem.Location;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Tests for {@link IndexedLogFileReader}.
+ */
+public class IndexedLogFileReaderTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final Impersonator impersonator = new DefaultImpersonator(CConfiguration.create(), null, null);
+
+  @Test
+  public void testReadLog() throws Exception {
+    Location file = new LocalLocationFactory().create(tempFolder.newFolder().toURI()).append("0.log");
+    // Small blocks, so that the events are spread over many blocks
+    try (IndexedLogFileWriter writer = new IndexedLogFileWriter(file.getOutputStream(),
+                                                                LogSchema.LoggingEvent.SCHEMA, 1024)) {
+      for (int i = 0; i < 100; i++) {
+        writer.append(createEvent(i));
+      }
+    }
+
+    IndexedLogFileReader reader = new IndexedLogFileReader(LogSchema.LoggingEvent.SCHEMA);
+    Assert.assertEquals(createRange(0, 100, 1), readLog(reader, file, Filter.EMPTY_FILTER, 0, Long.MAX_VALUE, 200));
+    Assert.assertEquals(createRange(20, 50, 1), readLog(reader, file, Filter.EMPTY_FILTER, 20, 50, 200));
+    Assert.assertEquals(createRange(10, 20, 1), readLog(reader, file, Filter.EMPTY_FILTER, 10, Long.MAX_VALUE, 10));
+    // Every tenth event is an error
+    Assert.assertEquals(createRange(30, 100, 10), readLog(reader, file, new LogLevelExpression("ERROR"),
+                                                          25, Long.MAX_VALUE, 200));
+
+    Assert.assertEquals(createRange(90, 100, 1), readLogPrev(reader, file, Filter.EMPTY_FILTER, Long.MAX_VALUE, 10));
+    Assert.assertEquals(createRange(41, 61, 1), readLogPrev(reader, file, Filter.EMPTY_FILTER, 60, 20));
+    Assert.assertEquals(createRange(0, 61, 10), readLogPrev(reader, file, new LogLevelExpression("ERROR"), 60, 20));
+  }
+
+  @Test
+  public void testIncompleteBlock() throws Exception {
+    Location dir = new LocalLocationFactory().create(tempFolder.newFolder().toURI());
+    Location file = dir.append("0.log");
+    try (IndexedLogFileWriter writer = new IndexedLogFileWriter(file.getOutputStream(),
+                                                                LogSchema.LoggingEvent.SCHEMA, 1024)) {
+      for (int i = 0; i < 50; i++) {
+        writer.append(createEvent(i));
+      }
+    }
+
+    // Simulate a file with the last block partially written
+    Location truncated = dir.append("1.log");
+    byte[] content = ByteStreams.toByteArray(Locations.newInputSupplier(file));
+    try (OutputStream os = truncated.getOutputStream()) {
+      os.write(content, 0, content.length - 10);
+    }
+
+    IndexedLogFileReader reader = new IndexedLogFileReader(LogSchema.LoggingEvent.SCHEMA);
+    List<Long> events = readLog(reader, truncated, Filter.EMPTY_FILTER, 0, Long.MAX_VALUE, 100);
+    Assert.assertFalse(events.isEmpty());
+    Assert.assertEquals(createRange(0, events.size(), 1), events);
+    Assert.assertEquals(createRange(events.size() - 5, events.size(), 1),
+                        readLogPrev(reader, truncated, Filter.EMPTY_FILTER, Long.MAX_VALUE, 5));
+  }
+
+  @Test
+  public void testReadAvroFile() throws Exception {
+    Location file = new LocalLocationFactory().create(tempFolder.newFolder().toURI()).append("0.avro");
+    try (DataFileWriter<GenericRecord> writer =
+           new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(LogSchema.LoggingEvent.SCHEMA))) {
+      writer.create(LogSchema.LoggingEvent.SCHEMA, file.getOutputStream());
+      for (int i = 0; i < 20; i++) {
+        writer.append(createEvent(i));
+      }
+    }
+
+    IndexedLogFileReader reader = new IndexedLogFileReader(LogSchema.LoggingEvent.SCHEMA);
+    Assert.assertEquals(createRange(0, 20, 1), readLog(reader, file, Filter.EMPTY_FILTER, 0, Long.MAX_VALUE, 100));
+    Assert.assertEquals(createRange(15, 20, 1), readLogPrev(reader, file, Filter.EMPTY_FILTER, Long.MAX_VALUE, 5));
+  }
+
+  @Test
+  public void testReadLogLocation() throws Exception {
+    Location dir = new LocalLocationFactory().create(tempFolder.newFolder().toURI());
+    Location indexedFile = dir.append("0.log");
+    try (IndexedLogFileWriter writer = new IndexedLogFileWriter(indexedFile.getOutputStream(),
+                                                                LogSchema.LoggingEvent.SCHEMA, 1024)) {
+      for (int i = 0; i < 50; i++) {
+        writer.append(createEvent(i));
+      }
+    }
+    Location avroFile = dir.append("1.avro");
+    try (DataFileWriter<GenericRecord> writer =
+           new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(LogSchema.LoggingEvent.SCHEMA))) {
+      writer.create(LogSchema.LoggingEvent.SCHEMA, avroFile.getOutputStream());
+      for (int i = 0; i < 20; i++) {
+        writer.append(createEvent(i));
+      }
+    }
+
+    // Files of the old log framework can be in either format
+    Assert.assertEquals(createRange(10, 40, 1),
+                        readLog(new LogLocation(LogLocation.VERSION_0, 0, 0, indexedFile,
+                                                NamespaceId.DEFAULT.getNamespace(), impersonator), 10, 40));
+    Assert.assertEquals(createRange(5, 20, 1),
+                        readLog(new LogLocation(LogLocation.VERSION_0, 0, 0, avroFile,
+                                                NamespaceId.DEFAULT.getNamespace(), impersonator), 5, Long.MAX_VALUE));
+  }
+
+  private List<Long> readLog(LogLocation logLocation, long fromTimeMs, long toTimeMs) {
+    List<Long> timestamps = Lists.newArrayList();
+    try (CloseableIterator<LogEvent> iterator = logLocation.readLog(Filter.EMPTY_FILTER, fromTimeMs, toTimeMs,
+                                                                    Integer.MAX_VALUE)) {
+      while (iterator.hasNext()) {
+        timestamps.add(iterator.next().getLoggingEvent().getTimeStamp());
+      }
+    }
+    return timestamps;
+  }
+
+  private List<Long> readLog(IndexedLogFileReader reader, Location file, Filter filter,
+                             long fromTimeMs, long toTimeMs, int maxEvents) {
+    List<Long> timestamps = Lists.newArrayList();
+    try (CloseableIterator<LogEvent> iterator = reader.readLog(file, filter, fromTimeMs, toTimeMs, maxEvents,
+                                                               NamespaceId.DEFAULT, impersonator)) {
+      while (iterator.hasNext()) {
+        timestamps.add(iterator.next().getLoggingEvent().getTimeStamp());
+      }
+    }
+    return timestamps;
+  }
+
+  private List<Long> readLogPrev(IndexedLogFileReader reader, Location file, Filter filter,
+                                 long fromTimeMs, int maxEvents) throws Exception {
+    List<Long> timestamps = Lists.newArrayList();
+    Collection<LogEvent> events = reader.readLogPrev(file, filter, fromTimeMs, maxEvents,
+                                                     NamespaceId.DEFAULT, impersonator);
+    for (LogEvent event : events) {
+      timestamps.add(event.getLoggingEvent().getTimeStamp());
+    }
+    return timestamps;
+  }
+
+  private List<Long> createRange(long start, long end, long step) {
+    List<Long> timestamps = Lists.newArrayList();
+    for (long i = start; i < end; i += step) {
+      timestamps.add(i);
+    }
+    return timestamps;
+  }
+
+  private GenericRecord createEvent(int timestamp) {
+    ch.qos.logback.classic.spi.LoggingEvent event = new ch.qos.logback.classic.spi.LoggingEvent(
+      getClass().getName(), (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(getClass()),
+      timestamp % 10 == 0 ? Level.ERROR : Level.INFO, "Test log message " + timestamp, null, null);
+    event.setTimeStamp(timestamp);
+    return LoggingEvent.encode(LogSchema.LoggingEvent.SCHEMA, event);
+  }
+}
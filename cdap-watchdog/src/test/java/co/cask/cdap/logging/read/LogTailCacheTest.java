@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.read;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import co.cask.cdap.common.logging.LoggingContext;
+import co.cask.cdap.logging.context.FlowletLoggingContext;
+import co.cask.cdap.logging.filter.Filter;
+import co.cask.cdap.logging.filter.LogLevelExpression;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Tests for {@link LogTailCache}.
+ */
+public class LogTailCacheTest {
+
+  @Test
+  public void testTail() {
+    LogTailCache cache = new LogTailCache(1024 * 1024, 10);
+    LoggingContext loggingContext = new FlowletLoggingContext("ns", "app", "flow", "flowlet", "run", "0");
+
+    LogTailCache.Tail tail = cache.getTail(loggingContext);
+    Assert.assertEquals(-1, tail.getNextOffset());
+    tail.reset(100);
+    int size = 0;
+    for (int i = 0; i < 15; i++) {
+      LoggingEvent event = createEvent(i);
+      tail.add(event, 100 + i);
+      if (i >= 5) {
+        size += LogTailCache.estimateSize(event);
+      }
+    }
+    tail.setNextOffset(115);
+    cache.update(loggingContext, tail);
+
+    // Only the last ten events are kept
+    Assert.assertSame(tail, cache.getTail(new FlowletLoggingContext("ns", "app", "flow", "flowlet", "run", "0")));
+    Assert.assertEquals(105, tail.getFirstOffset());
+    Assert.assertEquals(115, tail.getNextOffset());
+    Assert.assertEquals(size, tail.getSize());
+
+    Assert.assertEquals(createRange(10, 15, 1), getTimestamps(tail.getEvents(Filter.EMPTY_FILTER, -1, 110, 115)));
+    Assert.assertEquals(createRange(5, 10, 1), getTimestamps(tail.getEvents(Filter.EMPTY_FILTER, -1, 105, 110)));
+    Assert.assertEquals(createRange(8, 15, 1), getTimestamps(tail.getEvents(Filter.EMPTY_FILTER, 7, 0, 115)));
+    // Every fifth event is an error
+    Assert.assertEquals(createRange(5, 15, 5),
+                        getTimestamps(tail.getEvents(new LogLevelExpression("ERROR"), -1, 100, 115)));
+
+    tail.reset(200);
+    Assert.assertEquals(200, tail.getFirstOffset());
+    Assert.assertEquals(0, tail.getSize());
+    Assert.assertTrue(tail.getEvents(Filter.EMPTY_FILTER, -1, 0, Long.MAX_VALUE).isEmpty());
+  }
+
+  @Test
+  public void testEviction() {
+    // Room for one event only
+    LogTailCache cache = new LogTailCache(LogTailCache.estimateSize(createEvent(0)) * 3 / 2, 10);
+    LoggingContext context1 = new FlowletLoggingContext("ns", "app", "flow", "flowlet1", "run", "0");
+    LoggingContext context2 = new FlowletLoggingContext("ns", "app", "flow", "flowlet2", "run", "0");
+
+    LogTailCache.Tail tail1 = cache.getTail(context1);
+    tail1.reset(0);
+    tail1.add(createEvent(0), 0);
+    cache.update(context1, tail1);
+
+    // Exceeding the total size evicts tails
+    LogTailCache.Tail tail2 = cache.getTail(context2);
+    tail2.reset(0);
+    tail2.add(createEvent(1), 1);
+    cache.update(context2, tail2);
+
+    boolean cached1 = tail1 == cache.getTail(context1);
+    boolean cached2 = tail2 == cache.getTail(context2);
+    Assert.assertFalse(cached1 && cached2);
+  }
+
+  @Test
+  public void testEstimateSize() {
+    LoggingEvent event = createEvent(0);
+    // Strings are held as UTF-16 in memory
+    Assert.assertTrue(LogTailCache.estimateSize(event) > 2 * event.getFormattedMessage().length());
+
+    LoggingEvent errorEvent = new LoggingEvent(getClass().getName(), (Logger) LoggerFactory.getLogger(getClass()),
+                                               Level.ERROR, "Test log message", new Exception("Test"), null);
+    Assert.assertTrue(LogTailCache.estimateSize(errorEvent) > LogTailCache.estimateSize(event));
+  }
+
+  private List<Long> getTimestamps(List<LogEvent> events) {
+    List<Long> timestamps = Lists.newArrayList();
+    for (LogEvent event : events) {
+      timestamps.add(event.getLoggingEvent().getTimeStamp());
+    }
+    return timestamps;
+  }
+
+  private List<Long> createRange(long start, long end, long step) {
+    List<Long> timestamps = Lists.newArrayList();
+    for (long i = start; i < end; i += step) {
+      timestamps.add(i);
+    }
+    return timestamps;
+  }
+
+  private LoggingEvent createEvent(int timestamp) {
+    LoggingEvent event = new LoggingEvent(getClass().getName(), (Logger) LoggerFactory.getLogger(getClass()),
+                                          timestamp % 5 == 0 ? Level.ERROR : Level.INFO,
+                                          "Test log message " + timestamp, null, null);
+    event.setTimeStamp(timestamp);
+    return event;
+  }
+}
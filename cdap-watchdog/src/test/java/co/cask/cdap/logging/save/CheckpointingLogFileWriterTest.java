@@ -0,0 +1,205 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.save;
+
+import ch.qos.logback.classic.Level;
+import co.cask.cdap.api.metrics.MetricsCollectionService;
+import co.cask.cdap.common.conf.CConfiguration;
+import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.common.guice.ConfigModule;
+import co.cask.cdap.common.guice.NonCustomLocationUnitTestModule;
+import co.cask.cdap.common.logging.LoggingContext;
+import co.cask.cdap.common.metrics.NoOpMetricsCollectionService;
+import co.cask.cdap.common.namespace.NamespaceQueryAdmin;
+import co.cask.cdap.common.namespace.NamespacedLocationFactory;
+import co.cask.cdap.common.namespace.SimpleNamespaceQueryAdmin;
+import co.cask.cdap.common.security.Impersonator;
+import co.cask.cdap.common.security.UGIProvider;
+import co.cask.cdap.common.security.UnsupportedUGIProvider;
+import co.cask.cdap.data.runtime.DataSetsModules;
+import co.cask.cdap.data.runtime.SystemDatasetRuntimeModule;
+import co.cask.cdap.logging.LoggingConfiguration;
+import co.cask.cdap.logging.context.FlowletLoggingContext;
+import co.cask.cdap.logging.filter.Filter;
+import co.cask.cdap.logging.guice.LoggingModules;
+import co.cask.cdap.logging.kafka.KafkaLogEvent;
+import co.cask.cdap.logging.read.FileLogReader;
+import co.cask.cdap.logging.read.LogEvent;
+import co.cask.cdap.logging.serialize.LogSchema;
+import co.cask.cdap.logging.serialize.LoggingEvent;
+import co.cask.cdap.logging.write.AvroFileWriter;
+import co.cask.cdap.logging.write.FileMetaDataManager;
+import co.cask.cdap.security.auth.context.AuthenticationContextModules;
+import co.cask.cdap.security.authorization.AuthorizationEnforcementModule;
+import co.cask.cdap.security.authorization.AuthorizationTestModule;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.tephra.TransactionManager;
+import org.apache.tephra.runtime.TransactionModules;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for {@link CheckpointingLogFileWriter}.
+ */
+public class CheckpointingLogFileWriterTest {
+
+  @ClassRule
+  public static final TemporaryFolder TMP_FOLDER = new TemporaryFolder();
+
+  private static Injector injector;
+  private static TransactionManager txManager;
+  private static String logBaseDir;
+
+  @BeforeClass
+  public static void init() throws Exception {
+    Configuration hConf = HBaseConfiguration.create();
+    CConfiguration cConf = CConfiguration.create();
+    cConf.set(Constants.CFG_LOCAL_DATA_DIR, TMP_FOLDER.newFolder().getAbsolutePath());
+    logBaseDir = cConf.get(LoggingConfiguration.LOG_BASE_DIR) + "/"
+      + CheckpointingLogFileWriterTest.class.getSimpleName();
+    cConf.set(LoggingConfiguration.LOG_BASE_DIR, logBaseDir);
+
+    injector = Guice.createInjector(
+      new ConfigModule(cConf, hConf),
+      new NonCustomLocationUnitTestModule().getModule(),
+      new TransactionModules().getInMemoryModules(),
+      new LoggingModules().getInMemoryModules(),
+      new DataSetsModules().getInMemoryModules(),
+      new SystemDatasetRuntimeModule().getInMemoryModules(),
+      new AuthorizationTestModule(),
+      new AuthorizationEnforcementModule().getInMemoryModules(),
+      new AuthenticationContextModules().getNoOpModule(),
+      new AbstractModule() {
+        @Override
+        protected void configure() {
+          bind(MetricsCollectionService.class).to(NoOpMetricsCollectionService.class);
+          bind(UGIProvider.class).to(UnsupportedUGIProvider.class);
+          bind(NamespaceQueryAdmin.class).to(SimpleNamespaceQueryAdmin.class);
+        }
+      }
+    );
+
+    txManager = injector.getInstance(TransactionManager.class);
+    txManager.startAndWait();
+  }
+
+  @AfterClass
+  public static void finish() {
+    txManager.stopAndWait();
+  }
+
+  @Test
+  public void testCheckpointAfterFlush() throws Exception {
+    LoggingContext loggingContext = new FlowletLoggingContext("CLFW_NS", "APP", "FLOW", "FLOWLET", "RUN", "0");
+    AvroFileWriter avroFileWriter = new AvroFileWriter(injector.getInstance(FileMetaDataManager.class),
+                                                       injector.getInstance(NamespacedLocationFactory.class),
+                                                       logBaseDir, LogSchema.LoggingEvent.SCHEMA,
+                                                       1024 * 1024, 1024, Long.MAX_VALUE,
+                                                       injector.getInstance(Impersonator.class));
+    RecordingCheckpointManager checkpointManager = new RecordingCheckpointManager();
+    // Use a long checkpoint interval, so that only a forced flush saves checkpoints
+    CheckpointingLogFileWriter writer = new CheckpointingLogFileWriter(avroFileWriter, checkpointManager,
+                                                                       Long.MAX_VALUE);
+    FileLogReader logReader = injector.getInstance(FileLogReader.class);
+    try {
+      long now = System.currentTimeMillis();
+      writer.append(createEvents(loggingContext, now, 0, 10));
+      writer.append(createEvents(loggingContext, now, 10, 20));
+      Assert.assertTrue(checkpointManager.getSaved().isEmpty());
+
+      // A flush that is not forced makes the appended events visible without checkpointing
+      writer.flush(false);
+      Assert.assertEquals(20, readAll(logReader, loggingContext).size());
+      Assert.assertTrue(checkpointManager.getSaved().isEmpty());
+
+      // A forced flush checkpoints the offsets of all events appended so far
+      writer.append(createEvents(loggingContext, now, 20, 25));
+      writer.flush(true);
+      Assert.assertEquals(25, readAll(logReader, loggingContext).size());
+      Assert.assertEquals(1, checkpointManager.getSaved().size());
+      Assert.assertEquals(25L, checkpointManager.getSaved().get(0).get(0).getNextOffset());
+    } finally {
+      writer.close();
+    }
+    // Closing flushes and checkpoints again
+    Assert.assertEquals(2, checkpointManager.getSaved().size());
+  }
+
+  private List<LogEvent> readAll(FileLogReader logReader, LoggingContext loggingContext) {
+    return Lists.newArrayList(logReader.getLog(loggingContext, 0, Long.MAX_VALUE, Filter.EMPTY_FILTER));
+  }
+
+  /**
+   * Creates events for partition 0 with offsets in the given range.
+   */
+  private List<KafkaLogEvent> createEvents(LoggingContext loggingContext, long timestamp, int start, int end) {
+    List<KafkaLogEvent> events = new ArrayList<>();
+    for (int i = start; i < end; i++) {
+      ch.qos.logback.classic.spi.LoggingEvent event = new ch.qos.logback.classic.spi.LoggingEvent(
+        getClass().getName(), (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(getClass()),
+        Level.INFO, "Test log message " + i, null, null);
+      event.setTimeStamp(timestamp + i);
+      events.add(new KafkaLogEvent(LoggingEvent.encode(LogSchema.LoggingEvent.SCHEMA, event, loggingContext),
+                                   event, loggingContext, 0, i + 1));
+    }
+    return events;
+  }
+
+  /**
+   * A {@link CheckpointManager} that records the checkpoints saved.
+   */
+  private static final class RecordingCheckpointManager implements CheckpointManager {
+
+    private final List<Map<Integer, Checkpoint>> saved = new ArrayList<>();
+
+    @Override
+    public void saveCheckpoints(Map<Integer, Checkpoint> checkpoints) throws Exception {
+      saved.add(ImmutableMap.copyOf(checkpoints));
+    }
+
+    @Override
+    public Map<Integer, Checkpoint> getCheckpoint(Set<Integer> partitions) throws Exception {
+      return new HashMap<>();
+    }
+
+    @Override
+    public Checkpoint getCheckpoint(int partition) throws Exception {
+      return new Checkpoint(-1, -1);
+    }
+
+    List<Map<Integer, Checkpoint>> getSaved() {
+      return saved;
+    }
+  }
+}
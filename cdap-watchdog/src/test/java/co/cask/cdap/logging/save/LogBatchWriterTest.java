@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.save;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import co.cask.cdap.api.metrics.NoopMetricsContext;
+import co.cask.cdap.common.logging.LoggingContext;
+import co.cask.cdap.common.utils.Tasks;
+import co.cask.cdap.logging.context.FlowletLoggingContext;
+import co.cask.cdap.logging.kafka.KafkaLogEvent;
+import co.cask.cdap.logging.write.LogFileWriter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link LogBatchWriter}.
+ */
+public class LogBatchWriterTest {
+
+  private static final LoggingContext CONTEXT_1 = new FlowletLoggingContext("ns", "app", "flow", "f1", "run", "0");
+  private static final LoggingContext CONTEXT_2 = new FlowletLoggingContext("ns", "app", "flow", "f2", "run", "0");
+
+  @Test
+  public void testOrdering() throws Exception {
+    BlockingQueue<List<List<KafkaLogEvent>>> writeQueue = new ArrayBlockingQueue<>(10);
+    // Batches waiting in the queue are written together, in the order they were queued
+    writeQueue.add(ImmutableList.of(createEvents(CONTEXT_1, 1, 2), createEvents(CONTEXT_2, 3)));
+    writeQueue.add(ImmutableList.of(createEvents(CONTEXT_1, 4)));
+    writeQueue.add(ImmutableList.of(createEvents(CONTEXT_2, 5, 6)));
+
+    final RecordingLogFileWriter fileWriter = new RecordingLogFileWriter(-1L);
+    CountDownLatch stopLatch = new CountDownLatch(1);
+    Thread thread = startWriter(fileWriter, writeQueue, stopLatch);
+    try {
+      waitForFlushes(fileWriter, 1);
+
+      writeQueue.add(ImmutableList.of(createEvents(CONTEXT_1, 7), createEvents(CONTEXT_2, 8)));
+      waitForFlushes(fileWriter, 2);
+    } finally {
+      stopLatch.countDown();
+      thread.join();
+    }
+
+    Assert.assertEquals(ImmutableList.of(ImmutableList.of(2L, 3L, 4L, 5L, 6L, 7L), ImmutableList.of(8L, 9L)),
+                        fileWriter.getFlushed());
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    BlockingQueue<List<List<KafkaLogEvent>>> writeQueue = new ArrayBlockingQueue<>(10);
+    writeQueue.add(ImmutableList.of(createEvents(CONTEXT_1, 1), createEvents(CONTEXT_2, 2),
+                                    createEvents(CONTEXT_1, 3)));
+
+    // Fails appending the second list once
+    final RecordingLogFileWriter fileWriter = new RecordingLogFileWriter(3L);
+    CountDownLatch stopLatch = new CountDownLatch(1);
+    Thread thread = startWriter(fileWriter, writeQueue, stopLatch);
+    try {
+      waitForFlushes(fileWriter, 1);
+    } finally {
+      stopLatch.countDown();
+      thread.join();
+    }
+
+    // Nothing is flushed until the failed list is appended again, and the lists after it are appended in order
+    Assert.assertEquals(1, fileWriter.getFailures());
+    Assert.assertEquals(ImmutableList.of(ImmutableList.of(2L, 3L, 4L)), fileWriter.getFlushed());
+  }
+
+  private Thread startWriter(LogFileWriter<KafkaLogEvent> fileWriter,
+                             BlockingQueue<List<List<KafkaLogEvent>>> writeQueue, CountDownLatch stopLatch) {
+    Thread thread = new Thread(new LogBatchWriter(fileWriter, writeQueue, stopLatch, new NoopMetricsContext()));
+    thread.start();
+    return thread;
+  }
+
+  private void waitForFlushes(final RecordingLogFileWriter fileWriter, int flushes) throws Exception {
+    Tasks.waitFor(flushes, new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        return fileWriter.getFlushed().size();
+      }
+    }, 10, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Creates events with the given offsets. The next offset of each event is one more than its offset.
+   */
+  static List<KafkaLogEvent> createEvents(LoggingContext loggingContext, long... offsets) {
+    List<KafkaLogEvent> events = new ArrayList<>();
+    for (long offset : offsets) {
+      LoggingEvent event = new LoggingEvent(LogBatchWriterTest.class.getName(),
+                                            (Logger) LoggerFactory.getLogger(LogBatchWriterTest.class),
+                                            Level.INFO, "Test log message " + offset, null, null);
+      event.setTimeStamp(offset);
+      events.add(new KafkaLogEvent(null, event, loggingContext, 0, offset + 1));
+    }
+    return events;
+  }
+
+  /**
+   * A {@link LogFileWriter} that records the next offsets of the events appended before each flush.
+   */
+  private static final class RecordingLogFileWriter implements LogFileWriter<KafkaLogEvent> {
+
+    private final List<Long> appended = new ArrayList<>();
+    private final List<List<Long>> flushed = Collections.synchronizedList(new ArrayList<List<Long>>());
+    private long failOnNextOffset;
+    private int failures;
+
+    /**
+     * @param failOnNextOffset the append of a list starting with this next offset fails once
+     */
+    RecordingLogFileWriter(long failOnNextOffset) {
+      this.failOnNextOffset = failOnNextOffset;
+    }
+
+    @Override
+    public void append(List<KafkaLogEvent> events) throws Exception {
+      if (!events.isEmpty() && events.get(0).getNextOffset() == failOnNextOffset) {
+        failOnNextOffset = -1L;
+        failures++;
+        throw new IOException("Failed to append");
+      }
+      for (KafkaLogEvent event : events) {
+        appended.add(event.getNextOffset());
+      }
+    }
+
+    @Override
+    public void flush(boolean force) throws IOException {
+      // Only record flushes that have something to flush, since the writer flushes after every poll
+      if (!appended.isEmpty()) {
+        flushed.add(Lists.newArrayList(appended));
+        appended.clear();
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      flush(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+      // No-op
+    }
+
+    List<List<Long>> getFlushed() {
+      synchronized (flushed) {
+        return ImmutableList.copyOf(flushed);
+      }
+    }
+
+    int getFailures() {
+      return failures;
+    }
+  }
+}
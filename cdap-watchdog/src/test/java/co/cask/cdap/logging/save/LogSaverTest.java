@@ -39,8 +39,8 @@ import co.cask.cdap.logging.appender.kafka.LoggingEventSerializer;
 import co.cask.cdap.logging.context.FlowletLoggingContext;
 import co.cask.cdap.logging.context.LoggingContextHelper;
 import co.cask.cdap.logging.filter.Filter;
-import co.cask.cdap.logging.read.AvroFileReader;
 import co.cask.cdap.logging.read.FileLogReader;
+import co.cask.cdap.logging.read.IndexedLogFileReader;
 import co.cask.cdap.logging.read.LogEvent;
 import co.cask.cdap.logging.serialize.LogSchema;
 import co.cask.cdap.logging.write.FileMetaDataManager;
@@ -440,7 +440,7 @@ public class LogSaverTest extends KafkaTestBase {
       Map.Entry<Long, Location> lastEntry = files.lastEntry();
       if (lastEntry != null) {
         Location latestFile = lastEntry.getValue();
-        AvroFileReader logReader = new AvroFileReader(LogSchema.LoggingEvent.SCHEMA);
+        IndexedLogFileReader logReader = new IndexedLogFileReader(LogSchema.LoggingEvent.SCHEMA);
         LogCallback logCallback = new LogCallback();
         logCallback.init();
         NamespaceId namespaceId = LoggingContextHelper.getNamespaceId(loggingContext);
@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.save;
+
+import co.cask.cdap.api.metrics.NoopMetricsContext;
+import co.cask.cdap.common.logging.LoggingContext;
+import co.cask.cdap.logging.context.FlowletLoggingContext;
+import co.cask.cdap.logging.kafka.KafkaLogEvent;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.RowSortedTable;
+import com.google.common.collect.TreeBasedTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link LogWriter}.
+ */
+public class LogWriterTest {
+
+  private static final LoggingContext CONTEXT_1 = new FlowletLoggingContext("ns", "app", "flow", "f1", "run", "0");
+  private static final LoggingContext CONTEXT_2 = new FlowletLoggingContext("ns", "app", "flow", "f2", "run", "0");
+
+  @Test
+  public void testOrdering() throws Exception {
+    RowSortedTable<Long, String, Map.Entry<Long, List<KafkaLogEvent>>> messageTable = TreeBasedTable.create();
+    // Events are put out of order within a bucket, as they can be read from Kafka
+    put(messageTable, 1L, "f1", LogBatchWriterTest.createEvents(CONTEXT_1, 12, 10, 11));
+    put(messageTable, 1L, "f2", LogBatchWriterTest.createEvents(CONTEXT_2, 14, 13));
+    put(messageTable, 2L, "f1", LogBatchWriterTest.createEvents(CONTEXT_1, 21, 20));
+    put(messageTable, 3L, "f2", LogBatchWriterTest.createEvents(CONTEXT_2, 30));
+
+    // With a write queue of one batch, the grouping waits for the writer to take each batch
+    BlockingQueue<List<List<KafkaLogEvent>>> writeQueue = new ArrayBlockingQueue<>(1);
+    CountDownLatch stopLatch = new CountDownLatch(1);
+    Thread thread = new Thread(new LogWriter(messageTable, writeQueue, 10L, 2L, stopLatch,
+                                             new NoopMetricsContext()));
+    thread.start();
+    try {
+      // Each bucket becomes one batch, oldest bucket first, with events sorted by time for each logging context
+      Assert.assertEquals(ImmutableList.of(ImmutableList.of(11L, 12L, 13L), ImmutableList.of(14L, 15L)),
+                          getNextOffsets(writeQueue.poll(10, TimeUnit.SECONDS)));
+      Assert.assertEquals(ImmutableList.of(ImmutableList.of(21L, 22L)),
+                          getNextOffsets(writeQueue.poll(10, TimeUnit.SECONDS)));
+      Assert.assertEquals(ImmutableList.of(ImmutableList.of(31L)),
+                          getNextOffsets(writeQueue.poll(10, TimeUnit.SECONDS)));
+      Assert.assertNull(writeQueue.poll(200, TimeUnit.MILLISECONDS));
+    } finally {
+      stopLatch.countDown();
+      thread.join();
+    }
+
+    synchronized (messageTable) {
+      Assert.assertTrue(messageTable.isEmpty());
+    }
+  }
+
+  private void put(RowSortedTable<Long, String, Map.Entry<Long, List<KafkaLogEvent>>> messageTable,
+                   long bucket, String context, List<KafkaLogEvent> events) {
+    synchronized (messageTable) {
+      // Arrived long ago, hence ready to be written
+      messageTable.put(bucket, context, new AbstractMap.SimpleEntry<>(0L, events));
+    }
+  }
+
+  private List<List<Long>> getNextOffsets(List<List<KafkaLogEvent>> batch) {
+    Assert.assertNotNull(batch);
+    List<List<Long>> result = new ArrayList<>();
+    for (List<KafkaLogEvent> events : batch) {
+      List<Long> offsets = new ArrayList<>();
+      for (KafkaLogEvent event : events) {
+        offsets.add(event.getNextOffset());
+      }
+      result.add(offsets);
+    }
+    return result;
+  }
+}
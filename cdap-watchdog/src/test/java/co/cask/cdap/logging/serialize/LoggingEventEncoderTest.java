@@ -0,0 +1,148 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.logging.serialize;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import co.cask.cdap.common.logging.LoggingContext;
+import co.cask.cdap.common.logging.logback.TestLoggingContext;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Tests for {@link LoggingEventEncoder}.
+ */
+public class LoggingEventEncoderTest {
+
+  private static final LoggingContext LOGGING_CONTEXT = new TestLoggingContext("TEST_ACCT_ID1", "TEST_APP_ID1",
+                                                                                "RUN1", "INSTANCE1");
+
+  @Test
+  public void testFullEvent() throws IOException {
+    Map<String, String> mdcMap = Maps.newHashMap();
+    mdcMap.put("mdc1", "mdc-val1");
+    mdcMap.put("mdc2", null);
+    mdcMap.put(null, null);
+    // Reserved tag, replaced by the logging context
+    mdcMap.put(".namespaceId", "other");
+
+    Map<String, String> contextMap = Maps.newHashMap();
+    contextMap.put("p1", "ctx-val1");
+    contextMap.put("p2", null);
+    contextMap.put(".p3", "reserved");
+
+    ch.qos.logback.classic.spi.LoggingEvent event = new ch.qos.logback.classic.spi.LoggingEvent();
+    event.setThreadName("threadName1");
+    event.setLevel(Level.INFO);
+    event.setMessage("Log message1 {} {} {}");
+    event.setArgumentArray(new Object[]{null, "arg2", 100, null});
+    event.setLoggerName("loggerName1");
+    event.setLoggerContextRemoteView(new LoggerContextVO("logger_context1", contextMap, 12345634234L));
+    event.setMDCPropertyMap(mdcMap);
+
+    Exception cause = new Exception(null, null);
+    Exception exception = new Exception("Test Exception", cause);
+    exception.addSuppressed(new IllegalStateException("Suppressed"));
+    event.setThrowableProxy(new ThrowableProxy(exception));
+    event.prepareForDeferredProcessing();
+    ((ThrowableProxy) event.getThrowableProxy()).calculatePackagingData();
+
+    event.setCallerData(new StackTraceElement[]{
+      new StackTraceElement("com.Class1", "methodName1", "fileName1", 10),
+      null,
+      new StackTraceElement("com.Class3",  "methodName3", null, 30)
+    });
+    event.setTimeStamp(1234567890L);
+
+    assertEncoding(new LoggingEventEncoder(), event, LOGGING_CONTEXT);
+    // Without logging context, the MDC is written as is, which cannot have null keys
+    mdcMap.remove(null);
+    assertEncoding(new LoggingEventEncoder(), event, null);
+  }
+
+  @Test
+  public void testNullEvent() throws IOException {
+    ch.qos.logback.classic.spi.LoggingEvent event = new ch.qos.logback.classic.spi.LoggingEvent(
+      null, (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(getClass()), null, null, null, null);
+    event.setThreadName(null);
+    event.setLevel(null);
+    event.setLoggerName(null);
+    event.setLoggerContextRemoteView(null);
+    event.setMDCPropertyMap(Maps.<String, String>newHashMap());
+    event.setTimeStamp(-10000000L);
+
+    assertEncoding(new LoggingEventEncoder(), event, LOGGING_CONTEXT);
+    assertEncoding(new LoggingEventEncoder(), event, null);
+  }
+
+  @Test
+  public void testReuse() throws IOException {
+    LoggingEventEncoder encoder = new LoggingEventEncoder();
+
+    // Non-ASCII and surrogate pair characters, and a message larger than the initial buffer
+    String[] messages = {
+      "short", "éè 中文 😀", Strings.repeat("long é message ", 1000), "\ud800 x", ""
+    };
+    for (String message : messages) {
+      ch.qos.logback.classic.spi.LoggingEvent event = new ch.qos.logback.classic.spi.LoggingEvent(
+        getClass().getName(), (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(getClass()), Level.WARN,
+        message, null, null);
+      assertEncoding(encoder, event, LOGGING_CONTEXT);
+    }
+  }
+
+  /**
+   * Asserts that the event encoded by the {@link LoggingEventEncoder} decodes to the same record as the one
+   * encoded through {@link LoggingEvent}.
+   */
+  private void assertEncoding(LoggingEventEncoder encoder, ILoggingEvent event,
+                              @Nullable LoggingContext loggingContext) throws IOException {
+    GenericRecord expected = loggingContext == null
+      ? LoggingEvent.encode(LogSchema.LoggingEvent.SCHEMA, event)
+      : LoggingEvent.encode(LogSchema.LoggingEvent.SCHEMA, event, loggingContext);
+
+    // Write and read the expected record back, so that both are compared in their decoded form
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    BinaryEncoder binaryEncoder = EncoderFactory.get().directBinaryEncoder(os, null);
+    new GenericDatumWriter<GenericRecord>(LogSchema.LoggingEvent.SCHEMA).write(expected, binaryEncoder);
+
+    Assert.assertEquals(decode(ByteBuffer.wrap(os.toByteArray())), decode(encoder.encode(event, loggingContext)));
+  }
+
+  private GenericRecord decode(ByteBuffer buffer) throws IOException {
+    GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(LogSchema.LoggingEvent.SCHEMA);
+    return reader.read(null, DecoderFactory.get().binaryDecoder(buffer.array(), buffer.arrayOffset() +
+      buffer.position(), buffer.remaining(), null));
+  }
+}
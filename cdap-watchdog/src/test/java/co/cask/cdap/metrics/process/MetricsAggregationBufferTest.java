@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.metrics.process;
+
+import co.cask.cdap.api.metrics.MetricType;
+import co.cask.cdap.api.metrics.MetricValue;
+import co.cask.cdap.api.metrics.MetricValues;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit test for {@link MetricsAggregationBuffer}.
+ */
+public class MetricsAggregationBufferTest {
+
+  @Test
+  public void testMerge() {
+    Map<String, String> tags1 = ImmutableMap.of("ns", "ns1", "app", "app1");
+    Map<String, String> tags2 = ImmutableMap.of("ns", "ns1", "app", "app2");
+
+    MetricsAggregationBuffer buffer = new MetricsAggregationBuffer();
+    Assert.assertTrue(buffer.isEmpty());
+
+    buffer.add(new MetricValues(tags1, "counter", 10L, 1L, MetricType.COUNTER));
+    // Equal tags in a different map instance should be merged
+    buffer.add(new MetricValues(new HashMap<>(tags1), 10L,
+                                ImmutableList.of(new MetricValue("counter", MetricType.COUNTER, 2L),
+                                                 new MetricValue("gauge", MetricType.GAUGE, 5L))));
+    buffer.add(new MetricValues(tags1, "gauge", 10L, 3L, MetricType.GAUGE));
+    // Different timestamp and different tags are not merged
+    buffer.add(new MetricValues(tags1, "counter", 11L, 4L, MetricType.COUNTER));
+    buffer.add(new MetricValues(tags2, "counter", 10L, 8L, MetricType.COUNTER));
+
+    Assert.assertFalse(buffer.isEmpty());
+    Assert.assertEquals(5, buffer.getRecordCount());
+    Assert.assertEquals(4, buffer.getValueCount());
+    Assert.assertEquals(10L, buffer.getLastTimestamp());
+
+    List<MetricValues> result = buffer.getMetricValues();
+    Assert.assertEquals(3, result.size());
+
+    Assert.assertEquals(tags1, result.get(0).getTags());
+    Assert.assertEquals(10L, result.get(0).getTimestamp());
+    Map<String, MetricValue> values = toMap(result.get(0));
+    Assert.assertEquals(3L, values.get("counter").getValue());
+    Assert.assertEquals(MetricType.COUNTER, values.get("counter").getType());
+    Assert.assertEquals(3L, values.get("gauge").getValue());
+    Assert.assertEquals(MetricType.GAUGE, values.get("gauge").getType());
+
+    Assert.assertEquals(11L, result.get(1).getTimestamp());
+    Assert.assertEquals(4L, Iterables.getOnlyElement(result.get(1).getMetrics()).getValue());
+
+    Assert.assertEquals(tags2, result.get(2).getTags());
+    Assert.assertEquals(8L, Iterables.getOnlyElement(result.get(2).getMetrics()).getValue());
+
+    buffer.clear();
+    Assert.assertTrue(buffer.isEmpty());
+    Assert.assertEquals(0, buffer.getValueCount());
+    Assert.assertTrue(buffer.getMetricValues().isEmpty());
+  }
+
+  @Test
+  public void testMixedTypes() {
+    Map<String, String> tags = ImmutableMap.of("ns", "ns1");
+    MetricsAggregationBuffer buffer = new MetricsAggregationBuffer();
+
+    // Counter after gauge increments the gauge value, gauge after counter overrides it
+    buffer.add(new MetricValues(tags, "m1", 1L, 5L, MetricType.GAUGE));
+    buffer.add(new MetricValues(tags, "m1", 1L, 2L, MetricType.COUNTER));
+    buffer.add(new MetricValues(tags, "m2", 1L, 5L, MetricType.COUNTER));
+    buffer.add(new MetricValues(tags, "m2", 1L, 2L, MetricType.GAUGE));
+
+    Map<String, MetricValue> values = toMap(Iterables.getOnlyElement(buffer.getMetricValues()));
+    Assert.assertEquals(7L, values.get("m1").getValue());
+    Assert.assertEquals(MetricType.GAUGE, values.get("m1").getType());
+    Assert.assertEquals(2L, values.get("m2").getValue());
+    Assert.assertEquals(MetricType.GAUGE, values.get("m2").getType());
+  }
+
+  private Map<String, MetricValue> toMap(MetricValues metricValues) {
+    Map<String, MetricValue> result = new HashMap<>();
+    for (MetricValue value : metricValues.getMetrics()) {
+      result.put(value.getName(), value);
+    }
+    return result;
+  }
+}
@@ -20,10 +20,14 @@ import co.cask.cdap.api.dataset.lib.cube.AggregationFunction;
 import co.cask.cdap.api.dataset.lib.cube.TimeValue;
 import co.cask.cdap.api.messaging.TopicNotFoundException;
 import co.cask.cdap.api.metrics.MetricDataQuery;
+import co.cask.cdap.api.metrics.MetricDeleteQuery;
+import co.cask.cdap.api.metrics.MetricSearchQuery;
 import co.cask.cdap.api.metrics.MetricStore;
 import co.cask.cdap.api.metrics.MetricTimeSeries;
 import co.cask.cdap.api.metrics.MetricType;
 import co.cask.cdap.api.metrics.MetricValues;
+import co.cask.cdap.api.metrics.MetricsContext;
+import co.cask.cdap.api.metrics.TagValue;
 import co.cask.cdap.common.conf.Constants;
 import co.cask.cdap.common.guice.IOModule;
 import co.cask.cdap.common.guice.NonCustomLocationUnitTestModule;
@@ -55,6 +59,7 @@ import co.cask.cdap.security.authorization.AuthorizationTestModule;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
@@ -89,6 +94,7 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Testing the basic properties of the {@link MessagingMetricsProcessorService}.
@@ -168,14 +174,14 @@ public class MetricsProcessorServiceTest extends MessagingMetricsTestBase {
                                                                          metricStore, 4), TOPIC_PREFIX, partitions);
     kafkaMetricsProcessorService.startAndWait();
 
-    // Intentionally set fetcher persist threshold to a small value, so that MessagingMetricsProcessorService
-    // internally can persist metrics when more messages are to be fetched
+    // Intentionally set fetcher persist threshold and the buffer size to a small value, so that
+    // MessagingMetricsProcessorService internally can persist metrics when more messages are to be fetched
     MessagingMetricsProcessorService messagingMetricsProcessorService =
       new MessagingMetricsProcessorService(injector.getInstance(MetricDatasetFactory.class), TOPIC_PREFIX,
                                            partitions, messagingService, injector.getInstance(SchemaGenerator.class),
                                            injector.getInstance(DatumReaderFactory.class),
                                            metricStore,
-                                           1);
+                                           1, 1000L, 1, 2, 1);
     messagingMetricsProcessorService.startAndWait();
 
     // Publish metrics with messaging service and record expected metrics
@@ -186,14 +192,14 @@ public class MetricsProcessorServiceTest extends MessagingMetricsTestBase {
     Thread.sleep(5000);
     // Stop and restart messagingMetricsProcessorService
     messagingMetricsProcessorService.stopAndWait();
-    // Intentionally set fetcher persist threshold to a large value, so that MessagingMetricsProcessorService
-    // internally only persists metrics during terminating.
+    // Intentionally set fetcher persist threshold and the buffer size to a large value, so that
+    // MessagingMetricsProcessorService internally merges the metrics and persists them on flush interval.
     messagingMetricsProcessorService =
       new MessagingMetricsProcessorService(injector.getInstance(MetricDatasetFactory.class), TOPIC_PREFIX,
                                            partitions, messagingService, injector.getInstance(SchemaGenerator.class),
                                            injector.getInstance(DatumReaderFactory.class),
                                            metricStore,
-                                           100);
+                                           100, 1000L, 10000, 4, 64);
     messagingMetricsProcessorService.startAndWait();
 
     // Publish metrics after MessagingMetricsProcessorService restarts and record expected metrics
@@ -231,6 +237,53 @@ public class MetricsProcessorServiceTest extends MessagingMetricsTestBase {
     metricStore.deleteAll();
   }
 
+  @Test
+  public void testPartitionRetry() throws Exception {
+    injector.getInstance(TransactionManager.class).startAndWait();
+    injector.getInstance(DatasetOpExecutor.class).startAndWait();
+    injector.getInstance(DatasetService.class).startAndWait();
+
+    // Metrics of the two namespaces are written by different partitions with four writer threads.
+    // The partition with the failing namespace fails once.
+    Map<String, String> context = ImmutableMap.of(Constants.Metrics.Tag.NAMESPACE, "NS_1");
+    final Map<String, String> failingContext = ImmutableMap.of(Constants.Metrics.Tag.NAMESPACE, "NS_2");
+    final FailOnceMetricStore metricStore = new FailOnceMetricStore(injector.getInstance(MetricStore.class), "NS_2");
+
+    for (int i = 1; i <= 10; i++) {
+      for (Map<String, String> tags : ImmutableList.of(context, failingContext)) {
+        recordWriter.encode(new MetricValues(tags, COUNTER_METRIC_NAME, START_TIME + i, 1, MetricType.COUNTER),
+                            encoder);
+        messagingService.publish(StoreRequestBuilder.of(NamespaceId.SYSTEM.topic(TOPIC_PREFIX + 0))
+                                   .addPayloads(encoderOutputStream.toByteArray()).build());
+        encoderOutputStream.reset();
+      }
+    }
+
+    MessagingMetricsProcessorService messagingMetricsProcessorService =
+      new MessagingMetricsProcessorService(injector.getInstance(MetricDatasetFactory.class), TOPIC_PREFIX,
+                                           ImmutableSet.of(0), messagingService,
+                                           injector.getInstance(SchemaGenerator.class),
+                                           injector.getInstance(DatumReaderFactory.class),
+                                           metricStore,
+                                           100, 1000L, 10000, 4, 64);
+    messagingMetricsProcessorService.startAndWait();
+
+    final Map<String, Long> expected = ImmutableMap.of(EXPECTED_COUNTER_METRIC_NAME, 10L);
+    Tasks.waitFor(true, new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return canQueryAllMetrics(metricStore, failingContext, expected);
+      }
+    }, 10, TimeUnit.SECONDS, "Cannot get all expected metrics from the metrics store.");
+    messagingMetricsProcessorService.stopAndWait();
+
+    // The retry of the failed partition must not write the partition that succeeded again
+    Assert.assertTrue(metricStore.hasFailed());
+    assertMetricsResult(metricStore, context, expected);
+    assertMetricsResult(metricStore, failingContext, expected);
+    metricStore.deleteAll();
+  }
+
   private void addKafkaMetrics(int i, Map<String, String> metricsContext, Map<String, Long> expected,
                                KafkaPublisher.Preparer preparer, MetricType metricType)
     throws IOException, TopicNotFoundException {
@@ -340,6 +393,75 @@ public class MetricsProcessorServiceTest extends MessagingMetricsTestBase {
   }
 
 
+  /**
+   * A {@link MetricStore} that fails the first write of metrics of the given namespace.
+   */
+  private static final class FailOnceMetricStore implements MetricStore {
+    private final MetricStore delegate;
+    private final String failNamespace;
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    FailOnceMetricStore(MetricStore delegate, String failNamespace) {
+      this.delegate = delegate;
+      this.failNamespace = failNamespace;
+    }
+
+    boolean hasFailed() {
+      return failed.get();
+    }
+
+    @Override
+    public void setMetricsContext(MetricsContext metricsContext) {
+      delegate.setMetricsContext(metricsContext);
+    }
+
+    @Override
+    public void add(MetricValues metricValues) throws Exception {
+      add(ImmutableList.of(metricValues));
+    }
+
+    @Override
+    public void add(Collection<? extends MetricValues> metricValues) throws Exception {
+      for (MetricValues values : metricValues) {
+        if (failNamespace.equals(values.getTags().get(Constants.Metrics.Tag.NAMESPACE))
+          && failed.compareAndSet(false, true)) {
+          throw new IOException("Failing write of " + failNamespace);
+        }
+      }
+      delegate.add(metricValues);
+    }
+
+    @Override
+    public Collection<MetricTimeSeries> query(MetricDataQuery query) {
+      return delegate.query(query);
+    }
+
+    @Override
+    public void deleteBefore(long timestamp) throws Exception {
+      delegate.deleteBefore(timestamp);
+    }
+
+    @Override
+    public void delete(MetricDeleteQuery query) throws Exception {
+      delegate.delete(query);
+    }
+
+    @Override
+    public void deleteAll() throws Exception {
+      delegate.deleteAll();
+    }
+
+    @Override
+    public Collection<TagValue> findNextAvailableTags(MetricSearchQuery query) throws Exception {
+      return delegate.findNextAvailableTags(query);
+    }
+
+    @Override
+    public Collection<String> findMetricNames(MetricSearchQuery query) throws Exception {
+      return delegate.findMetricNames(query);
+    }
+  }
+
   private Properties generateKafkaConfig(TemporaryFolder tmpFolder) throws IOException {
     int port = Networks.getRandomPort();
     Preconditions.checkState(port > 0, "Failed to get random port.");
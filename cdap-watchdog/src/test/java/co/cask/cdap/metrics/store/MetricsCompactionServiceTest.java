@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2017 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.metrics.store;
+
+import co.cask.cdap.api.dataset.lib.cube.AggregationFunction;
+import co.cask.cdap.api.dataset.lib.cube.DimensionValue;
+import co.cask.cdap.api.dataset.lib.cube.TimeValue;
+import co.cask.cdap.api.metrics.MetricDataQuery;
+import co.cask.cdap.api.metrics.MetricStore;
+import co.cask.cdap.api.metrics.MetricTimeSeries;
+import co.cask.cdap.api.metrics.MetricType;
+import co.cask.cdap.api.metrics.MetricValues;
+import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.common.guice.IOModule;
+import co.cask.cdap.common.guice.NonCustomLocationUnitTestModule;
+import co.cask.cdap.common.kerberos.DefaultOwnerAdmin;
+import co.cask.cdap.common.kerberos.OwnerAdmin;
+import co.cask.cdap.common.namespace.guice.NamespaceClientRuntimeModule;
+import co.cask.cdap.common.security.UGIProvider;
+import co.cask.cdap.common.security.UnsupportedUGIProvider;
+import co.cask.cdap.common.utils.Tasks;
+import co.cask.cdap.data.runtime.DataFabricModules;
+import co.cask.cdap.data.runtime.DataSetServiceModules;
+import co.cask.cdap.data.runtime.DataSetsModules;
+import co.cask.cdap.data2.datafabric.dataset.service.DatasetService;
+import co.cask.cdap.data2.datafabric.dataset.service.executor.DatasetOpExecutor;
+import co.cask.cdap.data2.dataset2.lib.timeseries.FactScan;
+import co.cask.cdap.data2.dataset2.lib.timeseries.FactScanner;
+import co.cask.cdap.data2.dataset2.lib.timeseries.FactTable;
+import co.cask.cdap.explore.guice.ExploreClientModule;
+import co.cask.cdap.metrics.MessagingMetricsTestBase;
+import co.cask.cdap.security.auth.context.AuthenticationContextModules;
+import co.cask.cdap.security.authorization.AuthorizationEnforcementModule;
+import co.cask.cdap.security.authorization.AuthorizationTestModule;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Module;
+import com.google.inject.Scopes;
+import com.google.inject.util.Modules;
+import org.apache.tephra.TransactionManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link MetricsCompactionService}.
+ */
+public class MetricsCompactionServiceTest extends MessagingMetricsTestBase {
+
+  private static final Map<String, String> TAGS = ImmutableMap.of(Constants.Metrics.Tag.NAMESPACE, "ns1");
+
+  @Test
+  public void testCompaction() throws Exception {
+    injector.getInstance(TransactionManager.class).startAndWait();
+    injector.getInstance(DatasetOpExecutor.class).startAndWait();
+    injector.getInstance(DatasetService.class).startAndWait();
+
+    MetricStore metricStore = injector.getInstance(MetricStore.class);
+    long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    long aged = now - TimeUnit.HOURS.toSeconds(3);
+    metricStore.add(new MetricValues(TAGS, "count", aged, 1L, MetricType.COUNTER));
+    metricStore.add(new MetricValues(TAGS, "count", now, 2L, MetricType.COUNTER));
+
+    // Wait for the first run, which is scheduled right after start
+    final FactTable factTable = injector.getInstance(MetricDatasetFactory.class).getOrCreateFactTable(1);
+    final FactScan agedScan = new FactScan(aged, aged, "system.count",
+                                           ImmutableList.of(new DimensionValue(Constants.Metrics.Tag.NAMESPACE,
+                                                                               "ns1")));
+    MetricsCompactionService compactionService = injector.getInstance(MetricsCompactionService.class);
+    compactionService.startAndWait();
+    Tasks.waitFor(false, new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        FactScanner scanner = factTable.scan(agedScan);
+        try {
+          return scanner.hasNext();
+        } finally {
+          scanner.close();
+        }
+      }
+    }, 10, TimeUnit.SECONDS);
+    // Resumes from the persisted progress
+    compactionService.runOneIteration();
+    compactionService.stopAndWait();
+
+    // The aged value is deleted from the one second resolution, which has a retention of two hours by default
+    Assert.assertEquals(ImmutableList.of(now), getTimestamps(metricStore, 1, aged, now));
+    // Values within the retention of a resolution are kept
+    Assert.assertEquals(ImmutableList.of(aged / 60 * 60, now / 60 * 60), getTimestamps(metricStore, 60, aged, now));
+  }
+
+  private List<Long> getTimestamps(MetricStore metricStore, int resolution, long start, long end) {
+    MetricDataQuery query = new MetricDataQuery(start / resolution * resolution, end, resolution, Integer.MAX_VALUE,
+                                                ImmutableMap.of("system.count", AggregationFunction.SUM), TAGS,
+                                                ImmutableList.<String>of(), null);
+    List<Long> timestamps = Lists.newArrayList();
+    Collection<MetricTimeSeries> result = metricStore.query(query);
+    for (MetricTimeSeries timeSeries : result) {
+      for (TimeValue timeValue : timeSeries.getTimeValues()) {
+        timestamps.add(timeValue.getTimestamp());
+      }
+    }
+    return timestamps;
+  }
+
+  @Override
+  protected List<Module> getAdditionalModules() {
+    List<Module> list = new ArrayList<>();
+    list.add(new DataSetsModules().getStandaloneModules());
+    list.add(new IOModule());
+    list.add(Modules.override(
+      new NonCustomLocationUnitTestModule().getModule(),
+      new DataFabricModules().getInMemoryModules(),
+      new DataSetServiceModules().getInMemoryModules(),
+      new ExploreClientModule(),
+      new NamespaceClientRuntimeModule().getInMemoryModules(),
+      new AuthorizationTestModule(),
+      new AuthorizationEnforcementModule().getInMemoryModules(),
+      new AuthenticationContextModules().getMasterModule()
+    ).with(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(UGIProvider.class).to(UnsupportedUGIProvider.class);
+        bind(OwnerAdmin.class).to(DefaultOwnerAdmin.class);
+        bind(MetricDatasetFactory.class).to(DefaultMetricDatasetFactory.class).in(Scopes.SINGLETON);
+        bind(MetricStore.class).to(DefaultMetricStore.class).in(Scopes.SINGLETON);
+      }
+    }));
+    return list;
+  }
+}